@@ -0,0 +1,28 @@
+package com.rackspace.feeds.filter;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options, e.g. a regular expression of
+ * the benchmarks to run, or -p entries=1000. The GC profiler is always added, so the
+ * results have the allocation rate per operation next to the throughput and latency.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar [JMH options]
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,130 @@
+package com.rackspace.feeds.filter;
+
+/**
+ * The feeds the benchmarks run on: pages of usage entries for tenant 5914283, with the
+ * links and categories Atom Hopper writes for a tenanted request, i.e. with the tenanted
+ * search TenantedFilter adds.
+ */
+final class Feeds {
+
+    static final String TENANT_ID = "5914283";
+
+    static final String BASE_URL = "https://atom.test.ord1.us.ci.rackspace.net/functest1/events";
+
+    static final String TENANTED_SEARCH =
+            "search=%28AND%28AND%28cat%3Dtid%3A" + TENANT_ID + "%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29";
+
+    static final String ENTRY_ID = "urn:uuid:c2575a57-9c31-41dd-0888-86ff59a05541";
+
+    private Feeds() {
+    }
+
+    /**
+     * @param entries  how many entries the page has
+     * @return the page, in UTF-8
+     */
+    static byte[] feed(int entries) {
+        StringBuilder feed = new StringBuilder();
+        feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n")
+            .append("  <link href=\"").append(BASE_URL).append("/\" rel=\"current\"/>\n")
+            .append("  <link href=\"").append(BASE_URL).append("/?limit=").append(entries).append("&amp;")
+            .append(TENANTED_SEARCH).append("&amp;direction=backward\" rel=\"self\"/>\n")
+            .append("  <id>urn:uuid:8a19f709-820e-4e4e-bffb-dd0fb5879071</id>\n")
+            .append("  <title type=\"text\">functest1/events</title>\n")
+            .append("  <link href=\"").append(BASE_URL).append("/?marker=").append(id(0)).append("&amp;limit=")
+            .append(entries).append("&amp;").append(TENANTED_SEARCH).append("&amp;direction=forward\" rel=\"previous\"/>\n")
+            .append("  <link href=\"").append(BASE_URL).append("/?marker=").append(id(entries - 1)).append("&amp;limit=")
+            .append(entries).append("&amp;").append(TENANTED_SEARCH).append("&amp;direction=backward\" rel=\"next\"/>\n")
+            .append("  <link href=\"").append(BASE_URL).append("/?marker=last&amp;limit=").append(entries).append("&amp;")
+            .append(TENANTED_SEARCH).append("&amp;direction=backward\" rel=\"last\"/>\n")
+            .append("  <updated>2014-09-11T03:12:40.085Z</updated>\n");
+        for ( int i = 0; i < entries; i++ ) {
+            appendEntry(feed, id(i));
+        }
+        feed.append("</feed>\n");
+        return feed.toString().getBytes(MockServlets.UTF_8);
+    }
+
+    /**
+     * @param bytes  the size the page should have, at least one entry
+     * @return a page with as many entries as it takes to reach that size, in UTF-8
+     */
+    static byte[] feedOfSize(int bytes) {
+        // the ids have a fixed width, so every entry adds the same number of bytes
+        int pageSize = feed(1).length;
+        int entrySize = feed(2).length - pageSize;
+        int entries = Math.max(1, 1 + (bytes - pageSize + entrySize - 1) / entrySize);
+        return feed(entries);
+    }
+
+    /**
+     * @param contentEvents  how many events the content of the entry has, to give it the
+     *                       size of a page of that many entries
+     * @return a single entry, in UTF-8
+     */
+    static byte[] entry(int contentEvents) {
+        StringBuilder entry = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        entry.append("<entry xmlns=\"http://www.w3.org/2005/Atom\">\n")
+             .append("  <id>").append(ENTRY_ID).append("</id>\n")
+             .append("  <category term=\"tid:").append(TENANT_ID).append("\"/>\n")
+             .append("  <category term=\"rgn:DFW\"/>\n")
+             .append("  <title type=\"text\">Cloud Big Data</title>\n")
+             .append("  <content type=\"application/xml\">\n")
+             .append("    <events xmlns=\"http://docs.rackspace.com/core/event\">\n");
+        for ( int i = 0; i < contentEvents; i++ ) {
+            appendEvent(entry, id(i));
+        }
+        entry.append("    </events>\n")
+             .append("  </content>\n")
+             .append("  <link href=\"").append(BASE_URL).append("/entries/").append(ENTRY_ID).append("\" rel=\"self\"/>\n")
+             .append("  <updated>2014-09-28T05:38:59.995Z</updated>\n")
+             .append("</entry>\n");
+        return entry.toString().getBytes(MockServlets.UTF_8);
+    }
+
+    /**
+     * @param entries
+     * @return the Link header of a page of entries, with the tenanted search
+     */
+    static String linkHeader(int entries) {
+        return "<" + BASE_URL + "/?marker=" + id(0) + "&limit=" + entries + "&" + TENANTED_SEARCH
+               + "&direction=forward>; rel=\"previous\", <" + BASE_URL + "/?marker=" + id(entries - 1)
+               + "&limit=" + entries + "&" + TENANTED_SEARCH + "&direction=backward>; rel=\"next\", <"
+               + BASE_URL + "/?marker=last&limit=" + entries + "&" + TENANTED_SEARCH
+               + "&direction=backward>; rel=\"last\"";
+    }
+
+    static String id(int i) {
+        return String.format("urn:uuid:c2575a57-9c31-41dd-0888-%012d", i);
+    }
+
+    private static void appendEntry(StringBuilder feed, String id) {
+        feed.append("  <atom:entry xmlns:atom=\"http://www.w3.org/2005/Atom\">\n")
+            .append("    <atom:id>").append(id).append("</atom:id>\n")
+            .append("    <atom:category term=\"tid:").append(TENANT_ID).append("\"/>\n")
+            .append("    <atom:category term=\"rgn:DFW\"/>\n")
+            .append("    <atom:category term=\"type:bigdata.bigdata.hbase_hdp1_3.usage\"/>\n")
+            .append("    <atom:title type=\"text\">Cloud Big Data</atom:title>\n")
+            .append("    <atom:author><atom:name>Atom Hopper Team</atom:name></atom:author>\n")
+            .append("    <atom:content type=\"application/xml\">\n");
+        appendEvent(feed, id);
+        feed.append("    </atom:content>\n")
+            .append("    <atom:link href=\"").append(BASE_URL).append("/entries/").append(id).append("\" rel=\"self\"/>\n")
+            .append("    <atom:updated>2014-09-28T05:38:59.995Z</atom:updated>\n")
+            .append("    <atom:published>2014-09-28T05:38:59.995Z</atom:published>\n")
+            .append("  </atom:entry>\n");
+    }
+
+    private static void appendEvent(StringBuilder xml, String id) {
+        xml.append("      <event xmlns=\"http://docs.rackspace.com/core/event\"")
+           .append(" xmlns:bigdata=\"http://docs.rackspace.com/usage/bigdata\" dataCenter=\"DFW1\"")
+           .append(" endTime=\"2013-03-16T11:51:11Z\" environment=\"PROD\" id=\"").append(id.substring(9))
+           .append("\" region=\"DFW\" resourceId=\"56\" startTime=\"2013-03-15T11:51:11Z\" tenantId=\"")
+           .append(TENANT_ID).append("\" type=\"USAGE\" version=\"1\">\n")
+           .append("        <bigdata:product aggregatedClusterDuration=\"259200000\" bandwidthIn=\"1024\"")
+           .append(" bandwidthOut=\"19992\" flavorId=\"10\" flavorName=\"Cloud Big Data \u00e9dition\"")
+           .append(" numberServersInCluster=\"3000\" resourceType=\"HBASE_HDP1_3\" serviceCode=\"BigData\" version=\"1\"/>\n")
+           .append("      </event>\n");
+    }
+}
@@ -0,0 +1,256 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of the servlet API to run the filters outside of a container: requests
+ * and responses backed by maps, a FilterConfig, and a FilterChain writing a fixed body.
+ * The methods a benchmark doesn't need return null, false or 0.
+ */
+final class MockServlets {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MockServlets() {
+    }
+
+    /**
+     * @param method
+     * @param uri      the request URI, with no query string
+     * @param query    the query string, or null
+     * @param headers  the request headers, by name
+     * @return a request that isn't async supported
+     */
+    static HttpServletRequest request(String method, String uri, String query, Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(MockServlets.class.getClassLoader(),
+                                                           new Class[] { HttpServletRequest.class },
+                                                           new RequestHandler(method, uri, query, headers));
+    }
+
+    /**
+     * @param body  where the body of the response is written
+     * @return a response that is never committed
+     */
+    static HttpServletResponse response(OutputStream body) {
+        return (HttpServletResponse) Proxy.newProxyInstance(MockServlets.class.getClassLoader(),
+                                                            new Class[] { HttpServletResponse.class },
+                                                            new ResponseHandler(body));
+    }
+
+    /**
+     * @param params  the init params, by name
+     * @return a config for a filter named "benchmark"
+     */
+    static FilterConfig filterConfig(final Map<String, String> params) {
+        return new FilterConfig() {
+            public String getFilterName() {
+                return "benchmark";
+            }
+
+            public ServletContext getServletContext() {
+                return null;
+            }
+
+            public String getInitParameter(String name) {
+                return params.get(name);
+            }
+
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(params.keySet());
+            }
+        };
+    }
+
+    /**
+     * @param contentType
+     * @param body
+     * @param headers      headers set on the response before the body, e.g. Link
+     * @return the end of the chain, writing a 200 with body
+     */
+    static FilterChain chain(final String contentType, final byte[] body, final Map<String, String> headers) {
+        return new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException, ServletException {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setStatus(HttpServletResponse.SC_OK);
+                httpResponse.setContentType(contentType);
+                for ( Map.Entry<String, String> header : headers.entrySet() ) {
+                    httpResponse.setHeader(header.getKey(), header.getValue());
+                }
+                httpResponse.getOutputStream().write(body);
+            }
+        };
+    }
+
+    /**
+     * @param type
+     * @return what a method returning type returns when it is not mocked
+     */
+    private static Object defaultValue(Class<?> type) {
+        if ( type == boolean.class ) {
+            return false;
+        }
+        if ( type == int.class ) {
+            return 0;
+        }
+        if ( type == long.class ) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static class RequestHandler implements InvocationHandler {
+
+        private final String method;
+        private final String uri;
+        private final String query;
+        private final Map<String, String> headers;
+        private final Map<String, String> parameters = new HashMap<String, String>();
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        RequestHandler(String method, String uri, String query, Map<String, String> headers) {
+            this.method = method;
+            this.uri = uri;
+            this.query = query;
+            this.headers = headers;
+            if ( query != null ) {
+                for ( String parameter : query.split("&") ) {
+                    int equals = parameter.indexOf('=');
+                    if ( equals > 0 ) {
+                        parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+                    }
+                }
+            }
+        }
+
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if ( name.equals("getMethod") ) {
+                return method;
+            } else if ( name.equals("getRequestURI") ) {
+                return uri;
+            } else if ( name.equals("getQueryString") ) {
+                return query;
+            } else if ( name.equals("getRequestURL") ) {
+                return new StringBuffer("https://localhost").append(uri);
+            } else if ( name.equals("getHeader") ) {
+                return headers.get(args[0]);
+            } else if ( name.equals("getHeaders") ) {
+                String value = headers.get(args[0]);
+                return Collections.enumeration(value != null ? Collections.singletonList(value)
+                                                             : Collections.<String>emptyList());
+            } else if ( name.equals("getParameter") ) {
+                return parameters.get(args[0]);
+            } else if ( name.equals("getAttribute") ) {
+                return attributes.get(args[0]);
+            } else if ( name.equals("setAttribute") ) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            } else if ( name.equals("removeAttribute") ) {
+                attributes.remove(args[0]);
+                return null;
+            } else if ( name.equals("toString") ) {
+                return method + " " + uri;
+            }
+            return defaultValue(m.getReturnType());
+        }
+    }
+
+    private static class ResponseHandler implements InvocationHandler {
+
+        private final ServletOutputStream outputStream;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private PrintWriter writer = null;
+        private int status = HttpServletResponse.SC_OK;
+        private String contentType = null;
+
+        ResponseHandler(OutputStream body) {
+            this.outputStream = new ServletOutputStreamWrapper(body);
+        }
+
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if ( name.equals("getOutputStream") ) {
+                return outputStream;
+            } else if ( name.equals("getWriter") ) {
+                if ( writer == null ) {
+                    writer = new PrintWriter(new OutputStreamWriter(outputStream, UTF_8));
+                }
+                return writer;
+            } else if ( name.equals("setStatus") || name.equals("sendError") ) {
+                status = (Integer) args[0];
+                return null;
+            } else if ( name.equals("getStatus") ) {
+                return status;
+            } else if ( name.equals("setContentType") ) {
+                contentType = (String) args[0];
+                return null;
+            } else if ( name.equals("getContentType") ) {
+                return contentType;
+            } else if ( name.equals("getCharacterEncoding") ) {
+                return UTF_8.name();
+            } else if ( name.equals("setHeader") || name.equals("addHeader") ) {
+                headers.put(((String) args[0]).toLowerCase(), (String) args[1]);
+                return null;
+            } else if ( name.equals("getHeader") ) {
+                return headers.get(((String) args[0]).toLowerCase());
+            } else if ( name.equals("containsHeader") ) {
+                return headers.containsKey(((String) args[0]).toLowerCase());
+            } else if ( name.equals("flushBuffer") ) {
+                if ( writer != null ) {
+                    writer.flush();
+                }
+                return null;
+            } else if ( name.equals("toString") ) {
+                return "response " + status;
+            }
+            return defaultValue(m.getReturnType());
+        }
+    }
+
+    /**
+     * Counts the bytes written to it, and drops them.
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+    }
+}
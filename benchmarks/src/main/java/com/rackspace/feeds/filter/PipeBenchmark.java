@@ -0,0 +1,102 @@
+package com.rackspace.feeds.filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a page of entries through ChunkedPipe, the pipe ServletResponsePipe uses, and
+ * through java.io.PipedInputStream, the pipe it used before. The writer uses 8 KB writes
+ * and the reader 8 KB reads, like the servlet container and the XML parser.
+ *
+ * The page is given by a number of entries or, ending with B, by a size in bytes: 10 KB,
+ * 1 MB and 20 MB, to see how the pipes hold up as the body outgrows their buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipeBenchmark {
+
+    static final int IO_SIZE = 8192;
+
+    @Param({ "1", "25", "100", "1000", "10240B", "1048576B", "20971520B" })
+    String page;
+
+    @Param({ "chunked", "piped" })
+    String pipe;
+
+    private byte[] feed;
+    private ExecutorService writers;
+
+    @Setup
+    public void setup() {
+        if ( page.endsWith("B") ) {
+            feed = Feeds.feedOfSize(Integer.parseInt(page.substring(0, page.length() - 1)));
+        } else {
+            feed = Feeds.feed(Integer.parseInt(page));
+        }
+        writers = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        writers.shutdownNow();
+    }
+
+    @Benchmark
+    public long transfer() throws Exception {
+        final OutputStream output;
+        InputStream input;
+        if ( pipe.equals("chunked") ) {
+            ChunkedPipe chunkedPipe = new ChunkedPipe();
+            output = chunkedPipe.getOutputStream();
+            input = chunkedPipe.getInputStream();
+        } else {
+            PipedInputStream pipedInput = new PipedInputStream();
+            output = new PipedOutputStream(pipedInput);
+            input = pipedInput;
+        }
+
+        Future<Void> writer = writers.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                for ( int off = 0; off < feed.length; off += IO_SIZE ) {
+                    output.write(feed, off, Math.min(IO_SIZE, feed.length - off));
+                }
+                output.close();
+                return null;
+            }
+        });
+
+        byte[] buffer = new byte[IO_SIZE];
+        long count = 0;
+        int n;
+        while ( (n = input.read(buffer)) != -1 ) {
+            count += n;
+        }
+        writer.get();
+        return count;
+    }
+}
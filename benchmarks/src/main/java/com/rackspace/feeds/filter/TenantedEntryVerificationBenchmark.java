@@ -0,0 +1,66 @@
+package com.rackspace.feeds.filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs TenantedEntryVerificationFilter on a request for a tenanted entry, visible to the
+ * tenant, so the whole response is buffered, scanned and written out. An entry has no
+ * entries of its own: its content is given the events of a page of that many entries
+ * instead, to scale it the same way as the other benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TenantedEntryVerificationBenchmark {
+
+    @Param({ "1", "25", "100", "1000" })
+    int entries;
+
+    private TenantedEntryVerificationFilter filter;
+    private HttpServletRequest request;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() throws Exception {
+        filter = new TenantedEntryVerificationFilter();
+        filter.init(MockServlets.filterConfig(Collections.<String, String>emptyMap()));
+        request = MockServlets.request("GET",
+                                       "/functest1/events/" + Feeds.TENANT_ID + "/entries/" + Feeds.ENTRY_ID,
+                                       null,
+                                       Collections.<String, String>emptyMap());
+        chain = MockServlets.chain("application/atom+xml",
+                                   Feeds.entry(entries),
+                                   Collections.<String, String>emptyMap());
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    @Benchmark
+    public long verify() throws Exception {
+        MockServlets.CountingOutputStream output = new MockServlets.CountingOutputStream();
+        filter.doFilter(request, MockServlets.response(output), chain);
+        return output.getCount();
+    }
+}
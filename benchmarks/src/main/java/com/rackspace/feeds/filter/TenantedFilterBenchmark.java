@@ -0,0 +1,102 @@
+package com.rackspace.feeds.filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites the links of the response to a tenanted request: the Link header alone, as
+ * TenantedResponse does for every page whatever its size, and the whole page, as
+ * TenantedFilter does with the XSLT or with StreamingTenantedLinkRewriter.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TenantedFilterBenchmark {
+
+    /**
+     * The Link header of a page of 25 entries, the default limit.
+     */
+    @State(Scope.Benchmark)
+    public static class LinkHeader {
+
+        String value;
+        HttpServletResponse response;
+
+        @Setup
+        public void setup() {
+            value = Feeds.linkHeader(25);
+            response = MockServlets.response(new MockServlets.CountingOutputStream());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Page {
+
+        @Param({ "1", "25", "100", "1000" })
+        int entries;
+
+        @Param({ "xslt", "streaming" })
+        String transformMode;
+
+        TenantedFilter filter;
+        HttpServletRequest request;
+        FilterChain chain;
+
+        @Setup
+        public void setup() throws Exception {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("transformMode", transformMode);
+            filter = new TenantedFilter();
+            filter.init(MockServlets.filterConfig(params));
+
+            request = MockServlets.request("GET",
+                                           "/functest1/events/" + Feeds.TENANT_ID,
+                                           "limit=" + entries,
+                                           Collections.<String, String>emptyMap());
+            chain = MockServlets.chain("application/atom+xml",
+                                       Feeds.feed(entries),
+                                       Collections.singletonMap("Link", Feeds.linkHeader(entries)));
+        }
+
+        @TearDown
+        public void tearDown() {
+            filter.destroy();
+        }
+    }
+
+    @Benchmark
+    public String rewriteLinkHeader(LinkHeader header) {
+        TenantedFilter.TenantedResponse response =
+                new TenantedFilter.TenantedResponse(header.response, Feeds.TENANT_ID);
+        return response.rewriteHeader(TenantedFilter.LINK_HEADER, header.value);
+    }
+
+    @Benchmark
+    public long rewritePage(Page page) throws Exception {
+        MockServlets.CountingOutputStream output = new MockServlets.CountingOutputStream();
+        HttpServletResponse response = MockServlets.response(output);
+        page.filter.doFilter(page.request, response, page.chain);
+        response.flushBuffer();
+        return output.getCount();
+    }
+}
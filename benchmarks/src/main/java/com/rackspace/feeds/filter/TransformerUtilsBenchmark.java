@@ -0,0 +1,82 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms a page of entries with a stylesheet, the way the XSLT based filters do
+ * once the response has been piped to them.
+ *
+ * The stylesheets are those shipped in the filter jars. Those of the
+ * standard-usage-schemas rpm can be given as files, e.g.
+ * -p stylesheet=/etc/cloudfeeds/translation/xml2json-feeds.xsl -p initialTemplate=main
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformerUtilsBenchmark {
+
+    @Param({ "1", "25", "100", "1000" })
+    int entries;
+
+    @Param({ "/xslt/external-href.xsl", "/xslt/rm-tenanted-search.xsl" })
+    String stylesheet;
+
+    @Param({ "" })
+    String initialTemplate;
+
+    private TransformerUtils transformer;
+    private byte[] feed;
+    private Map<String, Object> xsltParameters;
+
+    @Setup
+    public void setup() throws Exception {
+        String template = StringUtils.defaultIfEmpty(initialTemplate, null);
+        if ( new File(stylesheet).isFile() ) {
+            transformer = TransformerUtils.getInstanceForXsltAsFile(stylesheet, template);
+        } else {
+            transformer = TransformerUtils.getInstanceForXsltAsResource(stylesheet, template);
+        }
+        feed = Feeds.feed(entries);
+
+        xsltParameters = new HashMap<String, Object>();
+        xsltParameters.put("correct_url", "https://ord.feeds.api.rackspacecloud.com");
+        xsltParameters.put(StreamingTenantedLinkRewriter.TENANT_ID_PARAM, Feeds.TENANT_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        transformer.destroy();
+    }
+
+    @Benchmark
+    public long doTransform() throws Exception {
+        MockServlets.CountingOutputStream output = new MockServlets.CountingOutputStream();
+        transformer.doTransform(xsltParameters,
+                                new StreamSource(new ByteArrayInputStream(feed)),
+                                new StreamResult(output));
+        return output.getCount();
+    }
+}
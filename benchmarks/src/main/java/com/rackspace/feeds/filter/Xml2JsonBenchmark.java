@@ -0,0 +1,100 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a page of entries to JSON with Xml2JsonFilter, which pipes the response to
+ * the transform, and with Xml2JsonNoStreamFilter, which buffers it and sends the JSON
+ * with its length.
+ *
+ * xml2json-feeds.xsl is not in this project, so by default the filters convert with a
+ * stand-in stylesheet writing the document as JSON. To run the stylesheet of the
+ * standard-usage-schemas rpm instead, use
+ * -p xsltFile=/etc/cloudfeeds/translation/xml2json-feeds.xsl
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Xml2JsonBenchmark {
+
+    static final String PLACEHOLDER_XSLT = "/xslt/main-xml2json.xsl";
+
+    @Param({ "1", "25", "100", "1000" })
+    int entries;
+
+    @Param({ "Xml2JsonFilter", "Xml2JsonNoStreamFilter" })
+    String filterClass;
+
+    @Param({ "" })
+    String xsltFile;
+
+    private Xml2JsonFilter filter;
+    private HttpServletRequest request;
+    private FilterChain chain;
+    private File placeholder = null;
+
+    @Setup
+    public void setup() throws Exception {
+        String xslt = xsltFile;
+        if ( StringUtils.isEmpty(xslt) ) {
+            placeholder = File.createTempFile("main-xml2json", ".xsl");
+            FileUtils.copyURLToFile(getClass().getResource(PLACEHOLDER_XSLT), placeholder);
+            xslt = placeholder.getPath();
+        }
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("xsltFile", xslt);
+        filter = filterClass.equals("Xml2JsonNoStreamFilter") ? new Xml2JsonNoStreamFilter() : new Xml2JsonFilter();
+        filter.init(MockServlets.filterConfig(params));
+
+        request = MockServlets.request("GET",
+                                       "/functest1/events",
+                                       "limit=" + entries,
+                                       Collections.singletonMap("Accept", Xml2JsonFilter.RAX_JSON_MEDIA_TYPE));
+        chain = MockServlets.chain(Xml2JsonFilter.ATOM_XML_MEDIA_TYPE,
+                                   Feeds.feed(entries),
+                                   Collections.<String, String>emptyMap());
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+        if ( placeholder != null ) {
+            FileUtils.deleteQuietly(placeholder);
+        }
+    }
+
+    @Benchmark
+    public long toJson() throws Exception {
+        MockServlets.CountingOutputStream output = new MockServlets.CountingOutputStream();
+        HttpServletResponse response = MockServlets.response(output);
+        filter.doFilter(request, response, chain);
+        response.flushBuffer();
+        return output.getCount();
+    }
+}
@@ -0,0 +1,63 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+    Stands in for xml2json-feeds.xsl of the standard-usage-schemas rpm, which is not in this
+    project, when Xml2JsonBenchmark runs the filters. From the 'main' initial template
+    it uses, it writes the document as JSON: an element is a member named after it, a string
+    if it only has text, else an object with its attributes, its text as "@text" and its
+    children grouped in arrays. It doesn't type values from the usage schemas like the real one.
+-->
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+    xmlns:xs="http://www.w3.org/2001/XMLSchema"
+    xmlns:json="urn:local:main-xml2json"
+    exclude-result-prefixes="xs json"
+    version="2.0">
+
+    <xsl:output method="text" encoding="UTF-8"/>
+
+    <xsl:template name="main">
+        <xsl:value-of select="concat('{', json:name(/*), ':', json:value(/*), '}')"/>
+    </xsl:template>
+
+    <xsl:function name="json:value" as="xs:string">
+        <xsl:param name="element" as="element()"/>
+        <xsl:choose>
+            <xsl:when test="$element/@* or $element/*">
+                <xsl:variable name="text" select="string-join($element/text(), '')"/>
+                <xsl:variable name="members" as="xs:string*">
+                    <xsl:sequence select="for $attribute in $element/@*
+                                          return concat(json:name($attribute), ':', json:string($attribute))"/>
+                    <xsl:if test="normalize-space($text)">
+                        <xsl:sequence select="concat('&quot;@text&quot;:', json:string($text))"/>
+                    </xsl:if>
+                    <xsl:for-each-group select="$element/*" group-by="local-name()">
+                        <xsl:sequence select="concat(json:name(.), ':[',
+                                                     string-join(for $child in current-group() return json:value($child), ','),
+                                                     ']')"/>
+                    </xsl:for-each-group>
+                </xsl:variable>
+                <xsl:sequence select="concat('{', string-join($members, ','), '}')"/>
+            </xsl:when>
+            <xsl:otherwise>
+                <xsl:sequence select="json:string($element)"/>
+            </xsl:otherwise>
+        </xsl:choose>
+    </xsl:function>
+
+    <xsl:function name="json:name" as="xs:string">
+        <xsl:param name="node" as="node()"/>
+        <xsl:sequence select="json:string(local-name($node))"/>
+    </xsl:function>
+
+    <xsl:function name="json:string" as="xs:string">
+        <xsl:param name="value" as="xs:string"/>
+        <xsl:sequence select="concat('&quot;',
+                                     replace(replace(replace(replace(replace($value,
+                                             '\\', '\\\\'),
+                                             '&quot;', '\\&quot;'),
+                                             '&#10;', '\\n'),
+                                             '&#13;', '\\r'),
+                                             '&#9;', '\\t'),
+                                     '&quot;')"/>
+    </xsl:function>
+
+</xsl:stylesheet>
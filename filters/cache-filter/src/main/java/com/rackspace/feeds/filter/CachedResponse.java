@@ -0,0 +1,117 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The final bytes and headers of a response, as the filter chain wrote them, and
+ * when they expire. The body may also be kept gzipped, to be served as it is to the
+ * clients accepting gzip.
+ */
+class CachedResponse {
+
+    private final String contentType;
+    private final List<String[]> headers;
+    private final byte[] body;
+    private final byte[] gzippedBody;
+    private final long expiresAt;
+
+    /**
+     * @param contentType
+     * @param headers      name and value of each header, in the order they were set
+     * @param body
+     * @param expiresAt    in milliseconds since the epoch
+     */
+    CachedResponse(String contentType, List<String[]> headers, byte[] body, long expiresAt) {
+        this(contentType, headers, body, null, expiresAt);
+    }
+
+    /**
+     * @param contentType
+     * @param headers      name and value of each header, in the order they were set
+     * @param body
+     * @param gzippedBody  the body gzipped, or null
+     * @param expiresAt    in milliseconds since the epoch
+     */
+    CachedResponse(String contentType, List<String[]> headers, byte[] body, byte[] gzippedBody, long expiresAt) {
+        this.contentType = contentType;
+        this.headers = headers;
+        this.body = body;
+        this.gzippedBody = gzippedBody;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param gzipped  the body gzipped
+     * @return the same response, with the body also kept gzipped
+     */
+    CachedResponse withGzippedBody(byte[] gzipped) {
+        return new CachedResponse(contentType, headers, body, gzipped, expiresAt);
+    }
+
+    boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * @return roughly how many bytes of memory the response takes
+     */
+    int getSize() {
+        int size = body.length + (gzippedBody != null ? gzippedBody.length : 0);
+        for ( String[] header : headers ) {
+            size += 2 * (header[0].length() + header[1].length());
+        }
+        return size;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    List<String[]> getHeaders() {
+        return headers;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    byte[] getGzippedBody() {
+        return gzippedBody;
+    }
+
+    /**
+     * Writes the status, headers and body to the response.
+     *
+     * @param response
+     * @param gzip      true to write the gzipped body, if there is one
+     * @throws IOException
+     */
+    void writeTo(HttpServletResponse response, boolean gzip) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        Set<String> written = new HashSet<String>();
+        for ( String[] header : headers ) {
+            if ( written.add(header[0].toLowerCase()) ) {
+                response.setHeader(header[0], header[1]);
+            } else {
+                response.addHeader(header[0], header[1]);
+            }
+        }
+        if ( contentType != null ) {
+            response.setContentType(contentType);
+        }
+        byte[] content = body;
+        if ( gzippedBody != null ) {
+            response.addHeader(CompressionFilter.VARY_HEADER, CompressionFilter.ACCEPT_ENCODING_HEADER);
+            if ( gzip ) {
+                response.setHeader(CompressionFilter.CONTENT_ENCODING_HEADER, CompressionFilter.GZIP);
+                content = gzippedBody;
+            }
+        }
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+    }
+}
@@ -0,0 +1,287 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Wrapper class for HttpServletResponse that writes the response through to the
+ * client as usual, and keeps a copy of the status, headers and body, so the response
+ * can be cached once the filter chain is done with it.
+ *
+ * The copy is dropped as soon as the body gets bigger than maxBytes, so a large
+ * response is not held in memory only to find it can't be cached.
+ */
+class CachingResponseWrapper extends HttpServletResponseWrapper {
+
+    static final String CONTENT_LENGTH_HEADER = "content-length";
+    static final String CONTENT_TYPE_HEADER = "content-type";
+
+    private final int maxBytes;
+
+    private int status = SC_OK;
+    private String contentType = null;
+    private final List<String[]> headers = new ArrayList<String[]>();
+
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    private TeeOutputStream outputStream = null;
+    private PrintWriter writer = null;
+
+    CachingResponseWrapper(HttpServletResponse response, int maxBytes) {
+        super(response);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the whole response was copied
+     */
+    boolean isCopied() {
+        return copy != null;
+    }
+
+    /**
+     * @return the status, or the status of the error, the response was given
+     */
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @param name
+     * @return the first value the header was given, or null
+     */
+    String getCopiedHeader(String name) {
+        for ( String[] header : headers ) {
+            if ( header[0].equalsIgnoreCase(name) ) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param expiresAt
+     * @return the copy of the response, or null if it was too big
+     * @throws IOException
+     */
+    CachedResponse toCachedResponse(long expiresAt) throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        if ( copy == null ) {
+            return null;
+        }
+        return new CachedResponse(contentType, new ArrayList<String[]>(headers), copy.toByteArray(), expiresAt);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        status = sc;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        status = sc;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        status = SC_FOUND;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setContentType(String type) {
+        contentType = type;
+        super.setContentType(type);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        removeHeader(name);
+        recordHeader(name, value);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        recordHeader(name, value);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        removeHeader(name);
+        recordHeader(name, Integer.toString(value));
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        recordHeader(name, Integer.toString(value));
+        super.addIntHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        // dates are left for the container to write, they would be stale when replayed
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if ( writer != null ) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if ( outputStream == null ) {
+            outputStream = new TeeOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if ( writer != null ) {
+            return writer;
+        }
+        if ( outputStream != null ) {
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        outputStream = new TeeOutputStream(super.getOutputStream());
+        writer = new PrintWriter(new OutputStreamWriter(outputStream,
+                                                        StringUtils.defaultIfEmpty(getCharacterEncoding(), "ISO-8859-1")));
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if ( copy != null ) {
+            copy.reset();
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        status = SC_OK;
+        contentType = null;
+        headers.clear();
+        if ( copy != null ) {
+            copy.reset();
+        }
+    }
+
+    private void recordHeader(String name, String value) {
+        if ( name == null || value == null ) {
+            return;
+        }
+        if ( CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            // the length is set from the cached body when it is replayed
+            return;
+        }
+        if ( CONTENT_TYPE_HEADER.equalsIgnoreCase(name) ) {
+            contentType = value;
+            return;
+        }
+        headers.add(new String[] { name, value });
+    }
+
+    private void removeHeader(String name) {
+        Iterator<String[]> iterator = headers.iterator();
+        while ( iterator.hasNext() ) {
+            if ( iterator.next()[0].equalsIgnoreCase(name) ) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes to the output stream of the response, and to the copy of the body.
+     */
+    private class TeeOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        TeeOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if ( copy != null ) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if ( copy != null ) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+
+        private void checkSize() {
+            if ( copy.size() > maxBytes ) {
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.rackspace.feeds.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A least recently used cache of responses, bounded by the total size of the
+ * responses it holds. Expired responses are dropped when they are looked up, or
+ * when they are the least recently used.
+ *
+ * The cache publishes its metrics to the Yammer metrics registry, named
+ * com.rackspace.feeds.filter.ResponseCacheFilter.{metric}.{scope}, the scope being
+ * the name of the filter:
+ * <ul>
+ *     <li>hits, misses: how many lookups found a response, and didn't</li>
+ *     <li>expirations: how many responses were dropped because they expired</li>
+ *     <li>evictions: how many responses were dropped to make room</li>
+ *     <li>entries, bytes: how many responses the cache holds, and their size</li>
+ *     <li>hit-ratio: hits over lookups since the web app started</li>
+ * </ul>
+ */
+class ResponseCache {
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, CachedResponse> responses =
+            new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final List<MetricName> names = new ArrayList<MetricName>();
+    private final String scope;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter expirations;
+    private final Meter evictions;
+
+    /**
+     * @param maxBytes  the most bytes of responses the cache may hold
+     * @param scope     the name of the filter, to publish the metrics under
+     */
+    ResponseCache(long maxBytes, String scope) {
+        this.maxBytes = maxBytes;
+        this.scope = scope;
+
+        MetricsRegistry registry = Metrics.defaultRegistry();
+
+        hits = registry.newMeter(name("hits"), "lookups", TimeUnit.SECONDS);
+        misses = registry.newMeter(name("misses"), "lookups", TimeUnit.SECONDS);
+        expirations = registry.newMeter(name("expirations"), "responses", TimeUnit.SECONDS);
+        evictions = registry.newMeter(name("evictions"), "responses", TimeUnit.SECONDS);
+
+        registry.newGauge(name("entries"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return size();
+            }
+        });
+        registry.newGauge(name("bytes"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getBytes();
+            }
+        });
+        registry.newGauge(name("hit-ratio"), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                long lookups = hits.count() + misses.count();
+                return lookups == 0 ? 0.0 : (double) hits.count() / lookups;
+            }
+        });
+    }
+
+    /**
+     * @param metric
+     * @return the name of the metric, after removing any metric registered with that name
+     */
+    private MetricName name(String metric) {
+        MetricName name = new MetricName(ResponseCacheFilter.class, metric, scope);
+        Metrics.defaultRegistry().removeMetric(name);
+        names.add(name);
+        return name;
+    }
+
+    /**
+     * @param key
+     * @param now  in milliseconds since the epoch
+     * @return the response cached under the key, or null if there is none or it expired
+     */
+    CachedResponse get(String key, long now) {
+        synchronized ( responses ) {
+            CachedResponse response = responses.get(key);
+            if ( response != null && response.isExpired(now) ) {
+                responses.remove(key);
+                bytes -= response.getSize();
+                expirations.mark();
+                response = null;
+            }
+            if ( response == null ) {
+                misses.mark();
+            } else {
+                hits.mark();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Caches the response under the key, dropping the least recently used responses
+     * until it fits. A response bigger than the cache is not cached.
+     *
+     * @param key
+     * @param response
+     */
+    void put(String key, CachedResponse response) {
+        int size = response.getSize();
+        if ( size > maxBytes ) {
+            return;
+        }
+        synchronized ( responses ) {
+            CachedResponse previous = responses.put(key, response);
+            if ( previous != null ) {
+                bytes -= previous.getSize();
+            }
+            bytes += size;
+
+            Iterator<Map.Entry<String, CachedResponse>> eldest = responses.entrySet().iterator();
+            while ( bytes > maxBytes && eldest.hasNext() ) {
+                CachedResponse evicted = eldest.next().getValue();
+                eldest.remove();
+                bytes -= evicted.getSize();
+                evictions.mark();
+            }
+        }
+    }
+
+    void clear() {
+        synchronized ( responses ) {
+            responses.clear();
+            bytes = 0;
+        }
+    }
+
+    int size() {
+        synchronized ( responses ) {
+            return responses.size();
+        }
+    }
+
+    long getBytes() {
+        synchronized ( responses ) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Removes the metrics from the registry.
+     */
+    void removeMetrics() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        for ( MetricName name : names ) {
+            registry.removeMetric(name);
+        }
+        names.clear();
+    }
+}
@@ -0,0 +1,251 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * This class is a servlet filter that caches the final, transformed responses of
+ * the filter chain, so a page that many clients poll is read from the database and
+ * run through the XSLTs once per TTL instead of once per request. It does the
+ * following:
+ * <ul>
+ *     <li>operates only on GET requests</li>
+ *     <li>serves the cached bytes and headers of a response when the same variant of
+ *     the same page was requested before and has not expired</li>
+ *     <li>otherwise passes the request down the chain, and caches the response if it
+ *     is a 200 of at most 'maxEntryBytes' bytes</li>
+ * </ul>
+ *
+ * A response is cached under its variant: the request URI, with the tenantId, and the
+ * query string (search, marker, limit and direction), plus everything the other filters
+ * change the response for:
+ * <ul>
+ *     <li>whether Xml2JsonFilter converts it to JSON, and to which media type</li>
+ *     <li>whether the x-roles header has the service admin role, which keeps
+ *     PrivateAttrsFilter from removing the private attributes</li>
+ *     <li>the x-external-loc header, which makes ExternalHrefFilter rewrite the links</li>
+ * </ul>
+ * So this filter must be mapped before all the other filters, except ETagFilter and
+ * CompressionFilter.
+ *
+ * How long a response is cached depends on how likely the page is to change:
+ * <ul>
+ *     <li>'entryTtlMillis' for a single entry, /.../entries/urn:uuid:...
+ *     (default 1 day), as entries don't change once they are published</li>
+ *     <li>'markerTtlMillis' for a page read backward from a marker (default 1 hour),
+ *     which holds older entries only</li>
+ *     <li>'headTtlMillis' for any other page (default 10 seconds), as the head of a feed
+ *     and pages read forward from a marker get new entries as they are published</li>
+ * </ul>
+ * A TTL of 0 turns off caching of those pages.
+ *
+ * Unless 'precompress' is false, the body of a response that CompressionFilter would
+ * compress is also kept gzipped, with 'compressionLevel' (default 6), and served as it
+ * is to the clients accepting gzip.
+ *
+ * The cache holds at most 'maxBytes' bytes of responses (default 64MB), dropping the
+ * least recently used ones to make room. 'filterOnGenericJsonMediaType' must be set as
+ * it is for Xml2JsonFilter. See ResponseCache for the metrics it publishes.
+ */
+public class ResponseCacheFilter implements Filter {
+
+    private static Logger LOG = LoggerFactory.getLogger(ResponseCacheFilter.class);
+
+    static final String MAX_BYTES_PARAM = "maxBytes";
+    static final String MAX_ENTRY_BYTES_PARAM = "maxEntryBytes";
+    static final String HEAD_TTL_PARAM = "headTtlMillis";
+    static final String MARKER_TTL_PARAM = "markerTtlMillis";
+    static final String ENTRY_TTL_PARAM = "entryTtlMillis";
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final long DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+    static final long DEFAULT_HEAD_TTL_MILLIS = 10L * 1000;
+    static final long DEFAULT_MARKER_TTL_MILLIS = 60L * 60 * 1000;
+    static final long DEFAULT_ENTRY_TTL_MILLIS = 24L * 60 * 60 * 1000;
+
+    static final String SET_COOKIE_HEADER = "set-cookie";
+    static final String CONTENT_ENCODING_HEADER = "content-encoding";
+    static final String CACHE_CONTROL_HEADER = "cache-control";
+
+    private ResponseCache cache;
+
+    private int maxEntryBytes;
+    private long headTtlMillis;
+    private long markerTtlMillis;
+    private long entryTtlMillis;
+    private boolean filterOnGenericJsonMediaType = false;
+    private boolean precompress = true;
+    private int compressionLevel = CompressionFilter.DEFAULT_COMPRESSION_LEVEL;
+    private int compressMinBytes = CompressionFilter.DEFAULT_MIN_BYTES;
+
+    public void init(FilterConfig config)
+            throws ServletException {
+
+        LOG.debug("initializing ResponseCacheFilter");
+
+        long maxBytes = getLong(config, MAX_BYTES_PARAM, DEFAULT_MAX_BYTES);
+        maxEntryBytes = (int) Math.min(Integer.MAX_VALUE,
+                                       getLong(config, MAX_ENTRY_BYTES_PARAM, DEFAULT_MAX_ENTRY_BYTES));
+        headTtlMillis = getLong(config, HEAD_TTL_PARAM, DEFAULT_HEAD_TTL_MILLIS);
+        markerTtlMillis = getLong(config, MARKER_TTL_PARAM, DEFAULT_MARKER_TTL_MILLIS);
+        entryTtlMillis = getLong(config, ENTRY_TTL_PARAM, DEFAULT_ENTRY_TTL_MILLIS);
+        filterOnGenericJsonMediaType = Boolean.parseBoolean(config.getInitParameter("filterOnGenericJsonMediaType"));
+        precompress = !"false".equalsIgnoreCase(config.getInitParameter("precompress"));
+        compressionLevel = CompressionFilter.getInt(config, "compressionLevel",
+                                                    CompressionFilter.DEFAULT_COMPRESSION_LEVEL, 1);
+        if ( compressionLevel > 9 ) {
+            throw new ServletException("compressionLevel parameter must be from 1 to 9: " + compressionLevel);
+        }
+        compressMinBytes = CompressionFilter.getInt(config, "compressMinBytes", CompressionFilter.DEFAULT_MIN_BYTES, 0);
+
+        cache = new ResponseCache(maxBytes, StringUtils.defaultIfEmpty(config.getFilterName(), "ResponseCacheFilter"));
+    }
+
+    private static long getLong(FilterConfig config, String name, long defaultValue)
+            throws ServletException {
+
+        String value = config.getInitParameter(name);
+        if ( StringUtils.isBlank(value) ) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if ( parsed < 0 ) {
+                throw new ServletException(name + " parameter must not be negative: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new ServletException(name + " parameter must be a number: " + value);
+        }
+    }
+
+    public void doFilter(ServletRequest servletRequest,
+                         ServletResponse servletResponse,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        long ttl = "GET".equalsIgnoreCase(request.getMethod()) ? getTtlMillis(request) : 0;
+        if ( ttl <= 0 ) {
+            // pass through
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = getCacheKey(request);
+        CachedResponse cached = cache.get(key, System.currentTimeMillis());
+        if ( cached != null ) {
+            LOG.debug("Serving " + key + " from the cache");
+            cached.writeTo(response, CompressionFilter.accepts(request.getHeader(CompressionFilter.ACCEPT_ENCODING_HEADER),
+                                                               CompressionFilter.GZIP));
+            return;
+        }
+
+        CachingResponseWrapper wrapper = new CachingResponseWrapper(response, maxEntryBytes);
+        chain.doFilter(request, wrapper);
+
+        if ( isCacheable(request, wrapper) ) {
+            CachedResponse copy = wrapper.toCachedResponse(System.currentTimeMillis() + ttl);
+            if ( copy != null ) {
+                cache.put(key, precompress(copy));
+            }
+        }
+    }
+
+    /**
+     * @param response
+     * @return the response, with its body also gzipped if it is worth compressing
+     * @throws IOException
+     */
+    CachedResponse precompress(CachedResponse response) throws IOException {
+        if ( !precompress || response.getBody().length <= compressMinBytes
+                || !CompressionFilter.isCompressible(response.getContentType()) ) {
+            return response;
+        }
+        return response.withGzippedBody(CompressionFilter.compress(response.getBody(), CompressionFilter.GZIP,
+                                                                   compressionLevel));
+    }
+
+    /**
+     * @param request
+     * @return how long the response to the request may be cached
+     */
+    long getTtlMillis(HttpServletRequest request) {
+        switch ( FeedPage.of(request) ) {
+            case ENTRY:
+                return entryTtlMillis;
+            case MARKER_PAGE:
+                return markerTtlMillis;
+            default:
+                return headTtlMillis;
+        }
+    }
+
+    /**
+     * @param request
+     * @return the key of the variant of the response the request gets
+     */
+    String getCacheKey(HttpServletRequest request) {
+        StringBuilder key = new StringBuilder(request.getRequestURI());
+
+        String query = request.getQueryString();
+        if ( query != null ) {
+            key.append('?').append(query);
+        }
+
+        Xml2JsonFilter.JsonNegotiation accept = Xml2JsonFilter.ACCEPT_NEGOTIATOR.negotiate(request);
+        if ( accept.isJsonPreferred(filterOnGenericJsonMediaType) ) {
+            key.append(accept.isServiceJson() ? " svcjson" : " json");
+        } else {
+            key.append(" xml");
+        }
+
+        if ( PrivateAttrsFilter.isServiceAdmin(request) ) {
+            key.append(" admin");
+        }
+
+        String externalLoc = request.getHeader(ExternalHrefFilter.EXTERNAL_LOC_HEADER);
+        if ( StringUtils.isNotEmpty(externalLoc) ) {
+            key.append(" external=").append(externalLoc);
+        }
+        return key.toString();
+    }
+
+    private boolean isCacheable(HttpServletRequest request, CachingResponseWrapper wrapper) {
+        if ( request.isAsyncStarted() ) {
+            // the response is still being written by another thread
+            return false;
+        }
+        if ( wrapper.getStatus() != HttpServletResponse.SC_OK || !wrapper.isCopied() ) {
+            return false;
+        }
+        if ( wrapper.getCopiedHeader(SET_COOKIE_HEADER) != null ) {
+            return false;
+        }
+        if ( wrapper.getCopiedHeader(CONTENT_ENCODING_HEADER) != null ) {
+            // compressed for this client only
+            return false;
+        }
+        String cacheControl = wrapper.getCopiedHeader(CACHE_CONTROL_HEADER);
+        return cacheControl == null || !(cacheControl.contains("no-store") || cacheControl.contains("private"));
+    }
+
+    ResponseCache getCache() {
+        return cache;
+    }
+
+    public void destroy() {
+        if ( cache != null ) {
+            cache.clear();
+            cache.removeMetrics();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import java.util.zip.GZIPInputStream
+
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class ResponseCacheFilterTest extends Specification {
+
+    static final String FEED = "<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>functest1</title></feed>"
+
+    ResponseCacheFilter filter
+    int chainCalls = 0
+    int chainStatus = HttpServletResponse.SC_OK
+    String chainBody = FEED
+
+    def setup() {
+        filter = newFilter([:])
+    }
+
+    def cleanup() {
+        filter.destroy()
+    }
+
+    static ResponseCacheFilter newFilter(Map<String, String> params) {
+        FilterConfig config = mock(FilterConfig)
+        when(config.getFilterName()).thenReturn("ResponseCacheFilterTest")
+        when(config.getInitParameter(anyString())).thenAnswer(new Answer<String>() {
+            String answer(InvocationOnMock invocation) {
+                return params.get(invocation.arguments[0])
+            }
+        })
+        ResponseCacheFilter filter = new ResponseCacheFilter()
+        filter.init(config)
+        return filter
+    }
+
+    static HttpServletRequest request(Map args) {
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getMethod()).thenReturn(args.method ?: "GET")
+        when(request.getRequestURI()).thenReturn(args.uri ?: "/functest1/events")
+        when(request.getQueryString()).thenReturn(args.query)
+        when(request.getHeader("Accept")).thenReturn(args.accept)
+        when(request.getHeader("x-external-loc")).thenReturn(args.externalLoc)
+        when(request.getHeader("Accept-Encoding")).thenReturn(args.acceptEncoding)
+        if ( args.roles ) {
+            when(request.getHeaders("x-roles")).thenReturn(new Vector(args.roles).elements())
+        }
+        (args.params ?: [:]).each { name, value ->
+            when(request.getParameter(name)).thenReturn(value)
+        }
+        return request
+    }
+
+    static HttpServletResponse response(ByteArrayOutputStream body) {
+        HttpServletResponse response = mock(HttpServletResponse)
+        when(response.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(body))
+        return response
+    }
+
+    FilterChain chain = new FilterChain() {
+        void doFilter(ServletRequest request, ServletResponse response) {
+            chainCalls++
+            HttpServletResponse httpResponse = (HttpServletResponse) response
+            httpResponse.setStatus(chainStatus)
+            httpResponse.setContentType("application/atom+xml")
+            httpResponse.setHeader("Link", "<https://localhost/functest1/events?marker=last>; rel=\"last\"")
+            httpResponse.getWriter().write(chainBody)
+            httpResponse.getWriter().flush()
+        }
+    }
+
+    String get(Map args) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        filter.doFilter(request(args), response(body), chain)
+        return body.toString("ISO-8859-1")
+    }
+
+    def "should serve the second request for a page from the cache"() {
+
+        given:
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        HttpServletResponse response = response(body)
+
+        when:
+        get([query: "limit=25"])
+        filter.doFilter(request([query: "limit=25"]), response, chain)
+
+        then:
+        chainCalls == 1
+        body.toString("ISO-8859-1") == FEED
+        verify(response).setStatus(HttpServletResponse.SC_OK)
+        verify(response).setContentType("application/atom+xml")
+        verify(response).setHeader("Link", "<https://localhost/functest1/events?marker=last>; rel=\"last\"")
+        verify(response).setContentLength(FEED.length())
+        filter.getCache().size() == 1
+    }
+
+    def "should serve the gzipped body of a cached response to the clients accepting gzip"() {
+
+        given:
+        chainBody = FEED.replace("</feed>", "<entry><title>functest1</title></entry>" * 100 + "</feed>")
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream()
+        HttpServletResponse gzipResponse = response(gzipped)
+        ByteArrayOutputStream plain = new ByteArrayOutputStream()
+        HttpServletResponse plainResponse = response(plain)
+
+        when:
+        get([:])
+        filter.doFilter(request([acceptEncoding: "gzip, deflate"]), gzipResponse, chain)
+        filter.doFilter(request([:]), plainResponse, chain)
+
+        then:
+        chainCalls == 1
+        verify(gzipResponse).setHeader("Content-Encoding", "gzip")
+        verify(gzipResponse).addHeader("Vary", "Accept-Encoding")
+        verify(gzipResponse).setContentLength(gzipped.size())
+        gzipped.size() < chainBody.length()
+        new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray())).getText("ISO-8859-1") == chainBody
+
+        verify(plainResponse, never()).setHeader(eq("Content-Encoding"), anyString())
+        verify(plainResponse).addHeader("Vary", "Accept-Encoding")
+        plain.toString("ISO-8859-1") == chainBody
+    }
+
+    def "should not keep a gzipped body when precompress is false"() {
+
+        given:
+        filter.destroy()
+        filter = newFilter([precompress: "false"])
+        chainBody = FEED.replace("</feed>", "<entry><title>functest1</title></entry>" * 100 + "</feed>")
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        get([:])
+        filter.doFilter(request([acceptEncoding: "gzip"]), response, chain)
+
+        then:
+        chainCalls == 1
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString())
+        output.toString("ISO-8859-1") == chainBody
+    }
+
+    def "should not cache a response compressed for one client"() {
+
+        given:
+        FilterChain compressed = new FilterChain() {
+            void doFilter(ServletRequest request, ServletResponse response) {
+                chainCalls++
+                HttpServletResponse httpResponse = (HttpServletResponse) response
+                httpResponse.setContentType("application/atom+xml")
+                httpResponse.setHeader("Content-Encoding", "gzip")
+                httpResponse.getOutputStream().write(CompressionFilter.compress(FEED.bytes, "gzip", 6))
+            }
+        }
+
+        when:
+        filter.doFilter(request([:]), response(new ByteArrayOutputStream()), compressed)
+        filter.doFilter(request([:]), response(new ByteArrayOutputStream()), compressed)
+
+        then:
+        chainCalls == 2
+        filter.getCache().size() == 0
+    }
+
+    @Unroll
+    def "should not serve a #variant request from the cache of another variant"(String variant, Map args) {
+
+        when:
+        get([:])
+        get(args)
+
+        then:
+        chainCalls == 2
+        filter.getCache().size() == 2
+
+        where:
+        variant            | args
+        "tenanted"         | [uri: "/functest1/events/5914283"]
+        "search"           | [query: "search=%2Bfoo"]
+        "limit"            | [query: "limit=5"]
+        "json"             | [accept: "application/vnd.rackspace.atom+json"]
+        "admin"            | [roles: ["cloudfeeds:service-admin"]]
+        "external"         | [externalLoc: "true"]
+    }
+
+    def "should share the cache between requests the filters treat the same"() {
+
+        when:
+        get([accept: "application/atom+xml"])
+        get([accept: "application/json"])
+        get([roles: ["cloudfeeds:observer"]])
+
+        then:
+        chainCalls == 1
+    }
+
+    @Unroll
+    def "should not cache a #method request"(String method) {
+
+        when:
+        get([method: method])
+        get([method: method])
+
+        then:
+        chainCalls == 2
+        filter.getCache().size() == 0
+
+        where:
+        method << ["POST", "PUT", "DELETE"]
+    }
+
+    def "should not cache an error"() {
+
+        given:
+        chainStatus = HttpServletResponse.SC_NOT_FOUND
+
+        when:
+        get([:])
+        get([:])
+
+        then:
+        chainCalls == 2
+        filter.getCache().size() == 0
+    }
+
+    def "should not cache a response bigger than maxEntryBytes"() {
+
+        given:
+        filter.destroy()
+        filter = newFilter([maxEntryBytes: "16"])
+
+        when:
+        String first = get([:])
+        get([:])
+
+        then:
+        first == FEED
+        chainCalls == 2
+        filter.getCache().size() == 0
+    }
+
+    @Unroll
+    def "should cache #uri?#query for #expected milliseconds"(String uri, String query, Map params, long expected) {
+
+        given:
+        filter.destroy()
+        filter = newFilter([headTtlMillis: "1", markerTtlMillis: "2", entryTtlMillis: "3"])
+
+        expect:
+        filter.getTtlMillis(request([uri: uri, query: query, params: params])) == expected
+
+        where:
+        uri                                                          | query                            | params                                      | expected
+        "/functest1/events"                                          | null                             | [:]                                         | 1
+        "/functest1/events/5914283"                                  | "limit=25"                       | [:]                                         | 1
+        "/functest1/events"                                          | "marker=urn:uuid:1"              | [marker: "urn:uuid:1"]                      | 1
+        "/functest1/events"                                          | "marker=last&direction=backward" | [marker: "last", direction: "backward"]     | 1
+        "/functest1/events"                                          | "marker=urn:uuid:1&direction=backward" | [marker: "urn:uuid:1", direction: "backward"] | 2
+        "/functest1/events/entries/urn:uuid:676f3860-447c-40a3-8f61-9791819cc82f" | null               | [:]                                         | 3
+        "/functest1/events/5914283/entries/urn:uuid:676f3860-447c-40a3-8f61-9791819cc82f" | null       | [:]                                         | 3
+    }
+
+    def "should turn off caching of the head of the feeds with a TTL of 0"() {
+
+        given:
+        filter.destroy()
+        filter = newFilter([headTtlMillis: "0"])
+
+        when:
+        get([:])
+        get([:])
+
+        then:
+        chainCalls == 2
+    }
+
+    def "should reject a TTL that is not a number"() {
+
+        when:
+        newFilter([headTtlMillis: "ten"])
+
+        then:
+        thrown(ServletException)
+    }
+}
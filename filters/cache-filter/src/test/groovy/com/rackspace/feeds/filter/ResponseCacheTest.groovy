@@ -0,0 +1,114 @@
+package com.rackspace.feeds.filter
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.Meter
+import com.yammer.metrics.core.MetricName
+import spock.lang.Specification
+
+class ResponseCacheTest extends Specification {
+
+    ResponseCache cache
+
+    def cleanup() {
+        cache.removeMetrics()
+    }
+
+    static CachedResponse cached(int size, long expiresAt) {
+        return new CachedResponse("application/atom+xml", [], new byte[size], expiresAt)
+    }
+
+    static def metric(String name, String scope) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(ResponseCacheFilter, name, scope))
+    }
+
+    def "should drop the least recently used responses to make room"() {
+
+        given:
+        cache = new ResponseCache(300, "LruCache")
+        cache.put("a", cached(100, Long.MAX_VALUE))
+        cache.put("b", cached(100, Long.MAX_VALUE))
+        cache.put("c", cached(100, Long.MAX_VALUE))
+        cache.get("a", 0)
+
+        when:
+        cache.put("d", cached(100, Long.MAX_VALUE))
+
+        then:
+        cache.size() == 3
+        cache.getBytes() == 300
+        cache.get("b", 0) == null
+        cache.get("a", 0) != null
+        cache.get("c", 0) != null
+        cache.get("d", 0) != null
+        ((Meter) metric("evictions", "LruCache")).count() == 1
+    }
+
+    def "should not cache a response bigger than the cache"() {
+
+        given:
+        cache = new ResponseCache(300, "SmallCache")
+        cache.put("a", cached(100, Long.MAX_VALUE))
+
+        when:
+        cache.put("b", cached(301, Long.MAX_VALUE))
+
+        then:
+        cache.size() == 1
+        cache.get("a", 0) != null
+    }
+
+    def "should replace the response cached under the same key"() {
+
+        given:
+        cache = new ResponseCache(300, "ReplacingCache")
+        cache.put("a", cached(100, Long.MAX_VALUE))
+
+        when:
+        cache.put("a", cached(200, Long.MAX_VALUE))
+
+        then:
+        cache.size() == 1
+        cache.getBytes() == 200
+    }
+
+    def "should drop a response once it expires"() {
+
+        given:
+        cache = new ResponseCache(300, "ExpiringCache")
+        cache.put("a", cached(100, 1000))
+
+        expect:
+        cache.get("a", 999) != null
+        cache.get("a", 1000) == null
+        cache.size() == 0
+        cache.getBytes() == 0
+        ((Meter) metric("expirations", "ExpiringCache")).count() == 1
+    }
+
+    def "should publish the hits and misses under the name of the filter"() {
+
+        given:
+        cache = new ResponseCache(300, "MeteredCache")
+        cache.put("a", cached(100, Long.MAX_VALUE))
+
+        when:
+        cache.get("a", 0)
+        cache.get("a", 0)
+        cache.get("a", 0)
+        cache.get("b", 0)
+
+        then:
+        ((Meter) metric("hits", "MeteredCache")).count() == 3
+        ((Meter) metric("misses", "MeteredCache")).count() == 1
+        ((Gauge) metric("hit-ratio", "MeteredCache")).value() == 0.75d
+        ((Gauge) metric("entries", "MeteredCache")).value() == 1
+        ((Gauge) metric("bytes", "MeteredCache")).value() == 100L
+
+        when:
+        cache.removeMetrics()
+
+        then:
+        metric("hits", "MeteredCache") == null
+    }
+}
@@ -7,7 +7,6 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 import java.io.File;
 import java.nio.file.Files;
@@ -25,13 +24,20 @@ import java.util.regex.Pattern;
  *     this filter will:
  *     <ul>
  *         <li>replace the URL in LINK and LOCATION headers to the URL specified
- *             in the 'envFile' file, inside &lt;externalVIPURL&gt; element</li>
+ *             in the 'envFile' file, inside &lt;externalVIPURL&gt; element, with the
+ *             LinkHeaderRewriter of the request</li>
  *         <li>replace the URL in all the @href attributes in the Response body
  *             to the URL specified in the 'envFile' file, inside
  *             &lt;externalVIPURL&gt; element</li>
  *     </ul>
  *     </li>
  * </ul>
+ *
+ * The @href attributes are rewritten by external-href.xsl, or, when the
+ * 'transformMode' init param is 'streaming', by the equivalent StreamingHrefRewriter.
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its
+ * filter name.
  */
 public class ExternalHrefFilter implements Filter {
 
@@ -41,15 +47,18 @@ public class ExternalHrefFilter implements Filter {
      * Where the XSLT is going to be loaded from classpath
      */
     static final String XSLT_PATH = "/xslt/external-href.xsl";
-    static final String LINK_HEADER = "link";
-    static final String LOCATION_HEADER = "location";
+    static final String LINK_HEADER = LinkHeaderRewriter.LINK_HEADER;
+    static final String LOCATION_HEADER = LinkHeaderRewriter.LOCATION_HEADER;
     static final String EXTERNAL_LOC_HEADER = "x-external-loc";
-    static final String LINK_DELIM = ",";
 
     private String correctUrl = "";
 
+    private LinkHeaderRewriter.HostRewrite hostRewrite;
+
     private TransformerUtils transformer;
 
+    private FilterMetrics metrics;
+
     public void  init(FilterConfig config)
             throws ServletException {
 
@@ -75,12 +84,20 @@ public class ExternalHrefFilter implements Filter {
             LOG.error("Error reading envFile: " + envFile, ioex);
             throw new ServletException(ioex);
         }
+        hostRewrite = new LinkHeaderRewriter.HostRewrite(correctUrl);
         try {
             transformer = TransformerUtils.getInstanceForXsltAsResource(XSLT_PATH);
         } catch ( Exception e ) {
             LOG.error( "Error loading Xslt: " + XSLT_PATH );
             throw new ServletException( e );
         }
+        transformer.configure(config);
+        if ( TransformerUtils.isStreamingMode(config) ) {
+            LOG.debug("using StreamingHrefRewriter instead of " + XSLT_PATH);
+            transformer.setStreamingTransform(new StreamingHrefRewriter(correctUrl));
+        }
+        metrics = new FilterMetrics(ExternalHrefFilter.class, config.getFilterName());
+        transformer.setFilterMetrics(metrics);
     }
 
     public void  doFilter(ServletRequest request,
@@ -91,24 +108,30 @@ public class ExternalHrefFilter implements Filter {
         HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         HttpServletResponse httpServletResponse = (HttpServletResponse) response;
 
-        String externalLocHeader = httpServletRequest.getHeader(EXTERNAL_LOC_HEADER);
-        if ( StringUtils.isNotEmpty(externalLocHeader) ) {
+        long start = System.nanoTime();
+        try {
+            String externalLocHeader = httpServletRequest.getHeader(EXTERNAL_LOC_HEADER);
+            if ( StringUtils.isNotEmpty(externalLocHeader) ) {
 
-            LOG.debug("Header " + EXTERNAL_LOC_HEADER + " = " + externalLocHeader);
+                LOG.debug("Header " + EXTERNAL_LOC_HEADER + " = " + externalLocHeader);
 
-            URLFixerResponse urlFixerResponse = new URLFixerResponse(httpServletResponse, correctUrl);
+                URLFixerResponse urlFixerResponse =
+                        new URLFixerResponse(httpServletRequest, httpServletResponse, hostRewrite);
 
-            Map<String, Object> xsltParameters = new HashMap<String, Object>();
-            xsltParameters.put("correct_url", correctUrl);
+                Map<String, Object> xsltParameters = new HashMap<String, Object>();
+                xsltParameters.put("correct_url", correctUrl);
 
-            transformer.doTransform(httpServletRequest,
-                                    urlFixerResponse,
-                                    httpServletResponse,
-                                    chain,
-                                    xsltParameters);
-        } else {
-            // pass through
-            chain.doFilter(request, response);
+                transformer.doTransform(httpServletRequest,
+                                        urlFixerResponse,
+                                        httpServletResponse,
+                                        chain,
+                                        xsltParameters);
+            } else {
+                // pass through
+                metrics.passThrough(request, response, chain);
+            }
+        } finally {
+            metrics.filtered(request, start);
         }
     }
 
@@ -119,62 +142,26 @@ public class ExternalHrefFilter implements Filter {
 
     /**
      * Wrapper class for HttpServletResponse that knows how to fix the URL in the
-     * LINK and LOCATION header.
+     * LINK and LOCATION header, with a LinkHeaderRewriter.HostRewrite.
      */
-    static class URLFixerResponse extends HttpServletResponseWrapper {
-
-        private String correctUrl = null;
-
-        // This pattern is slightly different from the existing XSLT.
-        // This one is meant to support http://hostname:port, as well as
-        // https://hostname
-        private static final Pattern HOSTNAME_PATTERN = Pattern.compile("(.*)(http)(s?)(://[^/]+)/(.*)");
+    static class URLFixerResponse extends LinkRewritingResponseWrapper {
 
         public URLFixerResponse(HttpServletResponse response, String correctUrl) {
-            super(response);
-            this.correctUrl = correctUrl;
-        }
-
-        public void setHeader(String name, String value) {
-            String newValue = calculateNewHeaderValue(name, value);
-            super.setHeader(name, newValue);
-        }
-
-        public void addHeader(String name, String value) {
-            String newValue = calculateNewHeaderValue(name, value);
-            super.addHeader(name, newValue);
-        }
-
-        protected String calculateNewHeaderValue(String name, String value) {
-            String newValue = value;
-            if ( LINK_HEADER.equalsIgnoreCase(name) ) {
-                if ( StringUtils.isNotEmpty(value) ) {
-                    // link header can sometimes contain multiple links
-                    String[] links = value.split(LINK_DELIM);
-                    if ( links != null ) {
-                        for (int idx=0; idx<links.length; idx++) {
-                            links[idx] = calculateANewLink(links[idx], correctUrl);
-                        }
-                        newValue = StringUtils.join(links, LINK_DELIM);
-                        LOG.debug("joined multiple 'link' values together: " + newValue);
-                    }
-                }
-            }
-            else if ( LOCATION_HEADER.equalsIgnoreCase(name) ) {
-                if ( StringUtils.isNotEmpty(value) ) {
-                    newValue = calculateANewLink(value, correctUrl);
-                }
-            }
-            return newValue;
+            super(response, new LinkHeaderRewriter().add(new LinkHeaderRewriter.HostRewrite(correctUrl), true));
         }
 
-        protected String calculateANewLink(String value, String correctUrl) {
-            String newValue = value;
-            Matcher matcher = HOSTNAME_PATTERN.matcher(value);
-            if ( matcher.matches() ) {
-                newValue = matcher.replaceFirst("$1" + correctUrl + "/$5");
-            }
-            return newValue;
+        /**
+         * Fixes the headers with the LinkHeaderRewriter of the request, which an outer
+         * filter may be applying already.
+         *
+         * @param request
+         * @param response
+         * @param hostRewrite
+         */
+        public URLFixerResponse(HttpServletRequest request,
+                                HttpServletResponse response,
+                                LinkHeaderRewriter.HostRewrite hostRewrite) {
+            super(response, LinkHeaderRewriter.register(request, hostRewrite, true));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.rackspace.feeds.filter;
+
+import javax.xml.transform.TransformerException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Does what external-href.xsl does, without XSLT: replaces the scheme and host of
+ * the previous, next, current, self and last links with the external URL.
+ *
+ * Like the stylesheet, it finds the scheme and host with (http)(s?)(://[^/]+)/.*
+ * and then replaces every match of them, as a regular expression, in the link.
+ * The external URL is fixed for the life of the filter, so it is given to the
+ * constructor instead of being read from the parameters of each request.
+ */
+public class StreamingHrefRewriter extends StreamingLinkRewriter implements StreamingLinkRewriter.HrefRewrite {
+
+    // XPath's '.' matches anything but \n and \r, which is not quite Java's
+    private static final Pattern HOSTNAME_PATTERN = Pattern.compile("(http)(s?)(://[^/]+)/[^\n\r]*");
+
+    // the hostnames we have seen are few (our own VIPs), so their patterns are kept
+    static final int MAX_CACHED_PATTERNS = 64;
+
+    private final String correctUrl;
+    private final ConcurrentMap<String, Pattern> hostnamePatterns = new ConcurrentHashMap<String, Pattern>();
+
+    /**
+     * @param correctUrl  the scheme and host of the external URL, e.g. https://feeds.example.com
+     */
+    public StreamingHrefRewriter(String correctUrl) {
+        this.correctUrl = correctUrl == null ? "" : correctUrl;
+    }
+
+    @Override
+    protected HrefRewrite prepare(Map<String, Object> xsltParameters) {
+        // nothing depends on the request
+        return this;
+    }
+
+    public String rewrite(String href) throws TransformerException {
+
+        // xsl:analyze-string outputs all the matches, one after the other
+        StringBuilder hostname = new StringBuilder();
+        Matcher matcher = HOSTNAME_PATTERN.matcher(href);
+        while ( matcher.find() ) {
+            hostname.append(matcher.group(1)).append(matcher.group(2)).append(matcher.group(3));
+        }
+        if ( hostname.length() == 0 ) {
+            // replace() of the stylesheet raises FORX0003 for a pattern that matches ""
+            throw new TransformerException("No scheme and host found in link '" + href + "'");
+        }
+
+        try {
+            return getHostnamePattern(hostname.toString()).matcher(href).replaceAll(correctUrl);
+        } catch (PatternSyntaxException e) {
+            throw new TransformerException("Invalid hostname in link '" + href + "'", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new TransformerException("Invalid external URL '" + correctUrl + "'", e);
+        } catch (IllegalArgumentException e) {
+            throw new TransformerException("Invalid external URL '" + correctUrl + "'", e);
+        }
+    }
+
+    private Pattern getHostnamePattern(String hostname) {
+        Pattern pattern = hostnamePatterns.get(hostname);
+        if ( pattern == null ) {
+            pattern = Pattern.compile(hostname);
+            if ( hostnamePatterns.size() >= MAX_CACHED_PATTERNS ) {
+                hostnamePatterns.clear();
+            }
+            hostnamePatterns.put(hostname, pattern);
+        }
+        return pattern;
+    }
+}
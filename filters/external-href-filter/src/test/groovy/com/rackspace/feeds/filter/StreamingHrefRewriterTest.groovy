@@ -0,0 +1,59 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+
+class StreamingHrefRewriterTest extends Specification {
+
+    @Shared String correctUrl = "https://myfeed.myserver.com"
+    @Shared TransformerUtils xslt = TransformerUtils.getInstanceForXsltAsResource(ExternalHrefFilter.XSLT_PATH)
+    @Shared StreamingHrefRewriter rewriter = new StreamingHrefRewriter(correctUrl)
+
+    String transformWithXslt(byte[] input) {
+        StringWriter writer = new StringWriter()
+        xslt.doTransform([correct_url: correctUrl], new StreamSource(new ByteArrayInputStream(input)), new StreamResult(writer))
+        return writer.toString()
+    }
+
+    String transformStreaming(byte[] input) {
+        StringWriter writer = new StringWriter()
+        rewriter.transform(new ByteArrayInputStream(input), writer, [correct_url: correctUrl])
+        return writer.toString()
+    }
+
+    def "should write the same feed as external-href.xsl"() {
+
+        given:
+        byte[] input = getClass().getResourceAsStream("/responses/functest1-get-feed-response.xml").bytes
+
+        when:
+        String streamed = transformStreaming(input)
+
+        then:
+        streamed == transformWithXslt(input)
+        streamed.contains('<link href="https://myfeed.myserver.com/functest1/events/" rel="current"/>')
+        streamed.contains('<link href="http://192.168.1.1:9999/foo/bar/" rel="alternate"/>')
+    }
+
+    @Unroll
+    def "should write the same as external-href.xsl for #description"(String description, String input) {
+
+        expect:
+        transformStreaming(input.getBytes("UTF-8")) == transformWithXslt(input.getBytes("UTF-8"))
+
+        where:
+        description                  | input
+        "href before rel"            | '<feed xmlns="http://www.w3.org/2005/Atom"><link href="http://a.b:8080/x/" rel="next"/></feed>'
+        "host in the query string"   | '<feed><link rel="self" href="https://a.b/x?u=https://a.b/y"/></feed>'
+        "other rels and elements"    | '<feed><link rel="related" href="https://a.b/x"/><a rel="last" href="https://a.b/z"/></feed>'
+        "namespaced rel and href"    | '<feed xmlns:x="urn:x"><link x:rel="self" href="https://a.b/x"/><link rel="self" x:href="https://a.b/x" href="https://a.b/y"/></feed>'
+        "redundant namespaces"       | '<a xmlns="urn:a" xmlns:p="urn:p"><b xmlns="urn:a"><p:c xmlns:p="urn:p" xmlns="">x</p:c></b></a>'
+        "escaped text and attrs"     | '<a t="&quot;&lt;&amp;&gt;&#9;&#10;&#13;">&lt;&amp;&gt;&#13;"\'<![CDATA[<x>&]]></a>'
+        "comments and PIs"           | '<?xml version="1.0"?>\n<a><!-- in --><?pi data?><?empty?></a>\n'
+        "empty and mixed elements"   | '<a><b></b><c> </c><d/>text<e>é ü ✓</e></a>'
+    }
+}
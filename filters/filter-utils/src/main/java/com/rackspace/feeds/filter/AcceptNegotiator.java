@@ -0,0 +1,192 @@
+package com.rackspace.feeds.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches what the filters make of the Accept header of the requests. Working it out
+ * means parsing the header and ranking its media types by their q values, but the
+ * clients send few distinct Accept headers, so the decision for each of them is kept,
+ * in a concurrent map of up to maxEntries headers that is cleared when it is full.
+ *
+ * The decision is also kept as a request attribute, so the filters that need it for
+ * the same request (e.g. ResponseCacheFilter, then Xml2JsonFilter) only look it up
+ * once. It is looked up again if the Accept header of the request is not the one it
+ * was taken from.
+ *
+ * The negotiator publishes its metrics to the Yammer metrics registry, named
+ * com.rackspace.feeds.filter.AcceptNegotiator.{metric}.{scope}, the scope being the
+ * name of the negotiator:
+ * <ul>
+ *     <li>hits, misses: how many lookups found a decision, and didn't</li>
+ *     <li>evictions: how many decisions were dropped to make room</li>
+ *     <li>entries: how many decisions are kept</li>
+ *     <li>hit-ratio: hits over lookups since the web app started</li>
+ * </ul>
+ *
+ * @param <D>  the type of the decisions, which must be immutable
+ */
+public class AcceptNegotiator<D> {
+
+    public static final String ACCEPT_HEADER = "Accept";
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * Works out the decision for an Accept header.
+     *
+     * @param <D>
+     */
+    public interface Negotiation<D> {
+
+        /**
+         * @param accept  the Accept header, null if the request has none
+         * @return the decision, not null
+         */
+        D negotiate(String accept);
+    }
+
+    private final String name;
+    private final String attribute;
+    private final Negotiation<D> negotiation;
+    private final int maxEntries;
+
+    private final D noAccept;
+    private final ConcurrentMap<String, D> decisions = new ConcurrentHashMap<String, D>();
+
+    private final List<MetricName> names = new ArrayList<MetricName>();
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    /**
+     * @param name         the name of the negotiator, to publish the metrics under
+     * @param negotiation  what works out the decisions
+     * @param maxEntries   the most Accept headers to keep the decision of
+     */
+    public AcceptNegotiator(String name, Negotiation<D> negotiation, int maxEntries) {
+        this.name = name;
+        this.attribute = AcceptNegotiator.class.getName() + "." + name;
+        this.negotiation = negotiation;
+        this.maxEntries = maxEntries;
+        this.noAccept = negotiation.negotiate(null);
+
+        MetricsRegistry registry = Metrics.defaultRegistry();
+
+        hits = registry.newMeter(name("hits"), "lookups", TimeUnit.SECONDS);
+        misses = registry.newMeter(name("misses"), "lookups", TimeUnit.SECONDS);
+        evictions = registry.newMeter(name("evictions"), "decisions", TimeUnit.SECONDS);
+
+        registry.newGauge(name("entries"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return size();
+            }
+        });
+        registry.newGauge(name("hit-ratio"), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                long lookups = hits.count() + misses.count();
+                return lookups == 0 ? 0.0 : (double) hits.count() / lookups;
+            }
+        });
+    }
+
+    /**
+     * @param metric
+     * @return the name of the metric, after removing any metric registered with that name
+     */
+    private MetricName name(String metric) {
+        MetricName name = new MetricName(AcceptNegotiator.class, metric, this.name);
+        Metrics.defaultRegistry().removeMetric(name);
+        names.add(name);
+        return name;
+    }
+
+    /**
+     * @param request
+     * @return the decision for the Accept header of the request, worked out once per request
+     */
+    @SuppressWarnings("unchecked")
+    public D negotiate(HttpServletRequest request) {
+        String accept = request.getHeader(ACCEPT_HEADER);
+        Object negotiated = request.getAttribute(attribute);
+        if ( negotiated instanceof Negotiated && ((Negotiated) negotiated).isFor(accept) ) {
+            return ((Negotiated<D>) negotiated).decision;
+        }
+        D decision = negotiate(accept);
+        request.setAttribute(attribute, new Negotiated<D>(accept, decision));
+        return decision;
+    }
+
+    /**
+     * @param accept  an Accept header, may be null
+     * @return the decision for it
+     */
+    public D negotiate(String accept) {
+        if ( accept == null ) {
+            return noAccept;
+        }
+        D decision = decisions.get(accept);
+        if ( decision != null ) {
+            hits.mark();
+            return decision;
+        }
+        misses.mark();
+        decision = negotiation.negotiate(accept);
+        if ( decisions.size() >= maxEntries ) {
+            // the clients sending odd headers can't make the map grow for ever
+            int evicted = decisions.size();
+            decisions.clear();
+            evictions.mark(evicted);
+        }
+        decisions.put(accept, decision);
+        return decision;
+    }
+
+    int size() {
+        return decisions.size();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Removes the metrics of this negotiator from the registry.
+     */
+    public void remove() {
+        for ( MetricName name : names ) {
+            Metrics.defaultRegistry().removeMetric(name);
+        }
+        names.clear();
+    }
+
+    /**
+     * The decision kept as a request attribute, with the header it was taken from.
+     */
+    private static class Negotiated<D> {
+
+        private final String accept;
+        private final D decision;
+
+        Negotiated(String accept, D decision) {
+            this.accept = accept;
+            this.decision = decision;
+        }
+
+        boolean isFor(String accept) {
+            return this.accept == null ? accept == null : this.accept.equals(accept);
+        }
+    }
+}
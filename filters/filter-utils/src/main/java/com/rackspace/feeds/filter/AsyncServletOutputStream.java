@@ -0,0 +1,217 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An output stream that writes to the client with Servlet 3.1 non-blocking I/O.
+ *
+ * Whatever is written to this stream is buffered, and handed to the container's
+ * ServletOutputStream only while it reports isReady(). When the client falls
+ * behind, the container calls our WriteListener once it can take more, so no
+ * thread waits on the client. When this stream is closed and everything has been
+ * written, the AsyncContext is completed.
+ *
+ * To keep the memory held for slow clients bounded, the writer blocks once more
+ * than maxPendingBytes are waiting to be sent.
+ */
+public class AsyncServletOutputStream extends ServletOutputStream {
+
+    private static Logger LOG = LoggerFactory.getLogger(AsyncServletOutputStream.class);
+
+    static final int BUFFER_SIZE = 8192;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final long maxPendingBytes;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+    private long pendingBytes = 0;
+    private boolean closed = false;
+    private boolean completed = false;
+    private Throwable error = null;
+
+    // only touched by the writing thread
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    /**
+     * Sets itself as the WriteListener of 'out'.
+     *
+     * @param asyncContext     the AsyncContext to complete when done
+     * @param out              the container's output stream
+     * @param maxPendingBytes  how much may be buffered before the writer blocks
+     */
+    public AsyncServletOutputStream(AsyncContext asyncContext, ServletOutputStream out, long maxPendingBytes) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.maxPendingBytes = maxPendingBytes;
+        out.setWriteListener(new Listener());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if ( count == buffer.length ) {
+            enqueueBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while ( len > 0 ) {
+            if ( count == buffer.length ) {
+                enqueueBuffer();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        enqueueBuffer();
+    }
+
+    /**
+     * Sends what is left and completes the AsyncContext once it has all been written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized ( lock ) {
+            if ( closed ) {
+                return;
+            }
+        }
+        try {
+            enqueueBuffer();
+        } finally {
+            synchronized ( lock ) {
+                closed = true;
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the response: drops whatever is buffered and completes the
+     * AsyncContext. Later writes throw an IOException.
+     *
+     * @param cause
+     */
+    public void abort(Throwable cause) {
+        synchronized ( lock ) {
+            if ( error == null ) {
+                error = cause;
+            }
+            pending.clear();
+            pendingBytes = 0;
+            closed = true;
+            lock.notifyAll();
+            complete();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        synchronized ( lock ) {
+            return error == null && pendingBytes < maxPendingBytes;
+        }
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        throw new IllegalStateException("AsyncServletOutputStream manages its own WriteListener");
+    }
+
+    private void enqueueBuffer() throws IOException {
+        if ( count == 0 ) {
+            checkError();
+            return;
+        }
+        byte[] chunk = Arrays.copyOf(buffer, count);
+        count = 0;
+
+        synchronized ( lock ) {
+            while ( error == null && pendingBytes >= maxPendingBytes ) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client");
+                }
+            }
+            checkError();
+            pending.add(chunk);
+            pendingBytes += chunk.length;
+            drain();
+        }
+    }
+
+    private void checkError() throws IOException {
+        synchronized ( lock ) {
+            if ( error != null ) {
+                throw new IOException("Response aborted", error);
+            }
+        }
+    }
+
+    /**
+     * Writes pending chunks while the container can take them. Must hold the lock.
+     * When the container can't, it calls onWritePossible() later, which drains the rest.
+     */
+    private void drain() {
+        try {
+            while ( !pending.isEmpty() ) {
+                if ( !out.isReady() ) {
+                    return;
+                }
+                byte[] chunk = pending.poll();
+                pendingBytes -= chunk.length;
+                lock.notifyAll();
+                out.write(chunk);
+            }
+            if ( closed && out.isReady() ) {
+                complete();
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to write response to client", e);
+            abort(e);
+        }
+    }
+
+    private void complete() {
+        if ( !completed ) {
+            completed = true;
+            asyncContext.complete();
+        }
+    }
+
+    class Listener implements WriteListener {
+
+        public void onWritePossible() throws IOException {
+            synchronized ( lock ) {
+                drain();
+            }
+        }
+
+        public void onError(Throwable t) {
+            LOG.debug("Error writing response to client", t);
+            abort(t);
+        }
+    }
+}
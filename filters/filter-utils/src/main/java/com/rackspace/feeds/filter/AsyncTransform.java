@@ -0,0 +1,182 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a single TransformerUtils transform in Servlet 3.1 async mode:
+ * <ol>
+ *     <li>starts async processing</li>
+ *     <li>transforms the output of the rest of the filter chain on one ResponsePipeExecutor
+ *     thread</li>
+ *     <li>calls the rest of the filter chain on the container thread, like the container
+ *     expects, which is released as soon as the chain has written the response</li>
+ *     <li>writes the transformed output through an AsyncServletOutputStream, so no
+ *     thread waits on a slow client</li>
+ * </ol>
+ *
+ * The request body, if any, is read by the filter chain, the blocking way.
+ *
+ * The transformed output is byte for byte what the blocking mode writes: it is
+ * encoded with the response's character encoding, like the response's own
+ * getWriter() would do.
+ */
+class AsyncTransform {
+
+    private static Logger LOG = LoggerFactory.getLogger(AsyncTransform.class);
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    // how much transformed output may wait for a slow client before the transform blocks
+    static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private final TransformerUtils transformer;
+    private final HttpServletRequest wrappedRequest;
+    private final HttpServletResponse wrappedResponse;
+    private final HttpServletResponse originalResponse;
+    private final FilterChain chain;
+    private final Map<String, Object> xsltParameters;
+    private final TransformPipeline pipeline;
+    private final long timeoutMillis;
+
+    private AsyncContext asyncContext;
+    private AsyncServletOutputStream asyncOutputStream;
+
+    AsyncTransform(TransformerUtils transformer,
+                   HttpServletRequest wrappedRequest,
+                   HttpServletResponse wrappedResponse,
+                   HttpServletResponse originalResponse,
+                   FilterChain chain,
+                   Map<String, Object> xsltParameters,
+                   TransformPipeline pipeline,
+                   long timeoutMillis) {
+        this.transformer = transformer;
+        this.wrappedRequest = wrappedRequest;
+        this.wrappedResponse = wrappedResponse;
+        this.originalResponse = originalResponse;
+        this.chain = chain;
+        this.xsltParameters = xsltParameters;
+        this.pipeline = pipeline;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts async processing, calls the rest of the filter chain, and returns without
+     * waiting for the transformed response to be written.
+     *
+     * @throws IOException
+     */
+    void start() throws IOException {
+        asyncContext = wrappedRequest.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        asyncContext.addListener(new Listener());
+
+        asyncOutputStream = new AsyncServletOutputStream(asyncContext,
+                                                         originalResponse.getOutputStream(),
+                                                         MAX_PENDING_BYTES);
+        final ServletResponsePipe srp = new ServletResponsePipe(wrappedRequest, wrappedResponse);
+        try {
+            try {
+                ResponsePipeExecutor.getInstance().execute(new Runnable() {
+                    public void run() {
+                        transform(srp);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                LOG.warn("No response pipe thread available, rejecting request: " + ree.getMessage());
+                originalResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                asyncOutputStream.abort(ree);
+                return;
+            }
+            srp.doFilter(chain);
+        } finally {
+            if ( pipeline != null ) {
+                TransformPipeline.detach(wrappedRequest);
+            }
+        }
+    }
+
+    private void transform(ServletResponsePipe srp) {
+        AsyncResponse target = new AsyncResponse(originalResponse, asyncOutputStream);
+        try {
+            transformer.transformPipe(srp, wrappedRequest, wrappedResponse, target, xsltParameters, pipeline);
+            target.flushWriter();
+            asyncOutputStream.close();
+        } catch (Exception e) {
+            LOG.error("Error transforming response asynchronously", e);
+            if ( !originalResponse.isCommitted() ) {
+                originalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            asyncOutputStream.abort(e);
+        }
+    }
+
+    class Listener implements AsyncListener {
+
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        public void onTimeout(AsyncEvent event) throws IOException {
+            LOG.warn("Async transform timed out after " + timeoutMillis + "ms");
+            asyncOutputStream.abort(new IOException("Async transform timed out"));
+        }
+
+        public void onError(AsyncEvent event) throws IOException {
+            asyncOutputStream.abort(event.getThrowable());
+        }
+
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+
+    /**
+     * The response the transform writes to. Its writer encodes with the response's
+     * character encoding, like the container's getWriter().
+     */
+    static class AsyncResponse extends HttpServletResponseWrapper {
+
+        private final AsyncServletOutputStream outputStream;
+        private PrintWriter writer = null;
+
+        AsyncResponse(HttpServletResponse response, AsyncServletOutputStream outputStream) {
+            super(response);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if ( writer != null ) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if ( writer == null ) {
+                writer = new PrintWriter(new OutputStreamWriter(outputStream, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        void flushWriter() {
+            if ( writer != null ) {
+                writer.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Wrapper for HttpServletResponse that collects the response body in pooled chunks (see
+ * ChunkedBuffer), whether it is written with getOutputStream() or getWriter(). The
+ * writer always encodes in UTF-8, the encoding of the feeds.
+ *
+ * The body can be handed to a transform with getInputStream(), without being copied.
+ * release() must be called once the body has been used, so the chunks are reused.
+ *
+ * The Content-Length set by the rest of the chain is the length of the body it wrote,
+ * not of what is made of it, so it is not passed on to the response.
+ */
+public class BufferedResponseWrapper extends HttpServletResponseWrapper {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String CONTENT_LENGTH_HEADER = "content-length";
+
+    private final ChunkedBuffer buffer = new ChunkedBuffer();
+    private final ServletOutputStream outputStream = new ServletOutputStreamWrapper(buffer);
+    private PrintWriter writer = null;
+
+    /**
+     * Create a wrapper for servlet response
+     * @param response
+     */
+    public BufferedResponseWrapper(HttpServletResponse response) {
+        super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if ( writer == null ) {
+            writer = new PrintWriter(new OutputStreamWriter(buffer, UTF_8));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // the length of the buffered body, not of the response
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        // the length of the buffered body, not of the response
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if ( !CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if ( !CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if ( !CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if ( !CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    /**
+     * The body is kept until it is used, so there is nothing to send yet.
+     */
+    @Override
+    public void flushBuffer() {
+        flushWriter();
+    }
+
+    @Override
+    public void resetBuffer() {
+        flushWriter();
+        buffer.release();
+    }
+
+    private void flushWriter() {
+        if ( writer != null ) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return the size of the body in bytes
+     */
+    public long getBodySize() {
+        flushWriter();
+        return buffer.size();
+    }
+
+    /**
+     * @return a stream reading the body, until release() is called
+     */
+    public InputStream getInputStream() {
+        flushWriter();
+        return buffer.toInputStream();
+    }
+
+    /**
+     * Writes the body to out.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeBodyTo(OutputStream out) throws IOException {
+        flushWriter();
+        buffer.writeTo(out);
+    }
+
+    /**
+     * @return the body, decoded from UTF-8
+     * @throws IOException
+     */
+    public String getBodyString() throws IOException {
+        flushWriter();
+        return buffer.toString(UTF_8);
+    }
+
+    /**
+     * Gives the chunks of the body back to the pool. The body is empty afterwards.
+     */
+    public void release() {
+        flushWriter();
+        buffer.release();
+    }
+}
@@ -0,0 +1,83 @@
+package com.rackspace.feeds.filter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte arrays, shared by the ChunkedBuffer of every request, so
+ * that buffering a response doesn't allocate, grow and copy one large array after
+ * another. At most maxChunks arrays are kept; the ones released beyond that are left to
+ * the garbage collector.
+ */
+class ByteChunkPool {
+
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    static final int DEFAULT_MAX_CHUNKS = 1024;
+
+    private static final ByteChunkPool SHARED = new ByteChunkPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
+
+    private final int chunkSize;
+    private final int maxChunks;
+
+    private final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param chunkSize  the size of the arrays
+     * @param maxChunks  how many released arrays to keep at most
+     */
+    ByteChunkPool(int chunkSize, int maxChunks) {
+        if ( chunkSize <= 0 ) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+    }
+
+    /**
+     * @return the pool used by default, of DEFAULT_MAX_CHUNKS arrays of DEFAULT_CHUNK_SIZE bytes
+     */
+    static ByteChunkPool shared() {
+        return SHARED;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return how many arrays are in the pool, waiting to be reused
+     */
+    int getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     * @return an array of chunkSize bytes, reused if one is pooled. Its content is not cleared.
+     */
+    byte[] acquire() {
+        byte[] chunk = chunks.poll();
+        if ( chunk == null ) {
+            return new byte[chunkSize];
+        }
+        pooled.decrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Gives back an array got from acquire(). It must not be used afterwards.
+     *
+     * @param chunk
+     */
+    void release(byte[] chunk) {
+        if ( chunk.length != chunkSize ) {
+            return;
+        }
+        if ( pooled.incrementAndGet() > maxChunks ) {
+            pooled.decrementAndGet();
+            return;
+        }
+        chunks.offer(chunk);
+    }
+}
@@ -0,0 +1,59 @@
+package com.rackspace.feeds.filter;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Counts the bytes the characters written through it take in UTF-8, which is how the
+ * transformed responses are encoded, without encoding them a second time.
+ */
+class ByteCountingWriter extends FilterWriter {
+
+    private long byteCount = 0;
+
+    ByteCountingWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        out.write(c);
+        byteCount += utf8Length((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        out.write(cbuf, off, len);
+        for ( int i = off; i < off + len; i++ ) {
+            byteCount += utf8Length(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        out.write(str, off, len);
+        for ( int i = off; i < off + len; i++ ) {
+            byteCount += utf8Length(str.charAt(i));
+        }
+    }
+
+    /**
+     * @param c
+     * @return the bytes c takes in UTF-8; each half of a surrogate pair takes 2 of the 4
+     *         bytes of the pair
+     */
+    static int utf8Length(char c) {
+        if ( c < 0x80 ) {
+            return 1;
+        }
+        if ( c < 0x800 || Character.isSurrogate(c) ) {
+            return 2;
+        }
+        return 3;
+    }
+
+    long getByteCount() {
+        return byteCount;
+    }
+}
@@ -0,0 +1,177 @@
+package com.rackspace.feeds.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory buffer of bytes, kept in fixed-size chunks from a ByteChunkPool instead of
+ * one array that is copied into a bigger one as it grows. The bytes are read back with
+ * toInputStream() or writeTo(), straight from the chunks.
+ *
+ * release() gives the chunks back to the pool once the bytes have been used; the buffer
+ * is then empty, and may be written to again.
+ */
+class ChunkedBuffer extends OutputStream {
+
+    private final ByteChunkPool pool;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    // bytes written to the last chunk
+    private int position;
+    private long size = 0;
+
+    ChunkedBuffer() {
+        this(ByteChunkPool.shared());
+    }
+
+    ChunkedBuffer(ByteChunkPool pool) {
+        this.pool = pool;
+        this.position = pool.getChunkSize();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if ( position == pool.getChunkSize() ) {
+            addChunk();
+        }
+        chunks.get(chunks.size() - 1)[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ( off < 0 || len < 0 || off + len > b.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        while ( len > 0 ) {
+            if ( position == pool.getChunkSize() ) {
+                addChunk();
+            }
+            int n = Math.min(len, pool.getChunkSize() - position);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), position, n);
+            position += n;
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void addChunk() {
+        chunks.add(pool.acquire());
+        position = 0;
+    }
+
+    /**
+     * @return how many bytes have been written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes the bytes, a chunk at a time.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException {
+        int last = chunks.size() - 1;
+        for ( int i = 0; i <= last; i++ ) {
+            out.write(chunks.get(i), 0, i == last ? position : pool.getChunkSize());
+        }
+    }
+
+    /**
+     * @return a stream reading the bytes from the chunks. It must not be read after
+     *         release(), nor while more bytes are written.
+     */
+    InputStream toInputStream() {
+        return new ChunkInputStream();
+    }
+
+    /**
+     * @param charset
+     * @return the bytes, decoded
+     * @throws IOException
+     */
+    String toString(Charset charset) throws IOException {
+        StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE, size));
+        Reader reader = new InputStreamReader(toInputStream(), charset);
+        char[] buffer = new char[4096];
+        int n;
+        while ( (n = reader.read(buffer)) != -1 ) {
+            builder.append(buffer, 0, n);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gives the chunks back to the pool, and empties the buffer.
+     */
+    void release() {
+        for ( byte[] chunk : chunks ) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        position = pool.getChunkSize();
+        size = 0;
+    }
+
+    /**
+     * Reads the chunks in place.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private int chunk = 0;
+        private int offset = 0;
+
+        /**
+         * @return how many bytes can be read from the current chunk, -1 at the end of the buffer
+         */
+        private int remaining() {
+            while ( chunk < chunks.size() ) {
+                int end = chunk == chunks.size() - 1 ? position : pool.getChunkSize();
+                if ( offset < end ) {
+                    return end - offset;
+                }
+                chunk++;
+                offset = 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read() {
+            if ( remaining() < 0 ) {
+                return -1;
+            }
+            return chunks.get(chunk)[offset++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if ( len == 0 ) {
+                return 0;
+            }
+            int remaining = remaining();
+            if ( remaining < 0 ) {
+                return -1;
+            }
+            int n = Math.min(len, remaining);
+            System.arraycopy(chunks.get(chunk), offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, remaining());
+        }
+    }
+}
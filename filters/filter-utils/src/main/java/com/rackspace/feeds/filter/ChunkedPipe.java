@@ -0,0 +1,388 @@
+package com.rackspace.feeds.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single-producer/single-consumer byte pipe, used by ServletResponsePipe to hand
+ * a response body from the thread running the filter chain to the thread
+ * transforming it.
+ *
+ * Unlike java.io.PipedInputStream, which has a 1 KB buffer, synchronizes every
+ * read and write and polls with wait(1000), this pipe hands over whole chunks:
+ * the writer fills a chunk and passes it to the reader through a bounded queue,
+ * and the reader gives the chunk back to a shared pool when it is done with it.
+ * At most maxChunks filled chunks are waiting at any time, so a slow reader
+ * blocks the writer rather than letting the response pile up in memory.
+ *
+ * A chunk is handed over when it is full, or when the writer calls flush() or
+ * close(). If the writer fails, it should call fail() instead of close(), so the
+ * reader gets an IOException rather than a truncated response. If the reader
+ * closes its end, the next write throws an IOException.
+ */
+public class ChunkedPipe {
+
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+    public static final int DEFAULT_MAX_CHUNKS = 16;
+
+    // how many free chunks of each size are kept around for reuse
+    static final int MAX_POOLED_CHUNKS = 256;
+
+    static final long PUT_RETRY_MILLIS = 100;
+
+    private static volatile int defaultChunkSize = DEFAULT_CHUNK_SIZE;
+    private static volatile int defaultMaxChunks = DEFAULT_MAX_CHUNKS;
+
+    private static final ConcurrentMap<Integer, ChunkPool> POOLS = new ConcurrentHashMap<Integer, ChunkPool>();
+
+    // marks the end of the stream in the queue
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    private final ChunkPool pool;
+    private final BlockingQueue<Chunk> filled;
+    private final PipeOutputStream outputStream;
+    private final PipeInputStream inputStream;
+
+    private volatile Throwable producerError = null;
+    private volatile boolean readerClosed = false;
+
+    /**
+     * Sets the chunk size and number of chunks used by pipes created with
+     * the no-argument constructor.
+     *
+     * @param chunkSize
+     * @param maxChunks
+     */
+    public static void setDefaults(int chunkSize, int maxChunks) {
+        validate(chunkSize, maxChunks);
+        defaultChunkSize = chunkSize;
+        defaultMaxChunks = maxChunks;
+    }
+
+    public ChunkedPipe() {
+        this(defaultChunkSize, defaultMaxChunks);
+    }
+
+    /**
+     * @param chunkSize  size of each chunk, in bytes
+     * @param maxChunks  how many filled chunks may wait for the reader
+     */
+    public ChunkedPipe(int chunkSize, int maxChunks) {
+        validate(chunkSize, maxChunks);
+        this.pool = getPool(chunkSize);
+        this.filled = new ArrayBlockingQueue<Chunk>(maxChunks);
+        this.outputStream = new PipeOutputStream();
+        this.inputStream = new PipeInputStream();
+    }
+
+    public PipeOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public PipeInputStream getInputStream() {
+        return inputStream;
+    }
+
+    private static void validate(int chunkSize, int maxChunks) {
+        if ( chunkSize <= 0 ) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        if ( maxChunks <= 0 ) {
+            throw new IllegalArgumentException("maxChunks must be greater than 0");
+        }
+    }
+
+    private static ChunkPool getPool(int chunkSize) {
+        ChunkPool pool = POOLS.get(chunkSize);
+        if ( pool == null ) {
+            ChunkPool newPool = new ChunkPool(chunkSize);
+            pool = POOLS.putIfAbsent(chunkSize, newPool);
+            if ( pool == null ) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            // the timeout only matters if the reader goes away while the queue is full
+            while ( !filled.offer(chunk, PUT_RETRY_MILLIS, TimeUnit.MILLISECONDS) ) {
+                if ( readerClosed ) {
+                    throw new IOException("Pipe closed by reader");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to pipe");
+        }
+    }
+
+    /**
+     * The writing end of the pipe. Must only be used by one thread.
+     */
+    public class PipeOutputStream extends OutputStream {
+
+        private Chunk current = null;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWritable();
+            if ( current == null ) {
+                current = pool.take();
+            }
+            current.data[current.length++] = (byte) b;
+            if ( current.length == current.data.length ) {
+                handOver();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ( off < 0 || len < 0 || off + len > b.length ) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureWritable();
+            while ( len > 0 ) {
+                if ( current == null ) {
+                    current = pool.take();
+                }
+                int count = Math.min(len, current.data.length - current.length);
+                System.arraycopy(b, off, current.data, current.length, count);
+                current.length += count;
+                off += count;
+                len -= count;
+                if ( current.length == current.data.length ) {
+                    handOver();
+                }
+            }
+        }
+
+        /**
+         * Hands the bytes written so far over to the reader.
+         */
+        @Override
+        public void flush() throws IOException {
+            if ( closed ) {
+                return;
+            }
+            ensureWritable();
+            if ( current != null && current.length > 0 ) {
+                handOver();
+            }
+        }
+
+        /**
+         * Hands the remaining bytes over to the reader and signals the end of the stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if ( closed ) {
+                return;
+            }
+            try {
+                if ( !readerClosed && current != null && current.length > 0 ) {
+                    handOver();
+                }
+            } finally {
+                closed = true;
+                release();
+                if ( !readerClosed ) {
+                    put(END);
+                }
+            }
+        }
+
+        /**
+         * Closes the pipe without handing over the remaining bytes; the reader
+         * gets an IOException with the given cause instead of the end of the stream.
+         *
+         * @param cause
+         */
+        public void fail(Throwable cause) {
+            if ( closed ) {
+                return;
+            }
+            producerError = cause;
+            closed = true;
+            release();
+            try {
+                put(END);
+            } catch (IOException e) {
+                // interrupted, the reader will find out when it is closed
+            }
+        }
+
+        private void ensureWritable() throws IOException {
+            if ( closed ) {
+                throw new IOException("Pipe closed");
+            }
+            if ( readerClosed ) {
+                throw new IOException("Pipe closed by reader");
+            }
+        }
+
+        private void handOver() throws IOException {
+            Chunk chunk = current;
+            current = null;
+            put(chunk);
+        }
+
+        private void release() {
+            if ( current != null ) {
+                pool.recycle(current);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * The reading end of the pipe. Must only be used by one thread.
+     */
+    public class PipeInputStream extends InputStream {
+
+        private Chunk current = null;
+        private int position = 0;
+        private boolean eof = false;
+
+        @Override
+        public int read() throws IOException {
+            if ( !nextChunk() ) {
+                return -1;
+            }
+            return current.data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if ( off < 0 || len < 0 || off + len > b.length ) {
+                throw new IndexOutOfBoundsException();
+            }
+            if ( len == 0 ) {
+                return 0;
+            }
+            if ( !nextChunk() ) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if ( current != null ) {
+                return current.length - position;
+            }
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            readerClosed = true;
+            if ( current != null ) {
+                pool.recycle(current);
+                current = null;
+            }
+            // unblock the writer if it is waiting for room in the queue
+            Chunk chunk;
+            while ( (chunk = filled.poll()) != null ) {
+                if ( chunk != END ) {
+                    pool.recycle(chunk);
+                }
+            }
+        }
+
+        /**
+         * Makes sure there is something left to read in the current chunk, waiting
+         * for the writer if needed.
+         *
+         * @return false at the end of the stream
+         * @throws IOException if the reader is closed or the writer failed
+         */
+        private boolean nextChunk() throws IOException {
+            if ( readerClosed ) {
+                throw new IOException("Pipe closed");
+            }
+            while ( current == null || position == current.length ) {
+                if ( eof ) {
+                    return false;
+                }
+                if ( current != null ) {
+                    pool.recycle(current);
+                    current = null;
+                }
+                Chunk chunk;
+                try {
+                    chunk = filled.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading from pipe");
+                }
+                if ( chunk == END ) {
+                    eof = true;
+                    if ( producerError != null ) {
+                        throw new IOException("Writer of the pipe failed", producerError);
+                    }
+                    return false;
+                }
+                current = chunk;
+                position = 0;
+            }
+            return true;
+        }
+    }
+
+    static class Chunk {
+
+        final byte[] data;
+        int length = 0;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Free chunks of one size, shared by all pipes.
+     */
+    static class ChunkPool {
+
+        private final int chunkSize;
+        private final ConcurrentLinkedQueue<Chunk> free = new ConcurrentLinkedQueue<Chunk>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        ChunkPool(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        Chunk take() {
+            Chunk chunk = free.poll();
+            if ( chunk == null ) {
+                return new Chunk(new byte[chunkSize]);
+            }
+            size.decrementAndGet();
+            chunk.length = 0;
+            return chunk;
+        }
+
+        void recycle(Chunk chunk) {
+            if ( size.incrementAndGet() <= MAX_POOLED_CHUNKS ) {
+                free.offer(chunk);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Wrapper class for HttpServletResponse that compresses the body as it is written.
+ *
+ * The first minBytes bytes are held back. If the body ends before that, it is sent as
+ * it is. Otherwise, once the body gets bigger, the response is compressed if it is a
+ * 200 of a compressible media type that is not encoded already (e.g. served
+ * compressed by ResponseCacheFilter), or else sent as it is.
+ */
+class CompressingResponseWrapper extends HttpServletResponseWrapper {
+
+    static final String CONTENT_LENGTH_HEADER = "content-length";
+    static final String CONTENT_TYPE_HEADER = "content-type";
+
+    private enum State { PENDING, COMPRESSING, IDENTITY, FINISHED }
+
+    private final String encoding;
+    private final int level;
+    private final byte[] pending;
+    private int count = 0;
+
+    private State state = State.PENDING;
+    private int status = SC_OK;
+    private String contentType = null;
+    private boolean encoded = false;
+    private long contentLength = -1;
+
+    private DeflaterOutputStream compressor = null;
+
+    private CompressingOutputStream outputStream = null;
+    private PrintWriter writer = null;
+
+    /**
+     * @param response
+     * @param encoding  gzip or deflate
+     * @param level     the compression level
+     * @param minBytes  the smallest body to compress
+     */
+    CompressingResponseWrapper(HttpServletResponse response, String encoding, int level, int minBytes) {
+        super(response);
+        this.encoding = encoding;
+        this.level = level;
+        this.pending = new byte[minBytes];
+    }
+
+    /**
+     * @return true if the body is being compressed
+     */
+    synchronized boolean isCompressing() {
+        return state == State.COMPRESSING || (state == State.FINISHED && compressor != null);
+    }
+
+    /**
+     * Sends the rest of the body: what is held back, or the end of the compressed body.
+     *
+     * @throws IOException
+     */
+    synchronized void finish() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        switch ( state ) {
+            case PENDING:
+                // the whole body is held back, so its length is known
+                if ( contentLength < 0 ) {
+                    contentLength = count;
+                }
+                identity();
+                break;
+            case COMPRESSING:
+                compressor.finish();
+                break;
+            default:
+                break;
+        }
+        state = State.FINISHED;
+    }
+
+    /**
+     * Gives up on the body, e.g. when the chain has thrown: what is held back is dropped,
+     * and the compressor is freed without writing the end of the compressed body.
+     */
+    synchronized void release() {
+        if ( compressor != null ) {
+            ((CompressionFilter.ReleasableStream) compressor).release();
+        }
+        count = 0;
+        state = State.FINISHED;
+    }
+
+    /**
+     * Sends the response as it is written, starting with what is held back.
+     */
+    private void identity() throws IOException {
+        state = State.IDENTITY;
+        if ( contentLength >= 0 ) {
+            super.setContentLengthLong(contentLength);
+        }
+        if ( count > 0 ) {
+            super.getOutputStream().write(pending, 0, count);
+            count = 0;
+        }
+    }
+
+    private void compress() throws IOException {
+        state = State.COMPRESSING;
+        super.setHeader(CompressionFilter.CONTENT_ENCODING_HEADER, encoding);
+        super.addHeader(CompressionFilter.VARY_HEADER, CompressionFilter.ACCEPT_ENCODING_HEADER);
+        compressor = CompressionFilter.newCompressingStream(super.getOutputStream(), encoding, level);
+        compressor.write(pending, 0, count);
+        count = 0;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        switch ( state ) {
+            case PENDING:
+                if ( count + len <= pending.length ) {
+                    System.arraycopy(b, off, pending, count, len);
+                    count += len;
+                    return;
+                }
+                if ( status == SC_OK && !encoded && CompressionFilter.isCompressible(getContentType()) ) {
+                    compress();
+                    compressor.write(b, off, len);
+                } else {
+                    identity();
+                    super.getOutputStream().write(b, off, len);
+                }
+                return;
+            case COMPRESSING:
+                compressor.write(b, off, len);
+                return;
+            case IDENTITY:
+                super.getOutputStream().write(b, off, len);
+                return;
+            default:
+                throw new IOException("The response has been finished");
+        }
+    }
+
+    private void identityQuietly() {
+        try {
+            if ( state == State.PENDING ) {
+                identity();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    public synchronized void sendError(int sc) throws IOException {
+        status = sc;
+        count = 0;
+        contentLength = -1;
+        identity();
+        super.sendError(sc);
+    }
+
+    @Override
+    public synchronized void sendError(int sc, String msg) throws IOException {
+        status = sc;
+        count = 0;
+        contentLength = -1;
+        identity();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public synchronized void sendRedirect(String location) throws IOException {
+        status = SC_FOUND;
+        count = 0;
+        contentLength = -1;
+        identity();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public synchronized void setContentType(String type) {
+        contentType = type;
+        super.setContentType(type);
+    }
+
+    @Override
+    public synchronized String getContentType() {
+        return contentType != null ? contentType : super.getContentType();
+    }
+
+    @Override
+    public synchronized void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public synchronized void setContentLengthLong(long len) {
+        switch ( state ) {
+            case PENDING:
+                contentLength = len;
+                break;
+            case IDENTITY:
+                super.setContentLengthLong(len);
+                break;
+            default:
+                // the length of the compressed body is not known
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void setHeader(String name, String value) {
+        if ( CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            setContentLengthLong(Long.parseLong(value));
+            return;
+        }
+        super.setHeader(name, value);
+        header(name, value);
+    }
+
+    @Override
+    public synchronized void addHeader(String name, String value) {
+        if ( CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            setContentLengthLong(Long.parseLong(value));
+            return;
+        }
+        super.addHeader(name, value);
+        header(name, value);
+    }
+
+    @Override
+    public synchronized void setIntHeader(String name, int value) {
+        if ( CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            setContentLengthLong(value);
+            return;
+        }
+        super.setIntHeader(name, value);
+    }
+
+    private void header(String name, String value) {
+        if ( CompressionFilter.CONTENT_ENCODING_HEADER.equalsIgnoreCase(name) ) {
+            // already encoded, e.g. served compressed from a cache
+            encoded = true;
+            identityQuietly();
+        } else if ( CONTENT_TYPE_HEADER.equalsIgnoreCase(name) ) {
+            contentType = value;
+        }
+    }
+
+    @Override
+    public synchronized void flushBuffer() throws IOException {
+        if ( writer != null ) {
+            writer.flush();
+        }
+        switch ( state ) {
+            case PENDING:
+                // committing now would send the response before it is known whether to compress it
+                break;
+            case COMPRESSING:
+                compressor.flush();
+                super.flushBuffer();
+                break;
+            default:
+                super.flushBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void resetBuffer() {
+        if ( state == State.COMPRESSING ) {
+            throw new IllegalStateException("Part of the compressed response has been sent");
+        }
+        count = 0;
+        super.resetBuffer();
+    }
+
+    @Override
+    public synchronized void reset() {
+        resetBuffer();
+        status = SC_OK;
+        contentType = null;
+        encoded = false;
+        contentLength = -1;
+        super.reset();
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        if ( writer != null ) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if ( outputStream == null ) {
+            outputStream = new CompressingOutputStream();
+        }
+        return outputStream;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+        if ( writer != null ) {
+            return writer;
+        }
+        if ( outputStream != null ) {
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        outputStream = new CompressingOutputStream();
+        writer = new PrintWriter(new OutputStreamWriter(outputStream,
+                                                        StringUtils.defaultIfEmpty(getCharacterEncoding(), "ISO-8859-1")));
+        return writer;
+    }
+
+    /**
+     * Compresses, or holds back, what is written to it.
+     */
+    private class CompressingOutputStream extends ServletOutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized ( CompressingResponseWrapper.this ) {
+                single[0] = (byte) b;
+                CompressingResponseWrapper.this.write(single, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            CompressingResponseWrapper.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized ( CompressingResponseWrapper.this ) {
+                if ( state == State.COMPRESSING ) {
+                    compressor.flush();
+                } else if ( state == State.IDENTITY ) {
+                    CompressingResponseWrapper.super.getOutputStream().flush();
+                }
+            }
+        }
+
+        /**
+         * Finishes the body, then closes the response.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized ( CompressingResponseWrapper.this ) {
+                if ( state != State.FINISHED ) {
+                    finish();
+                }
+                CompressingResponseWrapper.super.getOutputStream().close();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            synchronized ( CompressingResponseWrapper.this ) {
+                if ( state != State.IDENTITY ) {
+                    return true;
+                }
+            }
+            try {
+                return CompressingResponseWrapper.super.getOutputStream().isReady();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Non-blocking writes are left uncompressed: the end of the body can't be told
+         * apart from a pause in it, so the compressed body could not be finished.
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            synchronized ( CompressingResponseWrapper.this ) {
+                if ( state != State.PENDING || count > 0 ) {
+                    throw new IllegalStateException("setWriteListener() called after the body was written");
+                }
+                identityQuietly();
+                try {
+                    CompressingResponseWrapper.super.getOutputStream().setWriteListener(writeListener);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class is a servlet filter that compresses the responses of the web app, as
+ * they are written, for clients that accept it. It does the following:
+ * <ul>
+ *     <li>picks gzip or deflate from the Accept-Encoding header of the request</li>
+ *     <li>holds back the first 'minBytes' bytes of the body (default 1024): a body
+ *     that ends before that is sent as it is, with its length</li>
+ *     <li>otherwise, if the response is a 200 of an XML, JSON or text media type, and
+ *     is not encoded already, compresses the body with 'compressionLevel' (1 to 9,
+ *     default 6) as it is written</li>
+ * </ul>
+ *
+ * Responses of requests that go async are not compressed, as the end of the body
+ * can't be told apart from a pause in it.
+ *
+ * This filter must be mapped after ETagFilter, so the ETag is that of the compressed
+ * body, and before ResponseCacheFilter and the filters transforming the response.
+ */
+public class CompressionFilter implements Filter {
+
+    private static Logger LOG = LoggerFactory.getLogger(CompressionFilter.class);
+
+    static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    static final String VARY_HEADER = "Vary";
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    static final int DEFAULT_MIN_BYTES = 1024;
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    static final int BUFFER_SIZE = 8192;
+
+    private int minBytes = DEFAULT_MIN_BYTES;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+    public void init(FilterConfig config)
+            throws ServletException {
+
+        LOG.debug("initializing CompressionFilter");
+
+        minBytes = getInt(config, "minBytes", DEFAULT_MIN_BYTES, 0);
+        compressionLevel = getInt(config, "compressionLevel", DEFAULT_COMPRESSION_LEVEL, 1);
+        if ( compressionLevel > Deflater.BEST_COMPRESSION ) {
+            throw new ServletException("compressionLevel parameter must be from 1 to 9: " + compressionLevel);
+        }
+    }
+
+    static int getInt(FilterConfig config, String name, int defaultValue, int min)
+            throws ServletException {
+
+        String value = config.getInitParameter(name);
+        if ( StringUtils.isBlank(value) ) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if ( parsed < min ) {
+                throw new ServletException(name + " parameter must be at least " + min + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new ServletException(name + " parameter must be a number: " + value);
+        }
+    }
+
+    public void doFilter(ServletRequest servletRequest,
+                         ServletResponse servletResponse,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        String encoding = negotiate(request.getHeader(ACCEPT_ENCODING_HEADER));
+        if ( encoding == null ) {
+            // pass through
+            chain.doFilter(request, response);
+            return;
+        }
+
+        CompressingResponseWrapper wrapper = new CompressingResponseWrapper(response, encoding,
+                                                                            compressionLevel, minBytes);
+        boolean done = false;
+        try {
+            chain.doFilter(request, wrapper);
+            done = true;
+        } finally {
+            if ( !done ) {
+                // the body is cut short: free the compressor rather than finish it
+                wrapper.release();
+            }
+        }
+
+        if ( !request.isAsyncStarted() ) {
+            wrapper.finish();
+        }
+    }
+
+    public void destroy() {
+    }
+
+    /**
+     * @param acceptEncoding  the Accept-Encoding header of a request
+     * @return gzip or deflate, whichever the client prefers, gzip if it doesn't mind,
+     *         or null if it accepts neither
+     */
+    static String negotiate(String acceptEncoding) {
+        float gzip = quality(acceptEncoding, GZIP);
+        float deflate = quality(acceptEncoding, DEFLATE);
+        if ( gzip > 0 && gzip >= deflate ) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * @param acceptEncoding  the Accept-Encoding header of a request
+     * @param encoding
+     * @return true if the client accepts the encoding
+     */
+    static boolean accepts(String acceptEncoding, String encoding) {
+        return quality(acceptEncoding, encoding) > 0;
+    }
+
+    /**
+     * @param acceptEncoding
+     * @param encoding
+     * @return the q value of the encoding in the header, or of *, or 0 if neither is there
+     */
+    static float quality(String acceptEncoding, String encoding) {
+        if ( StringUtils.isBlank(acceptEncoding) ) {
+            return 0;
+        }
+        float wildcard = 0;
+        for ( String coding : acceptEncoding.split(",") ) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            float q = 1;
+            for ( int i = 1; i < parts.length; i++ ) {
+                String param = parts[i].trim();
+                if ( param.startsWith("q=") ) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ( name.equalsIgnoreCase(encoding) ) {
+                return q;
+            }
+            if ( name.equals("*") ) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * @param contentType
+     * @return true if responses of the content type are worth compressing
+     */
+    static boolean isCompressible(String contentType) {
+        if ( contentType == null ) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.contains("xml") || type.contains("json") || type.startsWith("text/");
+    }
+
+    /**
+     * @param out
+     * @param encoding  gzip or deflate
+     * @param level
+     * @return a stream compressing what is written to it into 'out'. Closing or
+     *         finishing it frees the native memory of its Deflater.
+     * @throws IOException
+     */
+    static DeflaterOutputStream newCompressingStream(OutputStream out, String encoding, int level)
+            throws IOException {
+
+        if ( GZIP.equals(encoding) ) {
+            return new LevelGZIPOutputStream(out, level);
+        }
+        return new EndingDeflaterOutputStream(out, new Deflater(level));
+    }
+
+    /**
+     * @param body
+     * @param encoding  gzip or deflate
+     * @param level
+     * @return the body compressed in one go
+     * @throws IOException
+     */
+    static byte[] compress(byte[] body, String encoding, int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        DeflaterOutputStream out = newCompressingStream(compressed, encoding, level);
+        out.write(body);
+        out.finish();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * A compressing stream whose Deflater can be freed without finishing the body.
+     */
+    interface ReleasableStream {
+
+        /**
+         * Frees the Deflater, without writing the end of the compressed body.
+         */
+        void release();
+    }
+
+    /**
+     * GZIPOutputStream with a compression level, that frees its Deflater when finished.
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream implements ReleasableStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        private boolean ended = false;
+
+        @Override
+        public void finish() throws IOException {
+            if ( ended ) {
+                return;
+            }
+            try {
+                super.finish();
+            } finally {
+                ended = true;
+                def.end();
+            }
+        }
+
+        public void release() {
+            if ( !ended ) {
+                ended = true;
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * DeflaterOutputStream that frees its Deflater when finished.
+     */
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream implements ReleasableStream {
+
+        EndingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, BUFFER_SIZE);
+        }
+
+        private boolean ended = false;
+
+        @Override
+        public void finish() throws IOException {
+            if ( ended ) {
+                return;
+            }
+            try {
+                super.finish();
+            } finally {
+                ended = true;
+                def.end();
+            }
+        }
+
+        public void release() {
+            if ( !ended ) {
+                ended = true;
+                def.end();
+            }
+        }
+    }
+}
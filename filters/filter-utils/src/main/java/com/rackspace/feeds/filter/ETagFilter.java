@@ -0,0 +1,184 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * This class is a servlet filter that lets clients polling a feed revalidate the page
+ * they have, instead of downloading it again when nothing changed. It does the following:
+ * <ul>
+ *     <li>operates only on GET requests</li>
+ *     <li>sets a strong ETag on 200 responses, hashed from the final, transformed body
+ *     as it is written</li>
+ *     <li>answers with a 304, and no body, when the ETag is in the If-None-Match
+ *     header of the request</li>
+ *     <li>sets a Cache-Control header, unless the response has one, with a max-age
+ *     depending on how likely the page is to change (see FeedPage):
+ *     'entryMaxAgeSeconds' for a single entry (default 1 day), 'markerMaxAgeSeconds'
+ *     for a page read backward from a marker (default 1 hour) and 'headMaxAgeSeconds'
+ *     for any other page (default 5 seconds). 'cacheControlScope' is 'private' by
+ *     default, as the pages depend on the tenant and roles of the user</li>
+ * </ul>
+ *
+ * The body is held back until it is complete, as the ETag has to be sent before it.
+ * A body bigger than 'maxBytes' (default 4MB) is sent as it is written, without an
+ * ETag, and so are the responses of requests that go async.
+ *
+ * This filter must be mapped first: before CompressionFilter, so the ETag is that of the
+ * compressed body, and before ResponseCacheFilter, so cached responses get an ETag too.
+ */
+public class ETagFilter implements Filter {
+
+    private static Logger LOG = LoggerFactory.getLogger(ETagFilter.class);
+
+    static final String ETAG_HEADER = "ETag";
+    static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    static final String CACHE_CONTROL_HEADER = "Cache-Control";
+
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_ENTRY_MAX_AGE_SECONDS = 24L * 60 * 60;
+    static final long DEFAULT_MARKER_MAX_AGE_SECONDS = 60L * 60;
+    static final long DEFAULT_HEAD_MAX_AGE_SECONDS = 5;
+    static final String DEFAULT_CACHE_CONTROL_SCOPE = "private";
+
+    private int maxBytes = DEFAULT_MAX_BYTES;
+    private long entryMaxAgeSeconds = DEFAULT_ENTRY_MAX_AGE_SECONDS;
+    private long markerMaxAgeSeconds = DEFAULT_MARKER_MAX_AGE_SECONDS;
+    private long headMaxAgeSeconds = DEFAULT_HEAD_MAX_AGE_SECONDS;
+    private String cacheControlScope = DEFAULT_CACHE_CONTROL_SCOPE;
+
+    public void init(FilterConfig config)
+            throws ServletException {
+
+        LOG.debug("initializing ETagFilter");
+
+        maxBytes = (int) Math.min(Integer.MAX_VALUE, getLong(config, "maxBytes", DEFAULT_MAX_BYTES));
+        entryMaxAgeSeconds = getLong(config, "entryMaxAgeSeconds", DEFAULT_ENTRY_MAX_AGE_SECONDS);
+        markerMaxAgeSeconds = getLong(config, "markerMaxAgeSeconds", DEFAULT_MARKER_MAX_AGE_SECONDS);
+        headMaxAgeSeconds = getLong(config, "headMaxAgeSeconds", DEFAULT_HEAD_MAX_AGE_SECONDS);
+
+        String scope = config.getInitParameter("cacheControlScope");
+        if ( StringUtils.isNotBlank(scope) ) {
+            if ( !scope.equals("private") && !scope.equals("public") ) {
+                throw new ServletException("cacheControlScope parameter must be private or public: " + scope);
+            }
+            cacheControlScope = scope;
+        }
+    }
+
+    private static long getLong(FilterConfig config, String name, long defaultValue)
+            throws ServletException {
+
+        String value = config.getInitParameter(name);
+        if ( StringUtils.isBlank(value) ) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if ( parsed < 0 ) {
+                throw new ServletException(name + " parameter must not be negative: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new ServletException(name + " parameter must be a number: " + value);
+        }
+    }
+
+    public void doFilter(ServletRequest servletRequest,
+                         ServletResponse servletResponse,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        if ( !"GET".equalsIgnoreCase(request.getMethod()) ) {
+            // pass through
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ETagResponseWrapper wrapper = new ETagResponseWrapper(response, maxBytes);
+        try {
+            chain.doFilter(request, wrapper);
+
+            if ( request.isAsyncStarted() ) {
+                // the rest of the response is written by another thread
+                wrapper.passThrough();
+                return;
+            }
+            if ( !wrapper.isBuffering() ) {
+                return;
+            }
+
+            String etag = wrapper.getETag();
+            response.setHeader(ETAG_HEADER, etag);
+            if ( !response.containsHeader(CACHE_CONTROL_HEADER) ) {
+                response.setHeader(CACHE_CONTROL_HEADER, getCacheControl(request));
+            }
+
+            if ( matches(request.getHeader(IF_NONE_MATCH_HEADER), etag) ) {
+                LOG.debug("Not modified: " + request.getRequestURI() + " " + etag);
+                wrapper.discardBody();
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            } else {
+                wrapper.writeBody();
+            }
+        } finally {
+            wrapper.release();
+        }
+    }
+
+    /**
+     * @param request
+     * @return the Cache-Control header for the response to the request
+     */
+    String getCacheControl(HttpServletRequest request) {
+        long maxAge;
+        switch ( FeedPage.of(request) ) {
+            case ENTRY:
+                maxAge = entryMaxAgeSeconds;
+                break;
+            case MARKER_PAGE:
+                maxAge = markerMaxAgeSeconds;
+                break;
+            default:
+                maxAge = headMaxAgeSeconds;
+        }
+        return cacheControlScope + ", max-age=" + maxAge;
+    }
+
+    /**
+     * @param ifNoneMatch  the If-None-Match header of the request
+     * @param etag
+     * @return true if the header has the ETag, or is *. As for any GET, the ETags are
+     *         compared weakly, i.e. a W/ in front of them doesn't matter.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if ( StringUtils.isBlank(ifNoneMatch) ) {
+            return false;
+        }
+        for ( String candidate : ifNoneMatch.split(",") ) {
+            candidate = candidate.trim();
+            if ( candidate.equals("*") ) {
+                return true;
+            }
+            if ( candidate.startsWith("W/") ) {
+                candidate = candidate.substring(2);
+            }
+            if ( candidate.equals(etag) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void destroy() {
+    }
+}
@@ -0,0 +1,356 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Wrapper class for HttpServletResponse that holds back the body of a 200 response,
+ * hashing it as it is written, so the ETag can be set before the body is sent, or a
+ * 304 sent instead of it.
+ *
+ * The body is held in pooled chunks (see ChunkedBuffer), which are written to the
+ * response as they are, so it is copied once; release() gives them back to the pool.
+ * The response is let through as it is written, without an ETag, once:
+ * <ul>
+ *     <li>its status is not 200</li>
+ *     <li>its body is bigger than maxBytes</li>
+ *     <li>{@link #passThrough()} is called, e.g. because the request went async</li>
+ *     <li>a WriteListener is set on its output stream: the listener is then the
+ *     container's, and is called by it</li>
+ * </ul>
+ */
+class ETagResponseWrapper extends HttpServletResponseWrapper {
+
+    static final String CONTENT_LENGTH_HEADER = "content-length";
+
+    private final int maxBytes;
+
+    private final MessageDigest digest;
+    private final ChunkedBuffer body = new ChunkedBuffer();
+
+    private boolean buffering = true;
+    private boolean closed = false;
+    private long contentLength = -1;
+
+    private HoldingOutputStream outputStream = null;
+    private PrintWriter writer = null;
+
+    /**
+     * @param response
+     * @param maxBytes  the biggest body to hold back
+     */
+    ETagResponseWrapper(HttpServletResponse response, int maxBytes) {
+        super(response);
+        this.maxBytes = maxBytes;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the whole body is held back
+     */
+    synchronized boolean isBuffering() {
+        return buffering;
+    }
+
+    /**
+     * @return the strong ETag of the body held back, quoted. It can only be computed once.
+     * @throws IOException
+     */
+    synchronized String getETag() throws IOException {
+        flushWriter();
+        StringBuilder etag = new StringBuilder("\"");
+        for ( byte b : digest.digest() ) {
+            etag.append(Character.forDigit((b >> 4) & 0xf, 16));
+            etag.append(Character.forDigit(b & 0xf, 16));
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * Writes the body held back to the response, with its length.
+     *
+     * @throws IOException
+     */
+    synchronized void writeBody() throws IOException {
+        flushWriter();
+        buffering = false;
+        super.setContentLength((int) body.size());
+        ServletOutputStream out = super.getOutputStream();
+        writeChunks(out);
+        if ( closed ) {
+            out.close();
+        }
+    }
+
+    /**
+     * Drops the body held back, for a 304, and lets anything written afterwards through.
+     */
+    synchronized void discardBody() {
+        buffering = false;
+        body.release();
+    }
+
+    /**
+     * Gives the chunks of the body held back, if any, back to the pool.
+     */
+    synchronized void release() {
+        body.release();
+    }
+
+    /**
+     * Writes the body held back to the response, and lets the rest of it through as
+     * it is written.
+     *
+     * @throws IOException
+     */
+    synchronized void passThrough() throws IOException {
+        if ( !buffering ) {
+            return;
+        }
+        buffering = false;
+        if ( contentLength >= 0 ) {
+            super.setContentLengthLong(contentLength);
+        }
+        ServletOutputStream out = super.getOutputStream();
+        writeChunks(out);
+        if ( closed ) {
+            out.close();
+        }
+    }
+
+    private void writeChunks(ServletOutputStream out) throws IOException {
+        body.writeTo(out);
+        body.release();
+    }
+
+    private void flushWriter() {
+        if ( writer != null ) {
+            writer.flush();
+        }
+    }
+
+    private synchronized void hold(byte[] b, int off, int len) throws IOException {
+        if ( body.size() + len > maxBytes ) {
+            passThrough();
+            super.getOutputStream().write(b, off, len);
+            return;
+        }
+        digest.update(b, off, len);
+        body.write(b, off, len);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        if ( sc != SC_OK ) {
+            passThroughQuietly();
+        }
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        // the error page replaces the body
+        discardBody();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        // the error page replaces the body
+        discardBody();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        // the redirect replaces the body
+        discardBody();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public synchronized void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public synchronized void setContentLengthLong(long len) {
+        // the length of the body held back is set when it is written
+        if ( buffering ) {
+            contentLength = len;
+        } else {
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public synchronized void setHeader(String name, String value) {
+        if ( buffering && CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            contentLength = Long.parseLong(value);
+        } else {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void setIntHeader(String name, int value) {
+        if ( buffering && CONTENT_LENGTH_HEADER.equalsIgnoreCase(name) ) {
+            contentLength = value;
+        } else {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void flushBuffer() throws IOException {
+        if ( buffering ) {
+            // committing the response now would send it without the ETag
+            flushWriter();
+        } else {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void resetBuffer() {
+        if ( buffering ) {
+            body.release();
+            digest.reset();
+        }
+        super.resetBuffer();
+    }
+
+    @Override
+    public synchronized void reset() {
+        resetBuffer();
+        contentLength = -1;
+        super.reset();
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        if ( writer != null ) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if ( outputStream == null ) {
+            outputStream = new HoldingOutputStream();
+        }
+        return outputStream;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+        if ( writer != null ) {
+            return writer;
+        }
+        if ( outputStream != null ) {
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        outputStream = new HoldingOutputStream();
+        writer = new PrintWriter(new OutputStreamWriter(outputStream,
+                                                        StringUtils.defaultIfEmpty(getCharacterEncoding(), "ISO-8859-1")));
+        return writer;
+    }
+
+    private void passThroughQuietly() {
+        try {
+            passThrough();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Holds back what is written while the body is held back, and writes it to the
+     * response afterwards.
+     */
+    private class HoldingOutputStream extends ServletOutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized ( ETagResponseWrapper.this ) {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized ( ETagResponseWrapper.this ) {
+                if ( buffering ) {
+                    hold(b, off, len);
+                } else {
+                    ETagResponseWrapper.super.getOutputStream().write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized ( ETagResponseWrapper.this ) {
+                if ( !buffering ) {
+                    ETagResponseWrapper.super.getOutputStream().flush();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized ( ETagResponseWrapper.this ) {
+                if ( buffering ) {
+                    closed = true;
+                } else {
+                    ETagResponseWrapper.super.getOutputStream().close();
+                }
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            synchronized ( ETagResponseWrapper.this ) {
+                if ( buffering ) {
+                    // what is written is held back
+                    return true;
+                }
+                try {
+                    return ETagResponseWrapper.super.getOutputStream().isReady();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * Lets the body through, while the response is still written with blocking I/O,
+         * and gives the listener to the output stream of the response, whose container
+         * calls it when it can be written to.
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            synchronized ( ETagResponseWrapper.this ) {
+                try {
+                    passThrough();
+                    ETagResponseWrapper.super.getOutputStream().setWriteListener(writeListener);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
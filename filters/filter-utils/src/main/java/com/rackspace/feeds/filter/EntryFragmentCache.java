@@ -0,0 +1,296 @@
+package com.rackspace.feeds.filter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the transformed entries of feed pages, bounded by the
+ * total size of the entries it holds. Published entries don't change, and pollers read
+ * overlapping pages, so most of the entries of a page have been transformed moments
+ * before, for another page or another marker.
+ *
+ * An entry is cached under its atom:id and the variant of the transform: the stylesheets
+ * that ran, their versions and their parameters, which is where the output of the
+ * filters differs from one request to another (private attributes removed or not, the
+ * external URL, the tenantId of the links). See ParallelEntryTransform, which looks
+ * the entries of a page up here and only transforms those it doesn't find.
+ *
+ * Each cached entry keeps the SHA-256 digest of the entry it was transformed from, and
+ * is only found for the same entry, so an id reused with other content is a miss.
+ *
+ * A single entry, served as a document of its own, is cached under a key of its own (see
+ * getDocumentKey()): its output is that of a whole document, with its XML declaration,
+ * where the entries of a page have theirs removed.
+ *
+ * The cache is split into segments by the hash of the key, each with its share of the
+ * bytes and a lock of its own, so the threads transforming pages don't all wait on the
+ * same lock; the least recently used entries are dropped from each segment.
+ */
+class EntryFragmentCache {
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // what a cached entry costs on top of its key and output, its digest included
+    static final int ENTRY_OVERHEAD = 96;
+
+    static final int MAX_SEGMENTS = 16;
+    // a smaller cache has fewer segments, so they can each hold a few entries
+    static final long MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private final long maxBytes;
+    private final Segment[] segments;
+
+    /**
+     * @param maxBytes  the most bytes of transformed entries the cache may hold
+     */
+    EntryFragmentCache(long maxBytes) {
+        if ( maxBytes <= 0 ) {
+            throw new IllegalArgumentException("maxBytes must be greater than 0: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxBytes / MIN_SEGMENT_BYTES));
+        segments = new Segment[count];
+        for ( int idx = 0; idx < count; idx++ ) {
+            segments[idx] = new Segment(maxBytes / count);
+        }
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param variant  the stylesheets and parameters of the transform
+     * @param id       the atom:id of the entry
+     * @return the key of the entry in the cache
+     */
+    static String getKey(String variant, String id) {
+        return variant + '\n' + id;
+    }
+
+    /**
+     * @param variant  the stylesheets and parameters of the transform
+     * @param id       the atom:id of an entry that is the whole document
+     * @return the key of the output of the document in the cache
+     */
+    static String getDocumentKey(String variant, String id) {
+        return variant + "\ndocument\n" + id;
+    }
+
+    /**
+     * @param input
+     * @return the SHA-256 digest of the input, encoded in UTF-8
+     */
+    static byte[] digest(String input) {
+        byte[] bytes = input.getBytes(BufferedResponseWrapper.UTF_8);
+        return digest(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param input
+     * @param offset
+     * @param length
+     * @return the SHA-256 digest of those bytes of the input
+     */
+    static byte[] digest(byte[] input, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(input, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, the keys of a variant share a long prefix
+        hash ^= (hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * @param key    see getKey()
+     * @param input  the entry to be transformed
+     * @return the output of the transform of the entry, or null if it isn't cached
+     */
+    String get(String key, String input) {
+        return get(key, digest(input));
+    }
+
+    /**
+     * @param key          see getKey()
+     * @param inputDigest  the digest of the entry to be transformed, see digest()
+     * @return the output of the transform of the entry, or null if it isn't cached
+     */
+    String get(String key, byte[] inputDigest) {
+        return segmentFor(key).get(key, inputDigest);
+    }
+
+    /**
+     * Caches the output of an entry, dropping the least recently used entries of its
+     * segment until it fits. An entry bigger than a segment is not cached.
+     *
+     * @param key     see getKey()
+     * @param input   the entry that was transformed
+     * @param output  the output of the transform
+     */
+    void put(String key, String input, String output) {
+        put(key, digest(input), output);
+    }
+
+    /**
+     * @param key          see getKey()
+     * @param inputDigest  the digest of the entry that was transformed, see digest()
+     * @param output       the output of the transform
+     */
+    void put(String key, byte[] inputDigest, String output) {
+        segmentFor(key).put(key, new Fragment(key, inputDigest, output));
+    }
+
+    void clear() {
+        for ( Segment segment : segments ) {
+            segment.clear();
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for ( Segment segment : segments ) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    long getBytes() {
+        long bytes = 0;
+        for ( Segment segment : segments ) {
+            bytes += segment.getBytes();
+        }
+        return bytes;
+    }
+
+    long getHits() {
+        long hits = 0;
+        for ( Segment segment : segments ) {
+            hits += segment.getHits();
+        }
+        return hits;
+    }
+
+    long getMisses() {
+        long misses = 0;
+        for ( Segment segment : segments ) {
+            misses += segment.getMisses();
+        }
+        return misses;
+    }
+
+    long getEvictions() {
+        long evictions = 0;
+        for ( Segment segment : segments ) {
+            evictions += segment.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * A least recently used part of the cache, with a lock of its own.
+     */
+    private static class Segment {
+
+        private final long maxBytes;
+
+        private final LinkedHashMap<String, Fragment> fragments =
+                new LinkedHashMap<String, Fragment>(64, 0.75f, true);
+        private long bytes = 0;
+
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(String key, byte[] inputDigest) {
+            Fragment fragment = fragments.get(key);
+            if ( fragment == null || !fragment.isOf(inputDigest) ) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return fragment.output;
+        }
+
+        synchronized void put(String key, Fragment fragment) {
+            if ( fragment.size > maxBytes ) {
+                return;
+            }
+            Fragment previous = fragments.put(key, fragment);
+            if ( previous != null ) {
+                bytes -= previous.size;
+            }
+            bytes += fragment.size;
+
+            Iterator<Map.Entry<String, Fragment>> eldest = fragments.entrySet().iterator();
+            while ( bytes > maxBytes && eldest.hasNext() ) {
+                Fragment evicted = eldest.next().getValue();
+                eldest.remove();
+                bytes -= evicted.size;
+                evictions++;
+            }
+        }
+
+        synchronized void clear() {
+            fragments.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return fragments.size();
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        synchronized long getEvictions() {
+            return evictions;
+        }
+    }
+
+    private static class Fragment {
+
+        private final byte[] inputDigest;
+        private final String output;
+        private final long size;
+
+        Fragment(String key, byte[] inputDigest, String output) {
+            this.inputDigest = inputDigest;
+            this.output = output;
+            // chars are 2 bytes
+            this.size = 2L * (key.length() + output.length()) + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * @param digest  the digest of an entry
+         * @return true if this is the output of that entry
+         */
+        boolean isOf(byte[] digest) {
+            return MessageDigest.isEqual(inputDigest, digest);
+        }
+    }
+}
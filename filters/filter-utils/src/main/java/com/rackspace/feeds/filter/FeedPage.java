@@ -0,0 +1,50 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.regex.Pattern;
+
+/**
+ * The kinds of pages Atom Hopper serves, by how likely they are to change, for the
+ * filters that decide how long a response may be cached.
+ */
+public enum FeedPage {
+
+    /**
+     * A single entry, /.../entries/urn:uuid:..., which doesn't change once it is published.
+     */
+    ENTRY,
+
+    /**
+     * A page read backward from a marker, which holds older entries only.
+     */
+    MARKER_PAGE,
+
+    /**
+     * The head of a feed, or any other page that gets new entries as they are
+     * published, such as a page read forward from a marker.
+     */
+    HEAD_PAGE;
+
+    static final String MARKER_PARAM = "marker";
+    static final String DIRECTION_PARAM = "direction";
+
+    static final Pattern ENTRY_URI_PATTERN = Pattern.compile(".*/entries/urn:uuid:[^/]+/?$");
+
+    /**
+     * @param request
+     * @return the kind of page the request is for
+     */
+    public static FeedPage of(HttpServletRequest request) {
+        if ( ENTRY_URI_PATTERN.matcher(request.getRequestURI()).matches() ) {
+            return ENTRY;
+        }
+        String marker = request.getParameter(MARKER_PARAM);
+        if ( StringUtils.isNotEmpty(marker) && !"last".equals(marker)
+                && "backward".equalsIgnoreCase(request.getParameter(DIRECTION_PARAM)) ) {
+            return MARKER_PAGE;
+        }
+        return HEAD_PAGE;
+    }
+}
@@ -0,0 +1,199 @@
+package com.rackspace.feeds.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes what a filter does with the requests to the Yammer metrics registry, which
+ * the web app exposes under /atommetrics. The metrics are named
+ * com.rackspace.feeds.filter.{filter class}.{metric}.{scope}, the scope being the name
+ * of the filter:
+ * <ul>
+ *     <li>requests: timer of the doFilter() of the filter, which includes the filters and
+ *     servlet after it</li>
+ *     <li>chain: timer of the filters and servlet after it, so that requests minus chain
+ *     is the time of the filter itself, and the chain of the last filter is the time of
+ *     Atom Hopper</li>
+ *     <li>transforms: timer of the transforms, from the first byte of the response the
+ *     chain wrote to the last byte of the transformed response</li>
+ *     <li>input-bytes, output-bytes: histograms of the size of the responses before and
+ *     after the transform, in bytes</li>
+ *     <li>transformed, passed-through: how many requests the filter transformed, and let
+ *     through untransformed</li>
+ *     <li>composed: how many requests were transformed as a stage of the TransformPipeline
+ *     of an outer filter; their transform is timed and sized by the outer filter</li>
+ *     <li>transform-errors: how many transforms failed</li>
+ * </ul>
+ *
+ * When the chain is run on another thread (see ServletResponsePipe), the chain overlaps
+ * with the transform, and requests is about the larger of the two. In async mode (see
+ * AsyncTransform), requests only times setting the request up.
+ *
+ * The requests timed by ServerTimingFilter also get the time of the filter, and of the
+ * chain after it, recorded in their ServerTiming.
+ */
+public class FilterMetrics {
+
+    private final String scope;
+    private final Class<?> filterClass;
+    private final List<MetricName> names = new ArrayList<MetricName>();
+
+    private final Timer requests;
+    private final Timer chain;
+    private final Timer transforms;
+    private final Histogram inputBytes;
+    private final Histogram outputBytes;
+    private final Counter transformed;
+    private final Counter passedThrough;
+    private final Counter composed;
+    private final Counter transformErrors;
+
+    /**
+     * Registers the metrics of a filter, replacing any metrics registered before with
+     * the same names.
+     *
+     * @param filterClass
+     * @param scope        the name of the filter, or null to use the simple name of its class
+     */
+    public FilterMetrics(Class<?> filterClass, String scope) {
+        this.filterClass = filterClass;
+        this.scope = scope != null && !scope.isEmpty() ? scope : filterClass.getSimpleName();
+
+        MetricsRegistry registry = Metrics.defaultRegistry();
+
+        requests = registry.newTimer(name("requests"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        chain = registry.newTimer(name("chain"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        transforms = registry.newTimer(name("transforms"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        inputBytes = registry.newHistogram(name("input-bytes"), true);
+        outputBytes = registry.newHistogram(name("output-bytes"), true);
+        transformed = registry.newCounter(name("transformed"));
+        passedThrough = registry.newCounter(name("passed-through"));
+        composed = registry.newCounter(name("composed"));
+        transformErrors = registry.newCounter(name("transform-errors"));
+    }
+
+    /**
+     * @param metric
+     * @return the name of the metric, after removing any metric registered with that name
+     */
+    private MetricName name(String metric) {
+        MetricName name = new MetricName(filterClass, metric, scope);
+        Metrics.defaultRegistry().removeMetric(name);
+        names.add(name);
+        return name;
+    }
+
+    String getScope() {
+        return scope;
+    }
+
+    /**
+     * @param request
+     * @param startNanos  the System.nanoTime() doFilter() was called at
+     */
+    public void filtered(ServletRequest request, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        requests.update(nanos, TimeUnit.NANOSECONDS);
+        ServerTiming timing = ServerTiming.get(request);
+        if ( timing != null ) {
+            timing.filtered(scope, nanos);
+        }
+    }
+
+    /**
+     * @param chain
+     * @return the chain, timed by the chain timer
+     */
+    public FilterChain timeChain(final FilterChain chain) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException, ServletException {
+                ServerTiming timing = ServerTiming.get(request);
+                if ( timing != null ) {
+                    timing.chainStarted(scope);
+                }
+                long start = System.nanoTime();
+                try {
+                    chain.doFilter(request, response);
+                } finally {
+                    long nanos = System.nanoTime() - start;
+                    FilterMetrics.this.chain.update(nanos, TimeUnit.NANOSECONDS);
+                    if ( timing != null ) {
+                        timing.chainReturned(scope, nanos);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Counts a request the filter let through untransformed, and runs the rest of the
+     * chain for it.
+     *
+     * @param request
+     * @param response
+     * @param chain
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void passThrough(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        passedThrough.inc();
+        timeChain(chain).doFilter(request, response);
+    }
+
+    /**
+     * Counts a request that wasn't transformed, e.g. because its response isn't XML.
+     */
+    public void passedThrough() {
+        passedThrough.inc();
+    }
+
+    /**
+     * @param nanos        how long the transform took
+     * @param inputBytes   the size of the response before the transform
+     * @param outputBytes  the size of the response after the transform
+     */
+    public void transformed(long nanos, long inputBytes, long outputBytes) {
+        transformed.inc();
+        transforms.update(nanos, TimeUnit.NANOSECONDS);
+        this.inputBytes.update(inputBytes);
+        this.outputBytes.update(outputBytes);
+    }
+
+    /**
+     * Counts a request transformed as a stage of the TransformPipeline of an outer filter.
+     */
+    public void composed() {
+        composed.inc();
+    }
+
+    public void transformFailed() {
+        transformErrors.inc();
+    }
+
+    /**
+     * Removes the metrics from the registry.
+     */
+    public void remove() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        for ( MetricName name : names ) {
+            registry.removeMetric(name);
+        }
+        names.clear();
+    }
+}
@@ -0,0 +1,266 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * This class rewrites the URIs of the Link and Location headers of a response, for
+ * the filters that change the links of the responses (e.g. ExternalHrefFilter and
+ * TenantedFilter).
+ *
+ * A Link header is parsed once, as RFC 8288 link-values: the URI-Reference of each
+ * of them, between '&lt;' and '&gt;', is handed to the UriRewrites, and everything
+ * else (the commas between link-values and their parameters, quoted strings included)
+ * is copied as it is. A part of the header that is not a link-value is rewritten as a
+ * whole, up to the next comma, as the filters used to do with every part.
+ *
+ * Like a TransformPipeline, the rewriter is shared through a request attribute: the
+ * outermost filter opens it and its LinkRewritingResponseWrapper rewrites the headers,
+ * the filters further down the chain only add their UriRewrite to it. So the headers
+ * are parsed and rewritten once, whatever the number of filters. The rewrites run
+ * innermost first, the order the response wrappers of the filters would run them in.
+ *
+ * Rewrites are added from the thread running the filter chain, and headers may be
+ * rewritten from the thread of a response pipe, so the rewrites are kept in arrays
+ * that are replaced rather than changed.
+ */
+public class LinkHeaderRewriter {
+
+    /**
+     * Name of the request attribute holding the rewriter of the current request
+     */
+    public static final String REWRITER_ATTRIBUTE = LinkHeaderRewriter.class.getName();
+
+    public static final String LINK_HEADER = "link";
+
+    public static final String LOCATION_HEADER = "location";
+
+    /**
+     * Rewrites one URI of a Link or Location header.
+     */
+    public interface UriRewrite {
+
+        /**
+         * @param uri
+         * @return the new URI
+         */
+        String rewrite(String uri);
+    }
+
+    private static final UriRewrite[] NO_REWRITES = new UriRewrite[0];
+
+    // innermost first, the order they run in
+    private volatile UriRewrite[] linkRewrites = NO_REWRITES;
+    private volatile UriRewrite[] locationRewrites = NO_REWRITES;
+
+    /**
+     * Creates a new rewriter and attaches it to the request.
+     *
+     * @param request
+     * @return the new rewriter
+     */
+    public static LinkHeaderRewriter open(ServletRequest request) {
+        LinkHeaderRewriter rewriter = new LinkHeaderRewriter();
+        request.setAttribute(REWRITER_ATTRIBUTE, rewriter);
+        return rewriter;
+    }
+
+    /**
+     * @param request
+     * @return the rewriter attached to the request, or null if there is none
+     */
+    public static LinkHeaderRewriter getRewriter(ServletRequest request) {
+        Object rewriter = request.getAttribute(REWRITER_ATTRIBUTE);
+        if ( rewriter instanceof LinkHeaderRewriter ) {
+            return (LinkHeaderRewriter) rewriter;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the rewrite of a filter to the rewriter of the request, opening one if
+     * there is none.
+     *
+     * @param request
+     * @param rewrite
+     * @param location  true if the rewrite also applies to the Location header
+     * @return the rewriter the response wrapper of the filter must apply, if the
+     *         filter opened it, or null if an outer filter applies it
+     */
+    public static LinkHeaderRewriter register(ServletRequest request, UriRewrite rewrite, boolean location) {
+        LinkHeaderRewriter rewriter = getRewriter(request);
+        if ( rewriter != null ) {
+            rewriter.add(rewrite, location);
+            return null;
+        }
+        return open(request).add(rewrite, location);
+    }
+
+    /**
+     * Adds a rewrite, which runs before the ones added before it. Rewrites must be
+     * added from the outermost filter to the innermost one, which is the order the
+     * filters are called in.
+     *
+     * @param rewrite
+     * @param location  true if the rewrite also applies to the Location header
+     * @return this rewriter
+     */
+    public synchronized LinkHeaderRewriter add(UriRewrite rewrite, boolean location) {
+        linkRewrites = prepend(rewrite, linkRewrites);
+        if ( location ) {
+            locationRewrites = prepend(rewrite, locationRewrites);
+        }
+        return this;
+    }
+
+    private static UriRewrite[] prepend(UriRewrite rewrite, UriRewrite[] rewrites) {
+        UriRewrite[] added = new UriRewrite[rewrites.length + 1];
+        added[0] = rewrite;
+        System.arraycopy(rewrites, 0, added, 1, rewrites.length);
+        return added;
+    }
+
+    /**
+     * @param name   the name of a header
+     * @param value  its value
+     * @return the value with its URIs rewritten, if it is a Link or Location header,
+     *         or the value as it is
+     */
+    public String rewriteHeader(String name, String value) {
+        if ( name == null || value == null || value.isEmpty() ) {
+            return value;
+        }
+        if ( LINK_HEADER.equalsIgnoreCase(name) ) {
+            return rewriteLink(value);
+        }
+        if ( LOCATION_HEADER.equalsIgnoreCase(name) ) {
+            return rewrite(value, locationRewrites);
+        }
+        return value;
+    }
+
+    /**
+     * @param value  the value of a Link header
+     * @return the value with the URI of each of its link-values rewritten
+     */
+    String rewriteLink(String value) {
+        UriRewrite[] rewrites = linkRewrites;
+        if ( rewrites.length == 0 ) {
+            return value;
+        }
+
+        StringBuilder result = new StringBuilder(value.length() + 64);
+        int length = value.length();
+        int from = 0;
+        while ( true ) {
+            int uriStart = skipWhitespace(value, from);
+            int uriEnd = uriStart < length && value.charAt(uriStart) == '<' ? value.indexOf('>', uriStart + 1) : -1;
+            int end;
+            if ( uriEnd >= 0 ) {
+                // <URI-Reference> *( OWS ";" OWS link-param )
+                end = endOfLinkValue(value, uriEnd + 1);
+                result.append(value, from, uriStart + 1)
+                      .append(rewrite(value.substring(uriStart + 1, uriEnd), rewrites))
+                      .append(value, uriEnd, end);
+            } else {
+                end = value.indexOf(',', from);
+                if ( end < 0 ) {
+                    end = length;
+                }
+                result.append(rewrite(value.substring(from, end), rewrites));
+            }
+            if ( end == length ) {
+                break;
+            }
+            result.append(',');
+            from = end + 1;
+        }
+        return result.toString();
+    }
+
+    private static String rewrite(String uri, UriRewrite[] rewrites) {
+        String result = uri;
+        for ( UriRewrite rewrite : rewrites ) {
+            result = rewrite.rewrite(result);
+        }
+        return result;
+    }
+
+    private static int skipWhitespace(String value, int from) {
+        int idx = from;
+        while ( idx < value.length() && (value.charAt(idx) == ' ' || value.charAt(idx) == '\t') ) {
+            idx++;
+        }
+        return idx;
+    }
+
+    /**
+     * @param value
+     * @param from   where the link-params of a link-value start
+     * @return the index of the comma ending the link-value, not counting the ones in
+     *         quoted strings, or the length of value if it is the last one
+     */
+    private static int endOfLinkValue(String value, int from) {
+        boolean quoted = false;
+        for ( int idx = from; idx < value.length(); idx++ ) {
+            char c = value.charAt(idx);
+            if ( quoted ) {
+                if ( c == '\\' ) {
+                    idx++;
+                } else if ( c == '"' ) {
+                    quoted = false;
+                }
+            } else if ( c == '"' ) {
+                quoted = true;
+            } else if ( c == ',' ) {
+                return idx;
+            }
+        }
+        return value.length();
+    }
+
+    /**
+     * Replaces the scheme and host of a URI with another URL. Like the
+     * (.*)(http)(s?)(://[^/]+)/(.*) pattern the filters used, it is the last
+     * http:// or https:// with a host followed by a '/' that is replaced, and a URI
+     * without one is left as it is. The URL is used as it is, '$' and '\' included.
+     */
+    public static class HostRewrite implements UriRewrite {
+
+        static final String HTTP = "http";
+
+        static final String SCHEME_END = "://";
+
+        private final String url;
+
+        /**
+         * @param url  the scheme and host to put in the URIs, e.g. https://feeds.example.com
+         */
+        public HostRewrite(String url) {
+            this.url = url == null ? "" : url;
+        }
+
+        public String rewrite(String uri) {
+            // every candidate is tried in one pass: the search for the '/' ending a host
+            // stops, at the latest, at the "://" of the candidate after it
+            for ( int scheme = uri.lastIndexOf(HTTP); scheme >= 0; scheme = uri.lastIndexOf(HTTP, scheme - 1) ) {
+                int separator = scheme + HTTP.length();
+                if ( separator < uri.length() && uri.charAt(separator) == 's' ) {
+                    separator++;
+                }
+                if ( !uri.startsWith(SCHEME_END, separator) ) {
+                    continue;
+                }
+                int host = separator + SCHEME_END.length();
+                int hostEnd = uri.indexOf('/', host);
+                if ( hostEnd > host ) {
+                    return new StringBuilder(uri.length() + url.length())
+                            .append(uri, 0, scheme)
+                            .append(url)
+                            .append(uri, hostEnd, uri.length())
+                            .toString();
+                }
+            }
+            return uri;
+        }
+    }
+}
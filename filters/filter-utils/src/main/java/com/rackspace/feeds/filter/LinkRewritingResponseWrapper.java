@@ -0,0 +1,45 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wrapper class for HttpServletResponse that rewrites the URIs of the Link and
+ * Location headers with a LinkHeaderRewriter. When the rewriter is null, an outer
+ * filter rewrites the headers, and they are set as they are.
+ */
+public class LinkRewritingResponseWrapper extends HttpServletResponseWrapper {
+
+    private final LinkHeaderRewriter rewriter;
+
+    /**
+     * @param response
+     * @param rewriter  the rewriter to apply, or null if an outer filter applies it
+     */
+    public LinkRewritingResponseWrapper(HttpServletResponse response, LinkHeaderRewriter rewriter) {
+        super(response);
+        this.rewriter = rewriter;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        super.setHeader(name, rewriteHeader(name, value));
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, rewriteHeader(name, value));
+    }
+
+    /**
+     * @param name
+     * @param value
+     * @return the value the header is set to
+     */
+    public String rewriteHeader(String name, String value) {
+        if ( rewriter == null ) {
+            return value;
+        }
+        return rewriter.rewriteHeader(name, value);
+    }
+}
@@ -0,0 +1,934 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Transforms the large feed pages entry by entry, in parallel, so a page of 1000
+ * entries uses more than the one core of a single Transformer.
+ *
+ * The entries of the response are counted as it is read, and what is read is kept,
+ * until there are 'threshold' of them. A page that ends before that, or that is past
+ * PEEK_BYTES_PER_ENTRY bytes an entry by then, is transformed as a whole, from the bytes
+ * kept followed by the rest of the response, as it comes.
+ *
+ * A large page is then split as it is read again: each atom:entry of the atom:feed
+ * becomes a document of its own, with the namespaces in scope of the feed declared on
+ * it, and the rest of the feed, the envelope, gets an empty placeholder element where
+ * each entry was. The entries are transformed on a shared ForkJoinPool, each with a
+ * transformer of the pool of the stylesheet, while the rest of the page is read; the
+ * envelope is transformed on the calling thread. The output is the output of the
+ * envelope, with the output of each entry in place of its placeholder, without the XML
+ * declaration and the namespace declarations already in scope there.
+ *
+ * This gives the output of the whole page for stylesheets that transform each entry
+ * on its own, and copy the elements they don't know, like the ones removing private
+ * attributes or rewriting links; only the indentation of an indented output may
+ * differ. The output of a stylesheet that doesn't copy the placeholders (e.g. one
+ * converting to JSON) can't be put back together: the page is transformed as a whole,
+ * from its bytes as they came, which are kept until then, and so are the later ones
+ * going through the same stylesheets.
+ *
+ * With an EntryFragmentCache, the output of each entry is looked up by its atom:id and
+ * the variant of the transform as soon as it is read, and the entries that weren't
+ * found are cached once the page has been put back together, so only these and the
+ * envelope go through the stylesheets. When the page is split only for the cache, not
+ * 'parallel', the entries that weren't found are transformed on the calling thread
+ * rather than on the ForkJoinPool. A document that is a single atom:entry, such as
+ * the response to /.../entries/urn:uuid:..., is looked up and cached as a whole, under
+ * its atom:id and the variant, since its output is the output of that entry, unless it
+ * is too big to be kept while it is read.
+ */
+class ParallelEntryTransform {
+
+    static Logger LOG = LoggerFactory.getLogger(ParallelEntryTransform.class);
+
+    static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+
+    // how many bytes of the page are kept, on average for each entry, to find out it is a large one
+    static final int PEEK_BYTES_PER_ENTRY = 16 * 1024;
+    // and at least, for the envelope and for a single entry
+    static final int MIN_PEEK_BYTES = 64 * 1024;
+
+    static final String PLACEHOLDER_NAMESPACE = "urn:com:rackspace:feeds:filter:entry";
+    static final String PLACEHOLDER_PREFIX = "cfentry";
+    static final String PLACEHOLDER_NAME = "entry";
+
+    // as the placeholder is written in the envelope, and as Saxon serializes a copy of it
+    static final String PLACEHOLDER = "<" + PLACEHOLDER_PREFIX + ":" + PLACEHOLDER_NAME +
+                                      " xmlns:" + PLACEHOLDER_PREFIX + "=\"" + PLACEHOLDER_NAMESPACE + "\"/>";
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * The threads transforming the entries, shared by all the filters, one per core.
+     */
+    private static class EntryPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the stylesheets of a request on a document.
+     */
+    interface DocumentTransform {
+
+        /**
+         * @param input
+         * @param result
+         * @param timing  the ServerTiming of the request, or null if it isn't timed
+         * @throws IOException
+         * @throws TransformerException
+         */
+        void transform(Source input, Result result, ServerTiming timing) throws IOException, TransformerException;
+    }
+
+    private final int threshold;
+    private final long peekBytes;
+    private final EntryFragmentCache cache;
+    private final boolean parallel;
+
+    // the stylesheets whose output couldn't be put back together
+    private final Set<String> unsupported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param threshold  how many entries a page must have to be transformed entry by entry
+     */
+    ParallelEntryTransform(int threshold) {
+        this(threshold, null);
+    }
+
+    /**
+     * @param threshold  how many entries a page must have to be transformed entry by entry
+     * @param cache      the transformed entries, or null not to cache them
+     */
+    ParallelEntryTransform(int threshold, EntryFragmentCache cache) {
+        this(threshold, cache, true);
+    }
+
+    /**
+     * @param threshold  how many entries a page must have to be transformed entry by entry
+     * @param cache      the transformed entries, or null not to cache them
+     * @param parallel   false to transform the entries that aren't cached on the calling
+     *                   thread, one after the other, when the page is only split to look
+     *                   them up in the cache
+     */
+    ParallelEntryTransform(int threshold, EntryFragmentCache cache, boolean parallel) {
+        if ( threshold <= 0 ) {
+            throw new IllegalArgumentException("threshold must be greater than 0: " + threshold);
+        }
+        this.threshold = threshold;
+        this.peekBytes = Math.max(MIN_PEEK_BYTES, (long) threshold * PEEK_BYTES_PER_ENTRY);
+        this.cache = cache;
+        this.parallel = parallel;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    EntryFragmentCache getCache() {
+        return cache;
+    }
+
+    boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param key  the stylesheets of a DocumentTransform
+     * @return true if pages are transformed entry by entry with these stylesheets
+     */
+    boolean isSupported(String key) {
+        return !unsupported.contains(key);
+    }
+
+    /**
+     * Transforms a page, entry by entry if it is large enough.
+     *
+     * @param input      the page
+     * @param output     where the transformed page is written
+     * @param key        what the stylesheets of 'transform' are, e.g. their paths
+     * @param variant    what the stylesheets, their versions and their parameters are, to
+     *                   look the entries up in the cache; null not to use it
+     * @param transform  runs the stylesheets
+     * @param metrics    the metrics of the pool, or null
+     * @param timing     the ServerTiming of the request, or null if it isn't timed
+     * @throws IOException
+     * @throws TransformerException
+     */
+    void transform(InputStream input,
+                   Writer output,
+                   String key,
+                   String variant,
+                   DocumentTransform transform,
+                   TransformerPoolMetrics metrics,
+                   ServerTiming timing)
+            throws IOException, TransformerException {
+
+        if ( !isSupported(key) ) {
+            transform.transform(new StreamSource(input), new StreamResult(output), timing);
+            return;
+        }
+
+        RecordingInputStream recording = new RecordingInputStream(input);
+        Peek peek = new Peek();
+        try {
+            peek.read(recording);
+        } catch (XMLStreamException e) {
+            // let the stylesheet fail on it as it would have
+            transform.transform(new StreamSource(recording.replay()), new StreamResult(output), timing);
+            return;
+        }
+
+        if ( peek.entryDocument ) {
+            transformEntryDocument(peek.entryDocumentId, recording, output, cache != null ? variant : null,
+                                   transform, timing);
+            return;
+        }
+
+        if ( !peek.large ) {
+            transform.transform(new StreamSource(recording.replay()), new StreamResult(output), timing);
+            return;
+        }
+
+        Split split = new Split(transform, cache != null ? variant : null);
+        try {
+            try {
+                split.read(recording.rewind());
+            } catch (XMLStreamException e) {
+                split.cancel();
+                transform.transform(new StreamSource(recording.replay()), new StreamResult(output), timing);
+                return;
+            }
+
+            StringWriter envelopeOutput = new StringWriter();
+            transform.transform(new StreamSource(new StringReader(split.envelope.toString())),
+                                new StreamResult(envelopeOutput),
+                                timing);
+            String envelope = envelopeOutput.toString();
+
+            List<Integer> placeholders = findPlaceholders(envelope);
+            List<Map<String, String>> scopes = placeholders.size() == split.results.size() ?
+                                               getPlaceholderScopes(envelope) : null;
+
+            if ( scopes == null || scopes.size() != split.results.size() ) {
+                split.cancel();
+                unsupported.add(key);
+                if ( metrics != null ) {
+                    metrics.parallelFellBack();
+                }
+                LOG.warn("The output of " + key + " can't be put back together from its entries, " +
+                         "its pages are transformed as a whole");
+                transform.transform(new StreamSource(recording.replay()), new StreamResult(output), timing);
+                return;
+            }
+            recording.stopRecording();
+
+            int from = 0;
+            for ( int idx = 0; idx < placeholders.size(); idx++ ) {
+                int at = placeholders.get(idx);
+                output.write(envelope, from, at - from);
+                String result = getResult(split.results.get(idx));
+                String cacheKey = split.cacheKeys.get(idx);
+                if ( cacheKey != null ) {
+                    cache.put(cacheKey, split.entryInputs.get(idx), result);
+                }
+                output.write(removeNamespacesInScope(result, scopes.get(idx)));
+                from = at + PLACEHOLDER.length();
+            }
+            output.write(envelope, from, envelope.length() - from);
+
+            if ( metrics != null ) {
+                metrics.parallelTransformed(split.results.size());
+            }
+        } finally {
+            split.cancel();
+        }
+    }
+
+    /**
+     * Transforms a document that is a single entry, unless its output is in the cache.
+     *
+     * @param id         the atom:id of the entry, or null if it has none or wasn't read
+     *                   to the end
+     * @param recording  the document as it came
+     * @param output
+     * @param variant    the variant of the transform in the cache, null not to use it
+     * @param transform
+     * @param timing
+     * @throws IOException
+     * @throws TransformerException
+     */
+    private void transformEntryDocument(String id,
+                                        RecordingInputStream recording,
+                                        Writer output,
+                                        String variant,
+                                        DocumentTransform transform,
+                                        ServerTiming timing)
+            throws IOException, TransformerException {
+
+        if ( variant == null || id == null || id.length() == 0 ) {
+            transform.transform(new StreamSource(recording.replay()), new StreamResult(output), timing);
+            return;
+        }
+
+        String cacheKey = EntryFragmentCache.getDocumentKey(variant, id);
+        // the whole document was read, and kept
+        byte[] inputDigest = recording.digest();
+        String result = cache.get(cacheKey, inputDigest);
+        if ( result == null ) {
+            StringWriter entryOutput = new StringWriter();
+            transform.transform(new StreamSource(recording.replay()), new StreamResult(entryOutput), timing);
+            result = entryOutput.toString();
+            cache.put(cacheKey, inputDigest, result);
+        }
+        output.write(result);
+    }
+
+    /**
+     * @param future
+     * @return the output of the entry
+     * @throws IOException
+     * @throws TransformerException
+     */
+    private static String getResult(Future<String> future) throws IOException, TransformerException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the transform of an entry");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof TransformerException ) {
+                throw (TransformerException) cause;
+            }
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            throw new TransformerException(cause);
+        }
+    }
+
+    /**
+     * @param envelope  the output of the envelope
+     * @return where the placeholders are in it
+     */
+    static List<Integer> findPlaceholders(String envelope) {
+        List<Integer> placeholders = new ArrayList<Integer>();
+        for ( int at = envelope.indexOf(PLACEHOLDER); at >= 0; at = envelope.indexOf(PLACEHOLDER, at + PLACEHOLDER.length()) ) {
+            placeholders.add(at);
+        }
+        return placeholders;
+    }
+
+    /**
+     * @param envelope  the output of the envelope
+     * @return the namespaces in scope at each placeholder, by prefix, or null if the
+     *         output isn't XML
+     */
+    static List<Map<String, String>> getPlaceholderScopes(String envelope) {
+        List<Map<String, String>> scopes = new ArrayList<Map<String, String>>();
+        List<String[]> bindings = new ArrayList<String[]>();
+        List<Integer> marks = new ArrayList<Integer>();
+
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(envelope));
+            while ( reader.hasNext() ) {
+                int event = reader.next();
+                if ( event == XMLStreamConstants.START_ELEMENT ) {
+                    if ( PLACEHOLDER_NAMESPACE.equals(reader.getNamespaceURI())
+                            && PLACEHOLDER_NAME.equals(reader.getLocalName()) ) {
+                        scopes.add(inScope(bindings));
+                    }
+                    marks.add(bindings.size());
+                    for ( int idx = 0; idx < reader.getNamespaceCount(); idx++ ) {
+                        bindings.add(new String[] { nullToEmpty(reader.getNamespacePrefix(idx)),
+                                                    nullToEmpty(reader.getNamespaceURI(idx)) });
+                    }
+                } else if ( event == XMLStreamConstants.END_ELEMENT ) {
+                    int mark = marks.remove(marks.size() - 1);
+                    while ( bindings.size() > mark ) {
+                        bindings.remove(bindings.size() - 1);
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            LOG.debug("The output of the envelope is not XML: " + e.getMessage());
+            return null;
+        } finally {
+            close(reader);
+        }
+        return scopes;
+    }
+
+    /**
+     * @param element  the output of an entry
+     * @param scope    the namespaces in scope where it goes
+     * @return the output without the namespace declarations of its first element that
+     *         are already in scope
+     */
+    static String removeNamespacesInScope(String element, Map<String, String> scope) {
+        int length = element.length();
+        if ( scope.isEmpty() || length == 0 || element.charAt(0) != '<' ) {
+            return element;
+        }
+
+        int at = 1;
+        while ( at < length && !isNameEnd(element.charAt(at)) ) {
+            at++;
+        }
+
+        StringBuilder removed = null;
+        int copied = 0;
+        while ( true ) {
+            int attributeStart = at;
+            while ( at < length && Character.isWhitespace(element.charAt(at)) ) {
+                at++;
+            }
+            if ( at >= length || element.charAt(at) == '>' || element.charAt(at) == '/' ) {
+                break;
+            }
+            int nameStart = at;
+            while ( at < length && element.charAt(at) != '=' && !Character.isWhitespace(element.charAt(at)) ) {
+                at++;
+            }
+            String name = element.substring(nameStart, at);
+            while ( at < length && element.charAt(at) != '=' ) {
+                at++;
+            }
+            at++;
+            while ( at < length && Character.isWhitespace(element.charAt(at)) ) {
+                at++;
+            }
+            if ( at >= length ) {
+                return element;
+            }
+            char quote = element.charAt(at);
+            int valueEnd = element.indexOf(quote, at + 1);
+            if ( valueEnd < 0 ) {
+                return element;
+            }
+            String value = element.substring(at + 1, valueEnd);
+            at = valueEnd + 1;
+
+            if ( name.equals("xmlns") || name.startsWith("xmlns:") ) {
+                String prefix = name.length() == 5 ? "" : name.substring(6);
+                if ( value.equals(scope.get(prefix)) ) {
+                    if ( removed == null ) {
+                        removed = new StringBuilder(length);
+                    }
+                    removed.append(element, copied, attributeStart);
+                    copied = at;
+                }
+            }
+        }
+
+        if ( removed == null ) {
+            return element;
+        }
+        return removed.append(element, copied, length).toString();
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+
+    /**
+     * @param bindings  the namespace declarations in scope, outermost first
+     * @return the namespaces they bind, by prefix
+     */
+    private static Map<String, String> inScope(List<String[]> bindings) {
+        Map<String, String> scope = new HashMap<String, String>();
+        for ( String[] binding : bindings ) {
+            scope.put(binding[0], binding[1]);
+        }
+        return scope;
+    }
+
+    /**
+     * @param output
+     * @return the output without its XML declaration, and the whitespace after it
+     */
+    static String removeXmlDeclaration(String output) {
+        if ( !output.startsWith("<?xml") ) {
+            return output;
+        }
+        int end = output.indexOf("?>");
+        if ( end < 0 ) {
+            return output;
+        }
+        end += 2;
+        while ( end < output.length() && Character.isWhitespace(output.charAt(end)) ) {
+            end++;
+        }
+        return output.substring(end);
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if ( reader != null ) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // nothing left to read
+            }
+        }
+    }
+
+    /**
+     * Reads the start of a document, without copying it, to find out whether it is a
+     * page of 'threshold' entries or more, or a single entry.
+     */
+    private class Peek {
+
+        // whether the page has 'threshold' entries
+        private boolean large = false;
+
+        // whether the document is a single atom:entry, rather than a page, and its atom:id
+        // if it was read to the end
+        private boolean entryDocument = false;
+        private String entryDocumentId = null;
+
+        /**
+         * Reads until the page has 'threshold' entries, the document ends, or more than
+         * 'peekBytes' have been read.
+         */
+        void read(RecordingInputStream input) throws XMLStreamException {
+            XMLStreamReader reader = null;
+            try {
+                reader = INPUT_FACTORY.createXMLStreamReader(input);
+
+                boolean isFeed = false;
+                int entries = 0;
+                String entryId = null;
+                StringBuilder id = null;
+                int depth = 0;
+
+                while ( reader.hasNext() ) {
+                    if ( input.getRecordedSize() > peekBytes ) {
+                        // too big to keep: the id of a single entry is left out, not to cache it
+                        return;
+                    }
+                    switch ( reader.next() ) {
+
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if ( depth == 1 ) {
+                                isFeed = isAtom(reader, "feed");
+                                entryDocument = isAtom(reader, "entry");
+                            } else if ( depth == 2 && entryDocument && entryId == null && isAtom(reader, "id") ) {
+                                id = new StringBuilder();
+                            }
+                            break;
+
+                        case XMLStreamConstants.END_ELEMENT:
+                            if ( id != null && depth == 2 ) {
+                                entryId = id.toString().trim();
+                                id = null;
+                            }
+                            if ( depth == 2 && isFeed && isAtom(reader, "entry") && ++entries == threshold ) {
+                                large = true;
+                                return;
+                            }
+                            depth--;
+                            break;
+
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            if ( id != null ) {
+                                id.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            }
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+                entryDocumentId = entryId;
+            } finally {
+                close(reader);
+            }
+        }
+    }
+
+    private static boolean isAtom(XMLStreamReader reader, String localName) {
+        return ATOM_NAMESPACE.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+    }
+
+    /**
+     * Splits a page into its envelope and its entries as it reads it, and submits the
+     * transforms of the entries that aren't in the cache.
+     */
+    private class Split {
+
+        private final DocumentTransform transform;
+        private final String variant;
+
+        private final StringWriter envelope = new StringWriter();
+        private final List<String> entryInputs = new ArrayList<String>();
+        private final List<Future<String>> results = new ArrayList<Future<String>>();
+        // the keys to cache the results under, null for those found in the cache or without an id
+        private final List<String> cacheKeys = new ArrayList<String>();
+
+        // the namespace declarations in scope, outermost first
+        private final List<String[]> bindings = new ArrayList<String[]>();
+        private final List<Integer> marks = new ArrayList<Integer>();
+
+        /**
+         * @param transform
+         * @param variant    the variant of the transform in the cache, null not to use it
+         */
+        Split(DocumentTransform transform, String variant) {
+            this.transform = transform;
+            this.variant = variant;
+        }
+
+        void read(InputStream input) throws XMLStreamException, IOException {
+            XMLStreamReader reader = null;
+            try {
+                reader = INPUT_FACTORY.createXMLStreamReader(input);
+
+                boolean isFeed = false;
+                StringWriter entry = null;
+                String entryId = null;
+                StringBuilder id = null;
+                int depth = 0;
+
+                while ( reader.hasNext() ) {
+                    Writer out = entry != null ? entry : envelope;
+                    switch ( reader.next() ) {
+
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if ( depth == 1 ) {
+                                isFeed = isAtom(reader, "feed");
+                            }
+                            if ( depth == 2 && isFeed && isAtom(reader, "entry") ) {
+                                envelope.write(PLACEHOLDER);
+                                entry = new StringWriter();
+                                entryId = null;
+                                writeStartTag(reader, entry, inScope(bindings));
+                            } else {
+                                if ( entry != null && entryId == null && depth == 3 && isAtom(reader, "id") ) {
+                                    id = new StringBuilder();
+                                }
+                                writeStartTag(reader, out, null);
+                            }
+                            marks.add(bindings.size());
+                            for ( int idx = 0; idx < reader.getNamespaceCount(); idx++ ) {
+                                bindings.add(new String[] { nullToEmpty(reader.getNamespacePrefix(idx)),
+                                                            nullToEmpty(reader.getNamespaceURI(idx)) });
+                            }
+                            break;
+
+                        case XMLStreamConstants.END_ELEMENT:
+                            out.write("</");
+                            writeName(out, reader.getPrefix(), reader.getLocalName());
+                            out.write('>');
+                            if ( id != null && depth == 3 ) {
+                                entryId = id.toString().trim();
+                                id = null;
+                            }
+                            if ( entry != null && depth == 2 ) {
+                                String read = entry.toString();
+                                entryInputs.add(read);
+                                submit(read, entryId);
+                                entry = null;
+                            }
+                            int mark = marks.remove(marks.size() - 1);
+                            while ( bindings.size() > mark ) {
+                                bindings.remove(bindings.size() - 1);
+                            }
+                            depth--;
+                            break;
+
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            // whitespace outside of the root element is not part of the document
+                            if ( id != null ) {
+                                id.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            }
+                            if ( depth > 0 && reader.getTextLength() > 0 ) {
+                                StreamingLinkRewriter.writeEscaped(out, reader.getTextCharacters(),
+                                                                   reader.getTextStart(), reader.getTextLength(), false);
+                            }
+                            break;
+
+                        case XMLStreamConstants.COMMENT:
+                            out.write("<!--");
+                            out.write(reader.getText());
+                            out.write("-->");
+                            break;
+
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                            out.write("<?");
+                            out.write(reader.getPITarget());
+                            String data = reader.getPIData();
+                            if ( data != null && data.length() > 0 ) {
+                                out.write(' ');
+                                out.write(data);
+                            }
+                            out.write("?>");
+                            break;
+
+                        default:
+                            // DTD, start and end of document: nothing to copy
+                            break;
+                    }
+                }
+            } finally {
+                close(reader);
+            }
+        }
+
+        private void submit(final String entry, String id) {
+            if ( variant != null && id != null && id.length() > 0 ) {
+                String cacheKey = EntryFragmentCache.getKey(variant, id);
+                String cached = cache.get(cacheKey, entry);
+                if ( cached != null ) {
+                    results.add(done(cached));
+                    cacheKeys.add(null);
+                    return;
+                }
+                cacheKeys.add(cacheKey);
+            } else {
+                cacheKeys.add(null);
+            }
+
+            Callable<String> entryTransform = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    StringWriter output = new StringWriter();
+                    transform.transform(new StreamSource(new StringReader(entry)), new StreamResult(output), null);
+                    return removeXmlDeclaration(output.toString());
+                }
+            };
+            if ( parallel ) {
+                results.add(EntryPool.POOL.submit(entryTransform));
+            } else {
+                results.add(run(entryTransform));
+            }
+        }
+
+        /**
+         * @param output  the output of an entry found in the cache
+         * @return a Future that is done, with that output
+         */
+        private Future<String> done(final String output) {
+            return run(new Callable<String>() {
+                @Override
+                public String call() {
+                    return output;
+                }
+            });
+        }
+
+        /**
+         * @param callable
+         * @return a Future that is done, with what the callable returned or threw, run on
+         *         the calling thread
+         */
+        private Future<String> run(Callable<String> callable) {
+            FutureTask<String> future = new FutureTask<String>(callable);
+            future.run();
+            return future;
+        }
+
+        /**
+         * Stops the transforms of the entries that haven't started yet.
+         */
+        void cancel() {
+            for ( Future<String> result : results ) {
+                result.cancel(false);
+            }
+        }
+
+        /**
+         * Writes a start tag and the namespace declarations of the element, declaring
+         * the namespaces of 'scope' too if it isn't null.
+         */
+        private void writeStartTag(XMLStreamReader reader, Writer out, Map<String, String> scope)
+                throws IOException {
+
+            out.write('<');
+            writeName(out, reader.getPrefix(), reader.getLocalName());
+
+            Map<String, String> declarations = scope != null ? scope : new HashMap<String, String>();
+            for ( int idx = 0; idx < reader.getNamespaceCount(); idx++ ) {
+                declarations.put(nullToEmpty(reader.getNamespacePrefix(idx)), nullToEmpty(reader.getNamespaceURI(idx)));
+            }
+            for ( Map.Entry<String, String> declaration : declarations.entrySet() ) {
+                String prefix = declaration.getKey();
+                if ( "xml".equals(prefix) || (prefix.length() > 0 && declaration.getValue().length() == 0) ) {
+                    continue;
+                }
+                out.write(prefix.length() == 0 ? " xmlns=\"" : " xmlns:" + prefix + "=\"");
+                StreamingLinkRewriter.writeEscaped(out, declaration.getValue(), true);
+                out.write('"');
+            }
+
+            for ( int idx = 0; idx < reader.getAttributeCount(); idx++ ) {
+                out.write(' ');
+                writeName(out, reader.getAttributePrefix(idx), reader.getAttributeLocalName(idx));
+                out.write("=\"");
+                StreamingLinkRewriter.writeEscaped(out, reader.getAttributeValue(idx), true);
+                out.write('"');
+            }
+            out.write('>');
+        }
+
+        private void writeName(Writer out, String prefix, String localName) throws IOException {
+            if ( prefix != null && prefix.length() > 0 ) {
+                out.write(prefix);
+                out.write(':');
+            }
+            out.write(localName);
+        }
+    }
+
+    /**
+     * Keeps what is read from a page, so a small one can be transformed from the bytes as
+     * they came, and a large one split from its start.
+     */
+    static class RecordingInputStream extends FilterInputStream {
+
+        private Recording recorded = new Recording();
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if ( read >= 0 && recorded != null ) {
+                recorded.write(read);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if ( read > 0 && recorded != null ) {
+                recorded.write(bytes, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes would be missing from the recording
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        int getRecordedSize() {
+            return recorded != null ? recorded.size() : 0;
+        }
+
+        void stopRecording() {
+            recorded = null;
+        }
+
+        /**
+         * @return the SHA-256 digest of what was read
+         */
+        byte[] digest() {
+            return recorded.digest();
+        }
+
+        /**
+         * Stops recording.
+         *
+         * @return what was read, then the rest of the input
+         */
+        InputStream replay() {
+            InputStream read = recorded.toInputStream();
+            recorded = null;
+            return new SequenceInputStream(read, in);
+        }
+
+        /**
+         * @return what was read, then the rest of the input, which is recorded too, so it
+         *         can be replayed from the start
+         */
+        InputStream rewind() {
+            return new SequenceInputStream(recorded.toInputStream(), this);
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that is read and digested without being copied.
+     */
+    private static class Recording extends ByteArrayOutputStream {
+
+        Recording() {
+            super(8192);
+        }
+
+        /**
+         * @return what was written so far; what is written later is not part of it
+         */
+        synchronized InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        synchronized byte[] digest() {
+            return EntryFragmentCache.digest(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.rackspace.feeds.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executor that ServletResponsePipe uses to run the rest of the filter chain.
+ *
+ * A single instance is shared by all the filters of a web app, instead of each
+ * request spinning up and tearing down its own threads. It is either:
+ * <ul>
+ *     <li>a bounded pool of platform threads, with a saturation policy of 'abort'
+ *     (reject right away) or 'block' (wait up to blockTimeoutMillis for a thread to
+ *     free up, then reject)</li>
+ *     <li>a virtual-thread-per-task executor, when running on a JVM that supports
+ *     virtual threads. On older JVMs it falls back to the platform pool.</li>
+ * </ul>
+ *
+ * Rejected tasks surface as RejectedExecutionException to the caller.
+ *
+ * Each pipe blocks a pool thread for the whole response, and nested piped filters
+ * need one thread each, so maxThreads should be sized for the number of concurrent
+ * requests times the number of piped filters they go through. Turning on composite
+ * transforms (see TransformPipeline) brings that down to one thread per request.
+ * Tasks are never queued: the pipe thread of an outer filter waits on the pipe of the
+ * inner one, so with every thread running an outer pipe, queued inner pipes would never
+ * run. A request that finds no thread is rejected, at once or after blockTimeoutMillis.
+ *
+ * The executor publishes its metrics to the Yammer metrics registry, named
+ * com.rackspace.feeds.filter.ResponsePipeExecutor.{metric}, once publishMetrics() is
+ * called: active, waiting (callers the 'block' policy holds), rejected, completed and
+ * max-threads. They read the shared instance in use when they are read.
+ *
+ * The shared instance is configured by ResponsePipeExecutorListener from the web
+ * app's context parameters. If the listener is not registered, the defaults are used.
+ */
+public class ResponsePipeExecutor {
+
+    private static Logger LOG = LoggerFactory.getLogger(ResponsePipeExecutor.class);
+
+    public static final String TYPE_PLATFORM = "platform";
+    public static final String TYPE_VIRTUAL = "virtual";
+
+    public static final String POLICY_ABORT = "abort";
+    public static final String POLICY_BLOCK = "block";
+
+    static final int DEFAULT_MAX_THREADS = 500;
+    static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+    static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static ResponsePipeExecutor instance = null;
+
+    private static final String[] METRICS = { "active", "waiting", "rejected", "completed", "max-threads" };
+
+    private final ExecutorService executorService;
+    private final String type;
+    private final BlockPolicy blockPolicy;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * @return the executor shared by the web app, created with the defaults if
+     * it has not been configured
+     */
+    public static synchronized ResponsePipeExecutor getInstance() {
+        if ( instance == null ) {
+            instance = createPlatform(DEFAULT_MAX_THREADS, POLICY_ABORT, DEFAULT_BLOCK_TIMEOUT_MILLIS);
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the shared executor. The previous one, if any, is shut down after
+     * the tasks it is already running have completed.
+     *
+     * @param executor
+     */
+    public static synchronized void setInstance(ResponsePipeExecutor executor) {
+        ResponsePipeExecutor previous = instance;
+        instance = executor;
+        if ( previous != null && previous != executor ) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Publishes the metrics of the shared executor to the Yammer metrics registry,
+     * replacing those published before.
+     */
+    public static void publishMetrics() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        removeMetrics();
+
+        registry.newGauge(metricName("active"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getInstance().getActiveCount();
+            }
+        });
+        registry.newGauge(metricName("waiting"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getInstance().getQueuedCount();
+            }
+        });
+        registry.newGauge(metricName("rejected"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getInstance().getRejectedCount();
+            }
+        });
+        registry.newGauge(metricName("completed"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getInstance().getCompletedCount();
+            }
+        });
+        registry.newGauge(metricName("max-threads"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getInstance().getMaxThreads();
+            }
+        });
+    }
+
+    /**
+     * Removes the metrics of the shared executor from the registry.
+     */
+    public static void removeMetrics() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        for ( String metric : METRICS ) {
+            registry.removeMetric(metricName(metric));
+        }
+    }
+
+    private static MetricName metricName(String metric) {
+        return new MetricName(ResponsePipeExecutor.class, metric);
+    }
+
+    /**
+     * Creates a bounded pool of platform threads, which doesn't queue tasks.
+     *
+     * @param maxThreads          the maximum number of threads
+     * @param saturationPolicy    'abort' or 'block'
+     * @param blockTimeoutMillis  how long the 'block' policy waits for a thread
+     * @return the executor
+     */
+    public static ResponsePipeExecutor createPlatform(int maxThreads,
+                                                      String saturationPolicy,
+                                                      long blockTimeoutMillis) {
+        if ( maxThreads <= 0 ) {
+            throw new IllegalArgumentException("maxThreads must be greater than 0");
+        }
+
+        RejectedExecutionHandler handler;
+        BlockPolicy blockPolicy = null;
+        if ( POLICY_BLOCK.equalsIgnoreCase(saturationPolicy) ) {
+            blockPolicy = new BlockPolicy(blockTimeoutMillis);
+            handler = blockPolicy;
+        } else if ( StringUtils.isEmpty(saturationPolicy) || POLICY_ABORT.equalsIgnoreCase(saturationPolicy) ) {
+            handler = new ThreadPoolExecutor.AbortPolicy();
+        } else {
+            throw new IllegalArgumentException("Unknown saturation policy: " + saturationPolicy);
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                                                         KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                         new SynchronousQueue<Runnable>(),
+                                                         new PipeThreadFactory(),
+                                                         handler);
+        pool.allowCoreThreadTimeOut(true);
+
+        LOG.info("Created platform response pipe executor: maxThreads=" + maxThreads +
+                 ", saturationPolicy=" + saturationPolicy);
+        return new ResponsePipeExecutor(pool, TYPE_PLATFORM, blockPolicy);
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor. Virtual threads are looked up
+     * reflectively, so this builds on older JDKs; on a JVM without them, this
+     * returns the platform pool built with the given fallback settings.
+     *
+     * @return the executor
+     */
+    public static ResponsePipeExecutor createVirtual(int fallbackMaxThreads,
+                                                     String fallbackSaturationPolicy,
+                                                     long fallbackBlockTimeoutMillis) {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService virtual = (ExecutorService) method.invoke(null);
+            LOG.info("Created virtual thread response pipe executor");
+            return new ResponsePipeExecutor(virtual, TYPE_VIRTUAL);
+        } catch (Exception e) {
+            LOG.warn("Virtual threads are not available on this JVM, using platform threads instead");
+            return createPlatform(fallbackMaxThreads, fallbackSaturationPolicy, fallbackBlockTimeoutMillis);
+        }
+    }
+
+    ResponsePipeExecutor(ExecutorService executorService, String type) {
+        this(executorService, type, null);
+    }
+
+    ResponsePipeExecutor(ExecutorService executorService, String type, BlockPolicy blockPolicy) {
+        this.executorService = executorService;
+        this.type = type;
+        this.blockPolicy = blockPolicy;
+    }
+
+    /**
+     * Runs the task on one of this executor's threads.
+     *
+     * @param task
+     * @throws RejectedExecutionException if the executor is saturated or shut down
+     */
+    public void execute(final Runnable task) throws RejectedExecutionException {
+        try {
+            executorService.execute(new Runnable() {
+                public void run() {
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread to free up, with the 'block' policy
+     */
+    public int getQueuedCount() {
+        return blockPolicy != null ? blockPolicy.getWaiting() : 0;
+    }
+
+    /**
+     * @return the maximum number of threads, 0 for virtual threads
+     */
+    public int getMaxThreads() {
+        if ( executorService instanceof ThreadPoolExecutor ) {
+            return ((ThreadPoolExecutor) executorService).getMaximumPoolSize();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of tasks rejected since this executor was created
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of tasks completed since this executor was created
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    /**
+     * Waits for a thread to free up, instead of rejecting right away
+     */
+    static class BlockPolicy implements RejectedExecutionHandler {
+
+        private final long timeoutMillis;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        BlockPolicy(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        int getWaiting() {
+            return waiting.get();
+        }
+
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if ( !executor.isShutdown() ) {
+                waiting.incrementAndGet();
+                try {
+                    // handed to a thread that is done with its task, the queue holds nothing
+                    if ( executor.getQueue().offer(task, timeoutMillis, TimeUnit.MILLISECONDS) ) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            }
+            throw new RejectedExecutionException("No response pipe thread became available within " +
+                                                 timeoutMillis + "ms");
+        }
+    }
+
+    static class PipeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "response-pipe-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
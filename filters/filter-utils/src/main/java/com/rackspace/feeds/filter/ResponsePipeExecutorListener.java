@@ -0,0 +1,90 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Configures the ResponsePipeExecutor shared by the filters of a web app, from these
+ * context parameters:
+ * <ul>
+ *     <li>responsePipe.executor: 'platform' (default) or 'virtual'</li>
+ *     <li>responsePipe.maxThreads: the maximum number of platform threads (default 500)</li>
+ *     <li>responsePipe.saturationPolicy: 'abort' (default) or 'block'</li>
+ *     <li>responsePipe.blockTimeoutMillis: how long 'block' waits for a thread (default 1000)</li>
+ *     <li>responsePipe.chunkSize: size in bytes of the chunks a ChunkedPipe hands over (default 32768)</li>
+ *     <li>responsePipe.maxChunks: how many chunks a ChunkedPipe holds before the writer waits (default 16)</li>
+ * </ul>
+ *
+ * Response pipes nest, so requests are never queued for a thread (see ResponsePipeExecutor);
+ * a responsePipe.queueSize other than 0 is refused.
+ *
+ * The metrics of the executor are published under /atommetrics. The executor is shut down
+ * when the web app is stopped, along with the StylesheetRegistry watching the XSLT files of
+ * the filters.
+ */
+public class ResponsePipeExecutorListener implements ServletContextListener {
+
+    private static Logger LOG = LoggerFactory.getLogger(ResponsePipeExecutorListener.class);
+
+    static final String EXECUTOR_PARAM = "responsePipe.executor";
+    static final String MAX_THREADS_PARAM = "responsePipe.maxThreads";
+    static final String QUEUE_SIZE_PARAM = "responsePipe.queueSize";
+    static final String SATURATION_POLICY_PARAM = "responsePipe.saturationPolicy";
+    static final String BLOCK_TIMEOUT_PARAM = "responsePipe.blockTimeoutMillis";
+    static final String CHUNK_SIZE_PARAM = "responsePipe.chunkSize";
+    static final String MAX_CHUNKS_PARAM = "responsePipe.maxChunks";
+
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+
+        String type = StringUtils.defaultIfEmpty(context.getInitParameter(EXECUTOR_PARAM),
+                                                 ResponsePipeExecutor.TYPE_PLATFORM);
+        int maxThreads = getInt(context, MAX_THREADS_PARAM, ResponsePipeExecutor.DEFAULT_MAX_THREADS);
+        if ( getInt(context, QUEUE_SIZE_PARAM, 0) != 0 ) {
+            throw new IllegalArgumentException(QUEUE_SIZE_PARAM + " must be 0: response pipes nest, and " +
+                                               "queued inner pipes would wait for ever on the outer ones");
+        }
+        String policy = StringUtils.defaultIfEmpty(context.getInitParameter(SATURATION_POLICY_PARAM),
+                                                   ResponsePipeExecutor.POLICY_ABORT);
+        long blockTimeout = getInt(context, BLOCK_TIMEOUT_PARAM,
+                                   (int) ResponsePipeExecutor.DEFAULT_BLOCK_TIMEOUT_MILLIS);
+
+        ResponsePipeExecutor executor;
+        if ( ResponsePipeExecutor.TYPE_VIRTUAL.equalsIgnoreCase(type) ) {
+            executor = ResponsePipeExecutor.createVirtual(maxThreads, policy, blockTimeout);
+        } else if ( ResponsePipeExecutor.TYPE_PLATFORM.equalsIgnoreCase(type) ) {
+            executor = ResponsePipeExecutor.createPlatform(maxThreads, policy, blockTimeout);
+        } else {
+            throw new IllegalArgumentException("Unknown " + EXECUTOR_PARAM + ": " + type);
+        }
+        ResponsePipeExecutor.setInstance(executor);
+        ResponsePipeExecutor.publishMetrics();
+
+        ChunkedPipe.setDefaults(getInt(context, CHUNK_SIZE_PARAM, ChunkedPipe.DEFAULT_CHUNK_SIZE),
+                                getInt(context, MAX_CHUNKS_PARAM, ChunkedPipe.DEFAULT_MAX_CHUNKS));
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        LOG.debug("shutting down response pipe executor");
+        ResponsePipeExecutor.removeMetrics();
+        ResponsePipeExecutor.getInstance().shutdown();
+        StylesheetRegistry.shutdownInstance();
+    }
+
+    private int getInt(ServletContext context, String name, int defaultValue) {
+        String value = context.getInitParameter(name);
+        if ( StringUtils.isBlank(value) ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.ServletRequest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of a request goes, as sent to the client in a Server-Timing header
+ * (see ServerTimingFilter). It is stored as a request attribute by ServerTimingFilter,
+ * the first filter of the chain, for the requests it times; the filters after it record
+ * into it through their FilterMetrics and TransformerUtils:
+ * <ul>
+ *     <li>{filter name}: the time of each filter, without the filters and servlet after it</li>
+ *     <li>{filter name}-pool: how long its transforms waited for a transformer of its pool</li>
+ *     <li>upstream: the time of Atom Hopper, that is of the chain after the last filter</li>
+ *     <li>total: the time of the whole request, from ServerTimingFilter</li>
+ * </ul>
+ *
+ * The filters are listed in the order they are called in. Filters without FilterMetrics
+ * (e.g. ETagFilter, CompressionFilter) are counted in the filter before them.
+ *
+ * When the chain is run on another thread (see ServletResponsePipe), a filter transforms
+ * the response while the filters after it write it, so its time is only what is left of
+ * its transform once they are done.
+ *
+ * Filters record into it from the threads of the response pipes, so access to it is
+ * synchronized.
+ */
+public class ServerTiming {
+
+    /**
+     * Name of the request attribute holding the ServerTiming of the current request
+     */
+    public static final String TIMING_ATTRIBUTE = ServerTiming.class.getName();
+
+    public static final String HEADER = "Server-Timing";
+
+    static final String UPSTREAM = "upstream";
+    static final String TOTAL = "total";
+    static final String POOL_SUFFIX = "-pool";
+    static final String PARTIAL = "partial";
+
+    private final long startNanos = System.nanoTime();
+
+    // by filter name, in the order the filters were called in: {time of its doFilter(), time of the chain after it}
+    private final Map<String, long[]> filters = new LinkedHashMap<String, long[]>();
+    private final Map<String, long[]> poolWaits = new LinkedHashMap<String, long[]>();
+    private long upstreamNanos = -1;
+    private long totalNanos = -1;
+
+    /**
+     * Creates a new ServerTiming and attaches it to the request.
+     *
+     * @param request
+     * @return the new ServerTiming
+     */
+    public static ServerTiming open(ServletRequest request) {
+        ServerTiming timing = new ServerTiming();
+        request.setAttribute(TIMING_ATTRIBUTE, timing);
+        return timing;
+    }
+
+    /**
+     * @param request
+     * @return the ServerTiming attached to the request, or null if it isn't timed
+     */
+    public static ServerTiming get(ServletRequest request) {
+        Object timing = request.getAttribute(TIMING_ATTRIBUTE);
+        if ( timing instanceof ServerTiming ) {
+            return (ServerTiming) timing;
+        }
+        return null;
+    }
+
+    /**
+     * Called when a filter calls the rest of the chain, which is in the order the
+     * filters are called in.
+     *
+     * @param filter  the name of the filter
+     */
+    synchronized void chainStarted(String filter) {
+        times(filter);
+    }
+
+    /**
+     * Called when the rest of the chain of a filter returns. The first chain to return
+     * is that of the last filter, so it is the time of Atom Hopper.
+     *
+     * @param filter  the name of the filter
+     * @param nanos   the time of the rest of the chain
+     */
+    synchronized void chainReturned(String filter, long nanos) {
+        times(filter)[1] += nanos;
+        if ( upstreamNanos < 0 ) {
+            upstreamNanos = nanos;
+        }
+    }
+
+    /**
+     * @param filter  the name of the filter
+     * @param nanos   the time of its doFilter(), including the rest of the chain
+     */
+    synchronized void filtered(String filter, long nanos) {
+        times(filter)[0] = nanos;
+    }
+
+    /**
+     * @param filter  the name of the filter
+     * @param nanos   how long a transform of the filter waited for a transformer
+     */
+    synchronized void poolWaited(String filter, long nanos) {
+        long[] wait = poolWaits.get(filter);
+        if ( wait == null ) {
+            wait = new long[] { 0 };
+            poolWaits.put(filter, wait);
+        }
+        wait[0] += nanos;
+    }
+
+    /**
+     * Records the time of the whole request, once it is done.
+     */
+    synchronized void finished() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    private long[] times(String filter) {
+        long[] times = filters.get(filter);
+        if ( times == null ) {
+            // -1 until the filter is done
+            times = new long[] { -1, 0 };
+            filters.put(filter, times);
+        }
+        return times;
+    }
+
+    /**
+     * @return the value of the Server-Timing header, with what has been recorded so far.
+     *         When the request isn't finished, the filters still running are left out and
+     *         'partial' is added.
+     */
+    public synchronized String toHeaderValue() {
+        StringBuilder value = new StringBuilder();
+        for ( Map.Entry<String, long[]> filter : filters.entrySet() ) {
+            long[] times = filter.getValue();
+            if ( times[0] >= 0 ) {
+                append(value, token(filter.getKey()), Math.max(0, times[0] - times[1]), null);
+            }
+            long[] wait = poolWaits.get(filter.getKey());
+            if ( wait != null ) {
+                append(value, token(filter.getKey()) + POOL_SUFFIX, wait[0], null);
+            }
+        }
+        if ( upstreamNanos >= 0 ) {
+            append(value, UPSTREAM, upstreamNanos, "Atom Hopper");
+        }
+        if ( totalNanos >= 0 ) {
+            append(value, TOTAL, totalNanos, null);
+        } else {
+            if ( value.length() > 0 ) {
+                value.append(", ");
+            }
+            value.append(PARTIAL).append(";desc=\"sent before the response was complete\"");
+        }
+        return value.toString();
+    }
+
+    private static void append(StringBuilder value, String name, long nanos, String description) {
+        if ( value.length() > 0 ) {
+            value.append(", ");
+        }
+        value.append(name).append(";dur=").append(String.format(Locale.ENGLISH, "%.1f", nanos / 1000000.0));
+        if ( description != null ) {
+            value.append(";desc=\"").append(description).append('"');
+        }
+    }
+
+    /**
+     * @param name
+     * @return the name, with the characters a Server-Timing metric name can't have
+     *         replaced by '_'
+     */
+    static String token(String name) {
+        StringBuilder token = new StringBuilder(name.length());
+        for ( int i = 0; i < name.length(); i++ ) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                            || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+            token.append(valid ? c : '_');
+        }
+        return token.toString();
+    }
+}
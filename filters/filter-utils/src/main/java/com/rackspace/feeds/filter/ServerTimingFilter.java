@@ -0,0 +1,125 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * This class is a servlet filter that tells the client where the time of its request
+ * went, in a Server-Timing header listing the time of each filter, of the waits for the
+ * transformer pools and of Atom Hopper (see ServerTiming). It is opt-in:
+ * <ul>
+ *     <li>for every request, when the 'enabled' init param is true (false by default)</li>
+ *     <li>for the requests with the request header named by the 'header' init param
+ *     (x-server-timing by default) set to true, from a user with the 'trustedRole' role
+ *     in x-roles (cloudfeeds:service-admin by default). An empty 'trustedRole' trusts the
+ *     header alone, for when the proxy in front strips it from outside requests.</li>
+ * </ul>
+ *
+ * The header is sent once the response is complete, unless the response is sent
+ * before: with a Servlet 3.1 container there are no trailers, so a response streamed
+ * as it is transformed gets the header with what was known when its first byte was
+ * written, marked as 'partial', and the complete timing is logged.
+ *
+ * This filter must be mapped first, as it times the filters after it.
+ */
+public class ServerTimingFilter implements Filter {
+
+    private static Logger LOG = LoggerFactory.getLogger(ServerTimingFilter.class);
+
+    static final String X_ROLES = "x-roles";
+    static final String DEFAULT_HEADER = "x-server-timing";
+    static final String DEFAULT_TRUSTED_ROLE = "cloudfeeds:service-admin";
+
+    private boolean enabled = false;
+    private String header = DEFAULT_HEADER;
+    private String trustedRole = DEFAULT_TRUSTED_ROLE;
+
+    public void init(FilterConfig config)
+            throws ServletException {
+
+        LOG.debug("initializing ServerTimingFilter");
+
+        enabled = Boolean.parseBoolean(config.getInitParameter("enabled"));
+        String headerParam = config.getInitParameter("header");
+        if ( StringUtils.isNotBlank(headerParam) ) {
+            header = headerParam.trim();
+        }
+        String roleParam = config.getInitParameter("trustedRole");
+        if ( roleParam != null ) {
+            trustedRole = roleParam.trim();
+        }
+    }
+
+    public void doFilter(ServletRequest servletRequest,
+                         ServletResponse servletResponse,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        if ( !isTimed(request) ) {
+            // pass through
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ServerTiming timing = ServerTiming.open(request);
+        ServerTimingResponseWrapper wrapper = new ServerTimingResponseWrapper(response, timing);
+        try {
+            chain.doFilter(request, wrapper);
+        } finally {
+            if ( !request.isAsyncStarted() ) {
+                // otherwise the response is still being written, and only gets the partial timing
+                timing.finished();
+                if ( !wrapper.finish() ) {
+                    LOG.info(ServerTiming.HEADER + " of " + request.getRequestURI() + ": " + timing.toHeaderValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param request
+     * @return true if the request is to get a Server-Timing header
+     */
+    boolean isTimed(HttpServletRequest request) {
+        if ( enabled ) {
+            return true;
+        }
+        if ( !Boolean.parseBoolean(request.getHeader(header)) ) {
+            return false;
+        }
+        return trustedRole.isEmpty() || hasRole(request, trustedRole);
+    }
+
+    /**
+     * @param request
+     * @param role
+     * @return true if the x-roles headers of the request have the role
+     */
+    static boolean hasRole(HttpServletRequest request, String role) {
+        Enumeration<String> roles = request.getHeaders(X_ROLES);
+        if ( roles == null ) {
+            return false;
+        }
+        while ( roles.hasMoreElements() ) {
+            for ( String value : roles.nextElement().split(",") ) {
+                if ( value.trim().equals(role) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void destroy() {
+    }
+}
@@ -0,0 +1,164 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Wrapper class for HttpServletResponse that sets the Server-Timing header of the
+ * response: with what has been timed so far right before the first byte of the body
+ * is written, as the response may be sent from then on, and again with the complete
+ * timing by {@link #finish()}, if the response hasn't been sent by then.
+ */
+class ServerTimingResponseWrapper extends HttpServletResponseWrapper {
+
+    private final ServerTiming timing;
+
+    private boolean partialSent = false;
+    private ServletOutputStream outputStream = null;
+    private PrintWriter writer = null;
+
+    ServerTimingResponseWrapper(HttpServletResponse response, ServerTiming timing) {
+        super(response);
+        this.timing = timing;
+    }
+
+    /**
+     * Sets the header with what has been timed so far, before the body is written.
+     */
+    synchronized void beforeBody() {
+        if ( !partialSent ) {
+            partialSent = true;
+            if ( !isCommitted() ) {
+                setHeader(ServerTiming.HEADER, timing.toHeaderValue());
+            }
+        }
+    }
+
+    /**
+     * Sets the header with the complete timing, once the response is complete.
+     *
+     * @return false if the response was sent before, without the complete timing
+     */
+    synchronized boolean finish() {
+        if ( isCommitted() ) {
+            return false;
+        }
+        setHeader(ServerTiming.HEADER, timing.toHeaderValue());
+        return true;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        beforeBody();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        beforeBody();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        beforeBody();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        beforeBody();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        if ( outputStream == null ) {
+            outputStream = new TimingOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+        if ( writer == null ) {
+            writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+                @Override
+                public void write(int c) throws IOException {
+                    beforeBody();
+                    super.write(c);
+                }
+
+                @Override
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    beforeBody();
+                    super.write(cbuf, off, len);
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    beforeBody();
+                    super.write(str, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    beforeBody();
+                    super.flush();
+                }
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * Sets the header before anything is written to the output stream of the response.
+     */
+    private class TimingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        TimingOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            beforeBody();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            beforeBody();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            beforeBody();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            beforeBody();
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+}
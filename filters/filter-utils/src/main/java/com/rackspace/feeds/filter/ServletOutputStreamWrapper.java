@@ -30,12 +30,26 @@ public class ServletOutputStreamWrapper extends ServletOutputStream {
         this.outputStream.flush();
     }
 
+    /**
+     * Hands the listener to the wrapped stream when it is the container's. Any other
+     * stream blocks, so it can't take one.
+     *
+     * @throws IllegalStateException if the wrapped stream is not a ServletOutputStream
+     */
     public void setWriteListener(WriteListener writeListener) {
-        throw new UnsupportedOperationException("setWriteListener() is not yet implemented in this class");
+        if ( !(outputStream instanceof ServletOutputStream) ) {
+            throw new IllegalStateException("setWriteListener() needs a container output stream, " +
+                                            "this one wraps a " + outputStream.getClass().getName());
+        }
+        ((ServletOutputStream) outputStream).setWriteListener(writeListener);
     }
 
+    /**
+     * @return whether the wrapped container stream is ready; any other stream blocks,
+     * so it is always ready
+     */
     public boolean isReady() {
-        return true;
+        return !(outputStream instanceof ServletOutputStream) || ((ServletOutputStream) outputStream).isReady();
     }
 
 }
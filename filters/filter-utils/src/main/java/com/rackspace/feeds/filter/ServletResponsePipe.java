@@ -8,16 +8,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class's main purpose is to create a pipe between an HttpServletResponse's output
  * stream and a new input stream. In other words, the HttpServletResponse's output
  * stream becomes an input to something else.
  *
+ * The pipe is a ChunkedPipe, so the response is handed over in chunks rather than
+ * byte by byte.
+ *
  * User: shin4590
  * Date: 9/11/14
  */
@@ -25,8 +25,7 @@ public class ServletResponsePipe {
 
     private static Logger LOG = LoggerFactory.getLogger(ServletResponsePipe.class);
 
-    private PipedInputStream pipedInputStream = null;
-    private PipedOutputStream pipedOutputStream = null;
+    private ChunkedPipe pipe = null;
     private OutputStreamResponseWrapper wrappedResponse = null;
     private HttpServletRequest httpServletRequest = null;
 
@@ -40,9 +39,8 @@ public class ServletResponsePipe {
             throws IOException {
         // set up Pipes to pipe the OutputStream to the InputStream/Source of the
         // Transformer.
-        pipedInputStream = new PipedInputStream();
-        pipedOutputStream = new PipedOutputStream(pipedInputStream);
-        ServletOutputStreamWrapper sosw = new ServletOutputStreamWrapper(pipedOutputStream);
+        pipe = new ChunkedPipe();
+        ServletOutputStreamWrapper sosw = new ServletOutputStreamWrapper(pipe.getOutputStream());
         wrappedResponse = new OutputStreamResponseWrapper(httpServletResponse, sosw);
         this.httpServletRequest = httpServletRequest;
     }
@@ -53,36 +51,47 @@ public class ServletResponsePipe {
      * blocking the caller thread from reading from the input stream
      * that is a pipe of the output stream.
      *
+     * The thread comes from the web app's shared ResponsePipeExecutor.
+     * If the filter chain throws, reading from the input stream throws
+     * an IOException instead of returning a truncated response.
+     *
      * @param chain
+     * @throws RejectedExecutionException if the executor has no thread available
      */
-    public void doFilterAsynch(final FilterChain chain) {
+    public void doFilterAsynch(final FilterChain chain) throws RejectedExecutionException {
 
         // call the filter chain in a different thread, so the current thread
         // can start reading as soon as the child thread writes something
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.execute( new Runnable() {
+        ResponsePipeExecutor.getInstance().execute( new Runnable() {
             public void run() {
-                try {
-                    chain.doFilter(httpServletRequest, wrappedResponse);
-                } catch(Exception ex) {
-                    LOG.error("Got exception: ", ex);
-                } finally {
-                    try {
-                        pipedOutputStream.close();
-                    } catch (IOException ex) {
-                        LOG.error("Unable to close output stream", ex);
-                    }
-                }
+                doFilter(chain);
             }
         });
-        executorService.shutdown();
     }
 
     /**
-     * Must be called after you call the doFilterAsynch() method
+     * This method calls the FilterChain.doFilter() in the calling thread, for
+     * when another thread reads from the input stream. The pipe is closed
+     * when the filter chain returns, or failed if it throws.
+     *
+     * @param chain
+     */
+    public void doFilter(FilterChain chain) {
+        try {
+            chain.doFilter(httpServletRequest, wrappedResponse);
+            pipe.getOutputStream().close();
+        } catch(Exception ex) {
+            LOG.error("Got exception: ", ex);
+            pipe.getOutputStream().fail(ex);
+        }
+    }
+
+    /**
+     * Must be called after you call the doFilterAsynch() method, or from
+     * another thread than the one calling doFilter()
      * @return
      */
     public InputStream getInputStream() {
-        return pipedInputStream;
+        return pipe.getInputStream();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream that keeps what is written in memory, in pooled chunks (see
+ * ChunkedBuffer), until it gets bigger than a threshold. The rest then overflows to the
+ * stream returned by overflow(): by default a temporary file, which writeTo() sends
+ * with FileChannel.transferTo(). A subclass may instead overflow to the response itself.
+ *
+ * Either way, at most threshold bytes are held in memory, and size() is the exact
+ * number of bytes written. release() must be called once the bytes have been used, to
+ * give back the chunks and delete the file.
+ */
+class SpoolingOutputStream extends OutputStream {
+
+    private static Logger LOG = LoggerFactory.getLogger(SpoolingOutputStream.class);
+
+    static final String TEMP_FILE_PREFIX = "feeds-spool";
+
+    private final long threshold;
+    private final File directory;
+
+    private final ChunkedBuffer memory = new ChunkedBuffer();
+    private OutputStream overflow = null;
+    private File file = null;
+    private long size = 0;
+
+    /**
+     * @param threshold  how many bytes to keep in memory at most
+     * @param directory  where to create the temporary file, or null for java.io.tmpdir
+     */
+    SpoolingOutputStream(long threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target(1).write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target(len).write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * @param len  how many bytes are about to be written
+     * @return where to write them
+     */
+    private OutputStream target(int len) throws IOException {
+        if ( overflow != null ) {
+            return overflow;
+        }
+        if ( size + len <= threshold ) {
+            return memory;
+        }
+        overflow = overflow();
+        memory.writeTo(overflow);
+        memory.release();
+        return overflow;
+    }
+
+    /**
+     * Called once, when the bytes get bigger than the threshold.
+     *
+     * @return the stream to write the bytes to from now on, starting with the ones that
+     *         were kept in memory
+     * @throws IOException
+     */
+    protected OutputStream overflow() throws IOException {
+        file = File.createTempFile(TEMP_FILE_PREFIX, ".tmp", directory);
+        LOG.debug("Spooling more than " + threshold + " bytes to " + file);
+        return new BufferedOutputStream(new FileOutputStream(file), ByteChunkPool.DEFAULT_CHUNK_SIZE);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if ( overflow != null ) {
+            overflow.flush();
+        }
+    }
+
+    /**
+     * @return how many bytes have been written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return true if the bytes are all in memory
+     */
+    boolean isInMemory() {
+        return overflow == null;
+    }
+
+    /**
+     * @return true if the bytes got bigger than the threshold, and went to a temporary file
+     */
+    boolean isSpooledToFile() {
+        return file != null;
+    }
+
+    /**
+     * Writes the bytes kept in memory or in the temporary file.
+     *
+     * @param out
+     * @throws IOException
+     * @throws IllegalStateException if the bytes overflowed to a stream of a subclass
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if ( overflow == null ) {
+            memory.writeTo(out);
+            return;
+        }
+        if ( file == null ) {
+            throw new IllegalStateException("The bytes have been written to the overflow stream");
+        }
+        overflow.flush();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while ( position < size ) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gives back the chunks kept in memory, and deletes the temporary file.
+     */
+    void release() {
+        memory.release();
+        if ( file != null ) {
+            try {
+                overflow.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close " + file, e);
+            }
+            if ( !file.delete() ) {
+                LOG.warn("Failed to delete " + file);
+            }
+            file = null;
+        }
+    }
+}
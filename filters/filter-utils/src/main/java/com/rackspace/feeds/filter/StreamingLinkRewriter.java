@@ -0,0 +1,335 @@
+package com.rackspace.feeds.filter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.TransformerException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base class of the StreamingTransforms that stand in for our link rewriting
+ * stylesheets (external-href.xsl, rm-tenanted-search.xsl). Those stylesheets copy
+ * the whole document and only change the @href of elements whose @rel is one of
+ * previous, next, current, self or last.
+ *
+ * This class does the copy with a StAX reader, and hands those @href attributes
+ * to the HrefRewrite that prepare() returns for the response. Since the filters
+ * must write the same bytes whether they run the stylesheet or not, the copy is
+ * serialized the way Saxon serializes the output of an identity transform:
+ * <ul>
+ *     <li>an XML declaration with encoding UTF-8, with no line break after it</li>
+ *     <li>no DOCTYPE, and no whitespace outside of the root element</li>
+ *     <li>empty elements as &lt;name/&gt;</li>
+ *     <li>namespace declarations before attributes, dropping the ones that are
+ *     already in scope</li>
+ *     <li>attribute values in double quotes, CDATA sections as escaped text,
+ *     character references as characters</li>
+ *     <li>&lt; &gt; &amp; and carriage returns escaped in text; also " tabs and
+ *     line feeds in attribute values</li>
+ * </ul>
+ */
+public abstract class StreamingLinkRewriter implements StreamingTransform {
+
+    static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    static final Set<String> LINK_RELS = new HashSet<String>(Arrays.asList("previous", "next", "current", "self", "last"));
+
+    static final int BUFFER_SIZE = 8192;
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Rewrites the @href of the links of one response.
+     */
+    public interface HrefRewrite {
+
+        /**
+         * @param href  the current value of the @href
+         * @return the new value
+         * @throws TransformerException if the stylesheet would have failed on this value
+         */
+        String rewrite(String href) throws TransformerException;
+    }
+
+    /**
+     * Called once per response, so whatever depends on the parameters of the request
+     * is worked out once rather than for every link.
+     *
+     * @param xsltParameters  the parameters the stylesheet would have been given
+     * @return what rewrites the links of this response
+     * @throws TransformerException if the parameters are not valid
+     */
+    protected abstract HrefRewrite prepare(Map<String, Object> xsltParameters) throws TransformerException;
+
+    public void transform(InputStream input, Writer output, Map<String, Object> xsltParameters)
+            throws IOException, TransformerException {
+
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(input);
+            Writer out = new BufferedWriter(output, BUFFER_SIZE);
+            copy(reader, out, prepare(xsltParameters));
+            out.flush();
+        } catch (XMLStreamException e) {
+            throw new TransformerException(e);
+        } finally {
+            if ( reader != null ) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing left to read
+                }
+            }
+        }
+    }
+
+    private void copy(XMLStreamReader reader, Writer out, HrefRewrite hrefRewrite)
+            throws XMLStreamException, IOException, TransformerException {
+
+        NamespaceScope namespaces = new NamespaceScope();
+        boolean startTagOpen = false;
+        int depth = 0;
+
+        out.write(XML_DECLARATION);
+
+        while ( reader.hasNext() ) {
+            switch ( reader.next() ) {
+
+                case XMLStreamConstants.START_ELEMENT:
+                    if ( startTagOpen ) {
+                        out.write('>');
+                    }
+                    writeStartTag(reader, out, namespaces, hrefRewrite);
+                    startTagOpen = true;
+                    depth++;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if ( startTagOpen ) {
+                        out.write("/>");
+                        startTagOpen = false;
+                    } else {
+                        out.write("</");
+                        writeName(out, reader.getPrefix(), reader.getLocalName());
+                        out.write('>');
+                    }
+                    namespaces.pop();
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    // whitespace outside of the root element is not part of the document
+                    if ( depth > 0 && reader.getTextLength() > 0 ) {
+                        if ( startTagOpen ) {
+                            out.write('>');
+                            startTagOpen = false;
+                        }
+                        writeEscaped(out, reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength(), false);
+                    }
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    if ( startTagOpen ) {
+                        out.write('>');
+                        startTagOpen = false;
+                    }
+                    out.write("<!--");
+                    out.write(reader.getText());
+                    out.write("-->");
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if ( startTagOpen ) {
+                        out.write('>');
+                        startTagOpen = false;
+                    }
+                    out.write("<?");
+                    out.write(reader.getPITarget());
+                    String data = reader.getPIData();
+                    if ( data != null && data.length() > 0 ) {
+                        out.write(' ');
+                        out.write(data);
+                    }
+                    out.write("?>");
+                    break;
+
+                default:
+                    // DTD, start and end of document: nothing to copy
+                    break;
+            }
+        }
+    }
+
+    private void writeStartTag(XMLStreamReader reader,
+                               Writer out,
+                               NamespaceScope namespaces,
+                               HrefRewrite hrefRewrite)
+            throws IOException, TransformerException {
+
+        out.write('<');
+        writeName(out, reader.getPrefix(), reader.getLocalName());
+
+        namespaces.push();
+        for ( int idx = 0; idx < reader.getNamespaceCount(); idx++ ) {
+            String prefix = nullToEmpty(reader.getNamespacePrefix(idx));
+            String uri = nullToEmpty(reader.getNamespaceURI(idx));
+            if ( namespaces.declare(prefix, uri) ) {
+                if ( prefix.length() == 0 ) {
+                    out.write(" xmlns=\"");
+                } else {
+                    out.write(" xmlns:");
+                    out.write(prefix);
+                    out.write("=\"");
+                }
+                writeEscaped(out, uri, true);
+                out.write('"');
+            }
+        }
+
+        boolean isLink = isLink(reader);
+        for ( int idx = 0; idx < reader.getAttributeCount(); idx++ ) {
+            String value = reader.getAttributeValue(idx);
+            if ( isLink && isUnqualified(reader.getAttributeNamespace(idx))
+                    && "href".equals(reader.getAttributeLocalName(idx)) ) {
+                value = hrefRewrite.rewrite(value);
+            }
+            out.write(' ');
+            writeName(out, reader.getAttributePrefix(idx), reader.getAttributeLocalName(idx));
+            out.write("=\"");
+            writeEscaped(out, value, true);
+            out.write('"');
+        }
+    }
+
+    private boolean isLink(XMLStreamReader reader) {
+        for ( int idx = 0; idx < reader.getAttributeCount(); idx++ ) {
+            if ( isUnqualified(reader.getAttributeNamespace(idx))
+                    && "rel".equals(reader.getAttributeLocalName(idx)) ) {
+                return LINK_RELS.contains(reader.getAttributeValue(idx));
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnqualified(String namespace) {
+        return namespace == null || namespace.length() == 0;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static void writeName(Writer out, String prefix, String localName) throws IOException {
+        if ( prefix != null && prefix.length() > 0 ) {
+            out.write(prefix);
+            out.write(':');
+        }
+        out.write(localName);
+    }
+
+    static void writeEscaped(Writer out, String value, boolean inAttribute) throws IOException {
+        writeEscaped(out, value.toCharArray(), 0, value.length(), inAttribute);
+    }
+
+    static void writeEscaped(Writer out, char[] chars, int start, int length, boolean inAttribute) throws IOException {
+        int end = start + length;
+        int run = start;
+        for ( int idx = start; idx < end; idx++ ) {
+            String escape = escapeFor(chars[idx], inAttribute);
+            if ( escape != null ) {
+                out.write(chars, run, idx - run);
+                out.write(escape);
+                run = idx + 1;
+            }
+        }
+        out.write(chars, run, end - run);
+    }
+
+    private static String escapeFor(char c, boolean inAttribute) {
+        switch ( c ) {
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '&':
+                return "&amp;";
+            case '\r':
+                return "&#xD;";
+            case '"':
+                return inAttribute ? "&quot;" : null;
+            case '\n':
+                return inAttribute ? "&#xA;" : null;
+            case '\t':
+                return inAttribute ? "&#x9;" : null;
+            default:
+                // C1 control characters are written as character references
+                if ( c >= 0x7f && c <= 0x9f ) {
+                    return "&#" + (int) c + ";";
+                }
+                return null;
+        }
+    }
+
+    /**
+     * The namespace bindings in scope, so declarations that are already in
+     * scope are not written again.
+     */
+    static class NamespaceScope {
+
+        private final List<String[]> bindings = new ArrayList<String[]>();
+        private final List<Integer> marks = new ArrayList<Integer>();
+
+        void push() {
+            marks.add(bindings.size());
+        }
+
+        void pop() {
+            int mark = marks.remove(marks.size() - 1);
+            while ( bindings.size() > mark ) {
+                bindings.remove(bindings.size() - 1);
+            }
+        }
+
+        /**
+         * @return true if the declaration changes what 'prefix' is bound to
+         */
+        boolean declare(String prefix, String uri) {
+            if ( "xml".equals(prefix) || uri.equals(lookup(prefix)) ) {
+                return false;
+            }
+            bindings.add(new String[] { prefix, uri });
+            return true;
+        }
+
+        private String lookup(String prefix) {
+            for ( int idx = bindings.size() - 1; idx >= 0; idx-- ) {
+                if ( bindings.get(idx)[0].equals(prefix) ) {
+                    return bindings.get(idx)[1];
+                }
+            }
+            // the default namespace is unbound until it is declared
+            return prefix.length() == 0 ? "" : null;
+        }
+    }
+}
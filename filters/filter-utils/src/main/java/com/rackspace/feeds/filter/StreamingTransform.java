@@ -0,0 +1,30 @@
+package com.rackspace.feeds.filter;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A transform written in Java that TransformerUtils can run instead of its XSLT.
+ * It reads the response body as it arrives and writes the transformed body as it
+ * goes, without building a tree of the document. It must write exactly what the
+ * XSLT would have written for the same input and parameters.
+ *
+ * Implementations are shared across requests, so they must be thread safe.
+ */
+public interface StreamingTransform {
+
+    /**
+     * Transforms the XML read from 'input' and writes the result to 'output'.
+     *
+     * @param input           the XML to be transformed
+     * @param output          where the transformed XML is written
+     * @param xsltParameters  the parameters the XSLT would have been given
+     * @throws IOException
+     * @throws TransformerException if the input is not well formed, or can't be transformed
+     */
+    void transform(InputStream input, Writer output, Map<String, Object> xsltParameters)
+            throws IOException, TransformerException;
+}
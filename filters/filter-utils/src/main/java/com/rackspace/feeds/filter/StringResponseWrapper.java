@@ -1,19 +1,17 @@
 package com.rackspace.feeds.filter;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
-import java.io.ByteArrayOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 
 /**
  * Wrapper for HttpServletResponse that collect the response output
  * that can be retrieved as string
+ *
+ * @deprecated use BufferedResponseWrapper, which hands the body over without
+ *             decoding it into a String
  */
-public class StringResponseWrapper extends HttpServletResponseWrapper {
-    private PrintWriter writer = null;
-    private ByteArrayOutputStream stream;
-    private ServletOutputStreamWrapper servletOutputStream;
+@Deprecated
+public class StringResponseWrapper extends BufferedResponseWrapper {
 
     /**
      * Create a wrapper for servlet response
@@ -21,26 +19,18 @@ public class StringResponseWrapper extends HttpServletResponseWrapper {
      */
     public StringResponseWrapper(HttpServletResponse response) {
         super(response);
-        stream = new ByteArrayOutputStream();
-        servletOutputStream = new ServletOutputStreamWrapper(stream);
-        writer = new PrintWriter(servletOutputStream);
-    }
-
-    @Override
-    public PrintWriter getWriter() {
-       return writer;
-    }
-
-    @Override
-    public ServletOutputStream getOutputStream() {
-        return servletOutputStream;
     }
 
     /**
-     * Return string of the response content
+     * Return string of the response content, decoded from UTF-8
      * @return
      */
     public String getResponseString() {
-        return stream.toString();
+        try {
+            return getBodyString();
+        } catch (IOException e) {
+            // the body is in memory
+            throw new IllegalStateException(e);
+        }
     }
 }
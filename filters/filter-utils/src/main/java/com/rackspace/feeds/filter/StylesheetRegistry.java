@@ -0,0 +1,251 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the XSLT files of the TransformerUtils that have reloading turned on, and
+ * reloads them when they change on disk (e.g. when the standard-usage-schemas rpm is
+ * updated), without restarting the web app.
+ *
+ * Changes are picked up by a WatchService on the directory of each file. A single
+ * background thread waits until the directory has been quiet for QUIET_MILLIS, so a
+ * file that is written in several steps is only compiled once, and then calls
+ * TransformerUtils.reload() for each TransformerUtils using a changed file. See
+ * {@link TransformerUtils#reload()} for how the new version is swapped in.
+ *
+ * A single instance is shared by the filters of a web app.
+ */
+public class StylesheetRegistry {
+
+    private static Logger LOG = LoggerFactory.getLogger(StylesheetRegistry.class);
+
+    static final long QUIET_MILLIS = 500;
+
+    private static StylesheetRegistry instance = null;
+
+    private final Object lock = new Object();
+
+    // file -> the TransformerUtils using it
+    private final Map<Path, List<TransformerUtils>> transformers = new HashMap<Path, List<TransformerUtils>>();
+
+    // directory -> its registration with the watch service
+    private final Map<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+
+    private WatchService watchService = null;
+    private Thread watcher = null;
+
+    /**
+     * @return the registry shared by the web app
+     */
+    public static synchronized StylesheetRegistry getInstance() {
+        if ( instance == null ) {
+            instance = new StylesheetRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared registry, if it was started.
+     */
+    public static synchronized void shutdownInstance() {
+        if ( instance != null ) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    StylesheetRegistry() {
+    }
+
+    /**
+     * Starts watching the XSLT file of the given TransformerUtils.
+     *
+     * @param transformer  a TransformerUtils created from a file
+     * @throws IOException if the directory of the file can't be watched
+     */
+    public void register(TransformerUtils transformer) throws IOException {
+        if ( transformer.getXsltFile() == null ) {
+            throw new IllegalArgumentException("Only stylesheets read from a file can be reloaded: " +
+                                               transformer.getXsltPath());
+        }
+        Path file = transformer.getXsltFile().toPath().toAbsolutePath().normalize();
+        Path directory = file.getParent();
+
+        synchronized ( lock ) {
+            if ( watchService == null ) {
+                watchService = FileSystems.getDefault().newWatchService();
+                watcher = new Thread(new Watcher(watchService), "stylesheet-registry");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            if ( !directories.containsKey(directory) ) {
+                directories.put(directory, directory.register(watchService,
+                                                              StandardWatchEventKinds.ENTRY_CREATE,
+                                                              StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+            List<TransformerUtils> list = transformers.get(file);
+            if ( list == null ) {
+                list = new ArrayList<TransformerUtils>();
+                transformers.put(file, list);
+            }
+            if ( !list.contains(transformer) ) {
+                list.add(transformer);
+            }
+        }
+        LOG.info("Watching " + file + " for changes");
+    }
+
+    /**
+     * Stops watching the XSLT file of the given TransformerUtils.
+     *
+     * @param transformer
+     */
+    public void unregister(TransformerUtils transformer) {
+        if ( transformer.getXsltFile() == null ) {
+            return;
+        }
+        Path file = transformer.getXsltFile().toPath().toAbsolutePath().normalize();
+
+        synchronized ( lock ) {
+            List<TransformerUtils> list = transformers.get(file);
+            if ( list == null || !list.remove(transformer) ) {
+                return;
+            }
+            if ( list.isEmpty() ) {
+                transformers.remove(file);
+                Path directory = file.getParent();
+                if ( !isWatched(directory) ) {
+                    directories.remove(directory).cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param transformer
+     * @return true if the XSLT file of the transformer is being watched
+     */
+    public boolean isRegistered(TransformerUtils transformer) {
+        synchronized ( lock ) {
+            for ( List<TransformerUtils> list : transformers.values() ) {
+                if ( list.contains(transformer) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        synchronized ( lock ) {
+            if ( watchService == null ) {
+                return;
+            }
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the stylesheet watch service", e);
+            }
+            watchService = null;
+            watcher = null;
+            directories.clear();
+            transformers.clear();
+        }
+    }
+
+    private boolean isWatched(Path directory) {
+        for ( Path file : transformers.keySet() ) {
+            if ( file.getParent().equals(directory) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reloads the TransformerUtils using any of the given files.
+     *
+     * @param changed
+     */
+    void reload(Set<Path> changed) {
+        List<TransformerUtils> toReload = new ArrayList<TransformerUtils>();
+        synchronized ( lock ) {
+            for ( Path file : changed ) {
+                List<TransformerUtils> list = transformers.get(file);
+                if ( list != null ) {
+                    toReload.addAll(list);
+                }
+            }
+        }
+        // compile outside of the lock, it may take a while
+        for ( TransformerUtils transformer : toReload ) {
+            transformer.reload();
+        }
+    }
+
+    /**
+     * Waits for changes, and reloads the stylesheets once their directory is quiet.
+     */
+    private class Watcher implements Runnable {
+
+        private final WatchService watchService;
+
+        Watcher(WatchService watchService) {
+            this.watchService = watchService;
+        }
+
+        public void run() {
+            try {
+                while ( true ) {
+                    Set<Path> changed = new LinkedHashSet<Path>();
+                    WatchKey key = watchService.take();
+                    while ( key != null ) {
+                        collect(key, changed);
+                        key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    reload(changed);
+                }
+            } catch (ClosedWatchServiceException e) {
+                LOG.debug("stylesheet watch service closed");
+            } catch (InterruptedException e) {
+                LOG.debug("stylesheet watcher interrupted");
+            }
+        }
+
+        private void collect(WatchKey key, Set<Path> changed) {
+            Path directory = (Path) key.watchable();
+            for ( WatchEvent<?> event : key.pollEvents() ) {
+                if ( event.kind() != StandardWatchEventKinds.OVERFLOW ) {
+                    changed.add(directory.resolve((Path) event.context()).toAbsolutePath().normalize());
+                } else {
+                    // events were lost, so any of the files in the directory may have changed
+                    synchronized ( lock ) {
+                        for ( Path file : transformers.keySet() ) {
+                            if ( file.getParent().equals(directory) ) {
+                                changed.add(file);
+                            }
+                        }
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletRequest;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class chains the XSLT stages of several filters into a single transform.
+ *
+ * Without it, every filter in the chain sets up its own ServletResponsePipe and
+ * runs its own transform, so a response that goes through four filters is
+ * parsed and serialized four times. With composite mode turned on, the
+ * outermost filter opens a TransformPipeline and stores it as a request
+ * attribute. Filters further down the chain find the pipeline, add their stage
+ * to it and skip setting up their own pipe. When the response arrives, the
+ * outermost filter runs all stages in one thread: the innermost stage parses the
+ * response, each stage feeds its output to the next stage as SAX events, and
+ * only the outermost stage serializes.
+ *
+ * Stages are added from the thread running the rest of the filter chain and read
+ * from the thread doing the transform, so access to them is synchronized.
+ */
+public class TransformPipeline {
+
+    static Logger LOG = LoggerFactory.getLogger(TransformPipeline.class);
+
+    /**
+     * Name of the request attribute holding the pipeline of the current request
+     */
+    public static final String PIPELINE_ATTRIBUTE = TransformPipeline.class.getName();
+
+    // in the order the filters were called, outermost first
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    /**
+     * Creates a new pipeline and attaches it to the request.
+     *
+     * @param request
+     * @return the new pipeline
+     */
+    public static TransformPipeline open(ServletRequest request) {
+        TransformPipeline pipeline = new TransformPipeline();
+        request.setAttribute(PIPELINE_ATTRIBUTE, pipeline);
+        return pipeline;
+    }
+
+    /**
+     * @param request
+     * @return the pipeline attached to the request, or null if there is none
+     */
+    public static TransformPipeline getPipeline(ServletRequest request) {
+        Object pipeline = request.getAttribute(PIPELINE_ATTRIBUTE);
+        if ( pipeline instanceof TransformPipeline ) {
+            return (TransformPipeline) pipeline;
+        }
+        return null;
+    }
+
+    /**
+     * Detaches the pipeline from the request, so filters further down the chain
+     * run their own transforms. A filter that needs to look at the response as
+     * it is written by the filters after it (e.g. TenantedEntryVerificationFilter)
+     * must call this before calling the rest of the chain, and put the pipeline
+     * back with attach() afterwards.
+     *
+     * @param request
+     * @return the pipeline that was attached to the request, or null
+     */
+    public static TransformPipeline detach(ServletRequest request) {
+        TransformPipeline pipeline = getPipeline(request);
+        if ( pipeline != null ) {
+            request.removeAttribute(PIPELINE_ATTRIBUTE);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Attaches the pipeline to the request. Does nothing if pipeline is null.
+     *
+     * @param request
+     * @param pipeline
+     */
+    public static void attach(ServletRequest request, TransformPipeline pipeline) {
+        if ( pipeline != null ) {
+            request.setAttribute(PIPELINE_ATTRIBUTE, pipeline);
+        }
+    }
+
+    /**
+     * Adds a stage to this pipeline. Stages must be added from the outermost
+     * filter to the innermost one, which is the order the filters are called in.
+     *
+     * @param transformer     the TransformerUtils of the filter
+     * @param xsltParameters  the parameters to the xslt
+     */
+    public synchronized void addStage(TransformerUtils transformer, Map<String, Object> xsltParameters) {
+        stages.add(new Stage(transformer, xsltParameters));
+    }
+
+    public synchronized int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * @return the paths of the stylesheets of the stages, outermost first
+     */
+    public synchronized String getKey() {
+        StringBuilder key = new StringBuilder();
+        for ( Stage stage : stages ) {
+            if ( key.length() > 0 ) {
+                key.append(" | ");
+            }
+            key.append(stage.transformer.getXsltPath());
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the variants of the stylesheets of the stages (see TransformerUtils.getVariant()),
+     *         outermost first
+     */
+    public synchronized String getVariant() {
+        StringBuilder variant = new StringBuilder();
+        for ( Stage stage : stages ) {
+            if ( variant.length() > 0 ) {
+                variant.append(" | ");
+            }
+            variant.append(stage.transformer.getVariant(stage.xsltParameters));
+        }
+        return variant.toString();
+    }
+
+    /**
+     * Transforms 'inputXml' through all the stages of this pipeline and writes
+     * the output of the outermost stage to 'result'. The innermost stage uses a
+     * pooled Transformer; the others get a TransformerHandler.
+     *
+     * @param inputXml        the XML to be transformed
+     * @param result          the resulting transformed output
+     * @throws IOException
+     * @throws TransformerException
+     */
+    public void transform(Source inputXml, Result result) throws IOException, TransformerException {
+        transform(inputXml, result, null);
+    }
+
+    /**
+     * Transforms 'inputXml' like {@link #transform(Source, Result)}, recording how long
+     * the innermost stage waited for a transformer in the ServerTiming of the request.
+     *
+     * @param inputXml        the XML to be transformed
+     * @param result          the resulting transformed output
+     * @param timing          the ServerTiming of the request, or null if it isn't timed
+     * @throws IOException
+     * @throws TransformerException
+     */
+    public void transform(Source inputXml, Result result, ServerTiming timing)
+            throws IOException, TransformerException {
+
+        List<Stage> snapshot;
+        synchronized ( this ) {
+            snapshot = new ArrayList<Stage>(stages);
+        }
+
+        if ( snapshot.isEmpty() ) {
+            throw new TransformerException("TransformPipeline has no stages");
+        }
+
+        LOG.debug("Running " + snapshot.size() + " stage(s) in a single transform");
+
+        Result next = result;
+        for ( int idx = 0; idx < snapshot.size() - 1; idx++ ) {
+            Stage stage = snapshot.get(idx);
+            TransformerHandler handler = stage.transformer.newTransformerHandler(stage.xsltParameters);
+            handler.setResult(next);
+
+            SAXResult saxResult = new SAXResult(handler);
+            saxResult.setLexicalHandler(handler);
+            next = saxResult;
+        }
+
+        Stage innermost = snapshot.get(snapshot.size() - 1);
+        innermost.transformer.doTransform(innermost.xsltParameters, inputXml, next, timing);
+    }
+
+    static class Stage {
+
+        private final TransformerUtils transformer;
+        private final Map<String, Object> xsltParameters;
+
+        Stage(TransformerUtils transformer, Map<String, Object> xsltParameters) {
+            this.transformer = transformer;
+            this.xsltParameters = xsltParameters;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.rackspace.feeds.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the health of the transformer pool of a TransformerUtils to the Yammer
+ * metrics registry, which the web app exposes under /atommetrics. The metrics are
+ * named com.rackspace.feeds.filter.TransformerUtils.{metric}.{scope}, the scope
+ * being the name of the filter:
+ * <ul>
+ *     <li>borrow-wait: timer of how long transforms waited for a transformer</li>
+ *     <li>borrow-timeouts: how many transforms gave up waiting (see poolMaxWaitMillis)</li>
+ *     <li>active, idle: how many transformers are in use, and waiting in the pool</li>
+ *     <li>waiters: how many transforms are waiting for a transformer</li>
+ *     <li>max-total: the size of the pool</li>
+ *     <li>created, destroyed: how many transformers the pool has created and thrown away</li>
+ *     <li>reloads, reload-failures: how many times the XSLT file was reloaded, and failed to</li>
+ *     <li>parallel-transforms, parallel-entries: how many pages were transformed entry by
+ *     entry, and how many entries they had (see parallelEntryThreshold)</li>
+ *     <li>parallel-fallbacks: how many times the output of the entries couldn't be put back
+ *     together, so the pages were transformed as a whole</li>
+ *     <li>entry-cache-hits, entry-cache-misses: how many transformed entries were found in
+ *     the cache, and weren't (see entryCacheMaxBytes)</li>
+ *     <li>entry-cache-evictions: how many transformed entries were dropped to make room</li>
+ *     <li>entry-cache-entries, entry-cache-bytes: how many transformed entries the cache
+ *     holds, and their size</li>
+ * </ul>
+ *
+ * The pool gauges read the pool that is in use when they are read, so the created and
+ * destroyed counts start over when the stylesheet is reloaded.
+ */
+class TransformerPoolMetrics {
+
+    private final String scope;
+    private final List<MetricName> names = new ArrayList<MetricName>();
+
+    private final Timer borrowWait;
+    private final Counter borrowTimeouts;
+    private final Counter parallelTransforms;
+    private final Counter parallelEntries;
+    private final Counter parallelFallbacks;
+
+    /**
+     * Registers the metrics of the given TransformerUtils, replacing any metrics
+     * registered before with the same scope.
+     *
+     * @param transformer
+     * @param scope        the name of the filter
+     */
+    TransformerPoolMetrics(final TransformerUtils transformer, String scope) {
+        this.scope = scope;
+
+        MetricsRegistry registry = Metrics.defaultRegistry();
+
+        borrowWait = registry.newTimer(name("borrow-wait"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        borrowTimeouts = registry.newCounter(name("borrow-timeouts"));
+        parallelTransforms = registry.newCounter(name("parallel-transforms"));
+        parallelEntries = registry.newCounter(name("parallel-entries"));
+        parallelFallbacks = registry.newCounter(name("parallel-fallbacks"));
+
+        registry.newGauge(name("active"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return transformer.getPool().getNumActive();
+            }
+        });
+        registry.newGauge(name("idle"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return transformer.getPool().getNumIdle();
+            }
+        });
+        registry.newGauge(name("waiters"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return transformer.getPool().getNumWaiters();
+            }
+        });
+        registry.newGauge(name("max-total"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return transformer.getPool().getMaxTotal();
+            }
+        });
+        registry.newGauge(name("created"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return transformer.getPool().getCreatedCount();
+            }
+        });
+        registry.newGauge(name("destroyed"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return transformer.getPool().getDestroyedCount();
+            }
+        });
+        registry.newGauge(name("reloads"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return transformer.getReloadCount();
+            }
+        });
+        registry.newGauge(name("reload-failures"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return transformer.getReloadFailureCount();
+            }
+        });
+        registry.newGauge(name("entry-cache-hits"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                EntryFragmentCache cache = transformer.getEntryCache();
+                return cache != null ? cache.getHits() : 0L;
+            }
+        });
+        registry.newGauge(name("entry-cache-misses"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                EntryFragmentCache cache = transformer.getEntryCache();
+                return cache != null ? cache.getMisses() : 0L;
+            }
+        });
+        registry.newGauge(name("entry-cache-evictions"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                EntryFragmentCache cache = transformer.getEntryCache();
+                return cache != null ? cache.getEvictions() : 0L;
+            }
+        });
+        registry.newGauge(name("entry-cache-entries"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                EntryFragmentCache cache = transformer.getEntryCache();
+                return cache != null ? cache.size() : 0;
+            }
+        });
+        registry.newGauge(name("entry-cache-bytes"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                EntryFragmentCache cache = transformer.getEntryCache();
+                return cache != null ? cache.getBytes() : 0L;
+            }
+        });
+    }
+
+    /**
+     * @param metric
+     * @return the name of the metric, after removing any metric registered with that name
+     */
+    private MetricName name(String metric) {
+        MetricName name = new MetricName(TransformerUtils.class, metric, scope);
+        Metrics.defaultRegistry().removeMetric(name);
+        names.add(name);
+        return name;
+    }
+
+    String getScope() {
+        return scope;
+    }
+
+    /**
+     * @param waitNanos  how long a transform waited for a transformer
+     */
+    void borrowed(long waitNanos) {
+        borrowWait.update(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void borrowTimedOut() {
+        borrowTimeouts.inc();
+    }
+
+    /**
+     * @param entries  how many entries of a page were transformed in parallel
+     */
+    void parallelTransformed(int entries) {
+        parallelTransforms.inc();
+        parallelEntries.inc(entries);
+    }
+
+    void parallelFellBack() {
+        parallelFallbacks.inc();
+    }
+
+    /**
+     * Removes the metrics from the registry.
+     */
+    void remove() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        for ( MetricName name : names ) {
+            registry.removeMetric(name);
+        }
+        names.clear();
+    }
+}
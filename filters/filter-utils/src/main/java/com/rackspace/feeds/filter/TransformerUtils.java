@@ -1,14 +1,15 @@
 package com.rackspace.feeds.filter;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.pool2.ObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,6 +17,7 @@ import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.BufferedInputStream;
@@ -25,6 +27,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is meant to be used from within a Servlet Filter, a single instance of
@@ -43,6 +49,30 @@ import java.util.Map;
  *     transformation objects</li>
  * </ul>
  *
+ * When composite mode is turned on, filters that are nested inside another
+ * composite filter don't transform the response themselves. Instead, they add their
+ * stylesheet as a stage of the outer filter's TransformPipeline, and the outermost
+ * filter runs all the stages with a single parse and a single serialization.
+ * See {@link TransformPipeline}.
+ *
+ * When async mode is turned on and the request supports it, the container thread
+ * is released as soon as the filter chain has written the response: the transform
+ * runs on a ResponsePipeExecutor thread, and the transformed output is written to the
+ * client with non-blocking I/O as the client accepts it. See {@link AsyncTransform}.
+ * Async mode must only be turned on for the outermost filter in the chain, since the
+ * filters before it would see their doFilter() return before the response is written.
+ *
+ * A filter can also give this class a {@link StreamingTransform}, which is then run
+ * instead of the XSLT. The XSLT is still loaded, and is used for the stages of a
+ * composite TransformPipeline, which need SAX events rather than bytes.
+ *
+ * Large feed pages can be transformed entry by entry, in parallel, see
+ * {@link #setParallelEntryThreshold(int)} and {@link ParallelEntryTransform}, and
+ * their transformed entries cached, see {@link #setEntryCacheMaxBytes(long)}.
+ *
+ * A stylesheet read from a file can be reloaded when the file changes, see
+ * {@link #reload()} and {@link StylesheetRegistry}.
+ *
  * User: shin4590
  * Date: 9/10/14
  */
@@ -50,17 +80,75 @@ public class TransformerUtils {
 
     static Logger LOG = LoggerFactory.getLogger(TransformerUtils.class);
 
-    private final ObjectPool<Transformer> transformerPool;
+    /**
+     * Init param of the filters that have a StreamingTransform, to choose between
+     * it ('streaming') and their XSLT ('xslt', the default)
+     */
+    public static final String TRANSFORM_MODE_PARAM = "transformMode";
+    public static final String TRANSFORM_MODE_XSLT = "xslt";
+    public static final String TRANSFORM_MODE_STREAMING = "streaming";
+
+    /**
+     * Init params of the filters, to size the pool of transformers of their stylesheet
+     */
+    public static final String POOL_MAX_TOTAL_PARAM = "poolMaxTotal";
+    public static final String POOL_MIN_IDLE_PARAM = "poolMinIdle";
+    public static final String POOL_MAX_WAIT_PARAM = "poolMaxWaitMillis";
+    public static final String POOL_EVICTION_RUN_PARAM = "poolTimeBetweenEvictionRunsMillis";
+    public static final String POOL_MIN_EVICTABLE_IDLE_PARAM = "poolMinEvictableIdleTimeMillis";
+    public static final String POOL_PREWARM_PARAM = "poolPrewarm";
+
+    /**
+     * Init param of the filters, the number of entries from which a feed page is transformed
+     * entry by entry, in parallel; 0, the default, turns it off
+     */
+    public static final String PARALLEL_ENTRY_THRESHOLD_PARAM = "parallelEntryThreshold";
+
+    /**
+     * Init param of the filters, the most bytes of transformed entries of feed pages to
+     * cache; 0, the default, turns it off
+     */
+    public static final String ENTRY_CACHE_MAX_BYTES_PARAM = "entryCacheMaxBytes";
+
+    static final int DEFAULT_MIN_IDLE = 2;
+
     private final String xsltPath;
+    private final String initialTemplate;
+    private final String systemId;
+    private final File xsltFile;
+    private GenericObjectPoolConfig poolConfig;
+    private int prewarm;
+    private volatile TransformerPoolMetrics metrics = null;
+    private volatile FilterMetrics filterMetrics = null;
+
+    // replaced as a whole when the stylesheet is reloaded
+    private volatile CompiledStylesheet stylesheet;
+
+    private boolean reloadEnabled = false;
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong reloadFailureCount = new AtomicLong();
+    private volatile String lastReloadFailure = null;
+
+    private boolean compositeEnabled = false;
+    private boolean asyncEnabled = false;
+    private long asyncTimeoutMillis = AsyncTransform.DEFAULT_TIMEOUT_MILLIS;
+    private StreamingTransform streamingTransform = null;
+    private int parallelEntryThreshold = 0;
+    private EntryFragmentCache entryCache = null;
+    private volatile ParallelEntryTransform parallelEntryTransform = null;
+
+    // the pages split to look their entries up in the cache when no parallelEntryThreshold is set:
+    // splitting a smaller one costs more than the entries found would save
+    static final int CACHED_ENTRY_THRESHOLD = 10;
 
     static private GenericObjectPoolConfig CONFIG = new GenericObjectPoolConfig();
 
     static {
 
-        CONFIG.setMinIdle( 2 );
+        CONFIG.setMinIdle( DEFAULT_MIN_IDLE );
         // We're using this value to initialize the pool
         // To evict idle instances, we'll need to set timeBetweenEvictionRunsMillis, but since things are working
-        // fine, we won't mess with it for the time being
+        // fine, we won't mess with it for the time being. Filters can set it with the pool init params.
     }
 
 
@@ -72,11 +160,11 @@ public class TransformerUtils {
      * @return
      */
     public static TransformerUtils getInstanceForXsltAsResource(String xsltPath) throws Exception {
-        return new TransformerUtils(xsltPath, getXsltResourceAsString(xsltPath), null, null, CONFIG);
+        return new TransformerUtils(xsltPath, getXsltResourceAsString(xsltPath), null, null, null, CONFIG);
     }
 
     public static TransformerUtils getInstanceForXsltAsResource(String xsltPath, String initialTemplate ) throws Exception {
-        return new TransformerUtils(xsltPath, getXsltResourceAsString(xsltPath), initialTemplate, null, CONFIG);
+        return new TransformerUtils(xsltPath, getXsltResourceAsString(xsltPath), initialTemplate, null, null, CONFIG);
     }
 
     /**
@@ -97,19 +185,431 @@ public class TransformerUtils {
         try {
             File xsltFile = new File(xsltPath);
             String systemId = xsltFile.toURI().toURL().toExternalForm();
-            return new TransformerUtils(xsltPath, getXsltFileAsString(xsltPath), initialTemplate, systemId, CONFIG );
+            return new TransformerUtils(xsltPath, getXsltFileAsString(xsltPath), initialTemplate, systemId, xsltFile, CONFIG );
         } catch (MalformedURLException ex) {
             throw new IllegalArgumentException("File " + xsltPath + " can not be converted to URL", ex);
         }
     }
 
-    private TransformerUtils(String xsltPath, String xsltAsString, String initialTemplate, String systemId, GenericObjectPoolConfig config ) throws Exception {
+    private TransformerUtils(String xsltPath, String xsltAsString, String initialTemplate, String systemId,
+                             File xsltFile, GenericObjectPoolConfig config ) throws Exception {
         this.xsltPath = xsltPath;
-        this.transformerPool = new GenericObjectPool<Transformer>(new XSLTTransformerPooledObjectFactory<Transformer>(xsltAsString, initialTemplate, systemId), config );
+        this.initialTemplate = initialTemplate;
+        this.systemId = systemId;
+        this.xsltFile = xsltFile;
+        this.poolConfig = config;
+        this.prewarm = config.getMinIdle();
+        this.stylesheet = new CompiledStylesheet(xsltAsString, initialTemplate, systemId, config, prewarm);
+    }
+
+    /**
+     * Configures this instance from the init parameters of the filter using it:
+     * <ul>
+     *     <li>compositeTransform: true to turn on composite mode</li>
+     *     <li>asyncTransform: true to turn on async mode</li>
+     *     <li>asyncTimeoutMillis: the timeout of an async request, 0 for none</li>
+     *     <li>reloadXslt: true to reload the XSLT file when it changes</li>
+     *     <li>poolMaxTotal: the most transformers the pool creates (default 8)</li>
+     *     <li>poolMinIdle: the fewest idle transformers the evictor keeps in the pool (default 2)</li>
+     *     <li>poolMaxWaitMillis: how long a transform waits for a transformer before failing,
+     *     -1 to wait for ever (the default)</li>
+     *     <li>poolTimeBetweenEvictionRunsMillis: how often idle transformers are evicted, -1
+     *     for never (the default)</li>
+     *     <li>poolMinEvictableIdleTimeMillis: how long a transformer is idle before it may be
+     *     evicted (default 30 minutes)</li>
+     *     <li>poolPrewarm: how many transformers are created up front (default poolMinIdle)</li>
+     *     <li>parallelEntryThreshold: the number of entries from which a feed page is
+     *     transformed entry by entry, 0 for never (the default)</li>
+     *     <li>entryCacheMaxBytes: the most bytes of transformed entries to cache, 0 for none
+     *     (the default)</li>
+     * </ul>
+     *
+     * It also publishes the metrics of the pool (see TransformerPoolMetrics) under the
+     * name of the filter.
+     *
+     * @param config
+     */
+    public void configure(FilterConfig config) {
+        setCompositeEnabled(Boolean.parseBoolean(config.getInitParameter("compositeTransform")));
+        setAsyncEnabled(Boolean.parseBoolean(config.getInitParameter("asyncTransform")));
+        setReloadEnabled(Boolean.parseBoolean(config.getInitParameter("reloadXslt")));
+        setAsyncTimeoutMillis(getLong(config, "asyncTimeoutMillis", asyncTimeoutMillis));
+        setParallelEntryThreshold((int) getLong(config, PARALLEL_ENTRY_THRESHOLD_PARAM, 0));
+        setEntryCacheMaxBytes(getLong(config, ENTRY_CACHE_MAX_BYTES_PARAM, 0));
+
+        if ( hasPoolParameters(config) ) {
+            int maxTotal = (int) getLong(config, POOL_MAX_TOTAL_PARAM, GenericObjectPoolConfig.DEFAULT_MAX_TOTAL);
+            int minIdle = (int) getLong(config, POOL_MIN_IDLE_PARAM, DEFAULT_MIN_IDLE);
+            if ( maxTotal <= 0 ) {
+                throw new IllegalArgumentException(POOL_MAX_TOTAL_PARAM + " must be greater than 0: " + maxTotal);
+            }
+            if ( minIdle < 0 || minIdle > maxTotal ) {
+                throw new IllegalArgumentException(POOL_MIN_IDLE_PARAM + " must be between 0 and " + POOL_MAX_TOTAL_PARAM + ": " + minIdle);
+            }
+            int prewarmCount = (int) getLong(config, POOL_PREWARM_PARAM, minIdle);
+            if ( prewarmCount < 0 || prewarmCount > maxTotal ) {
+                throw new IllegalArgumentException(POOL_PREWARM_PARAM + " must be between 0 and " + POOL_MAX_TOTAL_PARAM + ": " + prewarmCount);
+            }
+
+            GenericObjectPoolConfig pool = new GenericObjectPoolConfig();
+            pool.setMaxTotal(maxTotal);
+            // idle transformers beyond maxIdle would be thrown away as they are returned
+            pool.setMaxIdle(maxTotal);
+            pool.setMinIdle(minIdle);
+            pool.setMaxWaitMillis(getLong(config, POOL_MAX_WAIT_PARAM, GenericObjectPoolConfig.DEFAULT_MAX_WAIT_MILLIS));
+            pool.setTimeBetweenEvictionRunsMillis(getLong(config, POOL_EVICTION_RUN_PARAM,
+                    GenericObjectPoolConfig.DEFAULT_TIME_BETWEEN_EVICTION_RUNS_MILLIS));
+            pool.setMinEvictableIdleTimeMillis(getLong(config, POOL_MIN_EVICTABLE_IDLE_PARAM,
+                    GenericObjectPoolConfig.DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS));
+            configurePool(pool, prewarmCount);
+        }
+
+        publishMetrics(StringUtils.defaultIfEmpty(config.getFilterName(), xsltPath));
+    }
+
+    private static boolean hasPoolParameters(FilterConfig config) {
+        for ( String name : new String[] { POOL_MAX_TOTAL_PARAM, POOL_MIN_IDLE_PARAM, POOL_MAX_WAIT_PARAM,
+                                           POOL_EVICTION_RUN_PARAM, POOL_MIN_EVICTABLE_IDLE_PARAM, POOL_PREWARM_PARAM } ) {
+            if ( StringUtils.isNotBlank(config.getInitParameter(name)) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getLong(FilterConfig config, String name, long defaultValue) {
+        String value = config.getInitParameter(name);
+        if ( StringUtils.isBlank(value) ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value, e);
+        }
+    }
+
+    /**
+     * Replaces the pool of transformers with one built with the given settings. Like
+     * reload(), the new pool is filled before it is swapped in, and the transforms
+     * already running finish with the previous one.
+     *
+     * @param config   the settings of the new pool
+     * @param prewarm  how many transformers to create up front
+     * @throws IllegalArgumentException if the transformers can't be created
+     */
+    public synchronized void configurePool(GenericObjectPoolConfig config, int prewarm) {
+        try {
+            CompiledStylesheet next = new CompiledStylesheet(stylesheet.factory, config, prewarm);
+            CompiledStylesheet previous = stylesheet;
+            stylesheet = next;
+            previous.close();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Error creating the transformers of " + xsltPath, e);
+        }
+        this.poolConfig = config;
+        this.prewarm = prewarm;
+        LOG.info("Transformer pool of " + xsltPath + ": maxTotal=" + config.getMaxTotal() +
+                 ", minIdle=" + config.getMinIdle() + ", maxWaitMillis=" + config.getMaxWaitMillis() +
+                 ", prewarm=" + prewarm);
+    }
+
+    /**
+     * Publishes the metrics of the pool to the Yammer metrics registry.
+     *
+     * @param scope  the scope of the metrics, usually the name of the filter
+     */
+    public void publishMetrics(String scope) {
+        TransformerPoolMetrics previous = metrics;
+        if ( previous != null ) {
+            previous.remove();
+        }
+        metrics = new TransformerPoolMetrics(this, scope);
+    }
+
+    /**
+     * Sets the metrics of the filter using this instance, which then records its
+     * transforms, their input and output bytes and the time of the rest of the chain.
+     *
+     * @param filterMetrics  the metrics of the filter, or null to stop recording
+     */
+    public void setFilterMetrics(FilterMetrics filterMetrics) {
+        this.filterMetrics = filterMetrics;
+    }
+
+    public FilterMetrics getFilterMetrics() {
+        return filterMetrics;
+    }
+
+    /**
+     * @return the name of the filter using this instance in Server-Timing headers
+     */
+    private String getTimingName() {
+        FilterMetrics current = filterMetrics;
+        return current != null ? current.getScope() : xsltPath;
+    }
+
+    /**
+     * @return the pool of transformers in use
+     */
+    GenericObjectPool<Transformer> getPool() {
+        return stylesheet.pool;
+    }
+
+    /**
+     * @param config
+     * @return true if the filter's transformMode init param asks for its StreamingTransform
+     */
+    public static boolean isStreamingMode(FilterConfig config) {
+        String mode = config.getInitParameter(TRANSFORM_MODE_PARAM);
+        if ( StringUtils.isBlank(mode) || TRANSFORM_MODE_XSLT.equalsIgnoreCase(mode.trim()) ) {
+            return false;
+        }
+        if ( TRANSFORM_MODE_STREAMING.equalsIgnoreCase(mode.trim()) ) {
+            return true;
+        }
+        throw new IllegalArgumentException(TRANSFORM_MODE_PARAM + " must be '" + TRANSFORM_MODE_XSLT +
+                                           "' or '" + TRANSFORM_MODE_STREAMING + "': " + mode);
+    }
+
+    /**
+     * Turns composite mode on or off.
+     *
+     * @param compositeEnabled
+     */
+    public void setCompositeEnabled(boolean compositeEnabled) {
+        this.compositeEnabled = compositeEnabled;
+    }
+
+    public boolean isCompositeEnabled() {
+        return compositeEnabled;
+    }
+
+    /**
+     * Turns async mode on or off. Requests that don't support async are
+     * still transformed the blocking way.
+     *
+     * @param asyncEnabled
+     */
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    public void setAsyncTimeoutMillis(long asyncTimeoutMillis) {
+        this.asyncTimeoutMillis = asyncTimeoutMillis;
+    }
+
+    /**
+     * Sets the StreamingTransform to run instead of the XSLT, or null to run the XSLT.
+     *
+     * @param streamingTransform
+     */
+    public void setStreamingTransform(StreamingTransform streamingTransform) {
+        this.streamingTransform = streamingTransform;
+    }
+
+    public StreamingTransform getStreamingTransform() {
+        return streamingTransform;
+    }
+
+    /**
+     * Sets the number of entries from which a feed page is transformed entry by entry, on
+     * a shared ForkJoinPool, with the envelope of the feed transformed on its own. Only
+     * the stylesheets transforming each entry on their own, whatever the rest of the feed,
+     * give the same output; see {@link ParallelEntryTransform}. In a composite transform,
+     * the setting of the outermost filter applies to the whole TransformPipeline. The
+     * StreamingTransform, if any, is not run entry by entry.
+     *
+     * @param threshold  the number of entries, 0 to transform every page as a whole
+     */
+    public synchronized void setParallelEntryThreshold(int threshold) {
+        if ( threshold < 0 ) {
+            throw new IllegalArgumentException(PARALLEL_ENTRY_THRESHOLD_PARAM + " must not be negative: " + threshold);
+        }
+        parallelEntryThreshold = threshold;
+        updateParallelEntryTransform();
+    }
+
+    public synchronized int getParallelEntryThreshold() {
+        return parallelEntryThreshold;
+    }
+
+    /**
+     * Sets the size of the cache of the transformed entries of feed pages. Pages are
+     * then split into their entries as with {@link #setParallelEntryThreshold(int)}, and
+     * the entries are looked up by their atom:id, the stylesheets and their parameters;
+     * only the others are transformed. If no threshold is set, pages of 10 entries or
+     * more are split, and the entries not found are transformed one after the other on
+     * the thread of the request. A document
+     * that is a single entry is looked up and cached as a whole. As with the
+     * threshold, it only gives the output of the whole page for stylesheets transforming
+     * each entry on its own, and the setting of the outermost filter applies to a
+     * composite transform. A new cache is created each time it is set.
+     *
+     * @param maxBytes  the most bytes of transformed entries to keep, 0 not to cache them
+     */
+    public synchronized void setEntryCacheMaxBytes(long maxBytes) {
+        if ( maxBytes < 0 ) {
+            throw new IllegalArgumentException(ENTRY_CACHE_MAX_BYTES_PARAM + " must not be negative: " + maxBytes);
+        }
+        entryCache = maxBytes == 0 ? null : new EntryFragmentCache(maxBytes);
+        updateParallelEntryTransform();
+    }
+
+    public synchronized long getEntryCacheMaxBytes() {
+        return entryCache != null ? entryCache.getMaxBytes() : 0;
+    }
+
+    /**
+     * @return the cache of the transformed entries, or null if there is none
+     */
+    synchronized EntryFragmentCache getEntryCache() {
+        return entryCache;
+    }
+
+    private void updateParallelEntryTransform() {
+        if ( parallelEntryThreshold > 0 ) {
+            parallelEntryTransform = new ParallelEntryTransform(parallelEntryThreshold, entryCache);
+        } else if ( entryCache != null ) {
+            parallelEntryTransform = new ParallelEntryTransform(CACHED_ENTRY_THRESHOLD, entryCache, false);
+        } else {
+            parallelEntryTransform = null;
+        }
+    }
+
+    /**
+     * @param xsltParameters  the parameters to the xslt
+     * @return the path of the stylesheet, its version and the parameters, as the variant
+     *         of the transform in the EntryFragmentCache
+     */
+    String getVariant(Map<String, Object> xsltParameters) {
+        StringBuilder variant = new StringBuilder(xsltPath).append('#').append(reloadCount.get());
+        if ( xsltParameters != null && !xsltParameters.isEmpty() ) {
+            variant.append(' ').append(new TreeMap<String, Object>(xsltParameters));
+        }
+        return variant.toString();
+    }
 
-        // The object pool doesn't actually initialize the pool, so we do it manually
-        for( int i = 0; i < config.getMinIdle(); i++ )
-            transformerPool.addObject();
+    /**
+     * Turns reloading of the XSLT file on or off. When it is on, the StylesheetRegistry
+     * calls reload() whenever the file changes. Stylesheets that are not read from a
+     * file are never reloaded.
+     *
+     * @param reloadEnabled
+     */
+    public void setReloadEnabled(boolean reloadEnabled) {
+        if ( reloadEnabled == this.reloadEnabled ) {
+            return;
+        }
+        if ( xsltFile == null ) {
+            if ( reloadEnabled ) {
+                LOG.warn("Ignoring reloadXslt for " + xsltPath + ", which is not read from a file");
+            }
+            return;
+        }
+        if ( reloadEnabled ) {
+            try {
+                StylesheetRegistry.getInstance().register(this);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't watch " + xsltPath + " for changes", e);
+            }
+        } else {
+            StylesheetRegistry.getInstance().unregister(this);
+        }
+        this.reloadEnabled = reloadEnabled;
+    }
+
+    public boolean isReloadEnabled() {
+        return reloadEnabled;
+    }
+
+    /**
+     * Reads and compiles the XSLT file again. The new version is swapped in only once it
+     * has compiled and its pool has been filled with transformers: requests that start
+     * after that use it, while the requests already running finish with the transformers
+     * of the previous version, which are then thrown away.
+     *
+     * Closing the previous pool interrupts the requests waiting for one of its
+     * transformers; they wait on the new pool instead.
+     *
+     * If the new version can't be read or compiled, the current version is kept, and
+     * the failure is counted in getReloadFailureCount().
+     *
+     * @return true if the new version was swapped in
+     */
+    public synchronized boolean reload() {
+        if ( xsltFile == null ) {
+            return false;
+        }
+        try {
+            CompiledStylesheet next = new CompiledStylesheet(getXsltFileAsString(xsltPath), initialTemplate, systemId,
+                                                             poolConfig, prewarm);
+            CompiledStylesheet previous = stylesheet;
+            stylesheet = next;
+            previous.close();
+
+            reloadCount.incrementAndGet();
+            LOG.info("Reloaded xslt: " + xsltPath);
+            return true;
+        } catch (Exception e) {
+            reloadFailureCount.incrementAndGet();
+            lastReloadFailure = String.valueOf(e.getMessage());
+            LOG.error("Error reloading xslt: " + xsltPath + ", keeping the current version", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops reloading the XSLT file, and throws away the pooled transformers. To be
+     * called when the filter using this instance is destroyed.
+     */
+    public void destroy() {
+        setReloadEnabled(false);
+        if ( metrics != null ) {
+            metrics.remove();
+            metrics = null;
+        }
+        if ( filterMetrics != null ) {
+            filterMetrics.remove();
+            filterMetrics = null;
+        }
+        stylesheet.close();
+    }
+
+    /**
+     * @return the number of times the XSLT file was reloaded
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * @return the number of times the XSLT file could not be reloaded
+     */
+    public long getReloadFailureCount() {
+        return reloadFailureCount.get();
+    }
+
+    /**
+     * @return the error of the last reload that failed, or null
+     */
+    public String getLastReloadFailure() {
+        return lastReloadFailure;
+    }
+
+    public String getXsltPath() {
+        return xsltPath;
+    }
+
+    /**
+     * @return the XSLT file, or null if the stylesheet is a classpath resource
+     */
+    File getXsltFile() {
+        return xsltFile;
     }
 
     public void doTransform(HttpServletRequest wrappedRequest,
@@ -119,13 +619,106 @@ public class TransformerUtils {
                             Map<String, Object> xsltParameters)
             throws IOException, ServletException {
 
+        FilterMetrics filterMetrics = this.filterMetrics;
+        if ( filterMetrics != null ) {
+            chain = filterMetrics.timeChain(chain);
+        }
+
+        TransformPipeline pipeline = null;
+        if ( compositeEnabled ) {
+            pipeline = TransformPipeline.getPipeline(wrappedRequest);
+            if ( pipeline != null ) {
+                // An outer filter owns the pipe and will run our stylesheet as part
+                // of its transform, so we only need to pass the response through.
+                pipeline.addStage(this, xsltParameters);
+                if ( filterMetrics != null ) {
+                    filterMetrics.composed();
+                }
+                chain.doFilter(wrappedRequest,
+                               new OutputStreamResponseWrapper(wrappedResponse, originalResponse.getOutputStream()));
+                return;
+            }
+            pipeline = TransformPipeline.open(wrappedRequest);
+            pipeline.addStage(this, xsltParameters);
+        }
+
+        if ( asyncEnabled && wrappedRequest.isAsyncSupported() ) {
+            new AsyncTransform(this, wrappedRequest, wrappedResponse, originalResponse,
+                               chain, xsltParameters, pipeline, asyncTimeoutMillis).start();
+            return;
+        }
+
+        try {
+            transformPiped(wrappedRequest, wrappedResponse, originalResponse, chain, xsltParameters, pipeline);
+        } finally {
+            if ( pipeline != null ) {
+                TransformPipeline.detach(wrappedRequest);
+            }
+        }
+    }
+
+    /**
+     * Calls the rest of the filter chain through a ServletResponsePipe and transforms
+     * what it writes, blocking the calling thread until the whole response has been
+     * written to targetResponse.
+     *
+     * @param wrappedRequest   the request to pass down the chain
+     * @param wrappedResponse  the response to pass down the chain
+     * @param targetResponse   the response to write the transformed output to
+     * @param chain
+     * @param xsltParameters   the parameters to the xslt
+     * @param pipeline         the pipeline to run instead of our own stylesheet, or null
+     * @throws IOException
+     * @throws ServletException
+     */
+    void transformPiped(HttpServletRequest wrappedRequest,
+                        HttpServletResponse wrappedResponse,
+                        HttpServletResponse targetResponse,
+                        FilterChain chain,
+                        Map<String, Object> xsltParameters,
+                        TransformPipeline pipeline)
+            throws IOException, ServletException {
+
         ServletResponsePipe srp = new ServletResponsePipe(wrappedRequest, wrappedResponse);
-        srp.doFilterAsynch(chain);
+        try {
+            srp.doFilterAsynch(chain);
+        } catch (RejectedExecutionException ree) {
+            LOG.warn("No response pipe thread available, rejecting request: " + ree.getMessage());
+            targetResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        transformPipe(srp, wrappedRequest, wrappedResponse, targetResponse, xsltParameters, pipeline);
+    }
+
+    /**
+     * Transforms what the filter chain writes to the pipe, blocking the calling thread
+     * until the whole response has been written to targetResponse. The filter chain
+     * must be writing to the pipe from another thread.
+     *
+     * @param srp              the pipe the filter chain writes to
+     * @param wrappedRequest   the request passed down the chain
+     * @param wrappedResponse  the response passed down the chain
+     * @param targetResponse   the response to write the transformed output to
+     * @param xsltParameters   the parameters to the xslt
+     * @param pipeline         the pipeline to run instead of our own stylesheet, or null
+     * @throws IOException
+     * @throws ServletException
+     */
+    void transformPipe(ServletResponsePipe srp,
+                       HttpServletRequest wrappedRequest,
+                       HttpServletResponse wrappedResponse,
+                       HttpServletResponse targetResponse,
+                       Map<String, Object> xsltParameters,
+                       TransformPipeline pipeline)
+            throws IOException, ServletException {
 
         try {
-            InputStream bis = new BufferedInputStream(srp.getInputStream());
+            CountingInputStream input = new CountingInputStream(srp.getInputStream());
+            InputStream bis = new BufferedInputStream(input);
             int firstByte = getFirstByte(bis);
             int status = wrappedResponse.getStatus();
+            FilterMetrics filterMetrics = this.filterMetrics;
+            ServerTiming timing = ServerTiming.get(wrappedRequest);
 
             // This is because we can't deterministically get Response's Content-Type
             // from HttpServletResponse until we actually read it. Instead of
@@ -133,16 +726,103 @@ public class TransformerUtils {
             // input stream. If it is '<', then we take our chances and pass it
             // down to XSLT.
             if ( firstByte == '<' &&  (status >= 200 && status <500)) {
-                doTransform(xsltParameters,
-                        new StreamSource(bis),
-                        new StreamResult(originalResponse.getWriter()));
+                long start = System.nanoTime();
+                ByteCountingWriter output = new ByteCountingWriter(targetResponse.getWriter());
+                boolean transformed = false;
+                ParallelEntryTransform parallel = parallelEntryTransform;
+                try {
+                    if ( parallel != null && (pipeline != null || streamingTransform == null) ) {
+                        String variant = null;
+                        if ( parallel.getCache() != null ) {
+                            variant = pipeline != null ? pipeline.getVariant() : getVariant(xsltParameters);
+                        }
+                        parallel.transform(bis,
+                                           output,
+                                           pipeline != null ? pipeline.getKey() : xsltPath,
+                                           variant,
+                                           newDocumentTransform(xsltParameters, pipeline),
+                                           metrics,
+                                           timing);
+                    } else if ( pipeline != null ) {
+                        pipeline.transform(new StreamSource(bis),
+                                           new StreamResult(output),
+                                           timing);
+                    } else if ( streamingTransform != null ) {
+                        streamingTransform.transform(bis, output, xsltParameters);
+                    } else {
+                        doTransform(xsltParameters,
+                                new StreamSource(bis),
+                                new StreamResult(output),
+                                timing);
+                    }
+                    transformed = true;
+                } finally {
+                    if ( filterMetrics != null ) {
+                        if ( transformed ) {
+                            filterMetrics.transformed(System.nanoTime() - start,
+                                                      input.getByteCount(), output.getByteCount());
+                        } else {
+                            filterMetrics.transformFailed();
+                        }
+                    }
+                }
             } else {
                 // the input is not XML
                 LOG.debug("Skipping transform cuz input stream starts with '" + firstByte + "', does not look to be XML or Response has status=" + wrappedResponse.getStatus());
-                IOUtils.copy(bis, originalResponse.getOutputStream());
+                IOUtils.copy(bis, targetResponse.getOutputStream());
+                if ( filterMetrics != null ) {
+                    filterMetrics.passedThrough();
+                }
             }
         } catch(TransformerException te) {
             throw new ServletException(te);
+        } finally {
+            // lets the filter chain thread stop writing if we bailed out early
+            IOUtils.closeQuietly(srp.getInputStream());
+        }
+    }
+
+    /**
+     * @param xsltParameters  the parameters to the xslt
+     * @param pipeline        the pipeline to run instead of our own stylesheet, or null
+     * @return what runs the stylesheets on the parts of a page
+     */
+    private ParallelEntryTransform.DocumentTransform newDocumentTransform(final Map<String, Object> xsltParameters,
+                                                                          final TransformPipeline pipeline) {
+        return new ParallelEntryTransform.DocumentTransform() {
+            @Override
+            public void transform(Source input, Result result, ServerTiming timing)
+                    throws IOException, TransformerException {
+                if ( pipeline != null ) {
+                    pipeline.transform(input, result, timing);
+                } else {
+                    doTransform(xsltParameters, input, result, timing);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a TransformerHandler for this stylesheet, with the given parameters set,
+     * so it can be chained after another stage of a TransformPipeline.
+     *
+     * @param xsltParameters  the parameters to the xslt
+     * @return a new TransformerHandler
+     * @throws TransformerException
+     */
+    TransformerHandler newTransformerHandler(Map<String, Object> xsltParameters) throws TransformerException {
+        try {
+            TransformerHandler handler = stylesheet.factory.createTransformerHandler();
+
+            if ( xsltParameters != null && !xsltParameters.isEmpty() ) {
+                for (String key: xsltParameters.keySet()) {
+                    handler.getTransformer().setParameter(key, xsltParameters.get(key));
+                }
+            }
+            return handler;
+        } catch (TransformerException e) {
+            LOG.error("Error creating transformer handler for xslt: " + xsltPath, e);
+            throw e;
         }
     }
 
@@ -180,10 +860,58 @@ public class TransformerUtils {
      */
     public void doTransform(Map<String, Object> xsltParameters, Source inputXml, Result result)
             throws IOException, TransformerException {
+        doTransform(xsltParameters, inputXml, result, null);
+    }
+
+    /**
+     * Transforms 'inputXml' like {@link #doTransform(Map, Source, Result)}, recording how
+     * long it waited for a transformer in the ServerTiming of the request.
+     *
+     * @param xsltParameters  the parameters to the xslt
+     * @param inputXml        the XML to be transformed
+     * @param result          the resulting transformed output
+     * @param timing          the ServerTiming of the request, or null if it isn't timed
+     * @throws IOException
+     * @throws TransformerException
+     */
+    public void doTransform(Map<String, Object> xsltParameters, Source inputXml, Result result, ServerTiming timing)
+            throws IOException, TransformerException {
 
+        CompiledStylesheet current = null;
         Transformer transformer = null;
+        TransformerPoolMetrics poolMetrics = metrics;
         try {
-            transformer = transformerPool.borrowObject();
+            long start = System.nanoTime();
+            while ( transformer == null ) {
+                current = stylesheet;
+                try {
+                    transformer = current.pool.borrowObject();
+                } catch (IllegalStateException e) {
+                    // the pool was closed by a reload after we picked it: use the new one
+                    if ( current == stylesheet ) {
+                        throw e;
+                    }
+                } catch (InterruptedException e) {
+                    // closing the pool interrupts the borrowers waiting on it: use the new one
+                    if ( current == stylesheet ) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                } catch (NoSuchElementException e) {
+                    // no transformer became available within poolMaxWaitMillis
+                    if ( poolMetrics != null ) {
+                        poolMetrics.borrowTimedOut();
+                    }
+                    throw e;
+                }
+            }
+            long waitNanos = System.nanoTime() - start;
+            if ( poolMetrics != null ) {
+                poolMetrics.borrowed(waitNanos);
+            }
+            if ( timing != null ) {
+                timing.poolWaited(getTimingName(), waitNanos);
+            }
 
             // set transformer parameters, if any
             if ( xsltParameters != null && !xsltParameters.isEmpty() ) {
@@ -199,7 +927,8 @@ public class TransformerUtils {
         } finally {
             try {
                 if (transformer != null) {
-                    transformerPool.returnObject(transformer);
+                    // to the pool it was borrowed from, even if it has been replaced since
+                    current.pool.returnObject(transformer);
                 }
             } catch (Exception e) {
                 LOG.error("!!! Error returning xslt transformation object back to the pool. This would cause slowness. !!!", e);
@@ -281,4 +1010,45 @@ public class TransformerUtils {
 
         return xsltStr;
     }
+
+    /**
+     * A compiled version of the stylesheet, and the pool of transformers created from it
+     */
+    static class CompiledStylesheet {
+
+        final XSLTTransformerPooledObjectFactory<Transformer> factory;
+        final GenericObjectPool<Transformer> pool;
+
+        CompiledStylesheet(String xsltAsString, String initialTemplate, String systemId,
+                           GenericObjectPoolConfig config, int prewarm) throws Exception {
+            this(new XSLTTransformerPooledObjectFactory<Transformer>(xsltAsString, initialTemplate, systemId),
+                 config, prewarm);
+        }
+
+        CompiledStylesheet(XSLTTransformerPooledObjectFactory<Transformer> factory,
+                           GenericObjectPoolConfig config, int prewarm) throws Exception {
+            this.factory = factory;
+            this.pool = new GenericObjectPool<Transformer>(factory, config);
+
+            // The object pool doesn't actually initialize the pool, so we do it manually.
+            // This also checks that transformers can be created from the stylesheet.
+            for( int i = 0; i < prewarm; i++ )
+                pool.addObject();
+            if ( prewarm == 0 ) {
+                factory.create();
+            }
+        }
+
+        /**
+         * Closes the pool: the transformers that are idle are thrown away, and the ones
+         * in use are thrown away when they are returned.
+         */
+        void close() {
+            try {
+                pool.close();
+            } catch (Exception e) {
+                LOG.warn("Error closing xslt transformer pool", e);
+            }
+        }
+    }
 }
@@ -8,14 +8,21 @@ import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamSource;
 import java.io.StringReader;
 
 /**
  * Object pool factory which pools instances of javax.xml.transform.Transformer
  *
+ * The stylesheet is compiled once into a Templates object when the factory is
+ * created. Every pooled Transformer, as well as every TransformerHandler handed
+ * out for a composite transform, is created from that one compiled stylesheet.
+ *
  * @param <Transformer>
  */
 public class XSLTTransformerPooledObjectFactory<Transformer> extends BasePooledObjectFactory<Transformer> {
@@ -26,29 +33,54 @@ public class XSLTTransformerPooledObjectFactory<Transformer> extends BasePooledO
     private final String xsltAsString;
     private String initialTemplate = null;
     private String systemId = null;
+    private final Templates templates;
 
-    public XSLTTransformerPooledObjectFactory(String xsltAsString, String initialTemplateP, String systemId ) {
+    public XSLTTransformerPooledObjectFactory(String xsltAsString, String initialTemplateP, String systemId )
+            throws TransformerConfigurationException {
         this.xsltAsString = xsltAsString;
         initialTemplate = initialTemplateP;
         this.systemId = systemId;
+        this.templates = compile();
     }
 
-    @Override
-    public Transformer create() throws IllegalArgumentException, TransformerConfigurationException, XPathException {
-        synchronized ( this ) {
+    private Templates compile() throws TransformerConfigurationException {
+        synchronized ( transformerFactory ) {
             StreamSource source;
             if (StringUtils.isNotBlank(systemId) ) {
                 source = new StreamSource(new StringReader(xsltAsString), systemId);
             } else {
                 source = new StreamSource(new StringReader(xsltAsString));
             }
-            Transformer transformer = (Transformer) transformerFactory.newTransformer(source);
+            return transformerFactory.newTemplates(source);
+        }
+    }
 
-            if( StringUtils.isNotBlank(initialTemplate) )
-                ((Controller)transformer).setInitialTemplate( initialTemplate );
+    @Override
+    public Transformer create() throws IllegalArgumentException, TransformerConfigurationException, XPathException {
+        Transformer transformer = (Transformer) templates.newTransformer();
 
-            return transformer;
-        }
+        if( StringUtils.isNotBlank(initialTemplate) )
+            ((Controller)transformer).setInitialTemplate( initialTemplate );
+
+        return transformer;
+    }
+
+    /**
+     * Creates a TransformerHandler for the compiled stylesheet. The handler receives
+     * its input as SAX events, which lets several stylesheets be chained together
+     * without serializing and re-parsing the document in between.
+     *
+     * @return a new TransformerHandler, which must not be shared across requests
+     * @throws TransformerConfigurationException
+     * @throws XPathException
+     */
+    public TransformerHandler createTransformerHandler() throws TransformerConfigurationException, XPathException {
+        TransformerHandler handler = ((SAXTransformerFactory) transformerFactory).newTransformerHandler(templates);
+
+        if( StringUtils.isNotBlank(initialTemplate) )
+            ((Controller)handler.getTransformer()).setInitialTemplate( initialTemplate );
+
+        return handler;
     }
 
     @Override
@@ -56,4 +88,4 @@ public class XSLTTransformerPooledObjectFactory<Transformer> extends BasePooledO
         return new DefaultPooledObject<Transformer>( transformer );
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,123 @@
+package com.rackspace.feeds.filter
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.Meter
+import com.yammer.metrics.core.MetricName
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+
+import javax.servlet.http.HttpServletRequest
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class AcceptNegotiatorTest extends Specification {
+
+    List<String> negotiated
+    AcceptNegotiator<String> negotiator
+
+    def setup() {
+        negotiated = []
+        negotiator = new AcceptNegotiator<String>("test", new AcceptNegotiator.Negotiation<String>() {
+            String negotiate(String accept) {
+                negotiated << accept
+                return accept == null ? "none" : accept.toUpperCase()
+            }
+        }, 2)
+    }
+
+    def cleanup() {
+        negotiator.remove()
+    }
+
+    static Object metric(String name) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(AcceptNegotiator, name, "test"))
+    }
+
+    static HttpServletRequest request(String accept) {
+        Map<String, Object> attributes = [:]
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getHeader("Accept")).thenReturn(accept)
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0])
+            }
+        })
+        doAnswer(new Answer<Void>() {
+            Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1])
+                return null
+            }
+        }).when(request).setAttribute(anyString(), any())
+        return request
+    }
+
+    def "should negotiate each Accept header once"() {
+
+        when:
+        def decisions = [ negotiator.negotiate("application/json"),
+                          negotiator.negotiate("application/json"),
+                          negotiator.negotiate("application/atom+xml"),
+                          negotiator.negotiate("application/json") ]
+
+        then:
+        decisions == [ "APPLICATION/JSON", "APPLICATION/JSON", "APPLICATION/ATOM+XML", "APPLICATION/JSON" ]
+        negotiated == [ null, "application/json", "application/atom+xml" ]
+        ((Meter) metric("hits")).count() == 2
+        ((Meter) metric("misses")).count() == 2
+        ((Gauge) metric("entries")).value() == 2
+        ((Gauge) metric("hit-ratio")).value() == 0.5d
+    }
+
+    def "should negotiate the requests without an Accept header once, without a lookup"() {
+
+        expect:
+        negotiator.negotiate((String) null) == "none"
+        negotiator.negotiate(request(null)) == "none"
+        negotiated == [ null ]
+        ((Meter) metric("misses")).count() == 0
+    }
+
+    def "should keep up to maxEntries Accept headers"() {
+
+        when:
+        negotiator.negotiate("a")
+        negotiator.negotiate("b")
+        negotiator.negotiate("c")
+
+        then:
+        negotiator.size() == 1
+        ((Meter) metric("evictions")).count() == 2
+    }
+
+    def "should look up the Accept header of a request once"() {
+
+        given:
+        HttpServletRequest request = request("application/json")
+
+        when:
+        negotiator.negotiate(request)
+        negotiator.negotiate(request)
+
+        then:
+        negotiator.negotiate(request) == "APPLICATION/JSON"
+        ((Meter) metric("misses")).count() == 1
+        ((Meter) metric("hits")).count() == 0
+    }
+
+    def "should look up the Accept header of a request again once it is changed"() {
+
+        given:
+        HttpServletRequest request = request("application/json")
+        negotiator.negotiate(request)
+
+        when:
+        when(request.getHeader("Accept")).thenReturn("application/atom+xml")
+
+        then:
+        negotiator.negotiate(request) == "APPLICATION/ATOM+XML"
+    }
+}
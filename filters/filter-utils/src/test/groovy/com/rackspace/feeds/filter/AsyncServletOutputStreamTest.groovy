@@ -0,0 +1,174 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+
+import javax.servlet.AsyncContext
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+
+class AsyncServletOutputStreamTest extends Specification {
+
+    /**
+     * A container output stream that is only ready when the test says so.
+     */
+    static class SlowClientOutputStream extends ServletOutputStream {
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream()
+        WriteListener listener
+        boolean ready = true
+
+        void write(int b) {
+            written.write(b)
+        }
+
+        void write(byte[] b, int off, int len) {
+            written.write(b, off, len)
+        }
+
+        boolean isReady() {
+            return ready
+        }
+
+        void setWriteListener(WriteListener writeListener) {
+            listener = writeListener
+        }
+
+        void becomeReady() {
+            ready = true
+            listener.onWritePossible()
+        }
+    }
+
+    def "should write everything and complete when closed"() {
+
+        given:
+        def asyncContext = Mock(AsyncContext)
+        def client = new SlowClientOutputStream()
+        def out = new AsyncServletOutputStream(asyncContext, client, 1024 * 1024)
+
+        when:
+        out.write("<feed>".getBytes("UTF-8"))
+        out.write((int) ('!' as char))
+        out.close()
+
+        then:
+        1 * asyncContext.complete()
+        new String(client.written.toByteArray(), "UTF-8") == "<feed>!"
+    }
+
+    def "should hold on to the output until the client is ready"() {
+
+        given:
+        def asyncContext = Mock(AsyncContext)
+        def client = new SlowClientOutputStream(ready: false)
+        def out = new AsyncServletOutputStream(asyncContext, client, 1024 * 1024)
+
+        when:
+        out.write("<feed/>".getBytes("UTF-8"))
+        out.close()
+
+        then:
+        0 * asyncContext.complete()
+        client.written.size() == 0
+
+        when:
+        client.becomeReady()
+
+        then:
+        1 * asyncContext.complete()
+        new String(client.written.toByteArray(), "UTF-8") == "<feed/>"
+    }
+
+    def "should block the writer while too much is pending"() {
+
+        given:
+        def asyncContext = Mock(AsyncContext)
+        def client = new SlowClientOutputStream(ready: false)
+        def out = new AsyncServletOutputStream(asyncContext, client, 10)
+        def input = new byte[3 * AsyncServletOutputStream.BUFFER_SIZE]
+        new Random(7).nextBytes(input)
+
+        when:
+        def writer = Thread.start {
+            out.write(input)
+            out.close()
+        }
+        writer.join(200)
+
+        then:
+        writer.isAlive()
+        !out.isReady()
+
+        when:
+        while ( writer.isAlive() ) {
+            client.becomeReady()
+            writer.join(50)
+        }
+        client.becomeReady()
+
+        then:
+        client.written.toByteArray() == input
+    }
+
+    def "should fail writes and complete once aborted"() {
+
+        given:
+        def asyncContext = Mock(AsyncContext)
+        def client = new SlowClientOutputStream(ready: false)
+        def out = new AsyncServletOutputStream(asyncContext, client, 1024 * 1024)
+
+        when:
+        out.write("<feed/>".getBytes("UTF-8"))
+        out.flush()
+        client.listener.onError(new IOException("client went away"))
+
+        then:
+        1 * asyncContext.complete()
+
+        when:
+        out.write("more".getBytes("UTF-8"))
+        out.flush()
+
+        then:
+        thrown(IOException)
+        client.written.size() == 0
+    }
+
+    def "ServletOutputStreamWrapper should leave the WriteListener to the container stream it wraps"() {
+
+        given:
+        def listener = Mock(WriteListener)
+        def client = new SlowClientOutputStream(ready: false)
+        def wrapper = new ServletOutputStreamWrapper(client)
+
+        when:
+        wrapper.setWriteListener(listener)
+
+        then:
+        0 * listener.onWritePossible()
+        client.listener.is(listener)
+        !wrapper.isReady()
+
+        when:
+        client.becomeReady()
+
+        then:
+        1 * listener.onWritePossible()
+        wrapper.isReady()
+    }
+
+    def "ServletOutputStreamWrapper should refuse a WriteListener when it wraps a plain stream"() {
+
+        given:
+        def listener = Mock(WriteListener)
+        def wrapper = new ServletOutputStreamWrapper(new ByteArrayOutputStream())
+
+        when:
+        wrapper.setWriteListener(listener)
+
+        then:
+        thrown(IllegalStateException)
+        0 * listener._
+        wrapper.isReady()
+    }
+}
@@ -0,0 +1,103 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.mockito.Matchers.anyInt
+import static org.mockito.Matchers.anyLong
+import static org.mockito.Matchers.anyString
+import static org.mockito.Matchers.eq
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.verify
+
+class BufferedResponseWrapperTest extends Specification {
+
+    static final String ENTRY = "<entry xmlns=\"http://www.w3.org/2005/Atom\"><title>\u00c9quipe \u65e5\u672c \ud83d\ude00</title></entry>"
+
+    def "should keep multibyte characters written with the writer"() {
+
+        given:
+        BufferedResponseWrapper wrapper = new BufferedResponseWrapper(mock(HttpServletResponse))
+
+        when:
+        wrapper.getWriter().write(ENTRY)
+
+        then:
+        wrapper.getBodyString() == ENTRY
+        wrapper.getBodySize() == ENTRY.getBytes("UTF-8").length
+        wrapper.getInputStream().bytes == ENTRY.getBytes("UTF-8")
+        wrapper.getWriter().is(wrapper.getWriter())
+    }
+
+    def "should not pass the Content-Length of the buffered body on to the response"() {
+
+        given:
+        HttpServletResponse response = mock(HttpServletResponse)
+        BufferedResponseWrapper wrapper = new BufferedResponseWrapper(response)
+
+        when:
+        wrapper.setContentLength(42)
+        wrapper.setContentLengthLong(42L)
+        wrapper.setHeader("Content-Length", "42")
+        wrapper.addHeader("content-length", "42")
+        wrapper.setIntHeader("Content-Length", 42)
+        wrapper.addIntHeader("CONTENT-LENGTH", 42)
+        wrapper.setHeader("Content-Type", "application/atom+xml")
+
+        then:
+        verify(response, never()).setContentLength(anyInt())
+        verify(response, never()).setContentLengthLong(anyLong())
+        verify(response, never()).setHeader(eq("Content-Length"), anyString())
+        verify(response, never()).addHeader(eq("content-length"), anyString())
+        verify(response, never()).setIntHeader(eq("Content-Length"), anyInt())
+        verify(response, never()).addIntHeader(eq("CONTENT-LENGTH"), anyInt())
+        verify(response).setHeader("Content-Type", "application/atom+xml")
+    }
+
+    def "should read back a body spanning many chunks"() {
+
+        given:
+        ByteChunkPool pool = new ByteChunkPool(16, 4)
+        ChunkedBuffer buffer = new ChunkedBuffer(pool)
+        byte[] body = (ENTRY * 10).getBytes("UTF-8")
+
+        when:
+        // written in pieces that don't line up with the chunks
+        body.toList().collate(7).each { buffer.write(it as byte[]) }
+        buffer.write(body, 0, 0)
+        ByteArrayOutputStream copy = new ByteArrayOutputStream()
+        buffer.writeTo(copy)
+
+        then:
+        buffer.size() == body.length
+        buffer.toInputStream().bytes == body
+        copy.toByteArray() == body
+        buffer.toString(BufferedResponseWrapper.UTF_8) == ENTRY * 10
+    }
+
+    def "should reuse the chunks once released"() {
+
+        given:
+        ByteChunkPool pool = new ByteChunkPool(16, 2)
+        ChunkedBuffer buffer = new ChunkedBuffer(pool)
+
+        when:
+        buffer.write(new byte[40])
+        buffer.release()
+
+        then:
+        buffer.size() == 0
+        buffer.toInputStream().read() == -1
+        // three chunks were used, only two are kept
+        pool.getPooled() == 2
+
+        when:
+        buffer.write("functest1".getBytes("UTF-8"))
+
+        then:
+        pool.getPooled() == 1
+        buffer.toString(BufferedResponseWrapper.UTF_8) == "functest1"
+    }
+}
@@ -0,0 +1,115 @@
+package com.rackspace.feeds.filter
+
+import org.apache.commons.io.IOUtils
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ChunkedPipeTest extends Specification {
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size]
+        new Random(size).nextBytes(bytes)
+        return bytes
+    }
+
+    @Unroll
+    def "should pipe #size bytes intact with chunkSize=#chunkSize and writes of #writeSize bytes"(int size, int chunkSize, int writeSize) {
+
+        given:
+        def pipe = new ChunkedPipe(chunkSize, 4)
+        def input = randomBytes(size)
+
+        when:
+        def writer = Thread.start {
+            def out = pipe.getOutputStream()
+            for ( int off = 0; off < input.length; off += writeSize ) {
+                if ( writeSize == 1 ) {
+                    out.write(input[off])
+                } else {
+                    out.write(input, off, Math.min(writeSize, input.length - off))
+                }
+            }
+            out.close()
+        }
+        byte[] output = IOUtils.toByteArray(pipe.getInputStream())
+        writer.join()
+
+        then:
+        assert output == input
+
+        where:
+        [size, chunkSize, writeSize] << [ [0, 16, 1],
+                                          [10, 16, 1],
+                                          [10 * 1024, 1024, 100],
+                                          [1024 * 1024, 32 * 1024, 8192],
+                                          [1024 * 1024 + 7, 1000, 33333] ]
+    }
+
+    def "flush should hand over a partial chunk to the reader"() {
+
+        given:
+        def pipe = new ChunkedPipe(1024, 4)
+
+        when:
+        pipe.getOutputStream().write("<".getBytes())
+        pipe.getOutputStream().flush()
+
+        then:
+        assert pipe.getInputStream().read() == (int) ('<' as char)
+    }
+
+    def "reader should get an IOException when the writer fails"() {
+
+        given:
+        def pipe = new ChunkedPipe(1024, 4)
+        def cause = new RuntimeException("boom")
+
+        when:
+        pipe.getOutputStream().write("<feed>".getBytes())
+        pipe.getOutputStream().flush()
+        pipe.getOutputStream().fail(cause)
+        IOUtils.toByteArray(pipe.getInputStream())
+
+        then:
+        IOException e = thrown()
+        assert e.getCause() == cause
+    }
+
+    def "writer should get an IOException when the reader is closed"() {
+
+        given:
+        def pipe = new ChunkedPipe(16, 1)
+        def failed = new CountDownLatch(1)
+        Throwable error = null
+
+        when:
+        Thread.start {
+            try {
+                while ( true ) {
+                    pipe.getOutputStream().write(new byte[64])
+                }
+            } catch ( IOException e ) {
+                error = e
+                failed.countDown()
+            }
+        }
+        pipe.getInputStream().read()
+        pipe.getInputStream().close()
+
+        then:
+        assert failed.await(5, TimeUnit.SECONDS)
+        assert error instanceof IOException
+    }
+
+    def "should throw IllegalArgumentException for invalid sizes"() {
+
+        when:
+        new ChunkedPipe(0, 1)
+
+        then:
+        thrown IllegalArgumentException
+    }
+}
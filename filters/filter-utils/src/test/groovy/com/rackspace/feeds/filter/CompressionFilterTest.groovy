@@ -0,0 +1,258 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import java.util.zip.GZIPInputStream
+import java.util.zip.InflaterInputStream
+
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class CompressionFilterTest extends Specification {
+
+    static final String ENTRY = "<entry xmlns=\"http://www.w3.org/2005/Atom\"><title>functest1</title></entry>"
+
+    CompressionFilter filter
+    String body
+    String contentType = "application/atom+xml"
+
+    def setup() {
+        filter = newFilter([:])
+        body = ENTRY * 100
+    }
+
+    static CompressionFilter newFilter(Map<String, String> params) {
+        FilterConfig config = mock(FilterConfig)
+        when(config.getInitParameter(anyString())).thenAnswer(new Answer<String>() {
+            String answer(InvocationOnMock invocation) {
+                return params.get(invocation.arguments[0])
+            }
+        })
+        CompressionFilter filter = new CompressionFilter()
+        filter.init(config)
+        return filter
+    }
+
+    FilterChain chain = new FilterChain() {
+        void doFilter(ServletRequest request, ServletResponse response) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response
+            httpResponse.setContentType(contentType)
+            httpResponse.setContentLength(body.length())
+            // written in pieces, as a transform would
+            body.toList().collate(100).each { httpResponse.getWriter().write(it.join()) }
+        }
+    }
+
+    static HttpServletRequest request(String acceptEncoding) {
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getHeader("Accept-Encoding")).thenReturn(acceptEncoding)
+        return request
+    }
+
+    static HttpServletResponse response(ByteArrayOutputStream output) {
+        HttpServletResponse response = mock(HttpServletResponse)
+        when(response.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output))
+        return response
+    }
+
+    @Unroll
+    def "should pick #expected for Accept-Encoding #acceptEncoding"(String acceptEncoding, String expected) {
+
+        expect:
+        CompressionFilter.negotiate(acceptEncoding) == expected
+
+        where:
+        acceptEncoding                 | expected
+        null                           | null
+        ""                             | null
+        "identity"                     | null
+        "gzip"                         | "gzip"
+        "deflate"                      | "deflate"
+        "gzip, deflate"                | "gzip"
+        "deflate, gzip"                | "gzip"
+        "gzip;q=0.5, deflate"          | "deflate"
+        "gzip;q=0, deflate;q=0"        | null
+        "*"                            | "gzip"
+        "br, *;q=0.1"                  | "gzip"
+        "GZIP"                         | "gzip"
+    }
+
+    def "should gzip a body bigger than minBytes"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("gzip, deflate"), response, chain)
+
+        then:
+        verify(response).setHeader("Content-Encoding", "gzip")
+        verify(response).addHeader("Vary", "Accept-Encoding")
+        verify(response, never()).setContentLength(anyInt())
+        verify(response, never()).setContentLengthLong(anyLong())
+        output.size() < body.length()
+        new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())).text == body
+    }
+
+    def "should deflate a body for a client accepting deflate only"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("deflate"), response, chain)
+
+        then:
+        verify(response).setHeader("Content-Encoding", "deflate")
+        new InflaterInputStream(new ByteArrayInputStream(output.toByteArray())).text == body
+    }
+
+    def "should free the compressor without finishing the body when the chain throws"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+        ServletResponse wrapper = null
+        FilterChain failing = new FilterChain() {
+            void doFilter(ServletRequest request, ServletResponse r) {
+                wrapper = r
+                r.setContentType(contentType)
+                r.getOutputStream().write(body.getBytes("UTF-8"))
+                throw new IOException("The upstream went away")
+            }
+        }
+
+        when:
+        filter.doFilter(request("gzip"), response, failing)
+
+        then:
+        IOException e = thrown()
+        e.message == "The upstream went away"
+        verify(response).setHeader("Content-Encoding", "gzip")
+
+        when: "the body is read, it has no end"
+        new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())).text
+
+        then:
+        thrown(EOFException)
+
+        when: "the body is written after the compressor is freed"
+        wrapper.getOutputStream().write(body.getBytes("UTF-8"))
+
+        then:
+        IOException finished = thrown()
+        finished.message == "The response has been finished"
+    }
+
+    def "should send a body smaller than minBytes as it is"() {
+
+        given:
+        body = ENTRY
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("gzip"), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == ENTRY
+        verify(response).setContentLengthLong(ENTRY.length())
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString())
+    }
+
+    def "should not compress a media type that doesn't compress"() {
+
+        given:
+        contentType = "image/png"
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("gzip"), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == body
+        verify(response).setContentLengthLong(body.length())
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString())
+    }
+
+    def "should not compress a response that is encoded already"() {
+
+        given:
+        byte[] gzipped = CompressionFilter.compress(body.getBytes("ISO-8859-1"), "gzip", 6)
+        FilterChain cached = new FilterChain() {
+            void doFilter(ServletRequest request, ServletResponse response) {
+                HttpServletResponse httpResponse = (HttpServletResponse) response
+                httpResponse.setContentType(contentType)
+                httpResponse.setHeader("Content-Encoding", "gzip")
+                httpResponse.setContentLength(gzipped.length)
+                httpResponse.getOutputStream().write(gzipped)
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("gzip"), response, cached)
+
+        then:
+        output.toByteArray() == gzipped
+        verify(response).setContentLengthLong(gzipped.length)
+        verify(response, never()).addHeader("Vary", "Accept-Encoding")
+    }
+
+    def "should not touch the response when the client doesn't accept compression"() {
+
+        given:
+        HttpServletRequest request = request(null)
+        HttpServletResponse response = mock(HttpServletResponse)
+        FilterChain chain = mock(FilterChain)
+
+        when:
+        filter.doFilter(request, response, chain)
+
+        then:
+        verify(chain, only()).doFilter(request, response)
+    }
+
+    def "should compress harder with a higher compressionLevel"() {
+
+        given:
+        body = (1..2000).collect { "<id>urn:uuid:${it * 7919 % 10007}</id>" }.join()
+        ByteArrayOutputStream fast = new ByteArrayOutputStream()
+        ByteArrayOutputStream best = new ByteArrayOutputStream()
+
+        when:
+        newFilter([compressionLevel: "1"]).doFilter(request("gzip"), response(fast), chain)
+        newFilter([compressionLevel: "9"]).doFilter(request("gzip"), response(best), chain)
+
+        then:
+        best.size() < fast.size()
+        new GZIPInputStream(new ByteArrayInputStream(best.toByteArray())).text == body
+    }
+
+    @Unroll
+    def "should reject the parameters #params"(Map<String, String> params) {
+
+        when:
+        newFilter(params)
+
+        then:
+        thrown(ServletException)
+
+        where:
+        params << [[compressionLevel: "0"], [compressionLevel: "10"], [minBytes: "-1"], [minBytes: "lots"]]
+    }
+}
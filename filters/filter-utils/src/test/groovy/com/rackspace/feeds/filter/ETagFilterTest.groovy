@@ -0,0 +1,234 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.ArgumentCaptor
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletOutputStream
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.eq
+import static org.mockito.Mockito.*
+
+class ETagFilterTest extends Specification {
+
+    static final String FEED = "<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>functest1</title></feed>"
+
+    ETagFilter filter
+    String body = FEED
+    int status = HttpServletResponse.SC_OK
+
+    def setup() {
+        filter = new ETagFilter()
+        filter.init(mock(FilterConfig))
+    }
+
+    FilterChain chain = new FilterChain() {
+        void doFilter(ServletRequest request, ServletResponse response) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response
+            httpResponse.setStatus(status)
+            httpResponse.setContentType("application/atom+xml")
+            httpResponse.setContentLength(body.length())
+            httpResponse.getWriter().write(body)
+            httpResponse.getWriter().flush()
+        }
+    }
+
+    static HttpServletRequest request(String method, String uri, String ifNoneMatch) {
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getMethod()).thenReturn(method)
+        when(request.getRequestURI()).thenReturn(uri)
+        when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch)
+        return request
+    }
+
+    static HttpServletResponse response(ByteArrayOutputStream output) {
+        HttpServletResponse response = mock(HttpServletResponse)
+        when(response.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output))
+        return response
+    }
+
+    String etagOf(HttpServletResponse response) {
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String)
+        verify(response).setHeader(eq("ETag"), etag.capture())
+        return etag.value
+    }
+
+    def "should set the ETag and Cache-Control of a page"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", null), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == FEED
+        etagOf(response) ==~ /"[0-9a-f]{32}"/
+        verify(response).setHeader("Cache-Control", "private, max-age=5")
+        verify(response).setContentLength(FEED.length())
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED)
+    }
+
+    def "should give the same page the same ETag, and a changed page another one"() {
+
+        given:
+        HttpServletResponse first = response(new ByteArrayOutputStream())
+        HttpServletResponse second = response(new ByteArrayOutputStream())
+        HttpServletResponse changed = response(new ByteArrayOutputStream())
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", null), first, chain)
+        filter.doFilter(request("GET", "/functest1/events", null), second, chain)
+        body = FEED.replace("functest1", "functest2")
+        filter.doFilter(request("GET", "/functest1/events", null), changed, chain)
+
+        then:
+        etagOf(first) == etagOf(second)
+        etagOf(first) != etagOf(changed)
+    }
+
+    @Unroll
+    def "should answer If-None-Match #ifNoneMatch with a 304"(String ifNoneMatch) {
+
+        given:
+        HttpServletResponse first = response(new ByteArrayOutputStream())
+        filter.doFilter(request("GET", "/functest1/events", null), first, chain)
+        String etag = etagOf(first)
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", ifNoneMatch.replace("ETAG", etag)), response, chain)
+
+        then:
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED)
+        verify(response).setHeader("ETag", etag)
+        verify(response, never()).setContentLength(anyInt())
+        output.size() == 0
+
+        where:
+        ifNoneMatch << ["ETAG", "W/ETAG", "\"abc\", ETAG", "*"]
+    }
+
+    def "should send the page when If-None-Match has another ETag"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", "\"0123456789abcdef0123456789abcdef\""), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == FEED
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED)
+    }
+
+    @Unroll
+    def "should set Cache-Control of #uri to #expected"(String uri, String query, String expected) {
+
+        given:
+        HttpServletRequest request = request("GET", uri, null)
+        if ( query ) {
+            when(request.getParameter("marker")).thenReturn("urn:uuid:1")
+            when(request.getParameter("direction")).thenReturn(query)
+        }
+
+        expect:
+        filter.getCacheControl(request) == expected
+
+        where:
+        uri                                                             | query      | expected
+        "/functest1/events"                                             | null       | "private, max-age=5"
+        "/functest1/events"                                             | "forward"  | "private, max-age=5"
+        "/functest1/events"                                             | "backward" | "private, max-age=3600"
+        "/functest1/events/entries/urn:uuid:676f3860-447c-40a3-8f61-9791819cc82f" | null | "private, max-age=86400"
+    }
+
+    def "should let a response that is not a 200 through without an ETag"() {
+
+        given:
+        status = HttpServletResponse.SC_NOT_FOUND
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", "*"), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == FEED
+        verify(response, never()).setHeader(eq("ETag"), anyString())
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED)
+    }
+
+    def "should let a body bigger than maxBytes through without an ETag"() {
+
+        given:
+        FilterConfig config = mock(FilterConfig)
+        when(config.getInitParameter("maxBytes")).thenReturn("16")
+        filter.init(config)
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("GET", "/functest1/events", null), response, chain)
+
+        then:
+        output.toString("ISO-8859-1") == FEED
+        verify(response).setContentLengthLong(FEED.length())
+        verify(response, never()).setHeader(eq("ETag"), anyString())
+    }
+
+    def "should let the body through and leave a WriteListener to the container"() {
+
+        given:
+        ServletOutputStream containerStream = mock(ServletOutputStream)
+        HttpServletResponse response = mock(HttpServletResponse)
+        when(response.getOutputStream()).thenReturn(containerStream)
+        ETagResponseWrapper wrapper = new ETagResponseWrapper(response, 1024)
+        WriteListener listener = mock(WriteListener)
+
+        when:
+        wrapper.getOutputStream().write(FEED.getBytes("ISO-8859-1"))
+        wrapper.getOutputStream().setWriteListener(listener)
+
+        then:
+        !wrapper.isBuffering()
+        verify(containerStream).write(any(byte[]), eq(0), eq(FEED.length()))
+        verify(containerStream).setWriteListener(listener)
+        verifyZeroInteractions(listener)
+
+        when:
+        when(containerStream.isReady()).thenReturn(false)
+
+        then:
+        !wrapper.getOutputStream().isReady()
+
+        cleanup:
+        wrapper.release()
+    }
+
+    def "should not touch a POST"() {
+
+        given:
+        HttpServletRequest request = request("POST", "/functest1/events", null)
+        HttpServletResponse response = mock(HttpServletResponse)
+        FilterChain chain = mock(FilterChain)
+
+        when:
+        filter.doFilter(request, response, chain)
+
+        then:
+        verify(chain, only()).doFilter(request, response)
+    }
+}
@@ -0,0 +1,97 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+
+class EntryFragmentCacheTest extends Specification {
+
+    static long sizeOf(String key, String output) {
+        return 2L * (key.length() + output.length()) + EntryFragmentCache.ENTRY_OVERHEAD
+    }
+
+    def "should find an entry under its variant and id, for the same input"() {
+
+        given:
+        def cache = new EntryFragmentCache(1024)
+        def key = EntryFragmentCache.getKey("private.xsl#0", "urn:uuid:1")
+        cache.put(key, "<entry>1</entry>", "<entry/>")
+
+        expect:
+        cache.get(key, "<entry>1</entry>") == "<entry/>"
+        cache.get(key, "<entry>2</entry>") == null
+        cache.get(EntryFragmentCache.getKey("private.xsl#1", "urn:uuid:1"), "<entry>1</entry>") == null
+        cache.getHits() == 1
+        cache.getMisses() == 2
+        cache.getBytes() == sizeOf(key, "<entry/>")
+    }
+
+    def "should not find an entry for another input with the same hash"() {
+
+        given:
+        def cache = new EntryFragmentCache(1024)
+        def key = EntryFragmentCache.getKey("private.xsl#0", "urn:uuid:1")
+        // "Aa" and "BB" have the same String.hashCode() and length
+        cache.put(key, "<entry>Aa</entry>", "<entry/>")
+
+        expect:
+        "<entry>Aa</entry>".hashCode() == "<entry>BB</entry>".hashCode()
+        cache.get(key, "<entry>BB</entry>") == null
+        cache.get(key, "<entry>Aa</entry>") == "<entry/>"
+    }
+
+    def "should keep a single entry apart from the entries of the pages"() {
+
+        expect:
+        EntryFragmentCache.getDocumentKey("private.xsl#0", "urn:uuid:1") !=
+                EntryFragmentCache.getKey("private.xsl#0", "urn:uuid:1")
+    }
+
+    def "should drop the least recently used entries to make room"() {
+
+        given:
+        def output = "<entry>" + ("x" * 100) + "</entry>"
+        def cache = new EntryFragmentCache(3 * sizeOf("v\nurn:uuid:1", output))
+
+        when:
+        (1..3).each { cache.put("v\nurn:uuid:" + it, "in", output) }
+        cache.get("v\nurn:uuid:1", "in")
+        cache.put("v\nurn:uuid:4", "in", output)
+
+        then:
+        cache.size() == 3
+        cache.getEvictions() == 1
+        cache.get("v\nurn:uuid:2", "in") == null
+        cache.get("v\nurn:uuid:1", "in") == output
+        cache.getBytes() <= 3 * sizeOf("v\nurn:uuid:1", output)
+    }
+
+    def "should split a large cache into segments that hold its bytes together"() {
+
+        given:
+        def cache = new EntryFragmentCache(EntryFragmentCache.MIN_SEGMENT_BYTES * EntryFragmentCache.MAX_SEGMENTS * 4)
+        def output = "<entry>" + ("x" * 1000) + "</entry>"
+
+        when:
+        (1..10000).each { cache.put("v\nurn:uuid:" + it, "in", output) }
+
+        then:
+        cache.getEvictions() > 0
+        cache.getBytes() <= cache.getMaxBytes()
+        cache.getBytes() > cache.getMaxBytes() * 0.9
+        cache.get("v\nurn:uuid:10000", "in") == output
+        cache.get("v\nurn:uuid:1", "in") == null
+        cache.size() + cache.getEvictions() == 10000
+    }
+
+    def "should not cache an entry bigger than the cache"() {
+
+        given:
+        def cache = new EntryFragmentCache(100)
+
+        when:
+        cache.put("v\nurn:uuid:1", "in", "x" * 100)
+
+        then:
+        cache.size() == 0
+        cache.getBytes() == 0
+    }
+}
@@ -0,0 +1,169 @@
+package com.rackspace.feeds.filter
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Counter
+import com.yammer.metrics.core.Histogram
+import com.yammer.metrics.core.MetricName
+import com.yammer.metrics.core.Timer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterChain
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+
+import static org.mockito.Mockito.doThrow
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.times
+import static org.mockito.Mockito.verify
+
+class FilterMetricsTest extends Specification {
+
+    static def metric(String name, String scope) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(XsltFilterStandIn, name, scope))
+    }
+
+    def "should time the requests and the rest of the chain under the name of the filter"() {
+
+        given:
+        FilterMetrics metrics = new FilterMetrics(XsltFilterStandIn, "TimedFilter")
+        FilterChain chain = mock(FilterChain)
+        ServletRequest request = mock(ServletRequest)
+        ServletResponse response = mock(ServletResponse)
+
+        when:
+        long start = System.nanoTime()
+        metrics.timeChain(chain).doFilter(request, response)
+        metrics.filtered(request, start)
+        metrics.passThrough(request, response, chain)
+
+        then:
+        verify(chain, times(2)).doFilter(request, response)
+        ((Timer) metric("requests", "TimedFilter")).count() == 1
+        ((Timer) metric("chain", "TimedFilter")).count() == 2
+        ((Counter) metric("passed-through", "TimedFilter")).count() == 1
+
+        cleanup:
+        metrics.remove()
+    }
+
+    def "should time the chain when it fails"() {
+
+        given:
+        FilterMetrics metrics = new FilterMetrics(XsltFilterStandIn, "FailingFilter")
+        FilterChain chain = mock(FilterChain)
+        ServletRequest request = mock(ServletRequest)
+        ServletResponse response = mock(ServletResponse)
+        doThrow(new ServletException("upstream")).when(chain).doFilter(request, response)
+
+        when:
+        metrics.timeChain(chain).doFilter(request, response)
+
+        then:
+        thrown ServletException
+        ((Timer) metric("chain", "FailingFilter")).count() == 1
+
+        cleanup:
+        metrics.remove()
+    }
+
+    def "should record the transforms and their sizes"() {
+
+        given:
+        FilterMetrics metrics = new FilterMetrics(XsltFilterStandIn, "TransformingFilter")
+
+        when:
+        metrics.transformed(1000000, 300, 100)
+        metrics.transformed(3000000, 500, 300)
+        metrics.composed()
+        metrics.transformFailed()
+
+        then:
+        ((Counter) metric("transformed", "TransformingFilter")).count() == 2
+        ((Timer) metric("transforms", "TransformingFilter")).count() == 2
+        ((Timer) metric("transforms", "TransformingFilter")).max() == 3.0d
+        ((Histogram) metric("input-bytes", "TransformingFilter")).mean() == 400.0d
+        ((Histogram) metric("output-bytes", "TransformingFilter")).max() == 300.0d
+        ((Counter) metric("composed", "TransformingFilter")).count() == 1
+        ((Counter) metric("transform-errors", "TransformingFilter")).count() == 1
+
+        when:
+        metrics.remove()
+
+        then:
+        metric("transformed", "TransformingFilter") == null
+        metric("input-bytes", "TransformingFilter") == null
+    }
+
+    def "should use the name of the class when the filter has no name"() {
+
+        when:
+        FilterMetrics metrics = new FilterMetrics(XsltFilterStandIn, null)
+
+        then:
+        metrics.getScope() == "XsltFilterStandIn"
+        metric("requests", "XsltFilterStandIn") != null
+
+        cleanup:
+        metrics.remove()
+    }
+
+    def "should start over when a filter of the same name is initialized again"() {
+
+        given:
+        FilterMetrics first = new FilterMetrics(XsltFilterStandIn, "ReloadedFilter")
+        first.passedThrough()
+
+        when:
+        FilterMetrics second = new FilterMetrics(XsltFilterStandIn, "ReloadedFilter")
+
+        then:
+        ((Counter) metric("passed-through", "ReloadedFilter")).count() == 0
+
+        cleanup:
+        second.remove()
+    }
+
+    @Unroll
+    def "should count the UTF-8 bytes of #text"(String text) {
+
+        given:
+        StringWriter out = new StringWriter()
+        ByteCountingWriter writer = new ByteCountingWriter(out)
+
+        when:
+        writer.write(text)
+        writer.write(text.toCharArray(), 0, text.length())
+        if ( text.length() > 0 ) {
+            writer.write((int) text.charAt(0))
+        }
+
+        then:
+        out.toString().startsWith(text + text)
+        writer.getByteCount() == 2 * text.getBytes("UTF-8").length +
+                                 (text.length() > 0 ? String.valueOf(text.charAt(0)).getBytes("UTF-8").length : 0)
+
+        where:
+        text << ["", "<feed/>", "\u00e9dition", "\u20ac 5", "caf\u00e9 \u4e2d\u6587"]
+    }
+
+    def "should count a surrogate pair as the 4 bytes of its code point"() {
+
+        given:
+        String text = "\ud83d\ude00"
+        ByteCountingWriter writer = new ByteCountingWriter(new StringWriter())
+
+        when:
+        writer.write(text)
+
+        then:
+        writer.getByteCount() == text.getBytes("UTF-8").length
+    }
+
+    /**
+     * Stands in for the class of a filter, which names the metrics
+     */
+    static class XsltFilterStandIn {
+    }
+}
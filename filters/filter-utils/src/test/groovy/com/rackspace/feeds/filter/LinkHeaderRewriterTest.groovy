@@ -0,0 +1,137 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class LinkHeaderRewriterTest extends Specification {
+
+    // what ExternalHrefFilter.URLFixerResponse used to find the scheme and host with
+    static final Pattern HOSTNAME_PATTERN = Pattern.compile("(.*)(http)(s?)(://[^/]+)/(.*)")
+
+    static final String EXTERNAL_URL = "https://feeds.example.com"
+
+    /**
+     * Appends its name to the URIs it rewrites
+     */
+    static LinkHeaderRewriter.UriRewrite suffix(final String name) {
+        return new LinkHeaderRewriter.UriRewrite() {
+            String rewrite(String uri) {
+                return uri + "+" + name
+            }
+        }
+    }
+
+    static HttpServletRequest request() {
+        Map<String, Object> attributes = [:]
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0])
+            }
+        })
+        doAnswer(new Answer<Void>() {
+            Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1])
+                return null
+            }
+        }).when(request).setAttribute(anyString(), any())
+        return request
+    }
+
+    @Unroll
+    def "should rewrite the URIs of the link-values of '#value' only"(String value, String rewritten) {
+
+        given:
+        LinkHeaderRewriter rewriter = new LinkHeaderRewriter().add(suffix("a"), false)
+
+        expect:
+        rewriter.rewriteHeader("Link", value) == rewritten
+
+        where:
+        value                                              | rewritten
+        '<http://a/1>; rel="next"'                         | '<http://a/1+a>; rel="next"'
+        '<http://a/1>; rel="next", <http://a/2>; rel=last' | '<http://a/1+a>; rel="next", <http://a/2+a>; rel=last'
+        '<http://a/1?b=1,2>; rel="next" '                  | '<http://a/1?b=1,2+a>; rel="next" '
+        '<http://a/1>; title="x, <y>", <http://a/2>'       | '<http://a/1+a>; title="x, <y>", <http://a/2+a>'
+        '<http://a/1>; title="x\\", y"'                    | '<http://a/1+a>; title="x\\", y"'
+        'http://a/1, <http://a/2>'                         | 'http://a/1+a, <http://a/2+a>'
+        '<http://a/1'                                      | '<http://a/1+a'
+        '<>'                                               | '<+a>'
+    }
+
+    def "should run the rewrites innermost first, and only the Location ones on Location"() {
+
+        given:
+        LinkHeaderRewriter rewriter = new LinkHeaderRewriter().add(suffix("outer"), true).add(suffix("inner"), false)
+
+        expect:
+        rewriter.rewriteHeader("link", "<http://a/1>") == "<http://a/1+inner+outer>"
+        rewriter.rewriteHeader("Location", "http://a/1") == "http://a/1+outer"
+        rewriter.rewriteHeader("Content-Type", "http://a/1") == "http://a/1"
+        rewriter.rewriteHeader("Link", "") == ""
+    }
+
+    def "should let the outermost filter rewrite the headers for the filters after it"() {
+
+        given:
+        HttpServletRequest request = request()
+        HttpServletResponse response = mock(HttpServletResponse)
+
+        when:
+        LinkHeaderRewriter outer = LinkHeaderRewriter.register(request, suffix("outer"), true)
+        LinkHeaderRewriter inner = LinkHeaderRewriter.register(request, suffix("inner"), false)
+        LinkRewritingResponseWrapper outerResponse = new LinkRewritingResponseWrapper(response, outer)
+        LinkRewritingResponseWrapper innerResponse = new LinkRewritingResponseWrapper(outerResponse, inner)
+        innerResponse.setHeader("Link", "<http://a/1>")
+        innerResponse.addHeader("Location", "http://a/1")
+
+        then:
+        outer != null
+        inner == null
+        LinkHeaderRewriter.getRewriter(request).is(outer)
+        verify(response).setHeader("Link", "<http://a/1+inner+outer>")
+        verify(response).addHeader("Location", "http://a/1+outer")
+    }
+
+    @Unroll
+    def "should replace the scheme and host of #uri as HOSTNAME_PATTERN does"(String uri) {
+
+        given:
+        Matcher matcher = HOSTNAME_PATTERN.matcher(uri)
+
+        expect:
+        new LinkHeaderRewriter.HostRewrite(EXTERNAL_URL).rewrite(uri) ==
+                (matcher.matches() ? matcher.replaceFirst('$1' + EXTERNAL_URL + '/$5') : uri)
+
+        where:
+        uri << [ "https://myfeed-internal.myserver.com/myworkspace/5914283/?limit=25&amp;search=&amp;direction=backward",
+                 "http://myfeed-internal.myserver.com:9090/myworkspace/5914283/events/entries/urn:uuid:e53d007a",
+                 "https://myfeed-internal.myserver.com",
+                 "https:///events",
+                 "/myworkspace/events",
+                 "http://a.com/redirect?to=https://b.com/events",
+                 "http://a.com/redirect?to=https://b.com",
+                 "httpss://a.com/events",
+                 "http:/a.com/events",
+                 "xhttp://a.com/events",
+                 "" ]
+    }
+
+    def "should use the external URL as it is"() {
+
+        expect:
+        new LinkHeaderRewriter.HostRewrite('https://$1.example.com').rewrite("http://a.com/events") ==
+                'https://$1.example.com/events'
+    }
+}
@@ -0,0 +1,299 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.xml.transform.Result
+import javax.xml.transform.Source
+import javax.xml.transform.TransformerException
+import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+
+class ParallelEntryTransformTest extends Specification {
+
+    static String page(int entries) {
+        StringBuilder page = new StringBuilder('<?xml version="1.0" encoding="UTF-8"?>\n' +
+                '<feed xmlns="http://www.w3.org/2005/Atom" xmlns:x="urn:x">\n' +
+                '  <title>events &amp; more</title><link rel="next" href="http://localhost/next"/>\n')
+        entries.times { i ->
+            page.append("  <entry><id>urn:uuid:${i}</id><content type=\"xml\"><x:Person><Name xmlns=\"\">juggernaut ${i}</Name>" +
+                        "</x:Person><e xmlns=\"urn:e\" a=\"&quot;\"/></content><!-- ${i} --></entry>\n")
+        }
+        page.append('  <link rel="last" href="http://localhost/last"/>\n</feed>\n')
+        return page.toString()
+    }
+
+    static ParallelEntryTransform.DocumentTransform documentTransform(TransformerUtils utils) {
+        return new ParallelEntryTransform.DocumentTransform() {
+            void transform(Source input, Result result, ServerTiming timing) throws TransformerException {
+                utils.doTransform(Collections.EMPTY_MAP, input, result)
+            }
+        }
+    }
+
+    static String serial(TransformerUtils utils, String page) {
+        def writer = new StringWriter()
+        utils.doTransform(Collections.EMPTY_MAP, new StreamSource(new StringReader(page)), new StreamResult(writer))
+        return writer.toString()
+    }
+
+    static String parallel(ParallelEntryTransform transform, TransformerUtils utils, String key, String page,
+                           String variant = null) {
+        def writer = new StringWriter()
+        transform.transform(new ByteArrayInputStream(page.getBytes("UTF-8")), writer, key, variant,
+                documentTransform(utils), null, null)
+        return writer.toString()
+    }
+
+    @Unroll
+    def "should write the same page entry by entry as in one transform (#entries entries)"(int entries) {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def transform = new ParallelEntryTransform(3)
+
+        expect:
+        parallel(transform, utils, "upper-name", page(entries)) == serial(utils, page(entries))
+        transform.isSupported("upper-name")
+
+        where:
+        entries << [0, 2, 3, 100]
+    }
+
+    def "should fall back to one transform when the output can't be put back together"() {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/test.xsl")
+        def transform = new ParallelEntryTransform(3)
+        def page = page(10)
+
+        expect:
+        parallel(transform, utils, "test", page) == serial(utils, page)
+        !transform.isSupported("test")
+        parallel(transform, utils, "test", page) == serial(utils, page)
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+
+        int count = 0
+
+        CountingInputStream(InputStream input) {
+            super(input)
+        }
+
+        int read() {
+            int read = super.read()
+            if ( read >= 0 ) {
+                count++
+            }
+            return read
+        }
+
+        int read(byte[] bytes, int offset, int length) {
+            int read = super.read(bytes, offset, length)
+            if ( read > 0 ) {
+                count += read
+            }
+            return read
+        }
+    }
+
+    def "should hand a page too big to keep to the stylesheet as it comes"() {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def transform = new ParallelEntryTransform(3)
+        def page = page(2).replace("<!-- 0 -->", "<!-- ${'x' * (ParallelEntryTransform.MIN_PEEK_BYTES * 2)} -->")
+        def input = new CountingInputStream(new ByteArrayInputStream(page.getBytes("UTF-8")))
+        def readBeforeTransform = []
+        def documentTransform = new ParallelEntryTransform.DocumentTransform() {
+            void transform(Source source, Result result, ServerTiming timing) throws TransformerException {
+                readBeforeTransform << input.count
+                utils.doTransform(Collections.EMPTY_MAP, source, result)
+            }
+        }
+        def writer = new StringWriter()
+
+        when:
+        transform.transform(input, writer, "upper-name", null, documentTransform, null, null)
+
+        then:
+        writer.toString() == serial(utils, page)
+        readBeforeTransform.size() == 1
+        readBeforeTransform[0] < page.length() / 2
+    }
+
+    def "should fall back to the bytes of the page as they came"() {
+
+        given:
+        def transform = new ParallelEntryTransform(3)
+        // declarations, whitespace and quotes that a copy of the page would write differently
+        def page = page(10).replace('<feed ', "<feed  xmlns:unused='urn:unused' ")
+        // the entries are transformed on the threads of the pool
+        def inputs = Collections.synchronizedList([])
+        def documentTransform = new ParallelEntryTransform.DocumentTransform() {
+            void transform(Source source, Result result, ServerTiming timing) throws TransformerException {
+                def stream = ((StreamSource) source)
+                inputs << (stream.inputStream != null ? stream.inputStream.getText("UTF-8") : stream.reader.text)
+                // no placeholders: can't be put back together
+                ((StreamResult) result).writer.write("text")
+            }
+        }
+        def writer = new StringWriter()
+
+        when:
+        transform.transform(new ByteArrayInputStream(page.getBytes("UTF-8")), writer, "text", null,
+                documentTransform, null, null)
+
+        then:
+        writer.toString() == "text"
+        !transform.isSupported("text")
+        inputs.count { it == page } == 1
+    }
+
+    def "should only transform the entries that aren't in the cache"() {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def cache = new EntryFragmentCache(1024 * 1024)
+        def transform = new ParallelEntryTransform(1, cache)
+        def page = page(20)
+
+        when:
+        def first = parallel(transform, utils, "upper-name", page, "upper-name#0")
+
+        then:
+        first == serial(utils, page)
+        cache.size() == 20
+        cache.getMisses() == 20
+        cache.getHits() == 0
+
+        when:
+        def second = parallel(transform, utils, "upper-name", page, "upper-name#0")
+
+        then:
+        second == first
+        cache.getHits() == 20
+
+        when:
+        parallel(transform, utils, "upper-name", page, "upper-name#1")
+
+        then:
+        cache.size() == 40
+        cache.getHits() == 20
+    }
+
+    def "should transform the entries that aren't cached on the calling thread when not parallel"() {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def cache = new EntryFragmentCache(1024 * 1024)
+        def transform = new ParallelEntryTransform(10, cache, false)
+        def threads = Collections.synchronizedSet(new HashSet())
+        def documentTransform = new ParallelEntryTransform.DocumentTransform() {
+            void transform(Source source, Result result, ServerTiming timing) throws TransformerException {
+                threads << Thread.currentThread()
+                utils.doTransform(Collections.EMPTY_MAP, source, result)
+            }
+        }
+        def transformPage = { String page ->
+            def writer = new StringWriter()
+            transform.transform(new ByteArrayInputStream(page.getBytes("UTF-8")), writer, "upper-name",
+                    "upper-name#0", documentTransform, null, null)
+            return writer.toString()
+        }
+
+        when: "a page below the threshold"
+        def small = transformPage(page(9))
+
+        then: "is transformed as a whole, without the cache"
+        small == serial(utils, page(9))
+        cache.getMisses() == 0
+        cache.size() == 0
+
+        when:
+        def first = transformPage(page(20))
+        def second = transformPage(page(20))
+
+        then:
+        first == serial(utils, page(20))
+        second == first
+        cache.getMisses() == 20
+        cache.getHits() == 20
+        threads == [Thread.currentThread()] as Set
+    }
+
+    def "should cache a single entry as a whole, apart from the entries of the pages"() {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def cache = new EntryFragmentCache(1024 * 1024)
+        def transform = new ParallelEntryTransform(1, cache)
+        def entry = '<?xml version="1.0" encoding="UTF-8"?>\n' +
+                    '<entry xmlns="http://www.w3.org/2005/Atom" xmlns:x="urn:x"><id>urn:uuid:0</id>' +
+                    '<content type="xml"><x:Person><Name xmlns="">juggernaut</Name></x:Person></content></entry>\n'
+        def other = entry.replace("juggernaut", "juggernaut 2")
+
+        when:
+        def first = parallel(transform, utils, "upper-name", entry, "upper-name#0")
+        def second = parallel(transform, utils, "upper-name", entry, "upper-name#0")
+
+        then:
+        first == serial(utils, entry)
+        second == first
+        cache.size() == 1
+        cache.getHits() == 1
+
+        when:
+        parallel(transform, utils, "upper-name", page(1), "upper-name#0")
+
+        then:
+        // urn:uuid:0 of the page is not the document cached under it
+        cache.size() == 2
+        cache.getHits() == 1
+
+        when:
+        // the same id, with other content
+        def changed = parallel(transform, utils, "upper-name", other, "upper-name#0")
+
+        then:
+        changed == serial(utils, other)
+        cache.getHits() == 1
+    }
+
+    @Unroll
+    def "should throw TransformerException on an invalid page with #entries entries"(int entries) {
+
+        given:
+        def utils = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def page = page(entries)
+
+        when:
+        parallel(new ParallelEntryTransform(3), utils, "upper-name", page.substring(0, page.length() - 20))
+
+        then:
+        thrown TransformerException
+
+        where:
+        entries << [1, 10]
+    }
+
+    def "should remove the namespaces already in scope from a transformed entry"() {
+
+        expect:
+        ParallelEntryTransform.removeNamespacesInScope(
+                '<entry xmlns="http://www.w3.org/2005/Atom" xmlns:x="urn:x" xmlns:y="urn:y"><x:a/></entry>',
+                [ "": "http://www.w3.org/2005/Atom", "x": "urn:x" ]) ==
+                '<entry xmlns:y="urn:y"><x:a/></entry>'
+        ParallelEntryTransform.removeXmlDeclaration('<?xml version="1.0" encoding="UTF-8"?><entry/>') == '<entry/>'
+    }
+
+    def "should refuse a threshold below 1"() {
+
+        when:
+        new ParallelEntryTransform(0)
+
+        then:
+        thrown IllegalArgumentException
+    }
+}
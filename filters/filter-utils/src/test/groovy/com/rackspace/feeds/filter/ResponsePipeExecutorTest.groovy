@@ -0,0 +1,125 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+class ResponsePipeExecutorTest extends Specification {
+
+    def "should run tasks and count them as active while they run"() {
+
+        given:
+        def executor = ResponsePipeExecutor.createPlatform(2, ResponsePipeExecutor.POLICY_ABORT, 0)
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        when:
+        executor.execute({ started.countDown(); release.await() } as Runnable)
+        started.await(5, TimeUnit.SECONDS)
+
+        then:
+        assert executor.getActiveCount() == 1
+        assert executor.getType() == ResponsePipeExecutor.TYPE_PLATFORM
+
+        cleanup:
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def "abort policy should reject and count tasks when all threads are busy"() {
+
+        given:
+        def executor = ResponsePipeExecutor.createPlatform(1, ResponsePipeExecutor.POLICY_ABORT, 0)
+        def release = new CountDownLatch(1)
+        executor.execute({ release.await() } as Runnable)
+
+        when:
+        executor.execute({ } as Runnable)
+
+        then:
+        thrown RejectedExecutionException
+        assert executor.getRejectedCount() == 1
+
+        cleanup:
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def "callers the block policy holds should be counted as waiting"() {
+
+        given:
+        def executor = ResponsePipeExecutor.createPlatform(1, ResponsePipeExecutor.POLICY_BLOCK, 5000)
+        def release = new CountDownLatch(1)
+        def ran = new CountDownLatch(1)
+        executor.execute({ release.await() } as Runnable)
+
+        when:
+        Thread caller = Thread.start { executor.execute({ ran.countDown() } as Runnable) }
+        long deadline = System.currentTimeMillis() + 5000
+        while ( executor.getQueuedCount() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10)
+        }
+
+        then:
+        assert executor.getQueuedCount() == 1
+        assert executor.getMaxThreads() == 1
+
+        when:
+        release.countDown()
+        caller.join(5000)
+
+        then:
+        assert ran.await(5, TimeUnit.SECONDS)
+        assert executor.getQueuedCount() == 0
+        assert executor.getRejectedCount() == 0
+
+        cleanup:
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def "should publish its metrics"() {
+
+        given:
+        ResponsePipeExecutor.publishMetrics()
+
+        expect:
+        ["active", "waiting", "rejected", "completed", "max-threads"].every {
+            com.yammer.metrics.Metrics.defaultRegistry().allMetrics().containsKey(
+                    new com.yammer.metrics.core.MetricName(ResponsePipeExecutor, it))
+        }
+
+        cleanup:
+        ResponsePipeExecutor.removeMetrics()
+    }
+
+    def "block policy should reject after the timeout"() {
+
+        given:
+        def executor = ResponsePipeExecutor.createPlatform(1, ResponsePipeExecutor.POLICY_BLOCK, 50)
+        def release = new CountDownLatch(1)
+        executor.execute({ release.await() } as Runnable)
+
+        when:
+        executor.execute({ } as Runnable)
+
+        then:
+        thrown RejectedExecutionException
+        assert executor.getRejectedCount() == 1
+
+        cleanup:
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def "should throw IllegalArgumentException for unknown saturation policy"() {
+
+        when:
+        ResponsePipeExecutor.createPlatform(1, "whatever", 0)
+
+        then:
+        thrown IllegalArgumentException
+    }
+}
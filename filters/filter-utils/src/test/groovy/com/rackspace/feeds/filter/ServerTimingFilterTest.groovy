@@ -0,0 +1,199 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.ArgumentCaptor
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class ServerTimingFilterTest extends Specification {
+
+    static final String DURATION = /;dur=\d+\.\d/
+
+    ServerTimingFilter filter
+    FilterMetrics metrics
+
+    def setup() {
+        filter = new ServerTimingFilter()
+        filter.init(filterConfig([:]))
+        metrics = new FilterMetrics(Xml2JsonStandIn, "Xml2JsonFilter")
+    }
+
+    def cleanup() {
+        metrics.remove()
+    }
+
+    static FilterConfig filterConfig(Map<String, String> params) {
+        FilterConfig config = mock(FilterConfig)
+        when(config.getInitParameter(anyString())).thenAnswer(new Answer<String>() {
+            String answer(InvocationOnMock invocation) {
+                return params.get(invocation.getArguments()[0])
+            }
+        })
+        return config
+    }
+
+    static HttpServletRequest request(String timingHeader, String roles) {
+        Map<String, Object> attributes = [:]
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getRequestURI()).thenReturn("/functest1/events")
+        when(request.getHeader("x-server-timing")).thenReturn(timingHeader)
+        when(request.getHeaders("x-roles")).thenReturn(roles == null ? null : Collections.enumeration([roles]))
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0])
+            }
+        })
+        doAnswer(new Answer<Void>() {
+            Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1])
+                return null
+            }
+        }).when(request).setAttribute(anyString(), any())
+        return request
+    }
+
+    static HttpServletResponse response(ByteArrayOutputStream output) {
+        HttpServletResponse response = mock(HttpServletResponse)
+        when(response.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output))
+        return response
+    }
+
+    /**
+     * Stands in for a filter with FilterMetrics in front of Atom Hopper, which writes
+     * the body once the transform waited for its pool
+     */
+    FilterChain filterChain(boolean writeBody) {
+        return new FilterChain() {
+            void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                long start = System.nanoTime()
+                metrics.timeChain(new FilterChain() {
+                    void doFilter(ServletRequest upstreamRequest, ServletResponse upstreamResponse) {
+                        Thread.sleep(5)
+                    }
+                }).doFilter(request, response)
+                ServerTiming.get(request).poolWaited("Xml2JsonFilter", 2000000)
+                if ( writeBody ) {
+                    response.getOutputStream().write("{}".getBytes("UTF-8"))
+                }
+                metrics.filtered(request, start)
+            }
+        }
+    }
+
+    String timingOf(HttpServletResponse response) {
+        ArgumentCaptor<String> timing = ArgumentCaptor.forClass(String)
+        verify(response).setHeader(eq("Server-Timing"), timing.capture())
+        return timing.value
+    }
+
+    def "should send the time of each filter, of its pool and of Atom Hopper"() {
+
+        given:
+        HttpServletResponse response = response(new ByteArrayOutputStream())
+
+        when:
+        filter.doFilter(request("true", "cloudfeeds:service-admin"), response, filterChain(false))
+
+        then:
+        timingOf(response) ==~ "Xml2JsonFilter${DURATION}, Xml2JsonFilter-pool;dur=2\\.0, " +
+                               "upstream${DURATION};desc=\"Atom Hopper\", total${DURATION}"
+    }
+
+    def "should replace the partial timing with the complete one when the response isn't sent yet"() {
+
+        given:
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        HttpServletResponse response = response(output)
+
+        when:
+        filter.doFilter(request("true", "cloudfeeds:service-admin"), response, filterChain(true))
+
+        then:
+        output.toString("UTF-8") == "{}"
+        ArgumentCaptor<String> timing = ArgumentCaptor.forClass(String)
+        verify(response, times(2)).setHeader(eq("Server-Timing"), timing.capture())
+        timing.allValues[0] ==~ "Xml2JsonFilter-pool;dur=2\\.0, upstream${DURATION};desc=\"Atom Hopper\", " +
+                                "partial;desc=\"sent before the response was complete\""
+        timing.allValues[1] ==~ /.*, total${DURATION}/
+    }
+
+    def "should send the partial timing before the body of a response sent as it is written"() {
+
+        given:
+        HttpServletResponse response = response(new ByteArrayOutputStream())
+        when(response.isCommitted()).thenReturn(false, true)
+
+        when:
+        filter.doFilter(request("true", "cloudfeeds:service-admin"), response, filterChain(true))
+
+        then:
+        timingOf(response).endsWith("partial;desc=\"sent before the response was complete\"")
+    }
+
+    def "should not time the requests that didn't ask for it"() {
+
+        given:
+        HttpServletRequest request = request(null, "cloudfeeds:service-admin")
+        HttpServletResponse response = response(new ByteArrayOutputStream())
+        FilterChain chain = mock(FilterChain)
+
+        when:
+        filter.doFilter(request, response, chain)
+
+        then:
+        verify(chain).doFilter(request, response)
+        verify(response, never()).setHeader(eq("Server-Timing"), anyString())
+        verify(request, never()).setAttribute(anyString(), any())
+    }
+
+    @Unroll
+    def "should time a request with #header from #roles when enabled is #enabled and trustedRole is #trustedRole"(
+            String enabled, String trustedRole, String header, String roles, boolean timed) {
+
+        given:
+        Map<String, String> params = [enabled: enabled]
+        if ( trustedRole != null ) {
+            params.trustedRole = trustedRole
+        }
+        filter.init(filterConfig(params))
+
+        expect:
+        filter.isTimed(request(header, roles)) == timed
+
+        where:
+        enabled | trustedRole | header | roles                                           | timed
+        "false" | null        | "true" | "cloudfeeds:service-admin"                      | true
+        "false" | null        | "true" | "cloudfeeds:observer, cloudfeeds:service-admin" | true
+        "false" | null        | "true" | "cloudfeeds:observer"                           | false
+        "false" | null        | "true" | null                                            | false
+        "false" | null        | "no"   | "cloudfeeds:service-admin"                      | false
+        "false" | ""          | "true" | null                                            | true
+        "true"  | null        | null   | null                                            | true
+    }
+
+    def "should keep the names of the filters to the characters of a token"() {
+
+        expect:
+        ServerTiming.token("Xml2Json Filter(1)") == "Xml2Json_Filter_1_"
+        ServerTiming.token("private-attrs.v2") == "private-attrs.v2"
+    }
+
+    /**
+     * Stands in for the class of a filter, which names the metrics
+     */
+    static class Xml2JsonStandIn {
+    }
+}
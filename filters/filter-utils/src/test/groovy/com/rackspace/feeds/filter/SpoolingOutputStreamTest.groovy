@@ -0,0 +1,93 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Specification
+
+class SpoolingOutputStreamTest extends Specification {
+
+    static final byte[] JSON = ("{\"entry\":{\"title\":\"\u00c9quipe \u65e5\u672c\"}}" * 100).getBytes("UTF-8")
+
+    File directory
+
+    def setup() {
+        directory = File.createTempDir()
+    }
+
+    def cleanup() {
+        directory.deleteDir()
+    }
+
+    def "should keep the bytes in memory up to the threshold"() {
+
+        given:
+        SpoolingOutputStream spool = new SpoolingOutputStream(JSON.length, directory)
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+
+        when:
+        spool.write(JSON)
+        spool.writeTo(output)
+
+        then:
+        spool.isInMemory()
+        spool.size() == JSON.length
+        output.toByteArray() == JSON
+        directory.list().length == 0
+
+        cleanup:
+        spool.release()
+    }
+
+    def "should spool the bytes past the threshold to a temporary file, deleted once released"() {
+
+        given:
+        SpoolingOutputStream spool = new SpoolingOutputStream(100, directory)
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+
+        when:
+        // written in pieces, the first ones kept in memory
+        JSON.toList().collate(30).each { spool.write(it as byte[]) }
+        spool.writeTo(output)
+
+        then:
+        spool.isSpooledToFile()
+        spool.size() == JSON.length
+        output.toByteArray() == JSON
+        directory.list().length == 1
+
+        when:
+        spool.release()
+
+        then:
+        directory.list().length == 0
+    }
+
+    def "should write the bytes past the threshold to the overflow stream of a subclass"() {
+
+        given:
+        ByteArrayOutputStream response = new ByteArrayOutputStream()
+        SpoolingOutputStream spool = new SpoolingOutputStream(100, directory) {
+            @Override
+            protected OutputStream overflow() {
+                return response
+            }
+        }
+
+        when:
+        spool.write(JSON, 0, 60)
+        spool.write(JSON, 60, JSON.length - 60)
+
+        then:
+        !spool.isInMemory()
+        !spool.isSpooledToFile()
+        spool.size() == JSON.length
+        response.toByteArray() == JSON
+
+        when:
+        spool.writeTo(new ByteArrayOutputStream())
+
+        then:
+        thrown(IllegalStateException)
+
+        cleanup:
+        spool.release()
+    }
+}
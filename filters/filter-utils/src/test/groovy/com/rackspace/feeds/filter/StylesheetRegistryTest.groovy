@@ -0,0 +1,161 @@
+package com.rackspace.feeds.filter
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+
+class StylesheetRegistryTest extends Specification {
+
+    static String stylesheet(String greeting) {
+        return '<?xml version="1.0"?>\n' +
+               '<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">\n' +
+               '    <xsl:output method="text"/>\n' +
+               '    <xsl:template match="/">' + greeting + ' <xsl:value-of select="/Person/Name"/></xsl:template>\n' +
+               '</xsl:stylesheet>'
+    }
+
+    File xsltFile
+    TransformerUtils transformer
+
+    def setup() {
+        xsltFile = File.createTempFile("reload", ".xsl")
+        xsltFile.text = stylesheet("Unstoppable")
+        transformer = TransformerUtils.getInstanceForXsltAsFile(xsltFile.absolutePath)
+    }
+
+    def cleanup() {
+        transformer.destroy()
+        xsltFile.delete()
+    }
+
+    String transform() {
+        StringWriter writer = new StringWriter()
+        transformer.doTransform([:],
+                new StreamSource(new StringReader("<Person><Name>Juggernaut</Name></Person>")),
+                new StreamResult(writer))
+        return writer.toString()
+    }
+
+    def "should use the new version of the stylesheet once it is reloaded"() {
+
+        given:
+        assert transform() == "Unstoppable Juggernaut"
+        xsltFile.text = stylesheet("Unbreakable")
+
+        when:
+        boolean reloaded = transformer.reload()
+
+        then:
+        reloaded
+        transform() == "Unbreakable Juggernaut"
+        transform() == "Unbreakable Juggernaut"
+        transformer.getReloadCount() == 1
+        transformer.getReloadFailureCount() == 0
+    }
+
+    def "should move a transform waiting for a transformer to the new version"() {
+
+        given:
+        def config = new GenericObjectPoolConfig()
+        config.setMaxTotal(1)
+        config.setMaxWaitMillis(5000)
+        transformer.configurePool(config, 1)
+        def borrowed = transformer.getPool().borrowObject()
+        def previousPool = transformer.getPool()
+        String output = null
+        Throwable failure = null
+        Thread waiting = Thread.start {
+            try {
+                output = transform()
+            } catch (Throwable t) {
+                failure = t
+            }
+        }
+        new PollingConditions(timeout: 5).eventually {
+            assert previousPool.getNumWaiters() == 1
+        }
+        xsltFile.text = stylesheet("Unbreakable")
+
+        when:
+        boolean reloaded = transformer.reload()
+        waiting.join(5000)
+
+        then:
+        reloaded
+        failure == null
+        output == "Unbreakable Juggernaut"
+
+        cleanup:
+        previousPool.returnObject(borrowed)
+    }
+
+    def "should keep the current version when the new one does not compile"() {
+
+        given:
+        xsltFile.text = "<whack>xslt</whack"
+
+        when:
+        boolean reloaded = transformer.reload()
+
+        then:
+        !reloaded
+        transform() == "Unstoppable Juggernaut"
+        transformer.getReloadCount() == 0
+        transformer.getReloadFailureCount() == 1
+        transformer.getLastReloadFailure() != null
+    }
+
+    def "should keep the current version when the file is gone"() {
+
+        given:
+        xsltFile.delete()
+
+        expect:
+        !transformer.reload()
+        transform() == "Unstoppable Juggernaut"
+        transformer.getReloadFailureCount() == 1
+    }
+
+    def "should not reload a stylesheet that is a classpath resource"() {
+
+        given:
+        TransformerUtils resource = TransformerUtils.getInstanceForXsltAsResource("/samples/test.xsl")
+
+        when:
+        resource.setReloadEnabled(true)
+
+        then:
+        !resource.isReloadEnabled()
+        !resource.reload()
+    }
+
+    def "should reload the stylesheet when the file changes"() {
+
+        given:
+        def conditions = new PollingConditions(timeout: 30)
+
+        when:
+        transformer.setReloadEnabled(true)
+
+        then:
+        StylesheetRegistry.getInstance().isRegistered(transformer)
+
+        when:
+        xsltFile.text = stylesheet("Unbreakable")
+
+        then:
+        conditions.eventually {
+            assert transformer.getReloadCount() >= 1
+        }
+        transform() == "Unbreakable Juggernaut"
+
+        when:
+        transformer.setReloadEnabled(false)
+
+        then:
+        !StylesheetRegistry.getInstance().isRegistered(transformer)
+    }
+}
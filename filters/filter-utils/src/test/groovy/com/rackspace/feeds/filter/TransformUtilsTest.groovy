@@ -108,4 +108,68 @@ class TransformUtilsTest extends Specification {
         then:
         thrown Exception
     }
+
+    @Unroll
+    def "should run all stages of a pipeline in a single transform"(String outerXsl, String outerTemplate) {
+
+        given:
+        def request = new MockRequest()
+        def outer = TransformerUtils.getInstanceForXsltAsResource(outerXsl, outerTemplate)
+        def inner = TransformerUtils.getInstanceForXsltAsResource("/samples/upper-name.xsl")
+        def pipeline = TransformPipeline.open(request)
+        pipeline.addStage(outer, Collections.EMPTY_MAP)
+        pipeline.addStage(inner, Collections.EMPTY_MAP)
+
+        when:
+        def writer = new StringWriter();
+        pipeline.transform(new StreamSource(this.getClass().getResourceAsStream("/samples/test.xml")),
+                new StreamResult(writer))
+
+        then:
+        assert TransformPipeline.getPipeline(request) == pipeline
+        assert pipeline.getStageCount() == 2
+        assert writer.toString() == "Unstoppable JUGGERNAUT"
+
+        where:
+        [outerXsl, outerTemplate] << [ ["/samples/test.xsl", null],
+                                       ["/samples/test-initial.xsl", "main"] ]
+    }
+
+    def "detached pipeline should not be visible to the rest of the chain"() {
+
+        given:
+        def request = new MockRequest()
+        def pipeline = TransformPipeline.open(request)
+
+        when:
+        def detached = TransformPipeline.detach(request)
+
+        then:
+        assert detached == pipeline
+        assert TransformPipeline.getPipeline(request) == null
+
+        when:
+        TransformPipeline.attach(request, detached)
+
+        then:
+        assert TransformPipeline.getPipeline(request) == pipeline
+    }
+
+    /**
+     * Only the request attribute methods are needed by TransformPipeline
+     */
+    static class MockRequest extends javax.servlet.http.HttpServletRequestWrapper {
+
+        Map<String, Object> attributes = [:]
+
+        MockRequest() {
+            super(org.mockito.Mockito.mock(javax.servlet.http.HttpServletRequest))
+        }
+
+        Object getAttribute(String name) { attributes[name] }
+
+        void setAttribute(String name, Object value) { attributes[name] = value }
+
+        void removeAttribute(String name) { attributes.remove(name) }
+    }
 }
@@ -0,0 +1,141 @@
+package com.rackspace.feeds.filter
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Counter
+import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.MetricName
+import com.yammer.metrics.core.Timer
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.FilterConfig
+import javax.xml.transform.TransformerException
+import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.when
+
+class TransformerPoolTest extends Specification {
+
+    TransformerUtils transformer
+
+    def setup() {
+        transformer = TransformerUtils.getInstanceForXsltAsResource("/samples/test.xsl")
+    }
+
+    def cleanup() {
+        transformer.destroy()
+    }
+
+    static FilterConfig filterConfig(String name, Map<String, String> params) {
+        FilterConfig config = mock(FilterConfig)
+        when(config.getFilterName()).thenReturn(name)
+        when(config.getInitParameter(anyString())).thenAnswer(new Answer<String>() {
+            String answer(InvocationOnMock invocation) {
+                return params.get(invocation.arguments[0])
+            }
+        })
+        return config
+    }
+
+    static def metric(String name, String scope) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(TransformerUtils, name, scope))
+    }
+
+    String transform() {
+        StringWriter writer = new StringWriter()
+        transformer.doTransform([:],
+                new StreamSource(new StringReader("<Person><Name>Juggernaut</Name></Person>")),
+                new StreamResult(writer))
+        return writer.toString()
+    }
+
+    def "should keep the default pool when there are no pool parameters"() {
+
+        when:
+        transformer.configure(filterConfig("DefaultFilter", [:]))
+
+        then:
+        transformer.getPool().getMaxTotal() == 8
+        transformer.getPool().getNumIdle() == 2
+    }
+
+    def "should size the pool from the filter parameters"() {
+
+        when:
+        transformer.configure(filterConfig("SizedFilter", [poolMaxTotal: "16", poolMinIdle: "1", poolPrewarm: "4",
+                                                          poolMaxWaitMillis: "250"]))
+
+        then:
+        transformer.getPool().getMaxTotal() == 16
+        transformer.getPool().getMaxIdle() == 16
+        transformer.getPool().getMinIdle() == 1
+        transformer.getPool().getMaxWaitMillis() == 250
+        transformer.getPool().getNumIdle() == 4
+        transformer.getPool().getCreatedCount() == 4
+        transform() == "Unstoppable Juggernaut"
+    }
+
+    @Unroll
+    def "should reject the pool parameters #params"(Map<String, String> params) {
+
+        when:
+        transformer.configure(filterConfig("InvalidFilter", params))
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        params << [[poolMaxTotal: "0"],
+                   [poolMaxTotal: "eight"],
+                   [poolMaxTotal: "4", poolMinIdle: "5"],
+                   [poolMaxTotal: "4", poolPrewarm: "5"],
+                   [poolMinIdle: "-1"]]
+    }
+
+    def "should publish the pool metrics under the name of the filter"() {
+
+        given:
+        transformer.configure(filterConfig("MetricsFilter", [poolMaxTotal: "4", poolPrewarm: "3"]))
+
+        when:
+        transform()
+        transform()
+
+        then:
+        ((Timer) metric("borrow-wait", "MetricsFilter")).count() == 2
+        ((Gauge) metric("max-total", "MetricsFilter")).value() == 4
+        ((Gauge) metric("idle", "MetricsFilter")).value() == 3
+        ((Gauge) metric("active", "MetricsFilter")).value() == 0
+        ((Gauge) metric("created", "MetricsFilter")).value() == 3L
+
+        when:
+        transformer.destroy()
+
+        then:
+        metric("borrow-wait", "MetricsFilter") == null
+        metric("idle", "MetricsFilter") == null
+    }
+
+    def "should count the transforms that time out waiting for a transformer"() {
+
+        given:
+        transformer.configure(filterConfig("StarvedFilter", [poolMaxTotal: "1", poolMinIdle: "1", poolMaxWaitMillis: "10"]))
+        def borrowed = transformer.getPool().borrowObject()
+
+        when:
+        transform()
+
+        then:
+        thrown(TransformerException)
+        ((Counter) metric("borrow-timeouts", "StarvedFilter")).count() == 1
+        ((Gauge) metric("active", "StarvedFilter")).value() == 1
+
+        cleanup:
+        transformer.getPool().returnObject(borrowed)
+    }
+}
@@ -0,0 +1,13 @@
+<?xml version="1.0"?>
+<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+
+    <xsl:template match="@*|node()">
+        <xsl:copy>
+            <xsl:apply-templates select="@*|node()"/>
+        </xsl:copy>
+    </xsl:template>
+
+    <xsl:template match="Name/text()">
+        <xsl:value-of select="upper-case(.)"/>
+    </xsl:template>
+</xsl:stylesheet>
@@ -17,7 +17,11 @@ import org.apache.commons.lang.StringUtils;
  * (standard-usage-schemas) to convert XML response to JSON.
  *
  * It requires a Filter input parameter called 'xsltFile' which is the full path to the XSLT file to perform the
- * transformation.
+ * transformation. If the 'reloadXslt' parameter is true, the XSLT is reloaded when the file changes.
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its filter name.
+ *
+ * The Accept header is negotiated by ACCEPT_NEGOTIATOR, which keeps the decision for each distinct header.
  */
 public class Xml2JsonFilter implements Filter {
 
@@ -31,8 +35,23 @@ public class Xml2JsonFilter implements Filter {
 
     private static Logger LOG = LoggerFactory.getLogger( Xml2JsonFilter.class );
 
+    /**
+     * Negotiates the Accept headers of the requests for all the filters of the web app,
+     * see JsonNegotiation.
+     */
+    static final AcceptNegotiator<JsonNegotiation> ACCEPT_NEGOTIATOR =
+            new AcceptNegotiator<JsonNegotiation>("json",
+                                                  new AcceptNegotiator.Negotiation<JsonNegotiation>() {
+                                                      public JsonNegotiation negotiate(String accept) {
+                                                          return new JsonNegotiation(accept);
+                                                      }
+                                                  },
+                                                  AcceptNegotiator.DEFAULT_MAX_ENTRIES);
+
     private TransformerUtils transformer;
 
+    private FilterMetrics metrics;
+
     /**
      * This flag controls whether or not this Xml2Json filter is supposed to trigger
      * when the Accept: header has the generic application/json media type.
@@ -61,6 +80,9 @@ public class Xml2JsonFilter implements Filter {
         }
 
         filterOnGenericJsonMediaType = Boolean.parseBoolean(config.getInitParameter("filterOnGenericJsonMediaType"));
+        transformer.configure(config);
+        metrics = new FilterMetrics(getClass(), config.getFilterName());
+        transformer.setFilterMetrics(metrics);
     }
 
     public void doFilter(ServletRequest servletRequest,
@@ -71,25 +93,33 @@ public class Xml2JsonFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest)servletRequest;
         HttpServletResponse response = (HttpServletResponse)servletResponse;
 
-        if( jsonPreferred(request) ) {
+        long start = System.nanoTime();
+        try {
+            if( jsonPreferred(request) ) {
 
-            JsonResponseBodyWrapper wrapper = new JsonResponseBodyWrapper( response );
-            transformer.doTransform(request,
-                                    wrapper,
-                                    response,
-                                    chain,
-                                    Collections.EMPTY_MAP );
-        }
-        else {
-            chain.doFilter( servletRequest, servletResponse );
+                JsonResponseBodyWrapper wrapper = new JsonResponseBodyWrapper( response );
+                transformer.doTransform(request,
+                                        wrapper,
+                                        response,
+                                        chain,
+                                        Collections.EMPTY_MAP );
+            }
+            else {
+                metrics.passThrough( servletRequest, servletResponse, chain );
+            }
+        } finally {
+            metrics.filtered( servletRequest, start );
         }
-
     }
 
     TransformerUtils getTransformer() throws Exception {
         return transformer;
     }
 
+    FilterMetrics getMetrics() {
+        return metrics;
+    }
+
     protected boolean isFilterOnGenericJsonMediaType() {
         return filterOnGenericJsonMediaType;
     }
@@ -102,6 +132,9 @@ public class Xml2JsonFilter implements Filter {
     public void destroy() {
       /* Called before the Filter instance is removed
       from service by the web container*/
+        if ( transformer != null ) {
+            transformer.destroy();
+        }
     }
 
     static class JsonResponseBodyWrapper extends HttpServletResponseWrapper {
@@ -148,7 +181,34 @@ public class Xml2JsonFilter implements Filter {
     }
 
     boolean jsonPreferred(HttpServletRequest request) {
-        String accept = request.getHeader("Accept");
+        return jsonPreferred(request, filterOnGenericJsonMediaType);
+    }
+
+    /**
+     * @param request
+     * @param filterOnGenericJsonMediaType  whether application/json asks for JSON too
+     * @return true if the response should be converted to JSON; the Accept header is
+     *         negotiated once per request
+     */
+    static boolean jsonPreferred(HttpServletRequest request, boolean filterOnGenericJsonMediaType) {
+        return ACCEPT_NEGOTIATOR.negotiate(request).isJsonPreferred(filterOnGenericJsonMediaType);
+    }
+
+    /**
+     * @param accept                        the Accept header of the request
+     * @param filterOnGenericJsonMediaType  whether application/json asks for JSON too
+     * @return true if the response should be converted to JSON
+     */
+    static boolean jsonPreferred(String accept, boolean filterOnGenericJsonMediaType) {
+        return ACCEPT_NEGOTIATOR.negotiate(accept).isJsonPreferred(filterOnGenericJsonMediaType);
+    }
+
+    /**
+     * @param accept                        the Accept header of the request
+     * @param filterOnGenericJsonMediaType  whether application/json asks for JSON too
+     * @return true if the response should be converted to JSON, worked out from scratch
+     */
+    static boolean rankJsonPreferred(String accept, boolean filterOnGenericJsonMediaType) {
         if ( StringUtils.isNotEmpty(accept) ) {
             String[] orderedAccept = ProviderHelper.orderByQ(accept);
             for ( String acceptHeader : orderedAccept ) {
@@ -168,4 +228,36 @@ public class Xml2JsonFilter implements Filter {
         }
         return false;
     }
+
+    /**
+     * What the JSON filters, and the filters that need to know if a response is
+     * converted to JSON, make of an Accept header.
+     */
+    static final class JsonNegotiation {
+
+        private final boolean jsonPreferred;
+        private final boolean genericJsonPreferred;
+        private final boolean serviceJson;
+
+        JsonNegotiation(String accept) {
+            this.jsonPreferred = rankJsonPreferred(accept, false);
+            this.genericJsonPreferred = rankJsonPreferred(accept, true);
+            this.serviceJson = accept != null && accept.startsWith(RAX_SVC_JSON_MEDIA_TYPE);
+        }
+
+        /**
+         * @param filterOnGenericJsonMediaType  whether application/json asks for JSON too
+         * @return true if the response should be converted to JSON
+         */
+        boolean isJsonPreferred(boolean filterOnGenericJsonMediaType) {
+            return filterOnGenericJsonMediaType ? genericJsonPreferred : jsonPreferred;
+        }
+
+        /**
+         * @return true if the Accept header starts with the service document JSON media type
+         */
+        boolean isServiceJson() {
+            return serviceJson;
+        }
+    }
 }
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -12,22 +13,75 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.util.Collections;
 
 /**
  * This filter extends the Xml2JsonFilter and modify the behavior to not use piped async call,
  * and to set the contentLength of the transformed response.
  *
+ * The response is buffered in pooled chunks (see BufferedResponseWrapper). The JSON it is
+ * transformed to is sent encoded in UTF-8, with its length in bytes. Up to
+ * 'spoolThresholdBytes' (default 4MB) of JSON is kept in memory; a bigger one overflows
+ * according to 'spoolOverflow':
+ * <ul>
+ *     <li>file (the default): to a temporary file in 'spoolDirectory' (default java.io.tmpdir),
+ *     which is sent once complete, so the response still has its Content-Length</li>
+ *     <li>stream: to the response, sent chunked without a Content-Length</li>
+ * </ul>
+ *
  * It requires a Filter input parameter called 'xsltFile' which is the full path to the XSLT file to perform the
  * transformation.
  */
 public class Xml2JsonNoStreamFilter extends Xml2JsonFilter {
     private static Logger LOG = LoggerFactory.getLogger(Xml2JsonNoStreamFilter.class);
 
+    static final long DEFAULT_SPOOL_THRESHOLD_BYTES = 4L * 1024 * 1024;
+
+    static final String SPOOL_OVERFLOW_FILE = "file";
+    static final String SPOOL_OVERFLOW_STREAM = "stream";
+
+    private long spoolThresholdBytes = DEFAULT_SPOOL_THRESHOLD_BYTES;
+    private String spoolOverflow = SPOOL_OVERFLOW_FILE;
+    private File spoolDirectory = null;
+
+    @Override
+    public void init(FilterConfig config)
+            throws ServletException {
+
+        super.init(config);
+
+        String threshold = config.getInitParameter("spoolThresholdBytes");
+        if ( StringUtils.isNotBlank(threshold) ) {
+            try {
+                spoolThresholdBytes = Long.parseLong(threshold.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("spoolThresholdBytes parameter must be a number: " + threshold);
+            }
+            if ( spoolThresholdBytes < 0 ) {
+                throw new ServletException("spoolThresholdBytes parameter must not be negative: " + threshold);
+            }
+        }
+
+        String overflow = config.getInitParameter("spoolOverflow");
+        if ( StringUtils.isNotBlank(overflow) ) {
+            if ( !overflow.equals(SPOOL_OVERFLOW_FILE) && !overflow.equals(SPOOL_OVERFLOW_STREAM) ) {
+                throw new ServletException("spoolOverflow parameter must be file or stream: " + overflow);
+            }
+            spoolOverflow = overflow;
+        }
+
+        String directory = config.getInitParameter("spoolDirectory");
+        if ( StringUtils.isNotBlank(directory) ) {
+            spoolDirectory = new File(directory);
+            if ( !spoolDirectory.isDirectory() ) {
+                throw new ServletException("spoolDirectory parameter must be a directory: " + directory);
+            }
+        }
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest,
                          ServletResponse servletResponse,
@@ -35,62 +89,122 @@ public class Xml2JsonNoStreamFilter extends Xml2JsonFilter {
             throws java.io.IOException, ServletException {
 
         LOG.debug( "Xml2JsonNoStreamFilter doFilter()" );
+        long start = System.nanoTime();
+        try {
+            transformBuffered(servletRequest, servletResponse, chain);
+        } finally {
+            getMetrics().filtered(servletRequest, start);
+        }
+    }
+
+    private void transformBuffered(ServletRequest servletRequest,
+                                   ServletResponse servletResponse,
+                                   FilterChain chain)
+            throws java.io.IOException, ServletException {
+
         HttpServletRequest httpServletRequest = (HttpServletRequest) servletRequest;
-        HttpServletResponse httpServletResponse = (HttpServletResponse) servletResponse;
+        final HttpServletResponse httpServletResponse = (HttpServletResponse) servletResponse;
+        FilterMetrics metrics = getMetrics();
 
         if( jsonPreferred(httpServletRequest) ) {
 
             //create wrapper response to collect response content
-            StringResponseWrapper wrappedResponse = new StringResponseWrapper(httpServletResponse);
-
-            // apply filter further down the chain on wrapped response
-            chain.doFilter(httpServletRequest, wrappedResponse);
-
-            // obtain response content
-            String originalResponseContent = wrappedResponse.getResponseString();
-
-            // apply xml2json filter if response is not empty
-            if (StringUtils.isNotEmpty(originalResponseContent)) {
-
-                try {
-                    //set up output stream to collect result of transformation
-                    OutputStream outputStream = new ByteArrayOutputStream();
-
-                    // transform response content with the xml2json xslt
-                    TransformerUtils transformer = super.getTransformer();
-                    transformer.doTransform(Collections.EMPTY_MAP,
-                            new StreamSource(new StringReader(originalResponseContent)),
-                            new StreamResult(outputStream));
-
-                    // set response with the transformed json content
-                    String jsonResponseContent = outputStream.toString();
-                    setResponseContent(httpServletRequest, httpServletResponse, jsonResponseContent);
+            BufferedResponseWrapper wrappedResponse = new BufferedResponseWrapper(httpServletResponse);
+            SpoolingOutputStream jsonResponseContent = newSpool(httpServletResponse);
+
+            try {
+                // apply filter further down the chain on wrapped response
+                metrics.timeChain(chain).doFilter(httpServletRequest, wrappedResponse);
+
+                // apply xml2json filter if response is not empty
+                if (wrappedResponse.getBodySize() > 0) {
+
+                    long transformStart = System.nanoTime();
+                    long inputBytes = wrappedResponse.getBodySize();
+                    boolean transformed = false;
+                    try {
+                        // set before the transform, in case the json overflows to the response
+                        setContentType(httpServletRequest, httpServletResponse);
+
+                        // transform response content with the xml2json xslt
+                        TransformerUtils transformer = super.getTransformer();
+                        transformer.doTransform(Collections.EMPTY_MAP,
+                                new StreamSource(wrappedResponse.getInputStream()),
+                                new StreamResult(jsonResponseContent),
+                                ServerTiming.get(servletRequest));
+                        // the response content is only read from now on
+                        wrappedResponse.release();
+                        metrics.transformed(System.nanoTime() - transformStart,
+                                            inputBytes, jsonResponseContent.size());
+                        transformed = true;
+
+                        // set response with the transformed json content
+                        setResponseContent(httpServletResponse, jsonResponseContent);
+                    }
+                    catch(Exception e) {
+                        if ( !transformed ) {
+                            metrics.transformFailed();
+                        }
+                        throw new ServletException(e);
+                    }
+                    finally {
+                        httpServletResponse.getOutputStream().close();
+                    }
                 }
-                catch(Exception e) {
-                    throw new ServletException(e);
-                }
-                finally {
-                    httpServletResponse.getWriter().close();
+                else {
+                    metrics.passedThrough();
                 }
             }
+            finally {
+                wrappedResponse.release();
+                jsonResponseContent.release();
+            }
         }
         else {
-            chain.doFilter( servletRequest, servletResponse );
+            metrics.passThrough( servletRequest, servletResponse, chain );
         }
     }
 
-    private void setResponseContent(HttpServletRequest request, HttpServletResponse response, String content)
-            throws IOException {
+    /**
+     * @param response
+     * @return where to write the json: in memory up to spoolThresholdBytes, then to a
+     *         temporary file, or to the response without a Content-Length
+     */
+    SpoolingOutputStream newSpool(final HttpServletResponse response) {
+        if ( SPOOL_OVERFLOW_STREAM.equals(spoolOverflow) ) {
+            return new SpoolingOutputStream(spoolThresholdBytes, null) {
+                @Override
+                protected OutputStream overflow() throws IOException {
+                    LOG.debug("Streaming json bigger than " + spoolThresholdBytes + " bytes");
+                    return response.getOutputStream();
+                }
+            };
+        }
+        return new SpoolingOutputStream(spoolThresholdBytes, spoolDirectory);
+    }
+
+    private void setContentType(HttpServletRequest request, HttpServletResponse response) {
 
-        response.setContentLength(content.length());
-        String acceptHeader = request.getHeader("Accept");
-        if (acceptHeader != null && acceptHeader.startsWith(RAX_SVC_JSON_MEDIA_TYPE)) {
+        if (ACCEPT_NEGOTIATOR.negotiate(request).isServiceJson()) {
             response.setContentType(RAX_SVC_JSON_MEDIA_TYPE);
         }
         else {
             response.setContentType(JSON_MEDIA_TYPE);
         }
-        response.getWriter().write(content);
+        response.setCharacterEncoding(BufferedResponseWrapper.UTF_8.name());
+    }
+
+    private void setResponseContent(HttpServletResponse response, SpoolingOutputStream content)
+            throws IOException {
+
+        if ( !content.isInMemory() && !content.isSpooledToFile() ) {
+            // streamed already
+            content.flush();
+            return;
+        }
+        // the length in bytes, not in characters
+        response.setContentLengthLong(content.size());
+        content.writeTo(response.getOutputStream());
     }
 
 }
@@ -0,0 +1,362 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This filter stands in for the chain of Xml2JsonFilter, TenantedEntryVerificationFilter,
+ * PrivateAttrsFilter, ExternalHrefFilter and TenantedFilter, mapped once instead of five
+ * times. It looks at the request once (see FeedsRequest), decides which of these filters,
+ * its stages, have something to do for it, and only runs those, in their usual order.
+ * The others aren't called at all, rather than each of them looking at the request again
+ * and wrapping it only to let it through.
+ *
+ * The stages are the filters themselves, created and initialized by this filter, so they
+ * keep their TransformerUtils, pools and metrics:
+ * <ul>
+ *     <li>'stages' lists them, in the order they run, and defaults to the five above;
+ *     Xml2JsonNoStreamFilter and XsltFilter can be listed too</li>
+ *     <li>'{stage}.{param}' is the init param 'param' of a stage, e.g.
+ *     'PrivateAttrsFilter.xsltFile'; the stages are named after their class, which is
+ *     also the scope of their metrics</li>
+ *     <li>'{stage}.compositeTransform' defaults to true, so the stages that run take part
+ *     in a single transform</li>
+ *     <li>'{stage}.feeds' is the rule table: the feeds a stage runs on, separated by
+ *     commas, e.g. 'ExternalHrefFilter.feeds' lists the feeds served to external nodes.
+ *     The feed of a request is the path before '/events', as the container normalized
+ *     it (see FeedsRequest.getPath()), e.g. 'functest1' for /functest1/events/{tenantId}.
+ *     A stage without it runs on any request that needs it; one with it is skipped for
+ *     the requests of other feeds, but not for those whose feed can't be told</li>
+ * </ul>
+ *
+ * PrivateAttrsFilter, TenantedEntryVerificationFilter and TenantedFilter keep private
+ * attributes and the entries of other tenants from the response, so they take no
+ * '{stage}.feeds': they run on every request that needs them.
+ *
+ * A stage is run when its filter would act on the request:
+ * <ul>
+ *     <li>Xml2JsonFilter, Xml2JsonNoStreamFilter: when the Accept header asks for JSON</li>
+ *     <li>TenantedEntryVerificationFilter: on tenanted entry URIs</li>
+ *     <li>PrivateAttrsFilter: unless the request is from a service admin</li>
+ *     <li>ExternalHrefFilter: when the request has an x-external-loc header</li>
+ *     <li>TenantedFilter: on GETs of tenanted feed URIs</li>
+ *     <li>XsltFilter: always</li>
+ * </ul>
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its
+ * filter name; its requests minus chain is the time it takes to pick the stages.
+ */
+public class FeedsPipelineFilter implements Filter {
+
+    private static Logger LOG = LoggerFactory.getLogger( FeedsPipelineFilter.class );
+
+    public static final String STAGES_PARAM = "stages";
+    public static final String FEEDS_PARAM = "feeds";
+    public static final String COMPOSITE_TRANSFORM_PARAM = "compositeTransform";
+
+    static final String DEFAULT_STAGES = "Xml2JsonFilter, TenantedEntryVerificationFilter, PrivateAttrsFilter, " +
+                                         "ExternalHrefFilter, TenantedFilter";
+
+    // the stages that are never skipped for a feed
+    static final Set<String> SECURITY_STAGES = new HashSet<String>(Arrays.asList(
+            "TenantedEntryVerificationFilter", "PrivateAttrsFilter", "TenantedFilter"));
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    private FilterMetrics metrics;
+
+    public void init(FilterConfig config)
+            throws ServletException {
+        LOG.debug("initializing FeedsPipelineFilter");
+
+        String names = config.getInitParameter(STAGES_PARAM);
+        if ( StringUtils.isBlank(names) ) {
+            names = DEFAULT_STAGES;
+        }
+        for ( String name : splitList(names) ) {
+            StageConfig stageConfig = new StageConfig(name, config);
+            Condition condition = getCondition(name, stageConfig);
+            if ( condition == null ) {
+                throw new ServletException("Unknown stage in " + STAGES_PARAM + ": " + name);
+            }
+
+            String feeds = stageConfig.getInitParameter(FEEDS_PARAM);
+            if ( feeds != null && SECURITY_STAGES.contains(name) ) {
+                throw new ServletException(name + "." + FEEDS_PARAM + " is not allowed: " + name +
+                                           " must run on every feed");
+            }
+            Set<String> feedSet = feeds == null ? null : new HashSet<String>(splitList(feeds));
+
+            Filter filter = newFilter(name);
+            filter.init(stageConfig);
+            stages.add(new Stage(name, filter, condition, feedSet));
+
+            LOG.debug("stage " + name + (feedSet == null ? "" : " for the feeds " + feedSet));
+        }
+        metrics = new FilterMetrics(FeedsPipelineFilter.class, config.getFilterName());
+    }
+
+    public void doFilter(ServletRequest servletRequest,
+                         ServletResponse servletResponse,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        long start = System.nanoTime();
+        try {
+            FeedsRequest request = new FeedsRequest((HttpServletRequest) servletRequest);
+
+            List<Stage> needed = new ArrayList<Stage>(stages.size());
+            for ( Stage stage : stages ) {
+                if ( stage.isNeededBy(request) ) {
+                    needed.add(stage);
+                }
+            }
+
+            if ( needed.isEmpty() ) {
+                metrics.passThrough(servletRequest, servletResponse, chain);
+            } else {
+                metrics.timeChain(new StageChain(needed, chain)).doFilter(servletRequest, servletResponse);
+            }
+        } finally {
+            metrics.filtered(servletRequest, start);
+        }
+    }
+
+    /**
+     * Creates the filter of a stage.
+     *
+     * @param name  the name of the stage
+     * @return a new, uninitialized, filter
+     * @throws ServletException if there is no such stage
+     */
+    protected Filter newFilter(String name) throws ServletException {
+        if ( "Xml2JsonFilter".equals(name) ) {
+            return new Xml2JsonFilter();
+        } else if ( "Xml2JsonNoStreamFilter".equals(name) ) {
+            return new Xml2JsonNoStreamFilter();
+        } else if ( "TenantedEntryVerificationFilter".equals(name) ) {
+            return new TenantedEntryVerificationFilter();
+        } else if ( "PrivateAttrsFilter".equals(name) ) {
+            return new PrivateAttrsFilter();
+        } else if ( "ExternalHrefFilter".equals(name) ) {
+            return new ExternalHrefFilter();
+        } else if ( "TenantedFilter".equals(name) ) {
+            return new TenantedFilter();
+        } else if ( "XsltFilter".equals(name) ) {
+            return new XsltFilter();
+        }
+        throw new ServletException("Unknown stage in " + STAGES_PARAM + ": " + name);
+    }
+
+    /**
+     * @param name    the name of the stage
+     * @param config  the config of the stage
+     * @return when the stage acts on a request, null if there is no such stage
+     */
+    static Condition getCondition(String name, FilterConfig config) {
+        if ( "Xml2JsonFilter".equals(name) || "Xml2JsonNoStreamFilter".equals(name) ) {
+            return Boolean.parseBoolean(config.getInitParameter("filterOnGenericJsonMediaType")) ?
+                   Condition.GENERIC_JSON : Condition.JSON;
+        } else if ( "TenantedEntryVerificationFilter".equals(name) ) {
+            return Condition.TENANTED_ENTRY;
+        } else if ( "PrivateAttrsFilter".equals(name) ) {
+            return Condition.NOT_SERVICE_ADMIN;
+        } else if ( "ExternalHrefFilter".equals(name) ) {
+            return Condition.EXTERNAL;
+        } else if ( "TenantedFilter".equals(name) ) {
+            return Condition.TENANTED_GET;
+        } else if ( "XsltFilter".equals(name) ) {
+            return Condition.ALWAYS;
+        }
+        return null;
+    }
+
+    /**
+     * @param list
+     * @return the items of a list separated by commas or whitespace, in order, without duplicates
+     */
+    static List<String> splitList(String list) {
+        return new ArrayList<String>(new LinkedHashSet<String>(
+                Arrays.asList(StringUtils.split(list, ", \t\r\n"))));
+    }
+
+    List<String> getStageNames() {
+        List<String> names = new ArrayList<String>(stages.size());
+        for ( Stage stage : stages ) {
+            names.add(stage.name);
+        }
+        return names;
+    }
+
+    @Override
+    public void destroy() {
+      /* Called before the Filter instance is removed
+      from service by the web container*/
+        for ( Stage stage : stages ) {
+            stage.filter.destroy();
+        }
+        stages.clear();
+        if ( metrics != null ) {
+            metrics.remove();
+        }
+    }
+
+    /**
+     * When the filter of a stage acts on a request, as it decides it in its doFilter().
+     */
+    enum Condition {
+        ALWAYS {
+            boolean isMetBy(FeedsRequest request) {
+                return true;
+            }
+        },
+        JSON {
+            boolean isMetBy(FeedsRequest request) {
+                return request.isJsonPreferred(false);
+            }
+        },
+        GENERIC_JSON {
+            boolean isMetBy(FeedsRequest request) {
+                return request.isJsonPreferred(true);
+            }
+        },
+        TENANTED_ENTRY {
+            boolean isMetBy(FeedsRequest request) {
+                return StringUtils.isNotEmpty(request.getEntryTenantId());
+            }
+        },
+        NOT_SERVICE_ADMIN {
+            boolean isMetBy(FeedsRequest request) {
+                return !request.isServiceAdmin();
+            }
+        },
+        EXTERNAL {
+            boolean isMetBy(FeedsRequest request) {
+                return request.isExternal();
+            }
+        },
+        TENANTED_GET {
+            boolean isMetBy(FeedsRequest request) {
+                return request.isFeedsGet() && StringUtils.isNotBlank(request.getTenantId());
+            }
+        };
+
+        abstract boolean isMetBy(FeedsRequest request);
+    }
+
+    static class Stage {
+
+        private final String name;
+        private final Filter filter;
+        private final Condition condition;
+        // the feeds the stage runs on, null for all of them
+        private final Set<String> feeds;
+
+        Stage(String name, Filter filter, Condition condition, Set<String> feeds) {
+            this.name = name;
+            this.filter = filter;
+            this.condition = condition;
+            this.feeds = feeds;
+        }
+
+        boolean isNeededBy(FeedsRequest request) {
+            // a request whose feed can't be told isn't skipped
+            if ( feeds != null && request.getFeed() != null && !feeds.contains(request.getFeed()) ) {
+                return false;
+            }
+            return condition.isMetBy(request);
+        }
+    }
+
+    /**
+     * Runs the stages a request needs, then the rest of the chain. The stages can call
+     * it from another thread (see ServletResponsePipe), but only one at a time, one
+     * after the other.
+     */
+    static class StageChain implements FilterChain {
+
+        private final List<Stage> stages;
+        private final FilterChain chain;
+        private volatile int next = 0;
+
+        StageChain(List<Stage> stages, FilterChain chain) {
+            this.stages = stages;
+            this.chain = chain;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response)
+                throws IOException, ServletException {
+            int stage = next;
+            if ( stage < stages.size() ) {
+                next = stage + 1;
+                stages.get(stage).filter.doFilter(request, response, this);
+            } else {
+                chain.doFilter(request, response);
+            }
+        }
+    }
+
+    /**
+     * The config of a stage: the init params of this filter prefixed with the name of the
+     * stage, with compositeTransform true unless it is set.
+     */
+    static class StageConfig implements FilterConfig {
+
+        private final String name;
+        private final String prefix;
+        private final FilterConfig config;
+
+        StageConfig(String name, FilterConfig config) {
+            this.name = name;
+            this.prefix = name + ".";
+            this.config = config;
+        }
+
+        @Override
+        public String getFilterName() {
+            return name;
+        }
+
+        @Override
+        public ServletContext getServletContext() {
+            return config.getServletContext();
+        }
+
+        @Override
+        public String getInitParameter(String param) {
+            String value = config.getInitParameter(prefix + param);
+            if ( value == null && COMPOSITE_TRANSFORM_PARAM.equals(param) ) {
+                return "true";
+            }
+            return value;
+        }
+
+        @Override
+        public Enumeration<String> getInitParameterNames() {
+            Set<String> params = new LinkedHashSet<String>();
+            Enumeration<String> names = config.getInitParameterNames();
+            while ( names != null && names.hasMoreElements() ) {
+                String param = names.nextElement();
+                if ( param.startsWith(prefix) ) {
+                    params.add(param.substring(prefix.length()));
+                }
+            }
+            params.add(COMPOSITE_TRANSFORM_PARAM);
+            return Collections.enumeration(params);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * What FeedsPipelineFilter makes of a request, worked out once, before any of its
+ * stages runs: the feed of its path, the tenant of its URI, whether it is from a service
+ * admin, whether it came through an external node and whether it asks for JSON.
+ *
+ * It uses the same TenantedUri and AcceptNegotiator the filters of the stages keep as
+ * request attributes, so the stages that run find these decisions already made.
+ */
+final class FeedsRequest {
+
+    static final String EVENTS_SEGMENT = "events";
+
+    private final boolean feedsGet;
+    private final String feed;
+    private final String tenantId;
+    private final String entryTenantId;
+    private final boolean serviceAdmin;
+    private final boolean external;
+    private final Xml2JsonFilter.JsonNegotiation accept;
+
+    FeedsRequest(HttpServletRequest request) {
+        TenantedUri uri = TenantedUri.of(request);
+
+        feedsGet = uri.isFeedsUri() && "GET".equalsIgnoreCase(request.getMethod());
+        feed = getFeed(getPath(request));
+        tenantId = uri.getTenantId();
+        entryTenantId = uri.getEntryTenantId();
+        serviceAdmin = PrivateAttrsFilter.isServiceAdmin(request);
+        external = StringUtils.isNotEmpty(request.getHeader(ExternalHrefFilter.EXTERNAL_LOC_HEADER));
+        accept = Xml2JsonFilter.ACCEPT_NEGOTIATOR.negotiate(request);
+    }
+
+    /**
+     * @param request
+     * @return the path of the request within the web app, as the container decoded and
+     *         normalized it, unlike getRequestURI()
+     */
+    static String getPath(HttpServletRequest request) {
+        return StringUtils.defaultString(request.getServletPath()) + StringUtils.defaultString(request.getPathInfo());
+    }
+
+    /**
+     * @param path  the path of the request within the web app, see getPath()
+     * @return the segments before the first 'events' segment, e.g. 'functest1' for
+     *         /functest1/events/{tenantId}, or null if there are none, or if the path
+     *         has a '.' or '..' segment left
+     */
+    static String getFeed(String path) {
+        if ( path == null ) {
+            return null;
+        }
+        StringBuilder feed = new StringBuilder();
+        // split() skips the empty segments of '//'
+        for ( String segment : StringUtils.split(path, "/") ) {
+            segment = StringUtils.substringBefore(segment, ";");
+            if ( EVENTS_SEGMENT.equals(segment) ) {
+                return feed.length() > 0 ? feed.toString() : null;
+            }
+            if ( ".".equals(segment) || "..".equals(segment) ) {
+                return null;
+            }
+            if ( segment.length() > 0 ) {
+                if ( feed.length() > 0 ) {
+                    feed.append('/');
+                }
+                feed.append(segment);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if it is a GET of a URI of the feeds
+     */
+    boolean isFeedsGet() {
+        return feedsGet;
+    }
+
+    /**
+     * @return the feed of the path, null if it can't be told
+     */
+    String getFeed() {
+        return feed;
+    }
+
+    /**
+     * @return the tenantId of a tenanted URI, or null
+     */
+    String getTenantId() {
+        return tenantId;
+    }
+
+    /**
+     * @return the tenantId of a tenanted entry URI, or null
+     */
+    String getEntryTenantId() {
+        return entryTenantId;
+    }
+
+    /**
+     * @return true if the x-roles headers have the service admin role
+     */
+    boolean isServiceAdmin() {
+        return serviceAdmin;
+    }
+
+    /**
+     * @return true if the request has an x-external-loc header
+     */
+    boolean isExternal() {
+        return external;
+    }
+
+    /**
+     * @param filterOnGenericJsonMediaType  whether application/json asks for JSON too
+     * @return true if the response should be converted to JSON
+     */
+    boolean isJsonPreferred(boolean filterOnGenericJsonMediaType) {
+        return accept.isJsonPreferred(filterOnGenericJsonMediaType);
+    }
+}
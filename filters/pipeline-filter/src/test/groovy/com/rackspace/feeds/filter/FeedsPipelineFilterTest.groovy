@@ -0,0 +1,232 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.Filter
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class FeedsPipelineFilterTest extends Specification {
+
+    List<String> calls
+    Map<String, FilterConfig> configs
+    FeedsPipelineFilter filter
+
+    def setup() {
+        calls = []
+        configs = [:]
+        filter = pipelineFilter([ "ExternalHrefFilter.feeds": "nova, glance",
+                                  "PrivateAttrsFilter.xsltFile": "/etc/private.xsl",
+                                  "TenantedFilter.compositeTransform": "false" ])
+    }
+
+    def cleanup() {
+        filter.destroy()
+    }
+
+    /**
+     * @return a FeedsPipelineFilter whose stages record the requests they get in calls
+     */
+    FeedsPipelineFilter pipelineFilter(Map<String, String> params) {
+        FilterConfig config = mock(FilterConfig)
+        when(config.getFilterName()).thenReturn("FeedsPipelineFilterTest")
+        when(config.getInitParameter(anyString())).thenAnswer(new Answer<String>() {
+            String answer(InvocationOnMock invocation) {
+                return params.get(invocation.arguments[0])
+            }
+        })
+        when(config.getInitParameterNames()).thenAnswer(new Answer<Enumeration<String>>() {
+            Enumeration<String> answer(InvocationOnMock invocation) {
+                return new Vector(params.keySet()).elements()
+            }
+        })
+
+        FeedsPipelineFilter filter = new FeedsPipelineFilter() {
+            @Override
+            protected Filter newFilter(String name) throws ServletException {
+                return new Filter() {
+                    void init(FilterConfig stageConfig) {
+                        configs[name] = stageConfig
+                    }
+
+                    void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) {
+                        calls << name
+                        chain.doFilter(request, response)
+                    }
+
+                    void destroy() {
+                    }
+                }
+            }
+        }
+        filter.init(config)
+        return filter
+    }
+
+    static HttpServletRequest request(Map args) {
+        Map<String, Object> attributes = [:]
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getMethod()).thenReturn(args.method ?: "GET")
+        when(request.getRequestURI()).thenReturn(args.uri)
+        when(request.getContextPath()).thenReturn("")
+        // what the container decoded and normalized the URI to
+        when(request.getServletPath()).thenReturn("")
+        when(request.getPathInfo()).thenReturn(args.path ?: args.uri)
+        when(request.getHeader("Accept")).thenReturn(args.accept)
+        when(request.getHeader("x-external-loc")).thenReturn(args.externalLoc)
+        when(request.getHeaders("x-roles")).thenReturn(new Vector(args.roles ?: []).elements())
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.arguments[0])
+            }
+        })
+        doAnswer(new Answer<Void>() {
+            Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.arguments[0], invocation.arguments[1])
+                return null
+            }
+        }).when(request).setAttribute(anyString(), any())
+        return request
+    }
+
+    FilterChain chain = new FilterChain() {
+        void doFilter(ServletRequest request, ServletResponse response) {
+            calls << "upstream"
+        }
+    }
+
+    def "should create the default stages, with their prefixed init params"() {
+
+        expect:
+        filter.getStageNames() == [ "Xml2JsonFilter", "TenantedEntryVerificationFilter", "PrivateAttrsFilter",
+                                    "ExternalHrefFilter", "TenantedFilter" ]
+        configs["PrivateAttrsFilter"].getFilterName() == "PrivateAttrsFilter"
+        configs["PrivateAttrsFilter"].getInitParameter("xsltFile") == "/etc/private.xsl"
+        configs["PrivateAttrsFilter"].getInitParameter("compositeTransform") == "true"
+        configs["TenantedFilter"].getInitParameter("compositeTransform") == "false"
+        configs["TenantedFilter"].getInitParameter("xsltFile") == null
+        Collections.list(configs["PrivateAttrsFilter"].getInitParameterNames()) as Set ==
+                [ "xsltFile", "compositeTransform" ] as Set
+        Collections.list(configs["ExternalHrefFilter"].getInitParameterNames()) as Set ==
+                [ "feeds", "compositeTransform" ] as Set
+    }
+
+    @Unroll
+    def "should only run the stages #stages for #uri"(Map args, String uri, List<String> stages) {
+
+        when:
+        filter.doFilter(request(args + [ uri: uri ]), mock(HttpServletResponse), chain)
+
+        then:
+        calls == stages + [ "upstream" ]
+
+        where:
+        args                                                           | uri                                   | stages
+        [:]                                                            | "/nova/events/123"                     | [ "PrivateAttrsFilter", "TenantedFilter" ]
+        [ roles: [ "cloudfeeds:service-admin" ] ]                      | "/nova/events/123"                     | [ "TenantedFilter" ]
+        [ method: "POST" ]                                             | "/nova/events/123"                     | [ "PrivateAttrsFilter" ]
+        [:]                                                            | "/nova/events/123/entries/urn:uuid:1"  | [ "TenantedEntryVerificationFilter", "PrivateAttrsFilter", "TenantedFilter" ]
+        [:]                                                            | "/functest1/events/123"                | [ "PrivateAttrsFilter", "TenantedFilter" ]
+        [ accept: "application/vnd.rackspace.atom+json" ]              | "/functest1/events"                    | [ "Xml2JsonFilter", "PrivateAttrsFilter" ]
+        [ externalLoc: "https://feeds.example.com" ]                   | "/glance/events"                       | [ "PrivateAttrsFilter", "ExternalHrefFilter" ]
+        [ externalLoc: "https://feeds.example.com" ]                   | "/functest1/events"                    | [ "PrivateAttrsFilter" ]
+        [ roles: [ "cloudfeeds:service-admin" ] ]                      | "/functest1/events"                    | [ ]
+        [:]                                                            | "/"                                    | [ "PrivateAttrsFilter" ]
+    }
+
+    @Unroll
+    def "should find the feed of #uri in the path the container normalized"(String uri, String path) {
+
+        when:
+        filter.doFilter(request(uri: uri, path: path, externalLoc: "https://feeds.example.com"), mock(HttpServletResponse), chain)
+
+        then:
+        calls == [ "PrivateAttrsFilter", "ExternalHrefFilter", "upstream" ]
+
+        where:
+        uri                       | path
+        "//glance/events"         | "/glance/events"
+        "/glance;v=1/events"      | "/glance/events"
+        "/gl%61nce/events"        | "/glance/events"
+        "/atom/glance/events"     | "/glance/events"
+    }
+
+    def "should not skip a stage when the feed can't be told"() {
+
+        when:
+        filter.doFilter(request(uri: "/", externalLoc: "https://feeds.example.com"), mock(HttpServletResponse), chain)
+
+        then:
+        calls == [ "PrivateAttrsFilter", "ExternalHrefFilter", "upstream" ]
+    }
+
+    @Unroll
+    def "should refuse a rule table for #stage"(String stage) {
+
+        when:
+        pipelineFilter([ (stage + ".feeds"): "nova" ])
+
+        then:
+        thrown(ServletException)
+
+        where:
+        stage << [ "PrivateAttrsFilter", "TenantedEntryVerificationFilter", "TenantedFilter" ]
+    }
+
+    def "should run every stage that is needed when it has no feeds"() {
+
+        given:
+        FeedsPipelineFilter all = pipelineFilter([ "stages": "PrivateAttrsFilter, XsltFilter" ])
+
+        when:
+        all.doFilter(request(uri: "/"), mock(HttpServletResponse), chain)
+
+        then:
+        all.getStageNames() == [ "PrivateAttrsFilter", "XsltFilter" ]
+        calls == [ "PrivateAttrsFilter", "XsltFilter", "upstream" ]
+
+        cleanup:
+        all.destroy()
+    }
+
+    def "should refuse an unknown stage"() {
+
+        when:
+        pipelineFilter([ "stages": "TenantedFilter, NoSuchFilter" ])
+
+        then:
+        thrown(ServletException)
+    }
+
+    @Unroll
+    def "should find the feed #feed in #path"(String path, String feed) {
+
+        expect:
+        FeedsRequest.getFeed(path) == feed
+
+        where:
+        path                                  | feed
+        "/functest1/events"                   | "functest1"
+        "/nova/events/123/entries/urn:uuid:1" | "nova"
+        "//nova//events/123"                  | "nova"
+        "/nova;v=1/events;v=1"                | "nova"
+        "/workspace/feed/events"              | "workspace/feed"
+        "/events"                             | null
+        "/nova/other"                         | null
+        "/nova/../events"                     | null
+        ""                                    | null
+        null                                  | null
+    }
+}
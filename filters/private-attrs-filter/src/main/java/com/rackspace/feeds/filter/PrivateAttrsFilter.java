@@ -6,9 +6,6 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -19,10 +16,12 @@ import java.util.Set;
  * (standard-usage-schemas) to filter out private attributes from the responses.
  *
  * It requires a Filter input parameter called 'xsltFile' which is the full path to the XSLT file to perform the
- * transformation.
+ * transformation. If the 'reloadXslt' parameter is true, the XSLT is reloaded when the file changes.
  *
  * If the the response header 'x-roles' does not contain the role 'cloudfeeds:service-admin' then the the XSLT
  * in the 'xsltFile' param is executed on the response.  Otherwise, the response is not modified.
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its filter name.
  */
 public class PrivateAttrsFilter implements Filter {
 
@@ -34,6 +33,8 @@ public class PrivateAttrsFilter implements Filter {
 
     private TransformerUtils transformer;
 
+    private FilterMetrics metrics;
+
     public void  init(FilterConfig config)
             throws ServletException {
         LOG.debug("initializing PrivateAttrsFilter");
@@ -49,6 +50,9 @@ public class PrivateAttrsFilter implements Filter {
             LOG.error( "Error loading Xslt: " + xsltFilePath );
             throw new ServletException( e );
         }
+        transformer.configure(config);
+        metrics = new FilterMetrics(PrivateAttrsFilter.class, config.getFilterName());
+        transformer.setFilterMetrics(metrics);
     }
 
     public void  doFilter(ServletRequest servletRequest,
@@ -59,52 +63,50 @@ public class PrivateAttrsFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest)servletRequest;
         HttpServletResponse response = (HttpServletResponse)servletResponse;
 
+        long start = System.nanoTime();
+        try {
+            if( !isServiceAdmin( request ) ) {
+
+                // the transformer wraps the response itself, to pipe the body to the transform
+                transformer.doTransform(request,
+                                        response,
+                                        response,
+                                        chain,
+                                        Collections.EMPTY_MAP );
+            }
+            else {
+
+                metrics.passThrough( servletRequest, servletResponse, chain );
+            }
+        } finally {
+            metrics.filtered( servletRequest, start );
+        }
+    }
 
-        ResponseBodyWrapper wrapper = new ResponseBodyWrapper( response );
+    /**
+     * @param request
+     * @return true if the x-roles headers of the request have the service admin role,
+     *         in which case the private attributes are left in the response
+     */
+    static boolean isServiceAdmin( HttpServletRequest request ) {
 
         Enumeration<String> roleEnum = request.getHeaders( X_ROLES );
 
-        Set<String> roles = new HashSet<String>( Collections.list( roleEnum ) );
-
-        if( !roles.contains( CF_ADMIN ) ) {
-
-            transformer.doTransform(request,
-                                    wrapper,
-                                    response,
-                                    chain,
-                                    Collections.EMPTY_MAP );
+        if ( roleEnum == null ) {
+            return false;
         }
-        else {
 
-            chain.doFilter( servletRequest, servletResponse );
-        }
+        Set<String> roles = new HashSet<String>( Collections.list( roleEnum ) );
 
+        return roles.contains( CF_ADMIN );
     }
 
     @Override
     public void destroy() {
       /* Called before the Filter instance is removed
       from service by the web container*/
-    }
-
-    static class ResponseBodyWrapper extends HttpServletResponseWrapper {
-
-        private StringWriter writer = new StringWriter();
-
-        public ResponseBodyWrapper(HttpServletResponse response){
-            super(response);
-        }
-
-        public String toString() {
-
-            return writer.toString();
-
-        }
-
-        public PrintWriter getWriter(){
-
-            return new PrintWriter( writer );
-
+        if ( transformer != null ) {
+            transformer.destroy();
         }
     }
 }
@@ -0,0 +1,20 @@
+package com.rackspace.feeds.filter;
+
+import java.util.Map;
+
+/**
+ * Does what rm-tenanted-search.xsl does, without XSLT: takes the tenanted search
+ * out of the previous, next, current, self and last links, and puts the tenantId
+ * back in them. The links are rewritten by TenantedLinks, which TenantedResponse
+ * also uses for the LINK header.
+ */
+public class StreamingTenantedLinkRewriter extends StreamingLinkRewriter {
+
+    static final String TENANT_ID_PARAM = "tenantId";
+
+    @Override
+    protected HrefRewrite prepare(Map<String, Object> xsltParameters) {
+        Object tenantId = xsltParameters != null ? xsltParameters.get(TENANT_ID_PARAM) : null;
+        return new TenantedLinks(tenantId != null ? tenantId.toString() : "");
+    }
+}
@@ -2,35 +2,18 @@ package com.rackspace.feeds.filter;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.pool2.BasePooledObjectFactory;
-import org.apache.commons.pool2.ObjectPool;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
 
 /**
  * This filter is to prevent observers reading an individual tenanted-entry from viewing other tenant's entries.
@@ -38,7 +21,14 @@ import java.util.regex.Pattern;
  * If the request matches the entries URL pattern & is a 200, this filter verifies that the tenant id provided in the
  * tenanted-URI matches the tenant id for the entry.  If not, a 404 is returned.
  *
+ * The response is buffered as bytes, in pooled chunks, and its atom:category elements are read with a StAX reader, without
+ * building a DOM. The scan stops as soon as a category decides the response is not visible to the tenant.
+ * If the entry is visible, the buffered bytes are written out as they are.
+ *
  * This filter has to be in the filter chain before TenantedFilter to be able to read tenantId from the request.
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its filter name. The verification
+ * of an entry is recorded as its transform, with the size of the entry as both its input and output bytes.
  */
 public class TenantedEntryVerificationFilter implements Filter {
 
@@ -46,11 +36,11 @@ public class TenantedEntryVerificationFilter implements Filter {
 
     public static final String internalError = "Internal Error: " +  TenantedEntryVerificationFilter.class.getName() + ": ";
 
-    private static final ObjectPool<XPathExpression> tidPool = new GenericObjectPool<XPathExpression>( new TidXPathPooledObjectFactory<XPathExpression>() );
+    static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
 
-    private static final ObjectPool<XPathExpression> privatePool = new GenericObjectPool<XPathExpression>( new PrivateXPathPooledObjectFactory<XPathExpression>() );
+    static final String TENANT_TERM_PREFIX = "tid:";
 
-    static final private Pattern patTidEntry = Pattern.compile( ".+/events/([^/?]+)/entries/[^?]+" );
+    static final String PRIVATE_TERM = "cloudfeeds:private";
 
     public static String getErrorMessage( int code, String mesg ) {
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -60,93 +50,108 @@ public class TenantedEntryVerificationFilter implements Filter {
                 "</error>";
     }
 
-    private static final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+    private static final XMLInputFactory inputFactory = createInputFactory();
 
-    private static final XPathFactory xPathFactory = XPathFactory.newInstance();;
+    private static final Logger LOG = LoggerFactory.getLogger(TenantedEntryVerificationFilter.class);
 
-    private static final SimpleNamespaceContext namespaces =
-            new SimpleNamespaceContext(new HashMap<String, String>() {{
-                                            put("atomns", "http://www.w3.org/2005/Atom");
-                                        }});
+    private FilterMetrics metrics;
 
-    private static final Logger LOG = LoggerFactory.getLogger(TenantedEntryVerificationFilter.class);
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
 
     @Override
     public void init( FilterConfig filterConfig ) throws ServletException {
         LOG.debug("initializing " + TenantedEntryVerificationFilter.class.getName());
+        metrics = new FilterMetrics(TenantedEntryVerificationFilter.class, filterConfig.getFilterName());
     }
 
     @Override
     public void doFilter( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain )
             throws IOException, ServletException {
 
+        long start = System.nanoTime();
+        try {
+            verify(servletRequest, servletResponse, filterChain);
+        } finally {
+            metrics.filtered(servletRequest, start);
+        }
+    }
+
+    private void verify( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain )
+            throws IOException, ServletException {
+
         HttpServletRequest httpServletRequest = (HttpServletRequest) servletRequest;
 
         // get tid before translation rips it out of the request
-        String tid = getTenantIdFromRequestURI(httpServletRequest.getRequestURI());
+        String tid = TenantedUri.of(httpServletRequest).getEntryTenantId();
 
         if (StringUtils.isNotEmpty(tid)) {
 
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            ChunkedBuffer stream = new ChunkedBuffer();
             ServletOutputStreamWrapper sosw = new ServletOutputStreamWrapper(stream);
             OutputStreamResponseWrapper wrappedResponse =
                     new OutputStreamResponseWrapper((HttpServletResponse) servletResponse, sosw);
 
-            filterChain.doFilter(servletRequest, wrappedResponse);
-
-            String originalResponseContent = stream.toString();
-
-            if (StringUtils.isNotEmpty(originalResponseContent)
-                    && wrappedResponse.getStatus() == HttpServletResponse.SC_OK) {
+            // The filters after us must transform the response themselves, so that
+            // we verify the response they produce.
+            TransformPipeline pipeline = TransformPipeline.detach(servletRequest);
+            try {
+                metrics.timeChain(filterChain).doFilter(servletRequest, wrappedResponse);
+            } finally {
+                TransformPipeline.attach(servletRequest, pipeline);
+            }
 
-                validateEntryAndUpdateResponse(servletResponse, tid, originalResponseContent);
-            } else {
-                // copy original response as is
-                LOG.debug("Skipping tenant id corresponding to entry validation cuz of non-tenantId request or error/empty response");
-                setResponseContent(originalResponseContent, servletResponse);
+            try {
+                if (stream.size() > 0
+                        && wrappedResponse.getStatus() == HttpServletResponse.SC_OK) {
+
+                    long verifyStart = System.nanoTime();
+                    validateEntryAndUpdateResponse(servletResponse, tid, stream);
+                    metrics.transformed(System.nanoTime() - verifyStart, stream.size(), stream.size());
+                } else {
+                    // copy original response as is
+                    LOG.debug("Skipping tenant id corresponding to entry validation cuz of non-tenantId request or error/empty response");
+                    stream.writeTo(servletResponse.getOutputStream());
+                    metrics.passedThrough();
+                }
+            } finally {
+                stream.release();
             }
 
         } else {
-            filterChain.doFilter(servletRequest, servletResponse);
+            metrics.passThrough(servletRequest, servletResponse, filterChain);
         }
 
     }
 
-    private String getTenantIdFromRequestURI(String url) {
-
-        String tenantId = null;
-        Matcher matcher = patTidEntry.matcher(url);
-        if ( matcher.matches() ) {
-            tenantId = matcher.group(1);
-        }
-
-        return tenantId;
-    }
-
-    private void validateEntryAndUpdateResponse(ServletResponse servletResponse, String tid, String originalResponseContent) throws IOException, ServletException {
+    private void validateEntryAndUpdateResponse(ServletResponse servletResponse, String tid, ChunkedBuffer originalResponseContent) throws IOException, ServletException {
 
         try {
 
-            Document doc = builderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(originalResponseContent)));
-
-            String contentTid = getTenantIdFromResponse(doc);
+            String expectedTid = TENANT_TERM_PREFIX + tid;
+            EntryCategories categories = scanCategories(originalResponseContent.toInputStream(), expectedTid);
 
             // if no match return 404 & insert error message
-            if ( !contentTid.equals( "tid:" + tid ) ) {
-                LOG.debug(String.format("Tenant id mismatch. tenantIdFromRequest: %s tenantIdFromResponse: %s", tid, contentTid));
+            if ( !categories.getTenantTerm().equals( expectedTid ) ) {
+                LOG.debug(String.format("Tenant id mismatch. tenantIdFromRequest: %s tenantIdFromResponse: %s", tid, categories.getTenantTerm()));
                 setErrorResponse(servletResponse, HttpServletResponse.SC_NOT_FOUND, notFound);
                 return;
             }
 
             // if private cat exists, insert error
-            if( isPrivateEvent(doc) ) {
+            if( categories.isPrivateEvent() ) {
                 LOG.debug("private category event requested for tenantID: " + tid);
                 setErrorResponse(servletResponse, HttpServletResponse.SC_NOT_FOUND, notFound);
                 return;
             }
 
             // copy original response as validation was successful.
-            setResponseContent(originalResponseContent, servletResponse);
+            originalResponseContent.writeTo(servletResponse.getOutputStream());
 
         } catch (Exception e) {
             // if internal error, report as such
@@ -160,17 +165,12 @@ public class TenantedEntryVerificationFilter implements Filter {
      *
      * <atom:category term="tid:<tenantid>"/>
      *
-     * @param doc
-     * @return contentTid which is a string with text "tid:<tenantid>"
-     * @throws Exception
+     * @param response
+     * @return contentTid which is a string with text "tid:<tenantid>", or "" if there is none
+     * @throws XMLStreamException
      */
-    private String getTenantIdFromResponse(Document doc) throws Exception {
-
-        XPathExpression tidPath = tidPool.borrowObject();
-        String contentTid = tidPath.evaluate( doc );
-        tidPool.returnObject( tidPath );
-
-        return contentTid;
+    String getTenantIdFromResponse(InputStream response) throws XMLStreamException {
+        return scanCategories(response, null).getTenantTerm();
     }
 
     /**
@@ -178,17 +178,71 @@ public class TenantedEntryVerificationFilter implements Filter {
      *
      * <atom:category term="cloudfeeds:private"/>
      *
-     * @param doc
+     * @param response
      * @return true/false if the event has private category or not.
-     * @throws Exception
+     * @throws XMLStreamException
      */
-    private boolean isPrivateEvent(Document doc) throws Exception {
+    boolean isPrivateEvent(InputStream response) throws XMLStreamException {
+        return scanCategories(response, null).isPrivateEvent();
+    }
 
-        XPathExpression privPath = privatePool.borrowObject();
-        boolean privEvent = !privPath.evaluate( doc ).isEmpty();
-        privatePool.returnObject( privPath );
+    /**
+     * Reads the term of the atom:category children of the atom:entry root element, the
+     * same categories the XPaths /atom:entry/atom:category[starts-with(@term, 'tid:')] and
+     * /atom:entry/atom:category[@term = 'cloudfeeds:private'] would find. The elements
+     * below the other children of the entry (e.g. its content) are read over without
+     * being looked at.
+     *
+     * The scan stops at the first private category, or at the first tenant category if
+     * it is not expectedTid, since the entry is not visible either way.
+     *
+     * @param response     the entry
+     * @param expectedTid  the tenant category the entry must have, or null to scan all categories
+     * @return the categories found
+     * @throws XMLStreamException if the response is not well formed
+     */
+    EntryCategories scanCategories(InputStream response, String expectedTid) throws XMLStreamException {
 
-        return privEvent;
+        EntryCategories categories = new EntryCategories();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(response);
+        try {
+            int depth = 0;
+            while ( reader.hasNext() ) {
+                int event = reader.next();
+                if ( event == XMLStreamConstants.END_ELEMENT ) {
+                    depth--;
+                } else if ( event == XMLStreamConstants.START_ELEMENT ) {
+                    depth++;
+                    if ( depth == 1 && !isAtomElement(reader, "entry") ) {
+                        // not an entry, so there is nothing to find
+                        break;
+                    }
+                    if ( depth == 2 && isAtomElement(reader, "category") ) {
+                        String term = reader.getAttributeValue(null, "term");
+                        if ( term == null ) {
+                            continue;
+                        }
+                        if ( PRIVATE_TERM.equals(term) ) {
+                            categories.privateEvent = true;
+                            break;
+                        }
+                        if ( categories.tenantTerm == null && term.startsWith(TENANT_TERM_PREFIX) ) {
+                            categories.tenantTerm = term;
+                            if ( expectedTid != null && !expectedTid.equals(term) ) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return categories;
+    }
+
+    private static boolean isAtomElement(XMLStreamReader reader, String localName) {
+        return localName.equals(reader.getLocalName()) && ATOM_NAMESPACE.equals(reader.getNamespaceURI());
     }
 
     private void setErrorResponse(ServletResponse servletResponse, int statusCode, String message) throws IOException {
@@ -198,69 +252,33 @@ public class TenantedEntryVerificationFilter implements Filter {
     }
 
     private void setResponseContent(String responseContent, ServletResponse servletResponse) throws IOException {
-        servletResponse.getOutputStream().write(responseContent.getBytes());
+        servletResponse.getOutputStream().write(responseContent.getBytes("UTF-8"));
     }
 
     @Override
     public void destroy() {
-    }
-
-    static class PrivateXPathPooledObjectFactory<XPathExpression> extends BasePooledObjectFactory<XPathExpression> {
-
-        @Override
-        public XPathExpression create() throws XPathExpressionException {
-            synchronized ( this ) {
-                XPath xPath = xPathFactory.newXPath();
-                xPath.setNamespaceContext(namespaces);
-                return (XPathExpression) xPath.compile("/atomns:entry/atomns:category[@term = 'cloudfeeds:private']/@term");
-            }
-        }
-
-        @Override
-        public PooledObject<XPathExpression> wrap( XPathExpression xpath ) {
-
-            return new DefaultPooledObject<XPathExpression>( xpath );
+        if ( metrics != null ) {
+            metrics.remove();
         }
     }
 
+    /**
+     * What scanCategories() found in an entry
+     */
+    static class EntryCategories {
 
-    static class TidXPathPooledObjectFactory<XPathExpression> extends BasePooledObjectFactory<XPathExpression> {
-
-        @Override
-        public XPathExpression create() throws XPathExpressionException {
-            synchronized ( this ) {
-                XPath xPath = xPathFactory.newXPath();
-                xPath.setNamespaceContext(namespaces);
-                return (XPathExpression) xPath.compile("/atomns:entry/atomns:category[starts-with(@term, \"tid:\")]/@term");
-            }
-        }
-
-        @Override
-        public PooledObject<XPathExpression> wrap( XPathExpression xpath ) {
-
-            return new DefaultPooledObject<XPathExpression>( xpath );
-        }
-    }
-
-    static class SimpleNamespaceContext implements NamespaceContext {
-
-        private final Map<String, String> PREF_MAP = new HashMap<String, String>();
-
-        public SimpleNamespaceContext(final Map<String, String> prefMap) {
-            PREF_MAP.putAll(prefMap);
-        }
-
-        public String getNamespaceURI(String prefix) {
-            return PREF_MAP.get(prefix);
-        }
+        private String tenantTerm = null;
+        private boolean privateEvent = false;
 
-        public String getPrefix(String uri) {
-            throw new UnsupportedOperationException();
+        /**
+         * @return the term of the first tenant category, or "" if there is none
+         */
+        String getTenantTerm() {
+            return tenantTerm != null ? tenantTerm : "";
         }
 
-        public Iterator getPrefixes(String uri) {
-            throw new UnsupportedOperationException();
+        boolean isPrivateEvent() {
+            return privateEvent;
         }
-
     }
 }
@@ -8,11 +8,8 @@ import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class is a servlet filter that does the following:
@@ -34,7 +31,11 @@ import java.util.regex.Pattern;
  *
  * The response body will also contain several links (per Atom's spec) that contain
  * tenanted 'search' parameter that must be removed. This will be handled using an
- * XsltFilter.
+ * XSLT, or, when the 'transformMode' init param is 'streaming', by the equivalent
+ * StreamingTenantedLinkRewriter.
+ *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its
+ * filter name.
  *
  * User: shin4590
  * Date: 9/3/14
@@ -43,24 +44,6 @@ public class TenantedFilter implements Filter {
 
     private static Logger LOG = LoggerFactory.getLogger(TenantedFilter.class);
 
-    /**
-     * Denotes the URI pattern on which this Filter will operate on. If URI does not
-     * match this pattern, then the Filter will act as a pass-through.
-     *
-     * We do this here because Servlet Filter's URL Pattern is limited.
-     */
-    static Pattern FEEDS_URI_PATTERN = Pattern.compile(".*/events.*");
-
-    /**
-     * Denotes what a tenanted URI should look like.
-     */
-    static final Pattern TENANTED_URI_PATTERN = Pattern.compile("(.*/events/)([^/?]+)(/entries/[^/?]+)?/?(\\?.*)?");
-
-    /**
-     * Denotes what a tenanted 'search' parameter looks like in a normalized URI.
-     */
-    static final Pattern NORMALIZED_TENANTED_SEARCH_PATTERN = Pattern.compile("(.*)%28AND%28AND%28cat%3Dtid%3A(.*)%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29(.*)%29(.*)");
-
     /**
      * Denotes the format of tenanted 'search'
      */
@@ -68,14 +51,14 @@ public class TenantedFilter implements Filter {
 
     static final String SEARCH_PARAM = "search";
 
-    static final String LINK_HEADER = "link";
-
-    static final String LINK_DELIM = ",";
+    static final String LINK_HEADER = LinkHeaderRewriter.LINK_HEADER;
 
     static final String XSLT_PATH = "/xslt/rm-tenanted-search.xsl";
 
     private TransformerUtils transformer;
 
+    private FilterMetrics metrics;
+
     public void  init(FilterConfig config)
             throws ServletException {
         LOG.debug("initializing TenantedFilter");
@@ -85,6 +68,13 @@ public class TenantedFilter implements Filter {
             LOG.error( "Error loading Xslt: " + XSLT_PATH );
             throw new ServletException( e );
         }
+        transformer.configure(config);
+        if ( TransformerUtils.isStreamingMode(config) ) {
+            LOG.debug("using StreamingTenantedLinkRewriter instead of " + XSLT_PATH);
+            transformer.setStreamingTransform(new StreamingTenantedLinkRewriter());
+        }
+        metrics = new FilterMetrics(TenantedFilter.class, config.getFilterName());
+        transformer.setFilterMetrics(metrics);
     }
 
     public void  doFilter(ServletRequest request,
@@ -94,26 +84,32 @@ public class TenantedFilter implements Filter {
 
         HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         HttpServletResponse httpServletResponse = (HttpServletResponse) response;
-        TenantedRequest tenantedRequest = new TenantedRequest(httpServletRequest);
+        long start = System.nanoTime();
+        try {
+            TenantedRequest tenantedRequest = new TenantedRequest(httpServletRequest);
 
-        if ( isFeedsGetRequest(httpServletRequest) && StringUtils.isNotBlank(tenantedRequest.getTenantId()) ) {
+            if ( isFeedsGetRequest(httpServletRequest) && StringUtils.isNotBlank(tenantedRequest.getTenantId()) ) {
 
-            LOG.debug("Getting request for tenantId=" + tenantedRequest.getTenantId());
+                LOG.debug("Getting request for tenantId=" + tenantedRequest.getTenantId());
 
-            TenantedResponse tenantedResponse = new TenantedResponse(httpServletResponse, tenantedRequest.getTenantId());
+                TenantedResponse tenantedResponse =
+                        new TenantedResponse(httpServletRequest, httpServletResponse, tenantedRequest.getTenantId());
 
-            Map<String, Object> xsltParameters = new HashMap<String, Object>();
-            xsltParameters.put("tenantId", tenantedRequest.getTenantId());
+                Map<String, Object> xsltParameters = new HashMap<String, Object>();
+                xsltParameters.put(StreamingTenantedLinkRewriter.TENANT_ID_PARAM, tenantedRequest.getTenantId());
 
-            transformer.doTransform(tenantedRequest,
-                                    tenantedResponse,
-                                    httpServletResponse,
-                                    chain,
-                                    xsltParameters);
+                transformer.doTransform(tenantedRequest,
+                                        tenantedResponse,
+                                        httpServletResponse,
+                                        chain,
+                                        xsltParameters);
 
-        } else {
-            // pass through
-            chain.doFilter(request, response);
+            } else {
+                // pass through
+                metrics.passThrough(request, response, chain);
+            }
+        } finally {
+            metrics.filtered(request, start);
         }
     }
 
@@ -122,10 +118,12 @@ public class TenantedFilter implements Filter {
       from service by the web container*/
     }
 
+    /**
+     * @param request
+     * @return true if it is a GET request whose URI has '/events', as parsed by TenantedUri
+     */
     boolean isFeedsGetRequest(HttpServletRequest request) {
-        String requestURI = request.getRequestURI();
-        Matcher matcher = FEEDS_URI_PATTERN.matcher(requestURI);
-        return matcher.matches() && request.getMethod().equalsIgnoreCase("get");
+        return TenantedUri.of(request).isFeedsUri() && request.getMethod().equalsIgnoreCase("get");
     }
 
     /**
@@ -135,48 +133,49 @@ public class TenantedFilter implements Filter {
      *     <li>it removes the tenantId from the URI</li>
      *     <li>it inserts tenanted search parameter into the 'search' query parameter</li>
      * </ul>
+     *
+     * The URI is parsed once, by TenantedUri, and the rewritten URI and 'search' parameter
+     * are only computed once, as Atom Hopper asks for them several times per request.
      */
     static class TenantedRequest extends HttpServletRequestWrapper {
 
+        private final TenantedUri tenantedUri;
+
         private String tenantId;
 
+        private String search = null;
+        private boolean searchCalculated = false;
+
         public TenantedRequest(HttpServletRequest request) {
             super(request);
             this.tenantId = calculateTenantId(request);
+            this.tenantedUri = TenantedUri.of(request);
         }
 
         @Override
         public String getParameter(String parameterName) {
 
-            String value = super.getParameter(parameterName);
-            if ( SEARCH_PARAM.equals(parameterName) ) {
-                if ( StringUtils.isNotEmpty(tenantId) ) {
+            if ( SEARCH_PARAM.equals(parameterName) && StringUtils.isNotEmpty(tenantId) ) {
+                if ( !searchCalculated ) {
                     // If there's no search parameter, value will be null or empty. We will
                     // instead have a search parameter like this:
                     //   (AND(AND(cat=tid:5914283)(NOT(cat=cloudfeeds:private))))
                     // There will be an extra 'AND' there with empty operand. The search works
                     // this way too.
-                    return String.format(TENANTED_SEARCH_FORMAT, tenantId, StringUtils.defaultIfEmpty(value, ""));
+                    search = String.format(TENANTED_SEARCH_FORMAT,
+                                           tenantId,
+                                           StringUtils.defaultIfEmpty(super.getParameter(parameterName), ""));
+                    searchCalculated = true;
                 }
+                return search;
             }
-            return value;
+            return super.getParameter(parameterName);
         }
 
         @Override
         public String getRequestURI() {
-            String uri = super.getRequestURI();
-
             // strip the tenantId part, if this is a tenanted URL
-            Matcher matcher = TENANTED_URI_PATTERN.matcher(uri);
-            if ( matcher.matches() ) {
-                String afterTenantId = matcher.group(3);
-                if ( afterTenantId != null ) {
-                    return matcher.group(1).replaceAll("/$", "") + matcher.group(3);
-                } else {
-                    return matcher.group(1).replaceAll("/$", "");
-                }
-            }
-            return uri;
+            return tenantedUri.getUntenantedUri();
         }
 
         public String getTenantId() {
@@ -188,77 +187,38 @@ public class TenantedFilter implements Filter {
             if ( StringUtils.isEmpty(uri) ) {
                 throw new IllegalArgumentException("Empty uri");
             }
-
-            Matcher matcher = TENANTED_URI_PATTERN.matcher(uri);
-            if ( !matcher.matches() ) {
-                return null;
-            }
-            return matcher.group(2);
+            return TenantedUri.of(request).getTenantId();
         }
     }
 
     /**
      * Wrapper class for HttpServletResponse that understands tenanted requests.
-     * If the tenantId exists in the URI:
+     * If the tenantId exists in the URI, it rewrites the LINK header(s) with TenantedLinks:
      * <ul>
      *     <li>it adds the tenantId back to the URI</li>
      *     <li>it removes the tenanted search from the 'search' query parameter</li>
      * </ul>
      */
-    static class TenantedResponse extends HttpServletResponseWrapper {
-
-        private String tenantId = null;
+    static class TenantedResponse extends LinkRewritingResponseWrapper {
 
         public TenantedResponse(HttpServletResponse response, String tenantId) {
-            super(response);
-            this.tenantId = tenantId;
-        }
-
-        public void setHeader(String name, String value) {
-            String newLink = calculateNewLinkHeaderMultiple(name, value, tenantId);
-            super.setHeader(name, newLink);
+            super(response, new LinkHeaderRewriter().add(tenantedLinks(tenantId).getLinkHeaderRewrite(), false));
         }
 
-        public void addHeader(String name, String value) {
-            String newLink = calculateNewLinkHeaderMultiple(name, value, tenantId);
-            super.addHeader(name, newLink);
+        /**
+         * Rewrites the LINK header(s) with the LinkHeaderRewriter of the request, which
+         * an outer filter may be applying already.
+         *
+         * @param request
+         * @param response
+         * @param tenantId
+         */
+        public TenantedResponse(HttpServletRequest request, HttpServletResponse response, String tenantId) {
+            super(response, LinkHeaderRewriter.register(request, tenantedLinks(tenantId).getLinkHeaderRewrite(), false));
         }
+    }
 
-        String calculateNewLinkHeaderMultiple(String name, String value, String tenantId) {
-            String newLink = value;
-            if ( LINK_HEADER.equalsIgnoreCase(name) && StringUtils.isNotBlank(value) ) {
-                // in case Link header contains multiple links
-                String[] links = value.split(LINK_DELIM);
-                if ( links != null ) {
-                    for (int idx=0; idx<links.length; idx++) {
-                        links[idx] = calculateANewLinkHeader(name, links[idx], tenantId);
-                    }
-                    newLink = StringUtils.join(links, LINK_DELIM);
-                    LOG.debug("joined multiple 'link' values together: " + newLink);
-                }
-            }
-            return newLink;
-        }
-
-        String calculateANewLinkHeader(String name, String value, String tenantId) {
-            if ( StringUtils.isNotBlank(tenantId) ) {
-                if ( name.equalsIgnoreCase(LINK_HEADER) ) {
-                    // re-insert tenantId
-                    String newValue = value.replaceAll("/events", "/events/" + tenantId);
-
-                    // strip the tenanted search format
-                    Matcher customMatcher = NORMALIZED_TENANTED_SEARCH_PATTERN.matcher(newValue);
-                    if ( customMatcher.matches() ) {
-                        String stripped = customMatcher.group(1) + customMatcher.group(3) + customMatcher.group(4);
-                        LOG.debug("Setting " + name + " header to " + stripped);
-                        return stripped;
-                    } else {
-                        return newValue;
-                    }
-
-                }
-            }
-            return value;
-        }
+    static TenantedLinks tenantedLinks(String tenantId) {
+        return new TenantedLinks(StringUtils.isNotBlank(tenantId) ? tenantId : "");
     }
 }
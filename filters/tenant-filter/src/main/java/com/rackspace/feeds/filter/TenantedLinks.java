@@ -0,0 +1,199 @@
+package com.rackspace.feeds.filter;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Rewrites the links of a response to a tenanted request: puts the tenantId back
+ * in the URI, and takes out the tenanted 'search' that TenantedRequest added.
+ * It is used both for the LINK header (through the LinkHeaderRewriter of the request)
+ * and for the Atom links in the body (by StreamingTenantedLinkRewriter). The tokens that depend on the
+ * tenantId are worked out once, when the instance is created for the request.
+ *
+ * The body links are rewritten exactly like rm-tenanted-search.xsl does:
+ * <ul>
+ *     <li>every '/events' becomes '/events/{tenantId}'</li>
+ *     <li>if it has the tenanted search without a user search, that is removed</li>
+ *     <li>if it has the tenanted search with a user search, every
+ *     'search=...' is replaced by the user search</li>
+ * </ul>
+ * The stylesheet does this with regular expressions built from the tenantId; here
+ * the same matches are found with plain substring searches.
+ */
+class TenantedLinks implements StreamingLinkRewriter.HrefRewrite {
+
+    static final String EVENTS = "/events";
+
+    static final String SEARCH = "search=";
+
+    static final String TENANTED_SEARCH_START = "%28AND%28cat%3Dtid%3A";
+
+    static final String CUSTOM_TENANTED_SEARCH_START = "%28AND%28AND%28cat%3Dtid%3A";
+
+    static final String TENANTED_SEARCH_END = "%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29";
+
+    static final String CLOSING_PARENTHESIS = "%29";
+
+    private final String tenantId;
+    private final String tenantedEvents;
+    private final String defaultSearch;
+    private final String customSearch;
+    private final String customSearchTerm;
+
+    private final LinkHeaderRewriter.UriRewrite linkHeaderRewrite = new LinkHeaderRewriter.UriRewrite() {
+        public String rewrite(String uri) {
+            return rewriteLinkHeader(uri);
+        }
+    };
+
+    /**
+     * @param tenantId  the tenantId of the request, may be blank
+     */
+    TenantedLinks(String tenantId) {
+        this.tenantId = tenantId;
+        this.tenantedEvents = EVENTS + "/" + tenantId;
+        this.defaultSearch = "&" + SEARCH + TENANTED_SEARCH_START + tenantId + TENANTED_SEARCH_END;
+        this.customSearchTerm = SEARCH + CUSTOM_TENANTED_SEARCH_START + tenantId + TENANTED_SEARCH_END;
+        this.customSearch = "&" + customSearchTerm;
+    }
+
+    boolean isTenanted() {
+        return StringUtils.isNotEmpty(tenantId);
+    }
+
+    /**
+     * @param url
+     * @return the url, with every '/events' followed by the tenantId
+     */
+    String insertTenantId(String url) {
+        return StringUtils.replace(url, EVENTS, tenantedEvents);
+    }
+
+    /**
+     * Rewrites the URI of a link of the LINK header. Unlike body links, the tenanted
+     * search is found like the NORMALIZED_TENANTED_SEARCH_PATTERN TenantedFilter used to run finds it,
+     * whatever its tenantId.
+     *
+     * @param value
+     * @return the new value
+     */
+    String rewriteLinkHeader(String value) {
+        if ( !isTenanted() ) {
+            return value;
+        }
+        return stripTenantedSearch(insertTenantId(value));
+    }
+
+    /**
+     * @return the rewrite of the URIs of the LINK header, for the LinkHeaderRewriter of the request
+     */
+    LinkHeaderRewriter.UriRewrite getLinkHeaderRewrite() {
+        return linkHeaderRewrite;
+    }
+
+    /**
+     * Takes out what NORMALIZED_TENANTED_SEARCH_PATTERN's (see TenantedPatterns)
+     * (.*)start(.*)end(.*)%29(.*) does not capture, without the backtracking of its
+     * greedy groups: the last tenanted search start followed by a tenanted search end
+     * followed by a %29, the tenantId between them, and that last %29.
+     *
+     * @param url
+     * @return the url without the tenanted search, or url if it has none
+     */
+    static String stripTenantedSearch(String url) {
+        int lastParenthesis = url.lastIndexOf(CLOSING_PARENTHESIS);
+        if ( lastParenthesis < 0 ) {
+            return url;
+        }
+        int end = url.lastIndexOf(TENANTED_SEARCH_END, lastParenthesis - TENANTED_SEARCH_END.length());
+        if ( end < 0 ) {
+            return url;
+        }
+        int start = url.lastIndexOf(CUSTOM_TENANTED_SEARCH_START, end - CUSTOM_TENANTED_SEARCH_START.length());
+        if ( start < 0 ) {
+            return url;
+        }
+        for ( int idx = 0; idx < url.length(); idx++ ) {
+            // '.' of the pattern doesn't match them
+            if ( TenantedUri.isLineTerminator(url.charAt(idx)) ) {
+                return url;
+            }
+        }
+        return new StringBuilder(url.length())
+                .append(url, 0, start)
+                .append(url, end + TENANTED_SEARCH_END.length(), lastParenthesis)
+                .append(url, lastParenthesis + CLOSING_PARENTHESIS.length(), url.length())
+                .toString();
+    }
+
+    /**
+     * Rewrites the @href of a body link, like the stripTenantedSearch template
+     * of rm-tenanted-search.xsl.
+     *
+     * @param href
+     * @return the new value
+     */
+    public String rewrite(String href) {
+        if ( !isTenanted() ) {
+            return href;
+        }
+
+        String tenantUrl = insertTenantId(href);
+        if ( tenantUrl.contains(defaultSearch) ) {
+            return StringUtils.replace(tenantUrl, defaultSearch, "");
+        }
+        if ( tenantUrl.contains(customSearch) ) {
+            return replaceSearch(tenantUrl, getUserSearch(href));
+        }
+        return tenantUrl;
+    }
+
+    /**
+     * Finds what the stylesheet's .*search=...tenanted search...(.*)%29.* captures:
+     * what is between the last tenanted search and the last %29 after it.
+     *
+     * @param url
+     * @return the user search, or "" if there is none
+     */
+    String getUserSearch(String url) {
+        int lastParenthesis = url.lastIndexOf(CLOSING_PARENTHESIS);
+        if ( lastParenthesis < 0 ) {
+            return "";
+        }
+        int start = url.lastIndexOf(customSearchTerm, lastParenthesis - customSearchTerm.length());
+        if ( start < 0 ) {
+            return "";
+        }
+        return url.substring(start + customSearchTerm.length(), lastParenthesis);
+    }
+
+    /**
+     * Replaces every 'search=' followed by anything but '&amp;' with 'search=' and
+     * the user search, like the stylesheet's replace() with 'search=[^&amp;]+'.
+     *
+     * @param url
+     * @param userSearch
+     * @return the new url
+     */
+    String replaceSearch(String url, String userSearch) {
+        StringBuilder result = new StringBuilder(url.length());
+        int from = 0;
+        int idx;
+        while ( (idx = url.indexOf(SEARCH, from)) >= 0 ) {
+            int valueStart = idx + SEARCH.length();
+            if ( valueStart == url.length() || url.charAt(valueStart) == '&' ) {
+                // an empty search does not match
+                result.append(url, from, valueStart);
+                from = valueStart;
+                continue;
+            }
+            int valueEnd = url.indexOf('&', valueStart);
+            if ( valueEnd < 0 ) {
+                valueEnd = url.length();
+            }
+            result.append(url, from, idx).append(SEARCH).append(userSearch);
+            from = valueEnd;
+        }
+        result.append(url, from, url.length());
+        return result.toString();
+    }
+}
@@ -0,0 +1,231 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The parts of a request URI the tenanted filters look at, found by hand, without
+ * regular expressions. It gives the same answers as the patterns the filters used to
+ * run (kept in the tests, see TenantedPatterns):
+ * <ul>
+ *     <li>FEEDS_URI_PATTERN, for {@link #isFeedsUri()}</li>
+ *     <li>TENANTED_URI_PATTERN, for {@link #getTenantId()} and {@link #getUntenantedUri()}</li>
+ *     <li>the entry pattern of TenantedEntryVerificationFilter, for {@link #getEntryTenantId()}</li>
+ * </ul>
+ * Like the greedy '.*' of the patterns, the last '/events/' the rest of the URI matches
+ * after is the one used.
+ *
+ * The URI is parsed into offsets once per request, see {@link #of(HttpServletRequest)};
+ * the strings are only cut out of it when asked for, once.
+ */
+final class TenantedUri {
+
+    /**
+     * Name of the request attribute holding the TenantedUri of the request URI
+     */
+    static final String URI_ATTRIBUTE = TenantedUri.class.getName();
+
+    static final String EVENTS = "/events";
+    static final String EVENTS_DIR = "/events/";
+    static final String ENTRIES_DIR = "/entries/";
+
+    private final String uri;
+    private final boolean feedsUri;
+
+    // TENANTED_URI_PATTERN: uri[0, prefixEnd) is group 1, uri[prefixEnd, tenantEnd) the tenantId
+    // and uri[tenantEnd, entryEnd) the '/entries/...' of group 3; prefixEnd is -1 if it doesn't match
+    private final int prefixEnd;
+    private final int tenantEnd;
+    private final int entryEnd;
+
+    // the entry pattern of TenantedEntryVerificationFilter: uri[entryTenantStart, entryTenantEnd)
+    // is the tenantId; entryTenantStart is -1 if it doesn't match
+    private final int entryTenantStart;
+    private final int entryTenantEnd;
+
+    private String tenantId = null;
+    private String untenantedUri = null;
+    private String entryTenantId = null;
+
+    /**
+     * @param request
+     * @return the TenantedUri of the URI of the request, parsed once per request and kept
+     *         as a request attribute
+     */
+    static TenantedUri of(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        Object parsed = request.getAttribute(URI_ATTRIBUTE);
+        if ( parsed instanceof TenantedUri && ((TenantedUri) parsed).uri.equals(uri) ) {
+            return (TenantedUri) parsed;
+        }
+        TenantedUri tenantedUri = parse(uri);
+        request.setAttribute(URI_ATTRIBUTE, tenantedUri);
+        return tenantedUri;
+    }
+
+    /**
+     * @param uri
+     * @return the TenantedUri of uri
+     */
+    static TenantedUri parse(String uri) {
+        return new TenantedUri(uri);
+    }
+
+    private TenantedUri(String uri) {
+        this.uri = uri;
+        int length = uri.length();
+
+        // '.' doesn't match line terminators, so the patterns can't match across them
+        int firstTerminator = length;
+        int lastTerminator = -1;
+        for ( int i = 0; i < length; i++ ) {
+            if ( isLineTerminator(uri.charAt(i)) ) {
+                if ( firstTerminator == length ) {
+                    firstTerminator = i;
+                }
+                lastTerminator = i;
+            }
+        }
+
+        feedsUri = firstTerminator == length && uri.contains(EVENTS);
+
+        int prefix = -1;
+        int tenant = -1;
+        int entry = -1;
+        int entryTenantFrom = -1;
+        int entryTenantTo = -1;
+        // the part before '/events/' is matched by '.*', so it must be before any line terminator
+        for ( int events = uri.lastIndexOf(EVENTS_DIR, firstTerminator);
+              events >= 0 && (prefix < 0 || entryTenantFrom < 0);
+              events = events > 0 ? uri.lastIndexOf(EVENTS_DIR, events - 1) : -1 ) {
+
+            int start = events + EVENTS_DIR.length();
+            int end = segmentEnd(uri, start);
+            if ( end == start ) {
+                continue;
+            }
+
+            if ( prefix < 0 ) {
+                // (/entries/[^/?]+)?/?(\?.*)?
+                int entryStart = end + ENTRIES_DIR.length();
+                int entryTo = uri.startsWith(ENTRIES_DIR, end) ? segmentEnd(uri, entryStart) : entryStart;
+                if ( entryTo > entryStart && endsTenantedUri(uri, entryTo, lastTerminator) ) {
+                    prefix = start;
+                    tenant = end;
+                    entry = entryTo;
+                } else if ( endsTenantedUri(uri, end, lastTerminator) ) {
+                    prefix = start;
+                    tenant = end;
+                    entry = end;
+                }
+            }
+
+            if ( entryTenantFrom < 0 && events > 0 && uri.startsWith(ENTRIES_DIR, end) ) {
+                // /entries/[^?]+
+                int rest = end + ENTRIES_DIR.length();
+                if ( rest < length && uri.indexOf('?', rest) < 0 ) {
+                    entryTenantFrom = start;
+                    entryTenantTo = end;
+                }
+            }
+        }
+        prefixEnd = prefix;
+        tenantEnd = tenant;
+        entryEnd = entry;
+        entryTenantStart = entryTenantFrom;
+        entryTenantEnd = entryTenantTo;
+    }
+
+    /**
+     * @param uri
+     * @param from
+     * @return the end of the [^/?]+ starting at from, from itself if there is none
+     */
+    private static int segmentEnd(String uri, int from) {
+        int end = from;
+        while ( end < uri.length() ) {
+            char c = uri.charAt(end);
+            if ( c == '/' || c == '?' ) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @param uri
+     * @param from
+     * @param lastTerminator  the index of the last line terminator of uri, -1 if there is none
+     * @return true if uri[from, ...) matches /?(\?.*)?
+     */
+    private static boolean endsTenantedUri(String uri, int from, int lastTerminator) {
+        int at = from;
+        if ( at < uri.length() && uri.charAt(at) == '/' ) {
+            at++;
+        }
+        if ( at == uri.length() ) {
+            return true;
+        }
+        return uri.charAt(at) == '?' && lastTerminator < at;
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return true if it is a URI of the feeds, the filters let other URIs through
+     */
+    boolean isFeedsUri() {
+        return feedsUri;
+    }
+
+    /**
+     * @return true if it is a tenanted feed or entry URI, /.../events/{tenantId}[/entries/{id}]
+     */
+    boolean isTenanted() {
+        return prefixEnd >= 0;
+    }
+
+    /**
+     * @return the tenantId of a tenanted URI, or null
+     */
+    String getTenantId() {
+        if ( tenantId == null && prefixEnd >= 0 ) {
+            tenantId = uri.substring(prefixEnd, tenantEnd);
+        }
+        return tenantId;
+    }
+
+    /**
+     * @return the URI without the tenantId, /.../events[/entries/{id}], if it is tenanted,
+     *         or the URI itself
+     */
+    String getUntenantedUri() {
+        if ( prefixEnd < 0 ) {
+            return uri;
+        }
+        if ( untenantedUri == null ) {
+            // the prefix without the '/' after 'events', and the entry if any
+            untenantedUri = new StringBuilder(prefixEnd - 1 + entryEnd - tenantEnd)
+                    .append(uri, 0, prefixEnd - 1)
+                    .append(uri, tenantEnd, entryEnd)
+                    .toString();
+        }
+        return untenantedUri;
+    }
+
+    /**
+     * @return the tenantId of a tenanted entry URI, .../events/{tenantId}/entries/{id}, or null
+     */
+    String getEntryTenantId() {
+        if ( entryTenantId == null && entryTenantStart >= 0 ) {
+            entryTenantId = uri.substring(entryTenantStart, entryTenantEnd);
+        }
+        return entryTenantId;
+    }
+}
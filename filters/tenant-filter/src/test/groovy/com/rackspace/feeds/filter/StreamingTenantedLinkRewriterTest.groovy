@@ -0,0 +1,77 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+
+class StreamingTenantedLinkRewriterTest extends Specification {
+
+    @Shared TransformerUtils xslt = TransformerUtils.getInstanceForXsltAsResource(TenantedFilter.XSLT_PATH)
+    @Shared StreamingTenantedLinkRewriter rewriter = new StreamingTenantedLinkRewriter()
+
+    String transformWithXslt(byte[] input, String tenantId) {
+        StringWriter writer = new StringWriter()
+        xslt.doTransform([tenantId: tenantId], new StreamSource(new ByteArrayInputStream(input)), new StreamResult(writer))
+        return writer.toString()
+    }
+
+    String transformStreaming(byte[] input, String tenantId) {
+        StringWriter writer = new StringWriter()
+        rewriter.transform(new ByteArrayInputStream(input), writer, [tenantId: tenantId])
+        return writer.toString()
+    }
+
+    static String feedWithLink(String href) {
+        return '<feed xmlns="http://www.w3.org/2005/Atom"><link href="' + href + '" rel="next"/></feed>'
+    }
+
+    def "should write the same feed as rm-tenanted-search.xsl"() {
+
+        given:
+        byte[] input = getClass().getResourceAsStream("/responses/functest1-get-feed-response.xml").bytes
+
+        when:
+        String streamed = transformStreaming(input, "5914283")
+
+        then:
+        streamed == transformWithXslt(input, "5914283")
+        !streamed.contains("cat%3Dtid%3A5914283")
+        streamed.contains("/functest1/events/5914283/")
+    }
+
+    @Unroll
+    def "should rewrite the link like rm-tenanted-search.xsl when #description"(String description, String href, String tenantId) {
+
+        given:
+        byte[] input = feedWithLink(href).getBytes("UTF-8")
+
+        expect:
+        transformStreaming(input, tenantId) == transformWithXslt(input, tenantId)
+
+        where:
+        description                     | tenantId | href
+        "there is no search"            | "12345"  | "https://a.b/feed/events/?limit=25&amp;direction=forward"
+        "there is the default search"   | "12345"  | "https://a.b/feed/events/?limit=25&amp;search=%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29&amp;direction=forward"
+        "there is only a tenant search" | "12345"  | "https://a.b/feed/events/?limit=25&amp;search=%28AND%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29&amp;direction=forward"
+        "there is a user search"        | "12345"  | "https://a.b/feed/events/?marker=last&amp;search=%28AND%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%28cat%3Dtype%3Aa.b%29%29&amp;direction=backward"
+        "the search is last"            | "12345"  | "https://a.b/feed/events/?limit=25&amp;search=%28AND%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%28cat%3Dx%29%29"
+        "it is another tenant's search" | "12345"  | "https://a.b/feed/events/?search=%28AND%28AND%28cat%3Dtid%3A999%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29"
+        "the tenantId is empty"         | ""       | "https://a.b/feed/events/?search=%28AND%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29"
+    }
+
+    def "TenantedLinks should find the user search"() {
+
+        given:
+        TenantedLinks links = new TenantedLinks("12345")
+        String prefix = "https://a.b/feed/events/?search=%28AND%28AND%28cat%3Dtid%3A12345%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29"
+
+        expect:
+        links.getUserSearch(prefix + "%28cat%3Dx%29%29&direction=forward") == "%28cat%3Dx%29"
+        links.getUserSearch(prefix + "%29") == ""
+        links.getUserSearch(prefix) == ""
+        links.replaceSearch("a?search=1&research=2&search=&b=3", "X") == "a?search=X&research=X&search=&b=3"
+    }
+}
@@ -1,7 +1,5 @@
 package com.rackspace.feeds.filter
 
-import org.w3c.dom.Document
-import org.xml.sax.InputSource
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Unroll
@@ -96,11 +94,9 @@ class TenantedEntryVerificationFilterTest extends Specification {
         given:
         def verificationFilter = new TenantedEntryVerificationFilter();
         String expectedContentTid = "tid:" + tenantId;
-        Document doc = verificationFilter.builderFactory.newDocumentBuilder()
-                .parse(new InputSource(new StringReader(responseXML)));
 
         when:
-        String contentTid = verificationFilter.getTenantIdFromResponse(doc);
+        String contentTid = verificationFilter.getTenantIdFromResponse(new ByteArrayInputStream(responseXML.getBytes("UTF-8")));
 
         then:
         assert contentTid == expectedContentTid
@@ -115,11 +111,9 @@ class TenantedEntryVerificationFilterTest extends Specification {
 
         given:
         def verificationFilter = new TenantedEntryVerificationFilter();
-        Document doc = verificationFilter.builderFactory.newDocumentBuilder()
-                .parse(new InputSource(new StringReader(responseXML)));
 
         when:
-        boolean isPrivateEvent = verificationFilter.isPrivateEvent(doc);
+        boolean isPrivateEvent = verificationFilter.isPrivateEvent(new ByteArrayInputStream(responseXML.getBytes("UTF-8")));
 
         then:
         assert isPrivateEvent == result;
@@ -132,11 +126,8 @@ class TenantedEntryVerificationFilterTest extends Specification {
 
     @Unroll
     def "method request with #uri should not match tenantId url pattern"(String uri) {
-        when:
-        def tenantedEntryVerificationFilter = new TenantedEntryVerificationFilter()
-
-        then:
-        assert tenantedEntryVerificationFilter.getTenantIdFromRequestURI(uri) == null
+        expect:
+        assert TenantedUri.parse(uri).getEntryTenantId() == null
 
         where:
         uri << [ "/random/333222",
@@ -151,9 +142,11 @@ class TenantedEntryVerificationFilterTest extends Specification {
         def mockedResponse = mock(HttpServletResponse);
         def servletOutputStream = mock(ServletOutputStream)
         when(mockedResponse.getOutputStream()).thenReturn(servletOutputStream);
+        def buffer = new ChunkedBuffer()
+        buffer.write(responseXML.getBytes("UTF-8"))
 
         when:
-        verificationFilter.validateEntryAndUpdateResponse(mockedResponse, tenantId, responseXML);
+        verificationFilter.validateEntryAndUpdateResponse(mockedResponse, tenantId, buffer);
 
         then:
         verify(mockedResponse).setStatus(eq(responseStatusCode));
@@ -164,4 +157,38 @@ class TenantedEntryVerificationFilterTest extends Specification {
                                              ]
     }
 
+    def "should ignore categories that are not children of the entry"() {
+        given:
+        def verificationFilter = new TenantedEntryVerificationFilter()
+        String responseXML = "<entry xmlns=\"http://www.w3.org/2005/Atom\">" +
+                             "<content><entry><category term=\"cloudfeeds:private\"/><category term=\"tid:1\"/></entry></content>" +
+                             "<category xmlns=\"urn:other\" term=\"tid:2\"/>" +
+                             "<category term=\"tid:" + tenantId + "\"/>" +
+                             "</entry>"
+
+        when:
+        def categories = verificationFilter.scanCategories(new ByteArrayInputStream(responseXML.getBytes("UTF-8")), null)
+
+        then:
+        categories.getTenantTerm() == "tid:" + tenantId
+        !categories.isPrivateEvent()
+    }
+
+    def "should write the original bytes when the entry is visible to the tenant"() {
+        given:
+        def verificationFilter = new TenantedEntryVerificationFilter()
+        def mockedResponse = mock(HttpServletResponse)
+        def output = new ByteArrayOutputStream()
+        when(mockedResponse.getOutputStream()).thenReturn(new ServletOutputStreamWrapper(output))
+        byte[] responseBytes = getSampleResponseXMLWithDefaultNamespace(tenantId).replace("Atom Hopper Team", "\u00c9quipe Atom Hopper").getBytes("UTF-8")
+        def buffer = new ChunkedBuffer()
+        buffer.write(responseBytes)
+
+        when:
+        verificationFilter.validateEntryAndUpdateResponse(mockedResponse, tenantId, buffer)
+
+        then:
+        verify(mockedResponse, never()).setStatus(anyInt())
+        output.toByteArray() == responseBytes
+    }
 }
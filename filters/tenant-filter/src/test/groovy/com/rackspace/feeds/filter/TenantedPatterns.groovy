@@ -0,0 +1,31 @@
+package com.rackspace.feeds.filter
+
+import java.util.regex.Pattern
+
+/**
+ * The regular expressions the tenanted filters used to run on the request URI and the
+ * LINK header, which TenantedUri and TenantedLinks now parse by hand. The tests check
+ * that both give the same answers.
+ */
+class TenantedPatterns {
+
+    /**
+     * The URIs TenantedFilter acts on
+     */
+    static final Pattern FEEDS_URI_PATTERN = Pattern.compile(".*/events.*")
+
+    /**
+     * What a tenanted URI looks like
+     */
+    static final Pattern TENANTED_URI_PATTERN = Pattern.compile("(.*/events/)([^/?]+)(/entries/[^/?]+)?/?(\\?.*)?")
+
+    /**
+     * What a tenanted 'search' parameter looks like in a normalized URI
+     */
+    static final Pattern NORMALIZED_TENANTED_SEARCH_PATTERN = Pattern.compile("(.*)%28AND%28AND%28cat%3Dtid%3A(.*)%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29(.*)%29(.*)")
+
+    /**
+     * What a tenanted entry URI looks like, for TenantedEntryVerificationFilter
+     */
+    static final Pattern ENTRY_URI_PATTERN = Pattern.compile(".+/events/([^/?]+)/entries/[^?]+")
+}
@@ -2,8 +2,11 @@ package com.rackspace.feeds.filter
 
 import spock.lang.Shared
 import spock.lang.Specification
+import spock.lang.Unroll
 
+import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
+import java.util.regex.Matcher
 
 import static org.mockito.Mockito.*
 
@@ -68,5 +71,43 @@ class TenantedResponseTest extends Specification {
         verify(mockedResponse, only()).setHeader(TenantedFilter.LINK_HEADER, strippedOutLink)
     }
 
+    @Unroll
+    def "should strip the tenanted search of #url as NORMALIZED_TENANTED_SEARCH_PATTERN does"(String url) {
+        given:
+        Matcher matcher = TenantedPatterns.NORMALIZED_TENANTED_SEARCH_PATTERN.matcher(url)
+
+        expect:
+        TenantedLinks.stripTenantedSearch(url) == (matcher.matches() ? matcher.group(1) + matcher.group(3) + matcher.group(4) : url)
+
+        where:
+        url << [ "https://atom.myserver.com/myfeed/events/" + tenantId + "/?limit=25&search=%28AND%28AND%28cat%3Dtid%3A" +
+                     tenantId + "%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%28cat%3Dtype%3Aa%29%29&direction=backward",
+                 "https://atom.myserver.com/myfeed/events/" + tenantId + "/?search=%28AND%28AND%28cat%3Dtid%3A" +
+                     tenantId + "%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29",
+                 "https://atom.myserver.com/myfeed/events/" + tenantId + "/?search=%28AND%28AND%28cat%3Dtid%3A" +
+                     tenantId + "%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29",
+                 "https://atom.myserver.com/myfeed/events/?search=%28AND%28AND%28cat%3Dtid%3A1%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29" +
+                     "%28AND%28AND%28cat%3Dtid%3A2%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29%29",
+                 "https://atom.myserver.com/myfeed/events/?search=%28AND%28AND%28cat%3Dtid%3A1%29%28NOT%28cat%3Dcloudfeeds%3Aprivate%29%29%29%29\n",
+                 "https://atom.myserver.com/myfeed/events/?search=%28cat%3Dtype%3Aa%29",
+                 "" ]
+    }
+
+    def "Tenanted search, Link header should be rewritten by the LinkHeaderRewriter of an outer filter"() {
+        given:
+        String tenantedLink = "<https://atom.myserver.com/myfeed/events/?limit=25>; rel=next"
+        LinkHeaderRewriter outerRewriter = new LinkHeaderRewriter()
+
+        when:
+        HttpServletRequest mockedRequest = mock(HttpServletRequest)
+        when(mockedRequest.getAttribute(LinkHeaderRewriter.REWRITER_ATTRIBUTE)).thenReturn(outerRewriter)
+        HttpServletResponse mockedResponse = mock(HttpServletResponse)
+        TenantedFilter.TenantedResponse response = new TenantedFilter.TenantedResponse(mockedRequest, mockedResponse, tenantId)
+        response.setHeader(TenantedFilter.LINK_HEADER, tenantedLink)
 
+        then:
+        verify(mockedResponse, only()).setHeader(TenantedFilter.LINK_HEADER, tenantedLink)
+        outerRewriter.rewriteHeader(TenantedFilter.LINK_HEADER, tenantedLink) ==
+                "<https://atom.myserver.com/myfeed/events/" + tenantId + "/?limit=25>; rel=next"
+    }
 }
@@ -0,0 +1,157 @@
+package com.rackspace.feeds.filter
+
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.servlet.http.HttpServletRequest
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+import static org.mockito.Matchers.any
+import static org.mockito.Matchers.anyString
+import static org.mockito.Mockito.*
+
+class TenantedUriTest extends Specification {
+
+    @Shared Pattern entryPattern = TenantedPatterns.ENTRY_URI_PATTERN
+
+    @Shared List<String> uris = [
+            "",
+            "/",
+            "/buildinfo",
+            "/random/333222",
+            "/feedscatalog/catalog/333222",
+            "/events",
+            "/events/",
+            "/events/5914283",
+            "/functest1/events",
+            "/functest1/events/",
+            "/functest1/events/5914283",
+            "/functest1/events/5914283/",
+            "/functest1/events/5914283?marker=last&direction=backward",
+            "/functest1/events/5914283/?limit=25",
+            "/functest1/events/5914283/entries/urn:uuid:1415971f-ef5e-466f-b737-ed445bd36d29",
+            "/functest1/events/5914283/entries/urn:uuid:1415971f-ef5e-466f-b737-ed445bd36d29/",
+            "/functest1/events/5914283/entries/urn:uuid:1415971f?format=json",
+            "/functest1/events/5914283/entries/urn:uuid:1415971f/extra",
+            "/functest1/events/5914283/entries/",
+            "/functest1/events/5914283/entries",
+            "/functest1/events/5914283/other/urn:uuid:1415971f",
+            "/functest1/events//entries/urn:uuid:1415971f",
+            "/functest1/events/?search=cat",
+            "/functest1/eventsfeed/5914283",
+            "/events/events/5914283",
+            "/functest1/events/5914283/events/6000000",
+            "/functest1/events/5914283/events/6000000/entries/urn:uuid:1",
+            "/functest1/events/5914283/entries/urn:uuid:1/events/",
+            "/functest1/events/5914283?next=/events/6000000",
+            "/functest1/events/5914283\n",
+            "/functest1/events/59\n14283/entries/urn:uuid:1",
+            "/functest1\n/events/5914283",
+            "/functest1/events/5914283?marker=\n",
+            "/functest1/events/5914283/entries/urn:uuid:1?\u2028",
+            "/functest1\n/events/5914283?next=/events/6000000",
+    ]
+
+    @Unroll
+    def "should parse #uri as TENANTED_URI_PATTERN does"(String uri) {
+
+        given:
+        Matcher matcher = TenantedPatterns.TENANTED_URI_PATTERN.matcher(uri)
+        boolean tenanted = matcher.matches()
+
+        when:
+        TenantedUri tenantedUri = TenantedUri.parse(uri)
+
+        then:
+        tenantedUri.isTenanted() == tenanted
+        tenantedUri.getTenantId() == (tenanted ? matcher.group(2) : null)
+        tenantedUri.getUntenantedUri() == (tenanted ? matcher.group(1).replaceAll('/$', "") + (matcher.group(3) ?: "")
+                                                    : uri)
+
+        where:
+        uri << uris
+    }
+
+    @Unroll
+    def "should parse #uri as FEEDS_URI_PATTERN and the entry pattern of TenantedEntryVerificationFilter do"(String uri) {
+
+        given:
+        Matcher matcher = entryPattern.matcher(uri)
+
+        when:
+        TenantedUri tenantedUri = TenantedUri.parse(uri)
+
+        then:
+        tenantedUri.isFeedsUri() == TenantedPatterns.FEEDS_URI_PATTERN.matcher(uri).matches()
+        tenantedUri.getEntryTenantId() == (matcher.matches() ? matcher.group(1) : null)
+
+        where:
+        uri << uris
+    }
+
+    def "should parse the URI of a request once"() {
+
+        given:
+        HttpServletRequest request = request("/functest1/events/5914283")
+
+        when:
+        TenantedUri tenantedUri = TenantedUri.of(request)
+
+        then:
+        TenantedUri.of(request).is(tenantedUri)
+        new TenantedFilter.TenantedRequest(request).getRequestURI().is(tenantedUri.getUntenantedUri())
+        verify(request, times(1)).setAttribute(eq(TenantedUri.URI_ATTRIBUTE), any())
+    }
+
+    def "should parse the URI of a request again once it is changed"() {
+
+        given:
+        HttpServletRequest request = request("/functest1/events/5914283")
+        TenantedUri tenantedUri = TenantedUri.of(request)
+
+        when:
+        when(request.getRequestURI()).thenReturn("/functest1/events/6000000")
+
+        then:
+        !TenantedUri.of(request).is(tenantedUri)
+        TenantedUri.of(request).getTenantId() == "6000000"
+    }
+
+    def "should compute the tenanted search once"() {
+
+        given:
+        HttpServletRequest request = request("/functest1/events/5914283")
+        when(request.getParameter(TenantedFilter.SEARCH_PARAM)).thenReturn("(cat=cat1)")
+        TenantedFilter.TenantedRequest tenantedRequest = new TenantedFilter.TenantedRequest(request)
+
+        when:
+        String search = tenantedRequest.getParameter(TenantedFilter.SEARCH_PARAM)
+
+        then:
+        search == "(AND(AND(cat=tid:5914283)(NOT(cat=cloudfeeds:private)))(cat=cat1))"
+        tenantedRequest.getParameter(TenantedFilter.SEARCH_PARAM).is(search)
+        verify(request, times(1)).getParameter(TenantedFilter.SEARCH_PARAM)
+    }
+
+    static HttpServletRequest request(String uri) {
+        Map<String, Object> attributes = [:]
+        HttpServletRequest request = mock(HttpServletRequest)
+        when(request.getRequestURI()).thenReturn(uri)
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0])
+            }
+        })
+        doAnswer(new Answer<Void>() {
+            Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1])
+                return null
+            }
+        }).when(request).setAttribute(anyString(), any())
+        return request
+    }
+}
@@ -10,7 +10,10 @@ import java.io.IOException;
 import java.util.HashMap;
 
 /**
+ * Transforms the responses with the XSLT of its 'xsltPath' init param.
  *
+ * The filter publishes its FilterMetrics to the Yammer metrics registry, scoped by its
+ * filter name.
  */
 public class XsltFilter implements Filter {
 
@@ -18,6 +21,8 @@ public class XsltFilter implements Filter {
 
     private TransformerUtils transformer;
 
+    private FilterMetrics metrics;
+
     /**
      * This method is called once when the filter is first loaded.
      */
@@ -37,6 +42,9 @@ public class XsltFilter implements Filter {
             LOG.error( "Error loading Xslt: " + xsltPath );
             throw new ServletException( e );
         }
+        transformer.configure(filterConfig);
+        metrics = new FilterMetrics(XsltFilter.class, filterConfig.getFilterName());
+        transformer.setFilterMetrics(metrics);
     }
 
     public void doFilter (ServletRequest request, ServletResponse response,
@@ -46,8 +54,13 @@ public class XsltFilter implements Filter {
         HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         HttpServletResponse httpServletResponse = (HttpServletResponse) response;
 
-        transformer.doTransform(httpServletRequest, httpServletResponse, httpServletResponse,
-                                     chain, new HashMap<String, Object>());
+        long start = System.nanoTime();
+        try {
+            transformer.doTransform(httpServletRequest, httpServletResponse, httpServletResponse,
+                                    chain, new HashMap<String, Object>());
+        } finally {
+            metrics.filtered(request, start);
+        }
 
     }
 
@@ -0,0 +1,251 @@
+package com.rackspace.feeds.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends a mix of requests to the filter chain from a number of workers, each sending
+ * its next request as soon as it has the response to the previous one, and checks
+ * every response with ResponseChecker.
+ *
+ * The mix gives each kind of request a weight, e.g. "tenanted=4,entry=2,external=1,json=2,admin=1"
+ * sends 40% of tenanted pages, 20% of entries, and so on. The requests of the warmup aren't
+ * measured, but their responses are checked all the same.
+ */
+class LoadDriver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadDriver.class);
+
+    static final String DEFAULT_MIX = "tenanted=4,entry=2,external=1,json=2,admin=1";
+
+    static final int FIRST_TENANT_ID = 5914283;
+
+    static final int TENANTS = 100;
+
+    static final int TIMEOUT_MILLIS = 30000;
+
+    private final String baseUrl;
+    private final int threads;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final int limit;
+    private final RequestKind[] kinds;
+    private final int[] cumulativeWeights;
+
+    /**
+     * @param baseUrl         where the chain is, e.g. http://localhost:8080
+     * @param threads         how many workers send requests
+     * @param warmupMillis    how long the requests aren't measured for
+     * @param durationMillis  how long the requests are measured for, after the warmup
+     * @param limit           the entries per page
+     * @param mix             the weight of each kind of request, see parseMix()
+     */
+    LoadDriver(String baseUrl, int threads, long warmupMillis, long durationMillis, int limit,
+               Map<RequestKind, Integer> mix) {
+        this.baseUrl = baseUrl;
+        this.threads = threads;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+        this.limit = limit;
+
+        List<RequestKind> weighted = new ArrayList<RequestKind>();
+        List<Integer> weights = new ArrayList<Integer>();
+        int total = 0;
+        for ( Map.Entry<RequestKind, Integer> kind : mix.entrySet() ) {
+            if ( kind.getValue() > 0 ) {
+                total += kind.getValue();
+                weighted.add(kind.getKey());
+                weights.add(total);
+            }
+        }
+        if ( total == 0 ) {
+            throw new IllegalArgumentException("the mix has no requests: " + mix);
+        }
+        this.kinds = weighted.toArray(new RequestKind[weighted.size()]);
+        this.cumulativeWeights = new int[weights.size()];
+        for ( int i = 0; i < cumulativeWeights.length; i++ ) {
+            cumulativeWeights[i] = weights.get(i);
+        }
+
+        // the workers keep their connections alive, unless there are more of them than
+        // HttpURLConnection keeps by default
+        if ( System.getProperty("http.maxConnections") == null ) {
+            System.setProperty("http.maxConnections", String.valueOf(threads));
+        }
+    }
+
+    /**
+     * @param mix  e.g. "tenanted=4,entry=2,external=1,json=2,admin=1"; the kinds left
+     *             out aren't sent
+     * @return the weight of each kind of request
+     */
+    static Map<RequestKind, Integer> parseMix(String mix) {
+        Map<RequestKind, Integer> weights = new EnumMap<RequestKind, Integer>(RequestKind.class);
+        for ( String part : mix.split(",") ) {
+            String[] nameAndWeight = part.trim().split("=");
+            if ( nameAndWeight.length != 2 ) {
+                throw new IllegalArgumentException("mix must be a list of kind=weight: " + mix);
+            }
+            weights.put(RequestKind.valueOf(nameAndWeight[0].trim().toUpperCase()),
+                        Integer.parseInt(nameAndWeight[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Sends the requests for the warmup and the duration, and waits for the last responses.
+     *
+     * @return what was measured
+     * @throws InterruptedException
+     */
+    LoadReport run() throws InterruptedException {
+        long start = System.nanoTime();
+        final long measureFrom = start + warmupMillis * 1000000L;
+        final long measureTo = measureFrom + durationMillis * 1000000L;
+
+        final LoadReport report = new LoadReport(threads);
+        final LoadReport.Recorder[] recorders = new LoadReport.Recorder[threads];
+        Thread[] workers = new Thread[threads];
+        for ( int i = 0; i < threads; i++ ) {
+            final LoadReport.Recorder recorder = new LoadReport.Recorder();
+            recorders[i] = recorder;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work(recorder, measureFrom, measureTo);
+                }
+            }, "load-driver-" + i);
+            workers[i].start();
+        }
+
+        LOG.info("warming up for " + warmupMillis + "ms with " + threads + " workers");
+        sleepUntil(measureFrom);
+        report.startSampling();
+        LOG.info("measuring for " + durationMillis + "ms");
+        sleepUntil(measureTo);
+        for ( Thread worker : workers ) {
+            worker.join();
+        }
+        report.stopSampling(durationMillis);
+
+        for ( LoadReport.Recorder recorder : recorders ) {
+            report.add(recorder);
+        }
+        return report;
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long millis = (nanoTime - System.nanoTime()) / 1000000L;
+        if ( millis > 0 ) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void work(LoadReport.Recorder recorder, long measureFrom, long measureTo) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now;
+        while ( (now = System.nanoTime()) < measureTo ) {
+            RequestKind kind = pick(random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]));
+            String path = kind.path(String.valueOf(FIRST_TENANT_ID + random.nextInt(TENANTS)), limit);
+
+            Response response = send(kind, path);
+            long micros = (System.nanoTime() - now) / 1000L;
+
+            // checked once the latency is in, so that the check isn't measured
+            ResponseChecker.Problem problem = response.check(kind, limit);
+            if ( problem != null ) {
+                LOG.debug(kind.mixName() + " " + path + " " + problem);
+            }
+            if ( now >= measureFrom ) {
+                recorder.record(kind, micros, path, problem);
+            } else if ( problem != null ) {
+                // the warmup isn't measured, but its problems are still problems
+                recorder.recordProblem(kind, path, problem);
+            }
+        }
+    }
+
+    private RequestKind pick(int weight) {
+        for ( int i = 0; i < cumulativeWeights.length; i++ ) {
+            if ( weight < cumulativeWeights[i] ) {
+                return kinds[i];
+            }
+        }
+        return kinds[kinds.length - 1];
+    }
+
+    /**
+     * @param kind
+     * @param path
+     * @return the response, read to its end or to the error reading it
+     */
+    Response send(RequestKind kind, String path) {
+        Response response = new Response();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            for ( Map.Entry<String, String> header : kind.getHeaders().entrySet() ) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            response.status = connection.getResponseCode();
+            response.contentLength = connection.getContentLengthLong();
+            response.body = readFully(response.status >= 400 ? connection.getErrorStream()
+                                                             : connection.getInputStream());
+        } catch ( IOException e ) {
+            response.error = e;
+        }
+        return response;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if ( in == null ) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( (read = in.read(buffer)) != -1 ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A response as the driver received it
+     */
+    static class Response {
+
+        int status = -1;
+        long contentLength = -1;
+        byte[] body = null;
+        IOException error = null;
+
+        /**
+         * @param kind
+         * @param limit  the entries per page
+         * @return what is wrong with the response, or null if nothing is
+         */
+        ResponseChecker.Problem check(RequestKind kind, int limit) {
+            if ( error != null ) {
+                // once the status is in, the body was cut short
+                return new ResponseChecker.Problem(status > 0, error.toString());
+            }
+            return ResponseChecker.check(kind, kind.expectedEntries(limit), status, contentLength, body);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.rackspace.feeds.filter;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Boots the filter chain of feeds-atomhopper's web.xml in an embedded Jetty, in front of
+ * a StubAtomHopperServlet, and puts it under load with a LoadDriver. The filters are the
+ * ones of web.xml, in its order and with its init params, except for the files of /etc
+ * the build machine doesn't have:
+ * <ul>
+ *     <li>an xsltFile that doesn't exist is replaced by an identity stylesheet, or, for the
+ *     filters converting to JSON, by a stylesheet writing the document as JSON, so that the
+ *     JSON requests still get JSON</li>
+ *     <li>an envFile that doesn't exist is replaced by a feedscatalog.xml with an
+ *     externalVipURL</li>
+ * </ul>
+ * The same goes for the {stage}.xsltFile and {stage}.envFile params of FeedsPipelineFilter.
+ * The stub is async-supported if the servlet mapped to /* in web.xml is.
+ *
+ * The settings are system properties:
+ * <ul>
+ *     <li>harness.webXml: the web.xml, feeds-atomhopper/src/main/webapp/WEB-INF/web.xml by default</li>
+ *     <li>harness.port: the port of Jetty, any free port by default</li>
+ *     <li>harness.threads: how many workers send requests, 16 by default</li>
+ *     <li>harness.warmupSeconds: how long the requests aren't measured for, 5 by default</li>
+ *     <li>harness.durationSeconds: how long the requests are measured for, 30 by default</li>
+ *     <li>harness.limit: the entries per page, 25 by default</li>
+ *     <li>harness.mix: the weight of each kind of request, "tenanted=4,entry=2,external=1,json=2,admin=1"
+ *     by default</li>
+ *     <li>harness.contentLength: true to have the stub send the Content-Length of its bodies,
+ *     false, the default, to have it send them chunked, like Atom Hopper</li>
+ *     <li>harness.param.&lt;filter name&gt;.&lt;init param&gt;: sets an init param of a filter, e.g.
+ *     -Dharness.param.TenantedFilter.transformMode=streaming</li>
+ * </ul>
+ *
+ * Run with: java -jar load-harness/target/load-harness.jar, which exits with 1 if any
+ * response was wrong or truncated.
+ */
+public class LoadHarness {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadHarness.class);
+
+    static final String PREFIX = "harness.";
+
+    static final String PARAM_PREFIX = PREFIX + "param.";
+
+    static final String WEB_XML = "feeds-atomhopper/src/main/webapp/WEB-INF/web.xml";
+
+    static final String IDENTITY_XSLT = "/xslt/main-identity.xsl";
+
+    static final String XML2JSON_XSLT = "/xslt/main-xml2json.xsl";
+
+    static final String EXTERNAL_VIP_URL = "https://feeds.test.external.rackspace.com";
+
+    private final Properties settings;
+    private final List<File> tempFiles = new ArrayList<File>();
+    private Server server = null;
+    private StubAtomHopperServlet atomHopper = null;
+    private int port = 0;
+
+    /**
+     * @param settings  the harness.* settings
+     */
+    public LoadHarness(Properties settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness(System.getProperties());
+        LoadReport report;
+        harness.start();
+        try {
+            report = harness.run();
+        } finally {
+            harness.stop();
+        }
+        System.out.print(report);
+        System.exit(report.getFailures() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Boots Jetty with the filters of the web.xml.
+     *
+     * @throws Exception if the web.xml can't be read or a filter can't be initialized
+     */
+    public void start() throws Exception {
+        WebXmlChain chain = WebXmlChain.parse(webXml());
+        standIn(chain);
+        LOG.info("filter chain: " + chain.getMappedFilters());
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        chain.install(context);
+        atomHopper = new StubAtomHopperServlet(booleanSetting("contentLength"));
+        ServletHolder holder = new ServletHolder(atomHopper);
+        holder.setAsyncSupported(chain.isServletAsyncSupported("/*"));
+        context.addServlet(holder, "/*");
+
+        server = new Server(intSetting("port", 0));
+        server.setHandler(context);
+        server.start();
+        port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        LOG.info("filter chain listening on port " + port);
+    }
+
+    /**
+     * @return what the load driver measured
+     * @throws InterruptedException
+     */
+    public LoadReport run() throws InterruptedException {
+        LoadDriver driver = new LoadDriver("http://localhost:" + port,
+                                           intSetting("threads", 16),
+                                           intSetting("warmupSeconds", 5) * 1000L,
+                                           intSetting("durationSeconds", 30) * 1000L,
+                                           intSetting("limit", StubAtomHopperServlet.DEFAULT_LIMIT),
+                                           LoadDriver.parseMix(setting("mix", LoadDriver.DEFAULT_MIX)));
+        return driver.run();
+    }
+
+    /**
+     * Stops Jetty, and deletes the files standing in for the ones of /etc.
+     *
+     * @throws Exception
+     */
+    public void stop() throws Exception {
+        try {
+            if ( server != null ) {
+                server.stop();
+            }
+        } finally {
+            for ( File file : tempFiles ) {
+                if ( !file.delete() ) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the port Jetty listens on, once started
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the servlet standing in for Atom Hopper, once started
+     */
+    public StubAtomHopperServlet getAtomHopper() {
+        return atomHopper;
+    }
+
+    private File webXml() {
+        String path = settings.getProperty(PREFIX + "webXml");
+        if ( path != null ) {
+            return new File(path);
+        }
+        // from the root of the project, or from this module when Maven runs the tests
+        File webXml = new File(WEB_XML);
+        return webXml.exists() ? webXml : new File("..", WEB_XML);
+    }
+
+    /**
+     * Replaces the files of /etc this machine doesn't have, then sets the init params
+     * of the harness.param.* settings.
+     *
+     * @param chain
+     * @throws IOException if a stand in can't be written
+     */
+    void standIn(WebXmlChain chain) throws IOException {
+        File identityXslt = null;
+        File xml2JsonXslt = null;
+        File envFile = null;
+        for ( WebXmlChain.FilterDefinition filter : chain.getMappedFilters() ) {
+            // FeedsPipelineFilter has the params of its stages, prefixed with their names
+            for ( String param : new ArrayList<String>(filter.initParams.keySet()) ) {
+                String prefix = param.substring(0, param.lastIndexOf('.') + 1);
+
+                if ( param.equals(prefix + "xsltFile") ) {
+                    String xsltFile = filter.initParams.get(param);
+                    if ( !new File(xsltFile).exists() ) {
+                        File standIn;
+                        if ( filter.filterClass.contains("Xml2Json") || prefix.contains("Xml2Json") ) {
+                            if ( xml2JsonXslt == null ) {
+                                xml2JsonXslt = copyResource(XML2JSON_XSLT, "main-xml2json", ".xsl");
+                            }
+                            standIn = xml2JsonXslt;
+                        } else {
+                            if ( identityXslt == null ) {
+                                identityXslt = copyResource(IDENTITY_XSLT, "main-identity", ".xsl");
+                            }
+                            standIn = identityXslt;
+                        }
+                        LOG.info(filter.name + ": " + standIn + " stands in for " + xsltFile);
+                        filter.initParams.put(param, standIn.getPath());
+                    }
+                }
+
+                if ( param.equals(prefix + "envFile") ) {
+                    String envFilePath = filter.initParams.get(param);
+                    if ( !new File(envFilePath).exists() ) {
+                        if ( envFile == null ) {
+                            envFile = tempFile("feedscatalog", ".xml");
+                            String environment = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<environment>"
+                                                 + "<externalVipURL>" + EXTERNAL_VIP_URL + "</externalVipURL></environment>\n";
+                            Files.write(envFile.toPath(), environment.getBytes(Charset.forName("UTF-8")));
+                        }
+                        LOG.info(filter.name + ": " + envFile + " stands in for " + envFilePath);
+                        filter.initParams.put(param, envFile.getPath());
+                    }
+                }
+            }
+        }
+
+        for ( String name : settings.stringPropertyNames() ) {
+            if ( name.startsWith(PARAM_PREFIX) ) {
+                String filterAndParam = name.substring(PARAM_PREFIX.length());
+                int dot = filterAndParam.indexOf('.');
+                WebXmlChain.FilterDefinition filter = dot > 0 ? chain.getFilter(filterAndParam.substring(0, dot)) : null;
+                if ( filter == null ) {
+                    throw new IllegalArgumentException(name + " doesn't name a filter of the chain");
+                }
+                filter.initParams.put(filterAndParam.substring(dot + 1), settings.getProperty(name));
+            }
+        }
+    }
+
+    private File copyResource(String resource, String prefix, String suffix) throws IOException {
+        File file = tempFile(prefix, suffix);
+        InputStream in = LoadHarness.class.getResourceAsStream(resource);
+        try {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            in.close();
+        }
+        return file;
+    }
+
+    private File tempFile(String prefix, String suffix) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        tempFiles.add(file);
+        return file;
+    }
+
+    private String setting(String name, String defaultValue) {
+        return settings.getProperty(PREFIX + name, defaultValue);
+    }
+
+    private int intSetting(String name, int defaultValue) {
+        return Integer.parseInt(setting(name, String.valueOf(defaultValue)).trim());
+    }
+
+    private boolean booleanSetting(String name) {
+        return Boolean.parseBoolean(setting(name, "false").trim());
+    }
+}
@@ -0,0 +1,286 @@
+package com.rackspace.feeds.filter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a run of LoadDriver measured: the latency percentiles and throughput, overall
+ * and per kind of request, the errors and truncated responses, and what the run cost
+ * the JVM (threads, heap, GC). The heap and threads are sampled every 100ms while the
+ * requests are measured.
+ *
+ * Every worker records into its own Recorder, which are added to the report at the end,
+ * so that recording doesn't add contention to the run it measures.
+ */
+class LoadReport {
+
+    static final long SAMPLE_MILLIS = 100;
+
+    static final int MAX_PROBLEMS = 20;
+
+    private final int threads;
+    private final Map<RequestKind, long[]> latencies = new EnumMap<RequestKind, long[]>(RequestKind.class);
+    private final Map<RequestKind, int[]> failures = new EnumMap<RequestKind, int[]>(RequestKind.class);
+    private final List<String> problems = new ArrayList<String>();
+    private long measuredMillis = 0;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private int startThreads = 0;
+    private int peakThreads = 0;
+    private long maxHeapUsed = 0;
+    private long gcCount = 0;
+    private long gcMillis = 0;
+    private Thread sampler = null;
+
+    /**
+     * @param threads  how many workers send the requests
+     */
+    LoadReport(int threads) {
+        this.threads = threads;
+        for ( RequestKind kind : RequestKind.values() ) {
+            latencies.put(kind, new long[0]);
+            failures.put(kind, new int[2]);
+        }
+    }
+
+    /**
+     * Starts sampling the threads and heap, at the start of the measured requests.
+     */
+    synchronized void startSampling() {
+        startThreads = threadBean.getThreadCount();
+        threadBean.resetPeakThreadCount();
+        gcCount = -totalGcCount();
+        gcMillis = -totalGcMillis();
+        sampler = new Thread(new Runnable() {
+            public void run() {
+                while ( !Thread.currentThread().isInterrupted() ) {
+                    sample();
+                    try {
+                        Thread.sleep(SAMPLE_MILLIS);
+                    } catch ( InterruptedException e ) {
+                        return;
+                    }
+                }
+            }
+        }, "load-report-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops sampling, at the end of the measured requests.
+     *
+     * @param measuredMillis  how long the requests were measured for
+     * @throws InterruptedException
+     */
+    synchronized void stopSampling(long measuredMillis) throws InterruptedException {
+        this.measuredMillis = measuredMillis;
+        sampler.interrupt();
+        sampler.join();
+        sample();
+        peakThreads = threadBean.getPeakThreadCount();
+        gcCount += totalGcCount();
+        gcMillis += totalGcMillis();
+    }
+
+    private synchronized void sample() {
+        maxHeapUsed = Math.max(maxHeapUsed, memoryBean.getHeapMemoryUsage().getUsed());
+    }
+
+    private static long totalGcCount() {
+        long count = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Adds what a worker recorded.
+     *
+     * @param recorder
+     */
+    synchronized void add(Recorder recorder) {
+        for ( RequestKind kind : RequestKind.values() ) {
+            long[] all = latencies.get(kind);
+            long[] recorded = recorder.latencies.get(kind);
+            int size = recorder.sizes.get(kind)[0];
+            long[] merged = Arrays.copyOf(all, all.length + size);
+            System.arraycopy(recorded, 0, merged, all.length, size);
+            latencies.put(kind, merged);
+
+            int[] counts = failures.get(kind);
+            int[] recordedCounts = recorder.failures.get(kind);
+            counts[0] += recordedCounts[0];
+            counts[1] += recordedCounts[1];
+        }
+        for ( String problem : recorder.problems ) {
+            if ( problems.size() < MAX_PROBLEMS ) {
+                problems.add(problem);
+            }
+        }
+    }
+
+    /**
+     * @return how many requests failed, truncated or not
+     */
+    synchronized int getFailures() {
+        int count = 0;
+        for ( int[] counts : failures.values() ) {
+            count += counts[0] + counts[1];
+        }
+        return count;
+    }
+
+    /**
+     * @return how many responses were truncated
+     */
+    synchronized int getTruncations() {
+        int count = 0;
+        for ( int[] counts : failures.values() ) {
+            count += counts[1];
+        }
+        return count;
+    }
+
+    /**
+     * @return how many requests were measured
+     */
+    synchronized int getRequests() {
+        int count = 0;
+        for ( long[] recorded : latencies.values() ) {
+            count += recorded.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return the first problems found, at most MAX_PROBLEMS
+     */
+    synchronized List<String> getProblems() {
+        return new ArrayList<String>(problems);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %9s %9s %9s %9s %9s %7s %9s%n",
+                                    "requests", "count", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors", "truncated"));
+        long[] all = new long[0];
+        int[] allFailures = new int[2];
+        for ( RequestKind kind : RequestKind.values() ) {
+            long[] recorded = latencies.get(kind);
+            if ( recorded.length > 0 ) {
+                appendLine(report, kind.mixName(), recorded, failures.get(kind));
+            }
+            long[] merged = Arrays.copyOf(all, all.length + recorded.length);
+            System.arraycopy(recorded, 0, merged, all.length, recorded.length);
+            all = merged;
+            allFailures[0] += failures.get(kind)[0];
+            allFailures[1] += failures.get(kind)[1];
+        }
+        appendLine(report, "all", all, allFailures);
+
+        report.append(String.format("%nworkers %d, threads %d at the start, %d at the peak%n",
+                                    threads, startThreads, peakThreads))
+              .append(String.format("heap used at most %d MB, %d GCs taking %d ms%n",
+                                    maxHeapUsed / (1024 * 1024), gcCount, gcMillis));
+        for ( String problem : problems ) {
+            report.append(problem).append(String.format("%n"));
+        }
+        return report.toString();
+    }
+
+    private void appendLine(StringBuilder report, String name, long[] micros, int[] counts) {
+        long[] sorted = micros.clone();
+        Arrays.sort(sorted);
+        double perSecond = measuredMillis > 0 ? sorted.length * 1000.0 / measuredMillis : 0;
+        report.append(String.format("%-10s %9d %9.1f %9.2f %9.2f %9.2f %7d %9d%n",
+                                    name, sorted.length, perSecond,
+                                    percentile(sorted, 0.5) / 1000.0,
+                                    percentile(sorted, 0.99) / 1000.0,
+                                    percentile(sorted, 0.999) / 1000.0,
+                                    counts[0], counts[1]));
+    }
+
+    /**
+     * @param sorted
+     * @param quantile
+     * @return the value of sorted at quantile, 0 if it is empty
+     */
+    static long percentile(long[] sorted, double quantile) {
+        if ( sorted.length == 0 ) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Records the requests of one worker: their latencies in microseconds, and their
+     * problems. It isn't thread safe.
+     */
+    static class Recorder {
+
+        private final Map<RequestKind, long[]> latencies = new EnumMap<RequestKind, long[]>(RequestKind.class);
+        private final Map<RequestKind, int[]> sizes = new EnumMap<RequestKind, int[]>(RequestKind.class);
+        private final Map<RequestKind, int[]> failures = new EnumMap<RequestKind, int[]>(RequestKind.class);
+        private final List<String> problems = new ArrayList<String>();
+
+        Recorder() {
+            for ( RequestKind kind : RequestKind.values() ) {
+                latencies.put(kind, new long[1024]);
+                sizes.put(kind, new int[1]);
+                failures.put(kind, new int[2]);
+            }
+        }
+
+        /**
+         * @param kind
+         * @param micros
+         * @param path     what was requested
+         * @param problem  what was wrong with the response, or null
+         */
+        void record(RequestKind kind, long micros, String path, ResponseChecker.Problem problem) {
+            long[] recorded = latencies.get(kind);
+            int[] size = sizes.get(kind);
+            if ( size[0] == recorded.length ) {
+                recorded = Arrays.copyOf(recorded, recorded.length * 2);
+                latencies.put(kind, recorded);
+            }
+            recorded[size[0]++] = micros;
+
+            if ( problem != null ) {
+                recordProblem(kind, path, problem);
+            }
+        }
+
+        /**
+         * @param kind
+         * @param path     what was requested
+         * @param problem  what was wrong with the response
+         */
+        void recordProblem(RequestKind kind, String path, ResponseChecker.Problem problem) {
+            failures.get(kind)[problem.truncated ? 1 : 0]++;
+            if ( problems.size() < MAX_PROBLEMS ) {
+                problems.add(kind.mixName() + " " + path + " " + problem);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.rackspace.feeds.filter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The kinds of requests LoadDriver sends, each going through a different set of
+ * filters of the chain.
+ */
+enum RequestKind {
+
+    /**
+     * a page of a tenanted feed: TenantedFilter and PrivateAttrsFilter transform it
+     */
+    TENANTED(false, Collections.<String, String>emptyMap()),
+
+    /**
+     * a tenanted entry: TenantedEntryVerificationFilter buffers and verifies it, after
+     * TenantedFilter and PrivateAttrsFilter transformed it
+     */
+    ENTRY(false, Collections.<String, String>emptyMap()),
+
+    /**
+     * a page of a tenanted feed, with the external links Repose asks for: ExternalHrefFilter
+     * transforms it too
+     */
+    EXTERNAL(false, Collections.singletonMap("x-external-loc", "true")),
+
+    /**
+     * a page of a tenanted feed, in JSON: Xml2JsonFilter transforms it too
+     */
+    JSON(true, Collections.singletonMap("Accept", "application/vnd.rackspace.atom+json")),
+
+    /**
+     * a page of a feed, for a service admin: no filter transforms it
+     */
+    ADMIN(false, Collections.singletonMap("x-roles", "cloudfeeds:service-admin"));
+
+    static final String FEED_PATH = "/functest1/events";
+
+    private final boolean json;
+    private final Map<String, String> headers;
+
+    RequestKind(boolean json, Map<String, String> headers) {
+        this.json = json;
+        this.headers = headers;
+    }
+
+    /**
+     * @return true if the response is JSON, false if it is Atom
+     */
+    boolean isJson() {
+        return json;
+    }
+
+    /**
+     * @return the headers of the request
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param tenantId
+     * @param limit     the entries per page
+     * @return the path and query of the request
+     */
+    String path(String tenantId, int limit) {
+        switch ( this ) {
+            case ENTRY:
+                return FEED_PATH + "/" + tenantId + "/entries/" + StubAtomHopperServlet.id(limit - 1);
+            case ADMIN:
+                return FEED_PATH + "?limit=" + limit;
+            default:
+                return FEED_PATH + "/" + tenantId + "?limit=" + limit;
+        }
+    }
+
+    /**
+     * @param limit  the entries per page
+     * @return how many entries the response has
+     */
+    int expectedEntries(int limit) {
+        return this == ENTRY ? 1 : limit;
+    }
+
+    /**
+     * @return the name of the kind in the mix, e.g. 'tenanted'
+     */
+    String mixName() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,163 @@
+package com.rackspace.feeds.filter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Checks that a response went through the chain whole. Every entry the stub serves has
+ * the same product name, with a non ASCII letter in it, so a body is whole when:
+ * <ul>
+ *     <li>its length is its Content-Length, if it has one</li>
+ *     <li>it is well formed: Atom is parsed to its end, JSON has its brackets and quotes
+ *     balanced</li>
+ *     <li>it has the product name once per entry the stub served, which also catches
+ *     bodies decoded or encoded in the wrong charset</li>
+ * </ul>
+ */
+class ResponseChecker {
+
+    static final String PRODUCT_NAME = "Cloud Big Data \u00e9dition";
+
+    static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+
+    private ResponseChecker() {
+    }
+
+    /**
+     * @param kind
+     * @param expectedEntries  how many entries the stub served
+     * @param status
+     * @param contentLength    the Content-Length of the response, or -1
+     * @param body
+     * @return what is wrong with the response, or null if nothing is
+     */
+    static Problem check(RequestKind kind, int expectedEntries, int status, long contentLength, byte[] body) {
+        if ( status != 200 ) {
+            return new Problem(false, "status " + status + ": " + head(body));
+        }
+        if ( contentLength >= 0 && contentLength != body.length ) {
+            return new Problem(true, "Content-Length " + contentLength + " but " + body.length + " bytes");
+        }
+
+        String text = new String(body, StubAtomHopperServlet.UTF_8);
+        String malformed = kind.isJson() ? checkJson(text) : checkAtom(kind, expectedEntries, body);
+        if ( malformed != null ) {
+            return new Problem(true, malformed + " after " + body.length + " bytes: ..." + tail(text));
+        }
+
+        int products = count(text, PRODUCT_NAME);
+        if ( products != expectedEntries ) {
+            // the body is whole, but not in UTF-8
+            return new Problem(false, products + " of " + expectedEntries + " product names in UTF-8");
+        }
+        return null;
+    }
+
+    private static String checkAtom(RequestKind kind, int expectedEntries, byte[] body) {
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(body));
+            try {
+                int entries = 0;
+                String root = null;
+                while ( reader.hasNext() ) {
+                    if ( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+                        if ( root == null ) {
+                            root = reader.getLocalName();
+                        }
+                        if ( "entry".equals(reader.getLocalName()) && ATOM_NAMESPACE.equals(reader.getNamespaceURI()) ) {
+                            entries++;
+                        }
+                    }
+                }
+                String expectedRoot = kind == RequestKind.ENTRY ? "entry" : "feed";
+                if ( !expectedRoot.equals(root) ) {
+                    return "root element " + root + " instead of " + expectedRoot;
+                }
+                if ( entries != expectedEntries ) {
+                    return entries + " of " + expectedEntries + " entry elements";
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch ( XMLStreamException e ) {
+            return "not well formed: " + e.getMessage();
+        }
+    }
+
+    private static String checkJson(String json) {
+        int depth = 0;
+        boolean inString = false;
+        for ( int i = 0; i < json.length(); i++ ) {
+            char c = json.charAt(i);
+            if ( inString ) {
+                if ( c == '\\' ) {
+                    i++;
+                } else if ( c == '"' ) {
+                    inString = false;
+                }
+            } else if ( c == '"' ) {
+                inString = true;
+            } else if ( c == '{' || c == '[' ) {
+                depth++;
+            } else if ( c == '}' || c == ']' ) {
+                depth--;
+                if ( depth < 0 ) {
+                    return "unbalanced JSON";
+                }
+            }
+        }
+        if ( inString || depth != 0 ) {
+            return "unterminated JSON";
+        }
+        return json.trim().startsWith("{") ? null : "not a JSON object";
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for ( int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length()) ) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String head(byte[] body) {
+        String text = new String(body, 0, Math.min(body.length, 200), StubAtomHopperServlet.UTF_8);
+        return text.replaceAll("\\s+", " ");
+    }
+
+    private static String tail(String text) {
+        return text.substring(Math.max(0, text.length() - 80)).replaceAll("\\s+", " ");
+    }
+
+    /**
+     * What is wrong with a response
+     */
+    static class Problem {
+
+        final boolean truncated;
+        final String message;
+
+        Problem(boolean truncated, String message) {
+            this.truncated = truncated;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return (truncated ? "truncated: " : "error: ") + message;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.rackspace.feeds.filter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for AtomHopperServlet behind the filters: it serves synthetic pages of
+ * usage entries for any feed, and the entries themselves, with the links, Link header
+ * and tenant categories Atom Hopper writes. The tenant is taken from the search
+ * TenantedFilter adds, so a tenanted entry always belongs to the tenant of its URI.
+ *
+ * A page has as many entries as the limit param asks for, 25 by default, which is
+ * how ResponseChecker tells a whole page from a truncated one.
+ */
+public class StubAtomHopperServlet extends HttpServlet {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String ATOM_CONTENT_TYPE = "application/atom+xml; charset=UTF-8";
+
+    static final String DEFAULT_TENANT_ID = "5914283";
+
+    static final int DEFAULT_LIMIT = 25;
+
+    static final int MAX_LIMIT = 1000;
+
+    static final Pattern ENTRY_URI_PATTERN = Pattern.compile("(.*/events)/entries/(urn:uuid:[^/?]+)/?");
+
+    static final Pattern TENANT_SEARCH_PATTERN = Pattern.compile(".*cat=tid:([^)]+)\\).*");
+
+    private final boolean contentLength;
+
+    private final AtomicLong asyncRequests = new AtomicLong();
+
+    /**
+     * @param contentLength  true to send the Content-Length of the bodies, false to send
+     *                       them chunked
+     */
+    public StubAtomHopperServlet(boolean contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        if ( request.isAsyncStarted() ) {
+            asyncRequests.incrementAndGet();
+        }
+
+        String search = request.getParameter("search");
+        String tenantId = DEFAULT_TENANT_ID;
+        if ( search != null ) {
+            Matcher matcher = TENANT_SEARCH_PATTERN.matcher(search);
+            if ( matcher.matches() ) {
+                tenantId = matcher.group(1);
+            }
+        }
+
+        String base = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort();
+        String body;
+        Matcher entry = ENTRY_URI_PATTERN.matcher(request.getRequestURI());
+        if ( entry.matches() ) {
+            body = entry(base + entry.group(1), entry.group(2), tenantId, true);
+        } else {
+            String feedUrl = base + request.getRequestURI().replaceAll("/$", "");
+            int limit = limit(request.getParameter("limit"));
+            String query = "limit=" + limit + (search != null ? "&search=" + URLEncoder.encode(search, "UTF-8") : "");
+            response.setHeader("Link", linkHeader(feedUrl, query, limit));
+            body = feed(feedUrl, query, tenantId, limit);
+        }
+
+        byte[] bytes = body.getBytes(UTF_8);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(ATOM_CONTENT_TYPE);
+        if ( contentLength ) {
+            response.setContentLength(bytes.length);
+        }
+        response.getOutputStream().write(bytes);
+    }
+
+    /**
+     * @return how many requests a filter in front had put in async mode
+     */
+    long getAsyncRequests() {
+        return asyncRequests.get();
+    }
+
+    static int limit(String limit) {
+        try {
+            return limit == null ? DEFAULT_LIMIT : Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limit)));
+        } catch ( NumberFormatException e ) {
+            return DEFAULT_LIMIT;
+        }
+    }
+
+    static String id(int i) {
+        return String.format("urn:uuid:c2575a57-9c31-41dd-0888-%012d", i);
+    }
+
+    private static String linkHeader(String feedUrl, String query, int limit) {
+        return "<" + feedUrl + "/?marker=" + id(0) + "&" + query + "&direction=forward>; rel=\"previous\", <"
+               + feedUrl + "/?marker=" + id(limit - 1) + "&" + query + "&direction=backward>; rel=\"next\"";
+    }
+
+    private static String feed(String feedUrl, String query, String tenantId, int limit) {
+        String escapedQuery = query.replace("&", "&amp;");
+        StringBuilder feed = new StringBuilder(1024 + limit * 1536);
+        feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n")
+            .append("  <link href=\"").append(feedUrl).append("/\" rel=\"current\"/>\n")
+            .append("  <link href=\"").append(feedUrl).append("/?").append(escapedQuery)
+            .append("&amp;direction=backward\" rel=\"self\"/>\n")
+            .append("  <id>urn:uuid:8a19f709-820e-4e4e-bffb-dd0fb5879071</id>\n")
+            .append("  <title type=\"text\">functest1/events</title>\n")
+            .append("  <link href=\"").append(feedUrl).append("/?marker=").append(id(0)).append("&amp;")
+            .append(escapedQuery).append("&amp;direction=forward\" rel=\"previous\"/>\n")
+            .append("  <link href=\"").append(feedUrl).append("/?marker=").append(id(limit - 1)).append("&amp;")
+            .append(escapedQuery).append("&amp;direction=backward\" rel=\"next\"/>\n")
+            .append("  <updated>2014-09-11T03:12:40.085Z</updated>\n");
+        for ( int i = 0; i < limit; i++ ) {
+            feed.append(entry(feedUrl, id(i), tenantId, false));
+        }
+        return feed.append("</feed>\n").toString();
+    }
+
+    private static String entry(String feedUrl, String id, String tenantId, boolean document) {
+        StringBuilder entry = new StringBuilder(1536);
+        if ( document ) {
+            entry.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        }
+        entry.append("  <entry xmlns=\"http://www.w3.org/2005/Atom\">\n")
+             .append("    <id>").append(id).append("</id>\n")
+             .append("    <category term=\"tid:").append(tenantId).append("\"/>\n")
+             .append("    <category term=\"rgn:DFW\"/>\n")
+             .append("    <category term=\"type:bigdata.bigdata.hbase_hdp1_3.usage\"/>\n")
+             .append("    <title type=\"text\">Cloud Big Data</title>\n")
+             .append("    <author><name>Atom Hopper Team</name></author>\n")
+             .append("    <content type=\"application/xml\">\n")
+             .append("      <event xmlns=\"http://docs.rackspace.com/core/event\"")
+             .append(" xmlns:bigdata=\"http://docs.rackspace.com/usage/bigdata\" dataCenter=\"DFW1\"")
+             .append(" endTime=\"2013-03-16T11:51:11Z\" environment=\"PROD\" id=\"").append(id.substring(9))
+             .append("\" region=\"DFW\" resourceId=\"56\" startTime=\"2013-03-15T11:51:11Z\" tenantId=\"")
+             .append(tenantId).append("\" type=\"USAGE\" version=\"1\">\n")
+             .append("        <bigdata:product aggregatedClusterDuration=\"259200000\" bandwidthIn=\"1024\"")
+             .append(" bandwidthOut=\"19992\" flavorId=\"10\" flavorName=\"Cloud Big Data \u00e9dition\"")
+             .append(" numberServersInCluster=\"3000\" resourceType=\"HBASE_HDP1_3\" serviceCode=\"BigData\" version=\"1\"/>\n")
+             .append("      </event>\n")
+             .append("    </content>\n")
+             .append("    <link href=\"").append(feedUrl).append("/entries/").append(id).append("\" rel=\"self\"/>\n")
+             .append("    <updated>2014-09-28T05:38:59.995Z</updated>\n")
+             .append("    <published>2014-09-28T05:38:59.995Z</published>\n")
+             .append("  </entry>\n");
+        return entry.toString();
+    }
+}
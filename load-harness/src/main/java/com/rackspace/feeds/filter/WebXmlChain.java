@@ -0,0 +1,182 @@
+package com.rackspace.feeds.filter;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.ServletContextListener;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The filter chain of a web.xml: its context params, its listeners, and its filters in the
+ * order of their filter-mappings, which is the order the container runs them in. The
+ * commented out examples are left out, like the container does. Of the servlets, only
+ * whether they are async-supported is kept, for the servlet standing in for them.
+ *
+ * Only the listeners of this project are kept: the ones of Atom Hopper, Spring and logback
+ * need the configuration in /etc of a real server.
+ */
+class WebXmlChain {
+
+    static final String FEEDS_PACKAGE = "com.rackspace.feeds.";
+
+    private final Map<String, String> contextParams = new LinkedHashMap<String, String>();
+    private final List<String> listeners = new ArrayList<String>();
+    private final Map<String, FilterDefinition> filters = new LinkedHashMap<String, FilterDefinition>();
+    private final List<String[]> mappings = new ArrayList<String[]>();
+    private final Map<String, Boolean> servletsAsyncSupported = new LinkedHashMap<String, Boolean>();
+    private final Map<String, String> servletMappings = new LinkedHashMap<String, String>();
+
+    /**
+     * @param webXml
+     * @return the chain of the web.xml
+     * @throws Exception if the web.xml can't be read
+     */
+    static WebXmlChain parse(File webXml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(false);
+        Document document = factory.newDocumentBuilder().parse(webXml);
+        Element root = document.getDocumentElement();
+
+        WebXmlChain chain = new WebXmlChain();
+        for ( Element param : children(root, "context-param") ) {
+            chain.contextParams.put(text(param, "param-name"), text(param, "param-value"));
+        }
+        for ( Element listener : children(root, "listener") ) {
+            String listenerClass = text(listener, "listener-class");
+            if ( listenerClass.startsWith(FEEDS_PACKAGE) ) {
+                chain.listeners.add(listenerClass);
+            }
+        }
+        for ( Element filter : children(root, "filter") ) {
+            FilterDefinition definition = new FilterDefinition(text(filter, "filter-name"),
+                                                               text(filter, "filter-class"),
+                                                               Boolean.parseBoolean(text(filter, "async-supported")));
+            for ( Element param : children(filter, "init-param") ) {
+                definition.initParams.put(text(param, "param-name"), text(param, "param-value"));
+            }
+            chain.filters.put(definition.name, definition);
+        }
+        for ( Element mapping : children(root, "filter-mapping") ) {
+            chain.mappings.add(new String[] { text(mapping, "filter-name"), text(mapping, "url-pattern") });
+        }
+        for ( Element servlet : children(root, "servlet") ) {
+            chain.servletsAsyncSupported.put(text(servlet, "servlet-name"),
+                                             Boolean.parseBoolean(text(servlet, "async-supported")));
+        }
+        for ( Element mapping : children(root, "servlet-mapping") ) {
+            chain.servletMappings.put(text(mapping, "url-pattern"), text(mapping, "servlet-name"));
+        }
+        return chain;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<Element>();
+        NodeList nodes = parent.getChildNodes();
+        for ( int i = 0; i < nodes.getLength(); i++ ) {
+            if ( nodes.item(i) instanceof Element && name.equals(nodes.item(i).getNodeName()) ) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    private static String text(Element parent, String name) {
+        List<Element> children = children(parent, name);
+        return children.isEmpty() ? "" : children.get(0).getTextContent().trim();
+    }
+
+    Map<String, String> getContextParams() {
+        return contextParams;
+    }
+
+    /**
+     * @return the filters, in the order they are mapped
+     */
+    List<FilterDefinition> getMappedFilters() {
+        List<FilterDefinition> mapped = new ArrayList<FilterDefinition>();
+        for ( String[] mapping : mappings ) {
+            FilterDefinition filter = filters.get(mapping[0]);
+            if ( filter != null && !mapped.contains(filter) ) {
+                mapped.add(filter);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * @param urlPattern
+     * @return true if the servlet mapped to urlPattern is async-supported
+     */
+    boolean isServletAsyncSupported(String urlPattern) {
+        Boolean asyncSupported = servletsAsyncSupported.get(servletMappings.get(urlPattern));
+        return asyncSupported != null && asyncSupported;
+    }
+
+    /**
+     * @param name
+     * @return the filter named name, or null if there's none
+     */
+    FilterDefinition getFilter(String name) {
+        return filters.get(name);
+    }
+
+    /**
+     * Adds the context params, listeners and filters to the context, in the order of the
+     * web.xml.
+     *
+     * @param context
+     * @throws Exception if a class can't be loaded
+     */
+    void install(ServletContextHandler context) throws Exception {
+        for ( Map.Entry<String, String> param : contextParams.entrySet() ) {
+            context.setInitParameter(param.getKey(), param.getValue());
+        }
+        for ( String listener : listeners ) {
+            context.addEventListener((ServletContextListener) Class.forName(listener).newInstance());
+        }
+        for ( String[] mapping : mappings ) {
+            FilterDefinition definition = filters.get(mapping[0]);
+            if ( definition == null ) {
+                throw new IllegalArgumentException("filter-mapping of an unknown filter: " + mapping[0]);
+            }
+            FilterHolder holder = new FilterHolder(Class.forName(definition.filterClass).asSubclass(Filter.class));
+            holder.setName(definition.name);
+            holder.setInitParameters(definition.initParams);
+            holder.setAsyncSupported(definition.asyncSupported);
+            context.addFilter(holder, mapping[1], EnumSet.of(DispatcherType.REQUEST));
+        }
+    }
+
+    /**
+     * A filter element of the web.xml
+     */
+    static class FilterDefinition {
+
+        final String name;
+        final String filterClass;
+        final boolean asyncSupported;
+        final Map<String, String> initParams = new LinkedHashMap<String, String>();
+
+        FilterDefinition(String name, String filterClass, boolean asyncSupported) {
+            this.name = name;
+            this.filterClass = filterClass;
+            this.asyncSupported = asyncSupported;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + initParams;
+        }
+    }
+}
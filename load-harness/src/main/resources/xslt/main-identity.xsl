@@ -0,0 +1,20 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+    Stands in for the stylesheets of the standard-usage-schemas rpm (rm_private_attrs_for_obs.xsl),
+    which are not in this project, when LoadHarness boots the filters of web.xml: it copies the
+    response, from the 'main' initial template they use. See main-xml2json.xsl for xml2json-feeds.xsl.
+-->
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+    version="2.0">
+
+    <xsl:template name="main">
+        <xsl:apply-templates select="/"/>
+    </xsl:template>
+
+    <xsl:template match="@*|node()">
+        <xsl:copy>
+            <xsl:apply-templates select="@*|node()"/>
+        </xsl:copy>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,112 @@
+package com.rackspace.feeds.filter
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LoadHarnessTest extends Specification {
+
+    @Shared
+    LoadHarness harness
+
+    def setupSpec() {
+        Properties settings = new Properties()
+        settings.setProperty("harness.threads", "4")
+        settings.setProperty("harness.warmupSeconds", "1")
+        settings.setProperty("harness.durationSeconds", "3")
+        harness = new LoadHarness(settings)
+        harness.start()
+    }
+
+    def cleanupSpec() {
+        harness?.stop()
+    }
+
+    def "should run the mix through the filter chain of web.xml without a wrong or truncated response"() {
+
+        when:
+        LoadReport report = harness.run()
+
+        then:
+        report.getRequests() > 0
+        report.getProblems() == []
+        report.getFailures() == 0
+    }
+
+    @Unroll
+    def "should send #kind responses whole through the chain"() {
+
+        given:
+        LoadDriver driver = new LoadDriver("http://localhost:" + harness.getPort(), 1, 0, 0, 25, [(kind): 1])
+
+        expect:
+        driver.send(kind, kind.path("5914283", 25)).check(kind, 25) == null
+
+        where:
+        kind << RequestKind.values()
+    }
+
+    def "should send responses whole through the chain when Xml2JsonFilter transforms them async"() {
+
+        given:
+        Properties settings = new Properties()
+        settings.setProperty("harness.threads", "4")
+        settings.setProperty("harness.warmupSeconds", "0")
+        settings.setProperty("harness.durationSeconds", "2")
+        settings.setProperty("harness.param.Xml2JsonFilter.asyncTransform", "true")
+        LoadHarness async = new LoadHarness(settings)
+        async.start()
+        LoadDriver driver = new LoadDriver("http://localhost:" + async.getPort(), 1, 0, 0, 25, [(RequestKind.JSON): 1])
+
+        when:
+        def problem = driver.send(RequestKind.JSON, RequestKind.JSON.path("5914283", 25)).check(RequestKind.JSON, 25)
+        LoadReport report = async.run()
+
+        then:
+        problem == null
+        report.getProblems() == []
+        report.getFailures() == 0
+        // only the JSON requests go through a transform of Xml2JsonFilter
+        async.getAtomHopper().getAsyncRequests() > 0
+
+        cleanup:
+        async.stop()
+    }
+
+    def "should tell a cut Atom page from a whole one"() {
+
+        given:
+        byte[] body = ("<feed xmlns=\"http://www.w3.org/2005/Atom\">" +
+                       "<entry><title>${ResponseChecker.PRODUCT_NAME}</title></entry>" * 2 +
+                       "</feed>").getBytes("UTF-8")
+
+        expect:
+        ResponseChecker.check(RequestKind.TENANTED, 2, 200, body.length, body) == null
+        ResponseChecker.check(RequestKind.TENANTED, 2, 200, -1, Arrays.copyOf(body, body.length - 7)).truncated
+        ResponseChecker.check(RequestKind.TENANTED, 2, 200, body.length + 1, body).truncated
+        ResponseChecker.check(RequestKind.TENANTED, 3, 200, body.length, body) != null
+    }
+
+    def "should tell a cut JSON page from a whole one"() {
+
+        given:
+        byte[] body = "{\"feed\":{\"entry\":[{\"title\":\"${ResponseChecker.PRODUCT_NAME} \\\"]\"}]}}".getBytes("UTF-8")
+
+        expect:
+        ResponseChecker.check(RequestKind.JSON, 1, 200, -1, body) == null
+        ResponseChecker.check(RequestKind.JSON, 1, 200, -1, Arrays.copyOf(body, body.length - 2)).truncated
+    }
+
+    def "should not take a body in the wrong charset for a whole one"() {
+
+        given:
+        byte[] body = "{\"feed\":{\"entry\":[{\"title\":\"${ResponseChecker.PRODUCT_NAME}\"}]}}".getBytes("ISO-8859-1")
+
+        when:
+        ResponseChecker.Problem problem = ResponseChecker.check(RequestKind.JSON, 1, 200, -1, body)
+
+        then:
+        problem != null
+        !problem.truncated
+    }
+}